@@ -0,0 +1,52 @@
+package bench;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import Shapes.ShapeStore;
+import UIFrame.SheetExporter;
+
+// The rendering part of saveImage: the whole sheet offscreen, banded on the
+// common pool as the app does it and single threaded for reference
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx2g" })
+@State(Scope.Benchmark)
+public class ExportBenchmark {
+
+    @Param({ "1000", "100000" })
+    public int shapes;
+
+    private ShapeStore snapshot;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        snapshot = SyntheticDocuments.shapes(shapes, 42).snapshot();
+    }
+
+    @Benchmark
+    public BufferedImage parallelBands() {
+        return new SheetExporter(snapshot, null, SyntheticDocuments.SHEET_WIDTH, SyntheticDocuments.SHEET_HEIGHT)
+                .render(ForkJoinPool.commonPool(), SheetExporter.DEFAULT_BAND_HEIGHT, null);
+    }
+
+    @Benchmark
+    public BufferedImage sequential() {
+        return new SheetExporter(snapshot, null, SyntheticDocuments.SHEET_WIDTH, SyntheticDocuments.SHEET_HEIGHT)
+                .renderSequential();
+    }
+}
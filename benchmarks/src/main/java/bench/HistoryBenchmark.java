@@ -0,0 +1,89 @@
+package bench;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import UIFrame.Painter;
+
+// Latency of one undo in a Painter showing a synthetic drawing. move undoes
+// moving a handful of shapes, clear undoes clearing the sheet with the old
+// drawing still in memory, spilled the same with the history over its
+// memory budget, so the drawing comes back from the spill file. Every undo
+// is redone outside the measurement and, for spilled, the next undo waits
+// for the background writer to have put the drawing back in the file.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx3g" })
+@State(Scope.Thread)
+public class HistoryBenchmark {
+
+    private static final int MOVED = 16;
+
+    @Param({ "move", "clear", "spilled" })
+    public String step;
+
+    @Param({ "100000" })
+    public int shapes;
+
+    private Painter painter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        painter = new Painter();
+        painter.setSize(1280, 800);
+        painter.showDocument(SyntheticDocuments.document(shapes, 42));
+        if ("spilled".equals(step)) {
+            painter.setHistoryMemoryBudget(0);
+        }
+        if ("move".equals(step)) {
+            BitSet ids = new BitSet();
+            for (int i = 0; i < MOVED; i++) {
+                ids.set(i * (shapes / MOVED));
+            }
+            painter.setSelection(ids);
+            painter.moveSelection(5, 5);
+        } else {
+            painter.clear();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        painter.dispose();
+    }
+
+    @Setup(Level.Invocation)
+    public void awaitSpill() throws InterruptedException {
+        if ("spilled".equals(step)) {
+            while (painter.getSpilledHistoryBytes() == 0) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void redo() {
+        painter.redo();
+    }
+
+    @Benchmark
+    public Painter undo() {
+        painter.undo();
+        return painter;
+    }
+}
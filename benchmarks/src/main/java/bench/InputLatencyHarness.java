@@ -0,0 +1,124 @@
+package bench;
+
+import java.awt.EventQueue;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import javax.swing.JComponent;
+import javax.swing.RepaintManager;
+import javax.swing.SwingUtilities;
+import UIFrame.Painter;
+import Utils.FrameStats;
+
+// Input-to-photon latency of freehand drawing, the time from a mouse event
+// to the end of the paint that shows it, as the HUD measures it. A thread
+// posts synthetic drag events to the system event queue at a fixed rate,
+// one stroke per second, over a synthetic drawing; repaints are coalesced
+// and run from the event queue like RepaintManager does for a window on
+// screen, into an image. Direct and paced rendering are run in turn and the
+// HUD's percentiles (last 240 frames) are printed.
+// Not a JMH suite, run it with
+//   java -Djava.awt.headless=true -cp target/benchmarks.jar bench.InputLatencyHarness [hz] [seconds] [shapes]
+public class InputLatencyHarness {
+
+    private static final int VIEW_WIDTH = 1280;
+    private static final int VIEW_HEIGHT = 800;
+
+    private final Painter painter = new Painter();
+    private final BufferedImage screen = new BufferedImage(VIEW_WIDTH, VIEW_HEIGHT, BufferedImage.TYPE_INT_RGB);
+    private Rectangle dirty;
+    private int paints;
+
+    public static void main(String[] args) throws Exception {
+        int hz = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int shapes = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        InputLatencyHarness harness = new InputLatencyHarness(shapes);
+        for (boolean paced : new boolean[] { false, true }) {
+            harness.run(paced, hz, seconds);
+        }
+        System.exit(0);
+    }
+
+    private InputLatencyHarness(int shapes) throws Exception {
+        RepaintManager.setCurrentManager(new RepaintManager() {
+            @Override
+            public void addDirtyRegion(JComponent c, int x, int y, int w, int h) {
+                if (c == painter) {
+                    schedulePaint(new Rectangle(x, y, w, h));
+                }
+            }
+        });
+        SwingUtilities.invokeAndWait(() -> {
+            painter.setSize(VIEW_WIDTH, VIEW_HEIGHT);
+            try {
+                painter.showDocument(SyntheticDocuments.document(shapes, 42));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            painter.setTool(Painter.BRUSH);
+            painter.setStrokeSize(12);
+            painter.setDashed(true);
+        });
+    }
+
+    // One paint per burst of repaint requests, covering all of them
+    private void schedulePaint(Rectangle area) {
+        if (dirty != null) {
+            dirty.add(area);
+            return;
+        }
+        dirty = area;
+        EventQueue.invokeLater(() -> {
+            Graphics2D g2 = screen.createGraphics();
+            g2.setClip(dirty.intersection(new Rectangle(VIEW_WIDTH, VIEW_HEIGHT)));
+            dirty = null;
+            painter.paint(g2);
+            g2.dispose();
+            paints++;
+        });
+    }
+
+    private void run(boolean paced, int hz, int seconds) throws Exception {
+        SwingUtilities.invokeAndWait(() -> {
+            painter.setPacedRendering(paced);
+            painter.setHudVisible(true);
+            paints = 0;
+        });
+        EventQueue queue = Toolkit.getDefaultToolkit().getSystemEventQueue();
+        long period = TimeUnit.SECONDS.toNanos(1) / hz;
+        long next = System.nanoTime();
+        for (int stroke = 0; stroke < seconds; stroke++) {
+            for (int i = 0; i < hz; i++) {
+                // a loop around the middle of the view
+                double angle = 2 * Math.PI * i / hz;
+                int x = VIEW_WIDTH / 2 + (int) (300 * Math.cos(angle)) + stroke * 10;
+                int y = VIEW_HEIGHT / 2 + (int) (250 * Math.sin(2 * angle));
+                int id = i == 0 ? MouseEvent.MOUSE_PRESSED : MouseEvent.MOUSE_DRAGGED;
+                queue.postEvent(new MouseEvent(painter, id, System.currentTimeMillis(), InputEvent.BUTTON1_DOWN_MASK,
+                        x, y, i == 0 ? 1 : 0, false, MouseEvent.BUTTON1));
+                next += period;
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+            queue.postEvent(new MouseEvent(painter, MouseEvent.MOUSE_RELEASED, System.currentTimeMillis(), 0,
+                    VIEW_WIDTH / 2 + 300 + stroke * 10, VIEW_HEIGHT / 2, 1, false, MouseEvent.BUTTON1));
+        }
+        SwingUtilities.invokeAndWait(() -> {
+            FrameStats latency = painter.getInputLatency();
+            FrameStats frames = painter.getFrameStats();
+            System.out.printf("%-6s %5d Hz, %d s: %5d paints, input p50 %.2f ms  p99 %.2f ms, frame p50 %.2f ms  p99 %.2f ms%n",
+                    paced ? "paced" : "direct", hz, seconds, paints, latency.percentile(0.5),
+                    latency.percentile(0.99), frames.percentile(0.5), frames.percentile(0.99));
+            painter.setHudVisible(false);
+            for (int stroke = 0; stroke < seconds; stroke++) {
+                painter.undo();
+            }
+        });
+    }
+}
@@ -0,0 +1,74 @@
+package bench;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import UIFrame.Painter;
+
+// A full Painter.paintComponent of a 1280x800 view over synthetic documents
+// at several zoom levels.
+// cold: the tile cache is disabled, every paint renders all visible tiles,
+// which is the cost after an edit or a zoom change.
+// warm: the tiles are cached, which is the cost of panning and repaints.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx2g" })
+@State(Scope.Thread)
+public class PaintBenchmark {
+
+    private static final int VIEW_WIDTH = 1280;
+    private static final int VIEW_HEIGHT = 800;
+
+    @Param({ "1000", "100000", "1000000" })
+    public int shapes;
+
+    @Param({ "0.1", "1.0", "4.0" })
+    public double zoom;
+
+    @Param({ "cold", "warm" })
+    public String cache;
+
+    private Painter painter;
+    private BufferedImage screen;
+    private Graphics2D g2;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        painter = new Painter();
+        painter.setSize(VIEW_WIDTH, VIEW_HEIGHT);
+        painter.showDocument(SyntheticDocuments.document(shapes, 42));
+        painter.zoomTo(zoom);
+        if ("cold".equals(cache)) {
+            painter.setTileCacheMemoryLimit(0);
+        }
+        screen = new BufferedImage(VIEW_WIDTH, VIEW_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        g2 = screen.createGraphics();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        g2.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage paint() {
+        painter.paint(g2);
+        return screen;
+    }
+}
@@ -0,0 +1,60 @@
+package bench;
+
+import java.awt.Color;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import Shapes.PathShape;
+
+// PathShape.addPoint throughput for a long brush stroke, the per mouse event
+// cost of the brush and eraser. Reported per point.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true" })
+@State(Scope.Thread)
+public class PathInputBenchmark {
+
+    private static final int POINTS = 10000;
+
+    // 0 keeps every point, otherwise the minimum distance in canvas pixels
+    @Param({ "0", "1" })
+    public double decimation;
+
+    private int[] xs;
+    private int[] ys;
+
+    @Setup
+    public void setUp() {
+        xs = new int[POINTS];
+        ys = new int[POINTS];
+        // a wavy stroke with small steps, like a fast mouse at 1:1 zoom
+        for (int i = 0; i < POINTS; i++) {
+            xs[i] = 100 + i / 4;
+            ys[i] = 500 + (int) (200 * Math.sin(i / 150.0));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public PathShape addPoints() {
+        PathShape path = new PathShape(xs[0], ys[0], Color.BLACK, 5);
+        path.setDecimation(decimation, decimation == 0 ? 0 : PathShape.DEFAULT_MAX_ANGLE);
+        for (int i = 1; i < POINTS; i++) {
+            path.addPoint(xs[i], ys[i]);
+        }
+        path.finish();
+        return path;
+    }
+}
@@ -0,0 +1,120 @@
+package bench;
+
+import java.awt.Color;
+import java.awt.geom.Path2D;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import Shapes.PathShape;
+
+// Heap kept by freehand strokes: PathShape's delta encoding against the
+// Path2D.Float it replaced, for simulated 1000 Hz mouse strokes. The score
+// is the time to build the strokes, retainedBytesPerSample is the heap they
+// hold after a full GC divided by the input samples. JMH adds counters up
+// over the measured iterations, so there is only one (keep -i 1).
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx1g" })
+@State(Scope.Thread)
+public class PathMemoryBenchmark {
+
+    private static final int STROKES = 2000;
+    private static final int SAMPLES = 2000;
+
+    @Param({ "delta", "path2d" })
+    public String encoding;
+
+    private int[][] xs;
+    private int[][] ys;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public double retainedBytesPerSample;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            retainedBytesPerSample = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        // hand-like strokes: a slowly turning direction, a few pixels a
+        // sample and some jitter
+        Random random = new Random(5);
+        xs = new int[STROKES][SAMPLES];
+        ys = new int[STROKES][SAMPLES];
+        for (int s = 0; s < STROKES; s++) {
+            double x = random.nextInt(4000);
+            double y = random.nextInt(4000);
+            double angle = random.nextDouble() * Math.PI * 2;
+            for (int i = 0; i < SAMPLES; i++) {
+                angle += (random.nextDouble() - 0.5) * 0.2;
+                double step = 0.5 + random.nextDouble() * 3;
+                x += Math.cos(angle) * step;
+                y += Math.sin(angle) * step;
+                xs[s][i] = (int) Math.round(x);
+                ys[s][i] = (int) Math.round(y);
+            }
+        }
+    }
+
+    @Benchmark
+    public Object buildStrokes(Footprint footprint) {
+        long before = usedHeap();
+        ArrayList<Object> strokes = new ArrayList<>(STROKES);
+        for (int s = 0; s < STROKES; s++) {
+            strokes.add("delta".equals(encoding) ? delta(xs[s], ys[s]) : path2d(xs[s], ys[s]));
+        }
+        long after = usedHeap();
+        footprint.retainedBytesPerSample = (double) (after - before) / ((long) STROKES * SAMPLES);
+        return strokes;
+    }
+
+    // What Painter records: decimated at one pixel, trimmed on release
+    private static PathShape delta(int[] xs, int[] ys) {
+        PathShape path = new PathShape(xs[0], ys[0], Color.BLACK, 3);
+        path.setDecimation(PathShape.DEFAULT_MIN_DISTANCE, PathShape.DEFAULT_MAX_ANGLE);
+        for (int i = 1; i < xs.length; i++) {
+            path.addPoint(xs[i], ys[i]);
+        }
+        path.finish();
+        return path;
+    }
+
+    // The former representation, every sample kept
+    private static Path2D.Float path2d(int[] xs, int[] ys) {
+        Path2D.Float path = new Path2D.Float();
+        path.moveTo(xs[0], ys[0]);
+        for (int i = 1; i < xs.length; i++) {
+            path.lineTo(xs[i], ys[i]);
+        }
+        return path;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
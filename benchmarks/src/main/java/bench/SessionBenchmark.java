@@ -0,0 +1,187 @@
+package bench;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import Session.SessionClient;
+import Session.SessionServer;
+import Shapes.PathShape;
+import Shapes.Shape;
+import Shapes.ShapeStore;
+
+// A shared drawing session over loopback: a server and two clients, A
+// drawing and B watching, the server holding a drawing of `shapes` shapes.
+// add is the time from A sending a shape to B's listener getting it. stroke
+// draws a live 100 point stroke at 1000 Hz and commits it, bytesPerPoint is
+// what A sent for it. join connects a new client and waits for the whole
+// drawing, with the bytes the server keeps and sends per shape. JMH adds
+// counters up over measured iterations, so those run only one.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx2g" })
+@State(Scope.Thread)
+public class SessionBenchmark {
+
+    private static final int STROKE_POINTS = 100;
+
+    @Param({ "100000" })
+    public int shapes;
+
+    private SessionServer server;
+    private SessionClient drawing;
+    private SessionClient watching;
+    private final Semaphore watched = new Semaphore(0);
+    private ShapeStore source;
+    private int next;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class StrokeTraffic {
+        public double bytesPerPoint;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesPerPoint = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class JoinTraffic {
+        public double backlogBytesPerShape;
+        public double receivedBytesPerShape;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            backlogBytesPerShape = 0;
+            receivedBytesPerShape = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = SessionServer.start(InetAddress.getLoopbackAddress(), 0);
+        drawing = SessionClient.connect("localhost", server.getPort(), new Counter(null));
+        watching = SessionClient.connect("localhost", server.getPort(), new Counter(watched));
+        source = SyntheticDocuments.shapes(shapes, 42);
+        for (int i = 0; i < shapes; i++) {
+            drawing.sendAdd(source.get(i));
+        }
+        watched.acquireUninterruptibly(shapes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        drawing.close();
+        watching.close();
+        server.close();
+    }
+
+    @Benchmark
+    public void add() {
+        drawing.sendAdd(source.get(next++ % shapes));
+        watched.acquireUninterruptibly();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 1, time = 4)
+    public void stroke(StrokeTraffic traffic) {
+        long sentBefore = drawing.getBytesSent();
+        Random random = new Random(next++);
+        int x = random.nextInt(SyntheticDocuments.SHEET_WIDTH - 400) + 200;
+        int y = random.nextInt(SyntheticDocuments.SHEET_HEIGHT - 400) + 200;
+        PathShape path = new PathShape(x, y, Color.BLACK, 4);
+        drawing.beginPath(x, y, Color.BLACK, 4, false);
+        long period = TimeUnit.MILLISECONDS.toNanos(1);
+        long due = System.nanoTime();
+        for (int i = 0; i < STROKE_POINTS; i++) {
+            x += random.nextInt(7) - 3;
+            y += random.nextInt(7) - 3;
+            path.addPoint(x, y);
+            drawing.addPathPoint(x, y);
+            due += period;
+            LockSupport.parkNanos(due - System.nanoTime());
+        }
+        drawing.endPath();
+        drawing.sendAdd(path);
+        watched.acquireUninterruptibly();
+        // the occasional ping goes in too, it is part of the bandwidth
+        traffic.bytesPerPoint = (double) (drawing.getBytesSent() - sentBefore) / STROKE_POINTS;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 1)
+    public SessionClient join(JoinTraffic traffic) throws IOException {
+        Semaphore received = new Semaphore(0);
+        SessionClient joining = SessionClient.connect("localhost", server.getPort(), new Counter(received));
+        received.acquireUninterruptibly(shapes);
+        traffic.backlogBytesPerShape = (double) server.getBacklogBytes() / shapes;
+        traffic.receivedBytesPerShape = (double) joining.getBytesReceived() / shapes;
+        joining.close();
+        return joining;
+    }
+
+    // Counts the shapes that come in
+    private static class Counter implements SessionClient.Listener {
+        private final Semaphore shapes;
+
+        Counter(Semaphore shapes) {
+            this.shapes = shapes;
+        }
+
+        @Override
+        public void add(int sender, Shape shape) {
+            if (shapes != null) {
+                shapes.release();
+            }
+        }
+
+        @Override
+        public void stroke(int sender, Shape stroke, boolean erase) {
+        }
+
+        @Override
+        public void clear(int sender) {
+        }
+
+        @Override
+        public void pathBegin(int sender, int x, int y, Color color, int strokeSize, boolean dashed) {
+        }
+
+        @Override
+        public void pathPoints(int sender, int[] points, int count) {
+        }
+
+        @Override
+        public void pathEnd(int sender) {
+        }
+
+        @Override
+        public void disconnected(IOException error) {
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package bench;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import Shapes.Line;
+import Shapes.Oval;
+import Shapes.Rectangle;
+import Shapes.Shape;
+import Shapes.TextShape;
+
+// Shape.draw of every subclass, solid / dashed and outlined / filled, onto an
+// anti-aliased offscreen image like a tile
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true" })
+@State(Scope.Thread)
+public class ShapeDrawBenchmark {
+
+    @Param({ "LINE", "RECT", "OVAL", "PATH", "TEXT" })
+    public String type;
+
+    @Param({ "false", "true" })
+    public boolean dashed;
+
+    @Param({ "false", "true" })
+    public boolean filled;
+
+    private BufferedImage target;
+    private Graphics2D g2;
+    private Shape shape;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        target = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB_PRE);
+        g2 = target.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+
+        switch (type) {
+            case "LINE":
+                shape = new Line(20, 30, Color.RED, 5, 230, 200);
+                break;
+            case "RECT":
+                shape = new Rectangle(20, 30, Color.RED, 5, 200, 160);
+                break;
+            case "OVAL":
+                shape = new Oval(20, 30, Color.RED, 5, 200, 160);
+                break;
+            case "PATH":
+                shape = SyntheticDocuments.stroke(new Random(7), 40, 200, Color.RED, 5);
+                break;
+            default:
+                shape = new TextShape(20, 120, Color.RED, 5, "The quick brown fox", "Dialog", 24, Font.PLAIN);
+        }
+        shape.setDashed(dashed);
+        shape.setFilled(filled);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        g2.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage draw() {
+        shape.draw(g2);
+        return target;
+    }
+}
@@ -0,0 +1,133 @@
+package bench;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import Shapes.ColumnarShapeStore;
+import Shapes.ShapeStore;
+
+// The ShapeStore backends side by side on the same synthetic drawing:
+// object list, off-heap columns and a memory-mapped .jpaint document.
+// redraw draws every shape onto a sheet-sized image at 1/4 scale, snapshot
+// is what autosave and export pay before going to the background.
+// footprint loads the drawing, draws it once (the mapped store decodes its
+// chunks on first use) and reports the heap and off-heap bytes per shape;
+// JMH adds counters up over measured iterations, so it runs only one.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx3g" })
+@State(Scope.Thread)
+public class ShapeStoreBenchmark {
+
+    @Param({ "list", "columnar", "mapped" })
+    public String store;
+
+    @Param({ "100000", "1000000" })
+    public int shapes;
+
+    private ShapeStore loaded;
+    private BufferedImage target;
+    private Graphics2D g2;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public double heapBytesPerShape;
+        public double offHeapBytesPerShape;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            heapBytesPerShape = 0;
+            offHeapBytesPerShape = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        loaded = load();
+        int size = SyntheticDocuments.SHEET_WIDTH / 4;
+        target = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB_PRE);
+        g2 = target.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.scale(0.25, 0.25);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        g2.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage redraw() {
+        for (int i = 0, n = loaded.size(); i < n; i++) {
+            loaded.draw(i, g2);
+        }
+        return target;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ShapeStore snapshot() {
+        return loaded.snapshot();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 1)
+    public ShapeStore footprint(Footprint footprint) throws IOException {
+        long before = usedHeap();
+        ShapeStore fresh = load();
+        for (int i = 0, n = fresh.size(); i < n; i++) {
+            fresh.draw(i, g2);
+        }
+        long after = usedHeap();
+        footprint.heapBytesPerShape = (double) (after - before) / shapes;
+        if (fresh instanceof ColumnarShapeStore) {
+            footprint.offHeapBytesPerShape = (double) ((ColumnarShapeStore) fresh).offHeapBytes() / shapes;
+        }
+        return fresh;
+    }
+
+    private ShapeStore load() throws IOException {
+        switch (store) {
+            case "columnar":
+                ShapeStore list = SyntheticDocuments.shapes(shapes, 42);
+                ColumnarShapeStore columnar = new ColumnarShapeStore(shapes);
+                for (int i = 0; i < list.size(); i++) {
+                    columnar.add(list.get(i));
+                }
+                return columnar;
+            case "mapped":
+                return SyntheticDocuments.document(shapes, 42).getShapes();
+            default:
+                return SyntheticDocuments.shapes(shapes, 42);
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
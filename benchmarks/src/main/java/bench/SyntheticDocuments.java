@@ -0,0 +1,95 @@
+package bench;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import Shapes.Line;
+import Shapes.Oval;
+import Shapes.PathShape;
+import Shapes.Rectangle;
+import Shapes.Shape;
+import Shapes.ShapeDocument;
+import Shapes.ShapeList;
+import Shapes.ShapeStore;
+import Shapes.TextShape;
+
+// Reproducible drawings for the benchmarks: a mix of every shape type and
+// style spread over the sheet, roughly what a busy real drawing looks like
+final class SyntheticDocuments {
+
+    static final int SHEET_WIDTH = 4000;
+    static final int SHEET_HEIGHT = 4000;
+
+    private static final Color[] COLORS = {
+            Color.BLACK, Color.RED, Color.BLUE, new Color(0, 128, 0), new Color(255, 128, 0, 160)
+    };
+
+    private SyntheticDocuments() {
+    }
+
+    static ShapeStore shapes(int count, long seed) {
+        Random random = new Random(seed);
+        ShapeList shapes = new ShapeList();
+        for (int i = 0; i < count; i++) {
+            shapes.add(shape(random, i));
+        }
+        return shapes;
+    }
+
+    // Writes the drawing as a .jpaint file and opens it, like a document the
+    // user saved earlier
+    static ShapeDocument document(int count, long seed) throws IOException {
+        Path file = Files.createTempFile("jpainter-bench", ShapeDocument.EXTENSION);
+        file.toFile().deleteOnExit();
+        ShapeDocument.write(file, shapes(count, seed), SHEET_WIDTH, SHEET_HEIGHT, null);
+        return ShapeDocument.open(file);
+    }
+
+    private static Shape shape(Random random, int i) {
+        int x = random.nextInt(SHEET_WIDTH - 100);
+        int y = random.nextInt(SHEET_HEIGHT - 100);
+        Color color = COLORS[random.nextInt(COLORS.length)];
+        int stroke = 1 + random.nextInt(8);
+        Shape s;
+        switch (i % 10) {
+            case 0:
+            case 1:
+                s = new Line(x, y, color, stroke, x + random.nextInt(80), y + random.nextInt(80));
+                break;
+            case 2:
+            case 3:
+                s = new Rectangle(x, y, color, stroke, 5 + random.nextInt(60), 5 + random.nextInt(60));
+                break;
+            case 4:
+            case 5:
+                s = new Oval(x, y, color, stroke, 5 + random.nextInt(60), 5 + random.nextInt(60));
+                break;
+            case 9:
+                s = new TextShape(x, y, color, stroke, "Text " + i, "Dialog", 12 + random.nextInt(12), Font.PLAIN);
+                break;
+            default:
+                s = stroke(random, x, y, color, stroke);
+        }
+        s.setDashed(random.nextInt(4) == 0);
+        s.setFilled(random.nextInt(3) == 0);
+        return s;
+    }
+
+    // Freehand stroke of 20 - 60 points wandering from x, y
+    static PathShape stroke(Random random, int x, int y, Color color, int stroke) {
+        PathShape path = new PathShape(x, y, color, stroke);
+        int px = x;
+        int py = y;
+        int points = 20 + random.nextInt(40);
+        for (int k = 0; k < points; k++) {
+            px += random.nextInt(7) - 2;
+            py += random.nextInt(7) - 3;
+            path.addPoint(px, py);
+        }
+        path.finish();
+        return path;
+    }
+}
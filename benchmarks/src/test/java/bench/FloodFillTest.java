@@ -0,0 +1,111 @@
+package bench;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import Shapes.FloodFill;
+
+// A region too big for the scanline fill is found again by the parallel
+// bands and joined with union-find; both must give the same runs. Without a
+// pool every contiguous fill stays on the scanline path, which is the
+// reference.
+class FloodFillTest {
+
+    private static final int WIDTH = 1600;
+    private static final int HEIGHT = 1200;
+
+    private static ForkJoinPool pool;
+
+    @BeforeAll
+    static void startPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterAll
+    static void stopPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    void parallelRegionMatchesScanline() {
+        int[] pixels = sheet(5);
+        FloodFill.Region scanline = FloodFill.fill(pixels, WIDTH, HEIGHT, 0, 0, 0, true, null);
+        FloodFill.Region parallel = FloodFill.fill(pixels, WIDTH, HEIGHT, 0, 0, 0, true, pool);
+        // past the threshold the scanline fill gives up, so the pool found it
+        assertTrue(scanline.getPixelCount() > FloodFill.PARALLEL_THRESHOLD);
+        assertSameRuns(scanline, parallel);
+    }
+
+    @Test
+    void parallelRegionWithToleranceMatchesScanline() {
+        // the anti-aliased edges of the strokes are close to white
+        int[] pixels = sheet(9);
+        FloodFill.Region scanline = FloodFill.fill(pixels, WIDTH, HEIGHT, WIDTH - 1, HEIGHT - 1, 96, true, null);
+        FloodFill.Region parallel = FloodFill.fill(pixels, WIDTH, HEIGHT, WIDTH - 1, HEIGHT - 1, 96, true, pool);
+        assertTrue(scanline.getPixelCount() > FloodFill.PARALLEL_THRESHOLD);
+        assertSameRuns(scanline, parallel);
+    }
+
+    @Test
+    void smallRegionStaysOnScanline() {
+        int[] pixels = sheet(5);
+        // a closed ring, the fill inside it is small
+        for (int y = 100; y < 140; y++) {
+            for (int x = 100; x < 140; x++) {
+                boolean edge = x == 100 || x == 139 || y == 100 || y == 139;
+                pixels[y * WIDTH + x] = edge ? 0xFF000000 : 0xFF00FF00;
+            }
+        }
+        FloodFill.Region scanline = FloodFill.fill(pixels, WIDTH, HEIGHT, 120, 120, 0, true, null);
+        FloodFill.Region parallel = FloodFill.fill(pixels, WIDTH, HEIGHT, 120, 120, 0, true, pool);
+        assertEquals(38 * 38, scanline.getPixelCount());
+        assertEquals(38, scanline.getRunCount());
+        assertSameRuns(scanline, parallel);
+    }
+
+    // White sheet with random anti-aliased strokes
+    private static int[] sheet(long seed) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = image.createGraphics();
+        g2.setColor(Color.WHITE);
+        g2.fillRect(0, 0, WIDTH, HEIGHT);
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        Random random = new Random(seed);
+        for (int i = 0; i < 120; i++) {
+            g2.setColor(new Color(random.nextInt(0x1000000)));
+            g2.setStroke(new BasicStroke(1 + random.nextInt(4)));
+            int x = 10 + random.nextInt(WIDTH - 20);
+            int y = 10 + random.nextInt(HEIGHT - 20);
+            if (i % 2 == 0) {
+                g2.drawLine(x, y, 10 + random.nextInt(WIDTH - 20), 10 + random.nextInt(HEIGHT - 20));
+            } else {
+                int size = 10 + random.nextInt(200);
+                g2.drawOval(x, y, Math.min(size, WIDTH - 10 - x), Math.min(size, HEIGHT - 10 - y));
+            }
+        }
+        g2.dispose();
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private static void assertSameRuns(FloodFill.Region expected, FloodFill.Region actual) {
+        assertEquals(expected.getRunCount(), actual.getRunCount(), "run count");
+        assertEquals(expected.getPixelCount(), actual.getPixelCount(), "pixel count");
+        for (int i = 0; i < expected.getRunCount(); i++) {
+            String run = "run " + i;
+            assertEquals(expected.runY(i), actual.runY(i), run);
+            assertEquals(expected.runStart(i), actual.runStart(i), run);
+            assertEquals(expected.runEnd(i), actual.runEnd(i), run);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package bench;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.swing.SwingUtilities;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import Shapes.FloodFill;
+import Shapes.Layer;
+import Shapes.RasterLayer;
+import Shapes.Shape;
+import Shapes.ShapeCodec;
+import Shapes.ShapeDocument;
+import Shapes.ShapeList;
+import Shapes.ShapeStore;
+import UIFrame.Journal;
+
+// Crash and recovery of the autosave journal. A child JVM journals shapes
+// one edit at a time and is killed (SIGKILL, nothing flushed or closed), then
+// the journal it left is replayed here. The recovered drawing must be exactly
+// the first shapes drawn, in order, across the compactions that happened
+// before the crash. Replay time and the edits lost to the crash are printed.
+class JournalRecoveryTest {
+
+    private static final int SHAPES = 20000;
+    private static final long SEED = 42;
+
+    // Small enough for several generations to come and go before the kill
+    private static final long COMPACT_BYTES = 64 * 1024;
+
+    private static final long RECOVERY_TIME_LIMIT = TimeUnit.SECONDS.toNanos(10);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void killWhileDrawingRecoversAPrefix() throws Exception {
+        Process child = startChild(COMPACT_BYTES, false);
+        readUntil(child, SHAPES / 2);
+        child.destroyForcibly();
+        child.waitFor();
+
+        long start = System.nanoTime();
+        Recovered recovered = recover();
+        long elapsed = System.nanoTime() - start;
+
+        assertTrue(recovered.shapes.size() > 0, "nothing recovered");
+        assertPrefix(recovered.shapes);
+        assertTrue(elapsed < RECOVERY_TIME_LIMIT, "recovery took " + elapsed / 1000000 + " ms");
+    }
+
+    @Test
+    void closedJournalSurvivesKillAndTornTail() throws Exception {
+        // no compaction: everything stays in one journal after the BASE
+        Process child = startChild(Long.MAX_VALUE, true);
+        assertEquals(-1, readUntil(child, -1));
+        child.destroyForcibly();
+        child.waitFor();
+
+        Recovered recovered = recover();
+        assertEquals(SHAPES, recovered.shapes.size());
+        assertEquals(SHAPES, recovered.replayed);
+        assertPrefix(recovered.shapes);
+
+        // a crash in the middle of the last write
+        File journal = latestJournal();
+        try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        Recovered torn = recover();
+        assertEquals(SHAPES - 1, torn.shapes.size());
+        assertEquals(SHAPES - 1, torn.replayed);
+        assertPrefix(torn.shapes);
+    }
+
+    // Runs Child in a new JVM writing to dir
+    private Process startChild(long compactBytes, boolean close) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-Djava.awt.headless=true", "-cp",
+                System.getProperty("java.class.path"), Child.class.getName(), dir.toString(),
+                Long.toString(compactBytes), Boolean.toString(close));
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return builder.start();
+    }
+
+    // Reads the child's progress until it acknowledged count edits, or until
+    // it closed the journal when count is -1. Returns the last edit seen.
+    private static int readUntil(Process child, int count) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(child.getInputStream()));
+        int last = 0;
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            if (line.equals("closed")) {
+                return -1;
+            }
+            last = Integer.parseInt(line);
+            if (last == count) {
+                return last;
+            }
+        }
+        throw new IOException("Child exited after " + last + " edits");
+    }
+
+    private static class Recovered {
+        final List<Shape> shapes = new ArrayList<>();
+        int replayed;
+    }
+
+    private Recovered recover() throws IOException {
+        Recovered recovered = new Recovered();
+        recovered.replayed = Journal.replay(dir.toFile(), new Journal.Replayer() {
+            @Override
+            public void base(ShapeDocument snapshot, File backgroundImage) {
+                ShapeStore shapes = snapshot.getShapes();
+                for (int i = 0; i < shapes.size(); i++) {
+                    recovered.shapes.add(shapes.get(i));
+                }
+            }
+
+            @Override
+            public void add(Shape shape) {
+                recovered.shapes.add(shape);
+            }
+
+            @Override
+            public void stroke(Shape stroke, boolean erase) {
+                throw new AssertionError("stroke");
+            }
+
+            @Override
+            public void undo() {
+                throw new AssertionError("undo");
+            }
+
+            @Override
+            public void redo() {
+                throw new AssertionError("redo");
+            }
+
+            @Override
+            public void clear() {
+                throw new AssertionError("clear");
+            }
+
+            @Override
+            public void compact() {
+                throw new AssertionError("compact");
+            }
+
+            @Override
+            public void move(BitSet ids, int dx, int dy) {
+                throw new AssertionError("move");
+            }
+
+            @Override
+            public void delete(BitSet ids) {
+                throw new AssertionError("delete");
+            }
+
+            @Override
+            public void layers(List<Layer> layers) {
+                throw new AssertionError("layers");
+            }
+
+            @Override
+            public void fill(FloodFill.Region region, Color color) {
+                throw new AssertionError("fill");
+            }
+
+            @Override
+            public void image(File file, int width, int height) {
+                throw new AssertionError("image");
+            }
+        });
+        return recovered;
+    }
+
+    private File latestJournal() {
+        File latest = null;
+        for (File f : dir.toFile().listFiles()) {
+            if (f.getName().startsWith("journal-") && (latest == null || f.lastModified() >= latest.lastModified())) {
+                latest = f;
+            }
+        }
+        return latest;
+    }
+
+    // The recovered shapes are the first ones the child drew
+    private static void assertPrefix(List<Shape> recovered) throws IOException {
+        ShapeStore expected = SyntheticDocuments.shapes(SHAPES, SEED);
+        assertTrue(recovered.size() <= SHAPES);
+        for (int i = 0; i < recovered.size(); i++) {
+            assertArrayEquals(encode(expected.get(i)), encode(recovered.get(i)), "shape " + i);
+        }
+    }
+
+    private static byte[] encode(Shape shape) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ShapeCodec.write(out, shape);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // The crashing session: draws the synthetic shapes one edit at a time on
+    // the EDT, journaling each with an fsync per batch, and prints the number
+    // of edits made so far. With close it then closes the journal, prints
+    // "closed" and waits to be killed.
+    public static class Child {
+
+        public static void main(String[] args) throws Exception {
+            File dir = new File(args[0]);
+            long compactBytes = Long.parseLong(args[1]);
+            boolean close = Boolean.parseBoolean(args[2]);
+            ShapeStore source = SyntheticDocuments.shapes(SHAPES, SEED);
+            ShapeList drawing = new ShapeList();
+            Journal journal = new Journal(dir, 0, compactBytes, () -> new Journal.State(drawing.snapshot(),
+                    new RasterLayer(), null, SyntheticDocuments.SHEET_WIDTH, SyntheticDocuments.SHEET_HEIGHT));
+            SwingUtilities.invokeAndWait(journal::start);
+            for (int i = 0; i < SHAPES; i++) {
+                Shape shape = source.get(i);
+                SwingUtilities.invokeAndWait(() -> {
+                    drawing.add(shape);
+                    journal.recordAdd(shape);
+                });
+                System.out.println(i + 1);
+            }
+            if (close) {
+                journal.close(false);
+                System.out.println("closed");
+            }
+            System.out.flush();
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package bench;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import Shapes.Layer;
+import Shapes.Line;
+import Shapes.Oval;
+import Shapes.Shape;
+import Shapes.ShapeList;
+import Shapes.ShapeStore;
+import Shapes.TextShape;
+import UIFrame.SheetBackground;
+import UIFrame.SheetExporter;
+
+// The banded, parallel export must give exactly the pixels of the single
+// pass reference, for curves, dashes and text crossing band edges, shapes
+// spanning many bands, a scaled background and layers that are composited
+// per band
+class SheetExporterTest {
+
+    private static final int SIZE = 1500;
+
+    private static ForkJoinPool pool;
+
+    @BeforeAll
+    static void startPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterAll
+    static void stopPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    void bandsMatchSequentialRender() {
+        SheetExporter exporter = new SheetExporter(withLargeShapes(SyntheticDocuments.shapes(3000, 7), 7),
+                background(), SIZE, SIZE);
+        assertMatches(exporter.renderSequential(), exporter.render(pool, 37, null));
+    }
+
+    @Test
+    void layeredBandsMatchSequentialRender() {
+        ShapeStore source = withLargeShapes(SyntheticDocuments.shapes(3000, 11), 11);
+        List<Layer> layers = new ArrayList<>();
+        layers.add(new Layer(0, "Base"));
+        layers.add(new Layer(1, "Multiply", true, 1f, Layer.Blend.MULTIPLY, false));
+        layers.add(new Layer(2, "Faded", true, 0.5f, Layer.Blend.NORMAL, false));
+        ShapeList shapes = new ShapeList();
+        for (int i = 0; i < source.size(); i++) {
+            Shape shape = source.get(i);
+            shape.setLayer(i % layers.size());
+            shapes.add(shape);
+        }
+        SheetExporter exporter = new SheetExporter(shapes, null, layers, null, SIZE, SIZE);
+        assertMatches(exporter.renderSequential(), exporter.render(pool, 37, null));
+    }
+
+    @Test
+    void streamedPngMatchesSequentialRender() throws IOException {
+        SheetExporter exporter = new SheetExporter(withLargeShapes(SyntheticDocuments.shapes(3000, 13), 13),
+                background(), SIZE, SIZE);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        exporter.writePng(png, pool, null);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+        assertMatches(exporter.renderSequential(), decoded);
+    }
+
+    // Adds lines across the sheet, big ovals and text taller than the glyph
+    // cache takes, half of them dashed, all crossing many band edges
+    private static ShapeStore withLargeShapes(ShapeStore source, long seed) {
+        Random random = new Random(seed);
+        ShapeList shapes = new ShapeList();
+        for (int i = 0; i < source.size(); i++) {
+            shapes.add(source.get(i));
+        }
+        Color[] colors = { Color.BLACK, new Color(200, 0, 0, 140), new Color(0, 90, 200, 200) };
+        for (int i = 0; i < 60; i++) {
+            Color color = colors[i % colors.length];
+            int stroke = 1 + random.nextInt(12);
+            int x = random.nextInt(SIZE);
+            int y = random.nextInt(SIZE);
+            Shape s;
+            switch (i % 3) {
+                case 0:
+                    s = new Line(x, y, color, stroke, random.nextInt(SIZE), random.nextInt(SIZE));
+                    break;
+                case 1:
+                    s = new Oval(x - 300, y - 300, color, stroke, 100 + random.nextInt(900), 100 + random.nextInt(900));
+                    s.setFilled(random.nextBoolean());
+                    break;
+                default:
+                    s = new TextShape(x - 200, y, color, stroke, "Band", "Dialog", 90 + random.nextInt(120), Font.BOLD);
+            }
+            s.setDashed(i % 2 == 0);
+            shapes.add(s);
+        }
+        return shapes;
+    }
+
+    // A gradient kept at a third of the sheet size, scaled up when drawn
+    private static SheetBackground background() {
+        BufferedImage image = new BufferedImage(SIZE / 3, SIZE / 3, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = image.createGraphics();
+        g2.setPaint(new GradientPaint(0, 0, new Color(255, 250, 230), SIZE / 3f, SIZE / 5f, new Color(180, 210, 255)));
+        g2.fillRect(0, 0, SIZE / 3, SIZE / 3);
+        g2.dispose();
+        return new SheetBackground(image, SIZE, SIZE);
+    }
+
+    private static void assertMatches(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        int[] want = expected.getRGB(0, 0, expected.getWidth(), expected.getHeight(), null, 0, expected.getWidth());
+        int[] got = actual.getRGB(0, 0, actual.getWidth(), actual.getHeight(), null, 0, actual.getWidth());
+        assertArrayEquals(want, got);
+    }
+}
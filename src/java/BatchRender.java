@@ -0,0 +1,228 @@
+import Shapes.ShapeDocument;
+import UIFrame.BackgroundLoader;
+import UIFrame.SheetBackground;
+import UIFrame.SheetExporter;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+// Headless batch renderer: renders every .jpaint document in a directory to
+// a PNG with the same drawing code as the app, no window needed.
+//
+//   java BatchRender <input dir> [--out dir] [--scale s] [--max-size px]
+//                    [--threads n]
+//
+// Every document gets its own task. Reading and writing files run freely,
+// rasterizing is limited to --threads at a time (default: the number of
+// cores) because it is pure CPU work. Tasks run on virtual threads when the
+// JVM has them and on a pool of platform threads otherwise.
+public class BatchRender {
+
+    private final File outDir;
+    private final double scale;
+    private final int maxSize;
+    private final Semaphore rasterPermits;
+
+    private final AtomicInteger rendered = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytesIn = new AtomicLong();
+
+    public BatchRender(File outDir, double scale, int maxSize, int threads) {
+        this.outDir = outDir;
+        this.scale = scale;
+        this.maxSize = maxSize;
+        this.rasterPermits = new Semaphore(threads);
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+
+        File inDir = null;
+        File outDir = null;
+        double scale = 1.0;
+        int maxSize = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--out":
+                        outDir = new File(args[++i]);
+                        break;
+                    case "--scale":
+                        scale = Double.parseDouble(args[++i]);
+                        break;
+                    case "--max-size":
+                        maxSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        if (args[i].startsWith("--") || inDir != null) {
+                            usage("Unknown argument " + args[i]);
+                            return;
+                        }
+                        inDir = new File(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            usage("Bad argument: " + e.getMessage());
+            return;
+        }
+        if (inDir == null || !inDir.isDirectory() || scale <= 0 || threads <= 0) {
+            usage(inDir == null ? "No input directory" : "Bad input directory or option value");
+            return;
+        }
+        if (outDir == null) {
+            outDir = inDir;
+        }
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            System.err.println("Cannot create " + outDir);
+            System.exit(2);
+        }
+
+        File[] docs = inDir.listFiles((d, name) -> name.toLowerCase().endsWith(ShapeDocument.EXTENSION));
+        BatchRender batch = new BatchRender(outDir, scale, maxSize, threads);
+        int failures = batch.run(docs == null ? new File[0] : docs);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: BatchRender <input dir> [--out dir] [--scale s] [--max-size px] [--threads n]");
+        System.exit(2);
+    }
+
+    // Renders all documents, prints throughput and returns the failure count
+    public int run(File[] docs) throws InterruptedException {
+        long start = System.nanoTime();
+        List<Future<?>> tasks = new ArrayList<>(docs.length);
+        try (Executor executor = newExecutor()) {
+            for (File doc : docs) {
+                tasks.add(executor.service.submit(() -> renderOne(doc)));
+            }
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (java.util.concurrent.ExecutionException e) {
+                    // renderOne reports its own errors
+                }
+            }
+        }
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        System.out.printf("%d rendered, %d failed in %.2f s: %.1f docs/s, %.1f MB/s (%s threads)%n",
+                rendered.get(), failed.get(), seconds, rendered.get() / seconds,
+                bytesIn.get() / 1e6 / seconds, VIRTUAL_THREADS != null ? "virtual" : "platform");
+        return failed.get();
+    }
+
+    private void renderOne(File file) {
+        try {
+            ShapeDocument doc = ShapeDocument.open(file.toPath());
+            double s = scale;
+            if (maxSize > 0) {
+                s = Math.min(s, (double) maxSize / Math.max(doc.getWidth(), doc.getHeight()));
+            }
+            SheetBackground background = doc.hasBackground() ? readBackground(doc, s) : null;
+
+            BufferedImage image;
+            rasterPermits.acquire();
+            try {
+                image = new SheetExporter(doc.getShapes(), doc.getRaster(), doc.getLayers(), background,
+                        doc.getWidth(), doc.getHeight()).renderScaled(s);
+            } finally {
+                rasterPermits.release();
+            }
+
+            String name = file.getName();
+            name = name.substring(0, name.length() - ShapeDocument.EXTENSION.length()) + ".png";
+            ImageIO.write(image, "png", new File(outDir, name));
+            bytesIn.addAndGet(file.length());
+            rendered.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            System.err.println(file.getName() + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            failed.incrementAndGet();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Decodes the embedded background subsampled to about the output size
+    private static SheetBackground readBackground(ShapeDocument doc, double scale) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(doc.openBackground())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported background image");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, (int) Math.floor(1 / scale));
+                param.setSourceSubsampling(step, step, 0, 0);
+                BufferedImage image = reader.read(0, param);
+                return new SheetBackground(BackgroundLoader.toBlitFormat(image), doc.getWidth(), doc.getHeight());
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() where it exists (Java 21),
+    // looked up by reflection so this still builds and runs on Java 17
+    private static final java.lang.reflect.Method VIRTUAL_THREADS = findVirtualThreads();
+
+    private static java.lang.reflect.Method findVirtualThreads() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private Executor newExecutor() {
+        if (VIRTUAL_THREADS != null) {
+            try {
+                return new Executor((ExecutorService) VIRTUAL_THREADS.invoke(null));
+            } catch (ReflectiveOperationException e) {
+                // fall through to platform threads
+            }
+        }
+        // without virtual threads blocked I/O holds a thread, so allow a few
+        // more threads than rasterizing permits
+        int threads = rasterPermits.availablePermits() * 2;
+        return new Executor(Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "batch-render");
+            t.setDaemon(true);
+            return t;
+        }));
+    }
+
+    // ExecutorService is only AutoCloseable from Java 19 on
+    private static class Executor implements AutoCloseable {
+        final ExecutorService service;
+
+        Executor(ExecutorService service) {
+            this.service = service;
+        }
+
+        @Override
+        public void close() {
+            service.shutdown();
+        }
+    }
+}
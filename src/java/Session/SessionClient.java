@@ -0,0 +1,355 @@
+package Session;
+
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.InflaterInputStream;
+import Shapes.Shape;
+import Shapes.ShapeCodec;
+import Utils.FrameStats;
+
+// One participant of a shared drawing session. The send methods only encode
+// and queue, a writer thread does the socket writes; a reader thread decodes
+// what the others did and hands it to the Listener. Neither blocks the
+// caller, so they can be called on the EDT.
+// Live brush points are collected and sent once per flush interval (a
+// display frame by default) instead of one frame per mouse event.
+// A ping every second measures the round trip to the server.
+public class SessionClient implements AutoCloseable {
+
+    public static final int DEFAULT_FLUSH_INTERVAL = 16;
+    private static final long PING_INTERVAL = 1_000_000_000L;
+
+    // Called on the reader thread, in the order the server relayed the frames
+    public interface Listener {
+        void add(int sender, Shape shape);
+
+        void stroke(int sender, Shape stroke, boolean erase);
+
+        void clear(int sender);
+
+        // Live stroke of another participant, points holds x, y pairs
+        void pathBegin(int sender, int x, int y, Color color, int strokeSize, boolean dashed);
+
+        void pathPoints(int sender, int[] points, int count);
+
+        // The live stroke ended or its owner left
+        void pathEnd(int sender);
+
+        // The connection is gone, error is null after close()
+        void disconnected(IOException error);
+    }
+
+    private final Socket socket;
+    private final Listener listener;
+    private final LinkedBlockingQueue<byte[]> out = new LinkedBlockingQueue<>();
+    private final Thread reader;
+    private final Thread writer;
+    private volatile int id = 0;
+    private volatile boolean closed = false;
+    private volatile int flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    // Live points not sent yet, x, y pairs, guarded by this
+    private int[] pending = new int[256];
+    private int pendingCount = 0;
+    private int lastX, lastY;
+
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final FrameStats roundTrips = new FrameStats();
+
+    // Last point of the live stroke of each other participant, only used by
+    // the reader thread
+    private final HashMap<Integer, int[]> remoteEnds = new HashMap<>();
+
+    private SessionClient(Socket socket, Listener listener) {
+        this.socket = socket;
+        this.listener = listener;
+        reader = new Thread(this::readLoop, "session-client-read");
+        writer = new Thread(this::writeLoop, "session-client-write");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+    }
+
+    public static SessionClient connect(String host, int port, Listener listener) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), 5000);
+        socket.setTcpNoDelay(true);
+        SessionClient client = new SessionClient(socket, listener);
+        client.reader.start();
+        client.writer.start();
+        return client;
+    }
+
+    // Id the server gave this client, 0 until its welcome arrived
+    public int getId() {
+        return id;
+    }
+
+    // Milliseconds live points are collected before they are sent, 0 sends
+    // every point on its own
+    public void setFlushInterval(int millis) {
+        flushInterval = Math.max(0, millis);
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    // Round trip to the server in milliseconds, p between 0 and 1
+    public double roundTripPercentile(double p) {
+        synchronized (roundTrips) {
+            return roundTrips.percentile(p);
+        }
+    }
+
+    public void sendAdd(Shape shape) {
+        SessionProtocol.FrameWriter frame = new SessionProtocol.FrameWriter(SessionProtocol.ADD);
+        writeShape(frame, shape);
+        send(frame.toFrame());
+    }
+
+    public void sendStroke(Shape stroke, boolean erase) {
+        SessionProtocol.FrameWriter frame = new SessionProtocol.FrameWriter(SessionProtocol.STROKE);
+        frame.write(erase ? 1 : 0);
+        writeShape(frame, stroke);
+        send(frame.toFrame());
+    }
+
+    public void sendClear() {
+        send(new SessionProtocol.FrameWriter(SessionProtocol.CLEAR).toFrame());
+    }
+
+    public synchronized void beginPath(int x, int y, Color color, int strokeSize, boolean dashed) {
+        pendingCount = 0;
+        lastX = x;
+        lastY = y;
+        SessionProtocol.FrameWriter frame = new SessionProtocol.FrameWriter(SessionProtocol.PATH_BEGIN);
+        frame.writeInt(x);
+        frame.writeInt(y);
+        frame.writeInt(color.getRGB());
+        frame.writeInt(strokeSize);
+        frame.write(dashed ? 1 : 0);
+        send(frame.toFrame());
+    }
+
+    public synchronized void addPathPoint(int x, int y) {
+        if (pendingCount * 2 == pending.length) {
+            pending = Arrays.copyOf(pending, pending.length * 2);
+        }
+        pending[pendingCount * 2] = x;
+        pending[pendingCount * 2 + 1] = y;
+        pendingCount++;
+        if (flushInterval == 0) {
+            flushPoints();
+        }
+    }
+
+    // Sends the points still waiting, then the end of the stroke
+    public synchronized void endPath() {
+        flushPoints();
+        send(new SessionProtocol.FrameWriter(SessionProtocol.PATH_END).toFrame());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        writer.interrupt();
+    }
+
+    private static void writeShape(SessionProtocol.FrameWriter frame, Shape shape) {
+        try {
+            ShapeCodec.write(new DataOutputStream(frame), shape);
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void send(byte[] frame) {
+        if (!closed) {
+            out.add(frame);
+        }
+    }
+
+    // One PATH_POINTS frame with the points collected so far
+    private synchronized void flushPoints() {
+        if (pendingCount == 0) {
+            return;
+        }
+        SessionProtocol.FrameWriter frame = new SessionProtocol.FrameWriter(SessionProtocol.PATH_POINTS);
+        frame.writeVarint(pendingCount);
+        for (int i = 0; i < pendingCount; i++) {
+            int x = pending[i * 2];
+            int y = pending[i * 2 + 1];
+            frame.writeVarint(x - lastX);
+            frame.writeVarint(y - lastY);
+            lastX = x;
+            lastY = y;
+        }
+        pendingCount = 0;
+        send(frame.toFrame());
+    }
+
+    private void writeLoop() {
+        ArrayList<byte[]> batch = new ArrayList<>();
+        long nextPing = System.nanoTime();
+        try {
+            OutputStream stream = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            while (!closed) {
+                int interval = flushInterval;
+                byte[] first = out.poll(interval > 0 ? interval : 100, TimeUnit.MILLISECONDS);
+                if (interval > 0) {
+                    flushPoints();
+                }
+                long now = System.nanoTime();
+                if (now >= nextPing) {
+                    SessionProtocol.FrameWriter ping = new SessionProtocol.FrameWriter(SessionProtocol.PING);
+                    ping.writeLong(now);
+                    send(ping.toFrame());
+                    nextPing = now + PING_INTERVAL;
+                }
+                batch.clear();
+                if (first != null) {
+                    batch.add(first);
+                }
+                out.drainTo(batch);
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                SessionProtocol.writeFrames(stream, batch);
+                for (byte[] frame : batch) {
+                    bytesSent.addAndGet(frame.length);
+                }
+                framesSent.addAndGet(batch.size());
+            }
+        } catch (IOException e) {
+            disconnect(e);
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private void readLoop() {
+        IOException error = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            byte[] frame;
+            while ((frame = SessionProtocol.readFrame(in)) != null) {
+                bytesReceived.addAndGet(frame.length);
+                dispatch(frame);
+            }
+            error = new java.io.EOFException("The session server closed the connection");
+        } catch (IOException e) {
+            error = e;
+        }
+        disconnect(closed ? null : error);
+    }
+
+    private void disconnect(IOException error) {
+        if (reader == Thread.currentThread()) {
+            listener.disconnected(error);
+        } else {
+            // the reader reports it once the socket is closed
+            close();
+        }
+    }
+
+    private void dispatch(byte[] frame) throws IOException {
+        int sender = SessionProtocol.senderOf(frame);
+        ByteArrayInputStream bytes = new ByteArrayInputStream(frame, SessionProtocol.HEADER_SIZE,
+                frame.length - SessionProtocol.HEADER_SIZE);
+        DataInputStream in = new DataInputStream(bytes);
+        switch (SessionProtocol.typeOf(frame)) {
+            case SessionProtocol.WELCOME:
+                id = sender;
+                break;
+            case SessionProtocol.ADD:
+                listener.add(sender, ShapeCodec.read(in));
+                break;
+            case SessionProtocol.STROKE: {
+                boolean erase = in.readBoolean();
+                listener.stroke(sender, ShapeCodec.read(in), erase);
+                break;
+            }
+            case SessionProtocol.CLEAR:
+                listener.clear(sender);
+                break;
+            case SessionProtocol.PATH_BEGIN: {
+                int x = in.readInt();
+                int y = in.readInt();
+                remoteEnds.put(sender, new int[] { x, y });
+                listener.pathBegin(sender, x, y, new Color(in.readInt(), true), in.readInt(), in.readBoolean());
+                break;
+            }
+            case SessionProtocol.PATH_POINTS: {
+                int[] end = remoteEnds.get(sender);
+                if (end == null) {
+                    break;
+                }
+                // deltas continue from the last point of the previous batch
+                int count = SessionProtocol.readVarint(bytes);
+                int[] points = new int[count * 2];
+                for (int i = 0; i < count; i++) {
+                    end[0] += SessionProtocol.readVarint(bytes);
+                    end[1] += SessionProtocol.readVarint(bytes);
+                    points[i * 2] = end[0];
+                    points[i * 2 + 1] = end[1];
+                }
+                listener.pathPoints(sender, points, count);
+                break;
+            }
+            case SessionProtocol.PATH_END:
+            case SessionProtocol.LEAVE:
+                if (remoteEnds.remove(sender) != null) {
+                    listener.pathEnd(sender);
+                }
+                break;
+            case SessionProtocol.SNAPSHOT: {
+                // the older part of the drawing, as the frames it was made of
+                try (DataInputStream frames = new DataInputStream(new InflaterInputStream(bytes))) {
+                    byte[] inner;
+                    while ((inner = SessionProtocol.readFrame(frames)) != null) {
+                        dispatch(inner);
+                    }
+                }
+                break;
+            }
+            case SessionProtocol.PING: {
+                long rtt = System.nanoTime() - in.readLong();
+                synchronized (roundTrips) {
+                    roundTrips.frame(0, rtt);
+                }
+                break;
+            }
+            default:
+                // newer message type, skip it
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package Session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Wire format of a shared drawing session. Every message is one frame:
+//
+//   length  int, bytes after this field
+//   type    byte, one of the constants below
+//   sender  int, 0 from a client; the server puts in the id of the client
+//           that sent it before relaying
+//   body    depends on the type
+//
+// Shapes are encoded with Shapes.ShapeCodec. Live brush points are batched:
+// PATH_POINTS carries every sample since the last frame as zig-zag varint
+// deltas, usually two bytes per point.
+public final class SessionProtocol {
+
+    public static final int DEFAULT_PORT = 47020;
+
+    // Frames bigger than this are a protocol error
+    static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    static final int HEADER_SIZE = 9;
+
+    static final byte WELCOME = 0;     // to a new client, sender is its id
+    static final byte ADD = 1;         // a committed shape: ShapeCodec record
+    static final byte STROKE = 2;      // a baked stroke: erase flag, ShapeCodec record
+    static final byte CLEAR = 3;       // the sheet was cleared
+    static final byte PATH_BEGIN = 4;  // live stroke started: x, y, argb, stroke size, dashed
+    static final byte PATH_POINTS = 5; // point count, then dx, dy per point as varints
+    static final byte PATH_END = 6;    // live stroke finished, its ADD or STROKE follows
+    static final byte PING = 7;        // send time in nanos, echoed to the sender only
+    static final byte LEAVE = 8;       // a client left, from the server
+    static final byte SNAPSHOT = 9;    // to a new client: earlier ADD, STROKE and CLEAR frames, deflated
+
+    private SessionProtocol() {
+    }
+
+    // Builds frames: header first, the length is filled in by toFrame
+    static class FrameWriter extends ByteArrayOutputStream {
+
+        FrameWriter(byte type) {
+            super(64);
+            writeInt(0);
+            write(type);
+            writeInt(0);
+        }
+
+        void writeInt(int v) {
+            write(v >>> 24);
+            write(v >>> 16);
+            write(v >>> 8);
+            write(v);
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        void writeVarint(int v) {
+            int zigzag = (v << 1) ^ (v >> 31);
+            while ((zigzag & ~0x7F) != 0) {
+                write((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            write(zigzag);
+        }
+
+        byte[] toFrame() {
+            int length = count - 4;
+            buf[0] = (byte) (length >>> 24);
+            buf[1] = (byte) (length >>> 16);
+            buf[2] = (byte) (length >>> 8);
+            buf[3] = (byte) length;
+            return toByteArray();
+        }
+    }
+
+    // Reads one whole frame, length field included. Null at the end of the
+    // stream.
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (java.io.EOFException e) {
+            return null;
+        }
+        if (length < HEADER_SIZE - 4 || length > MAX_FRAME) {
+            throw new IOException("Bad session frame length " + length);
+        }
+        byte[] frame = new byte[length + 4];
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        in.readFully(frame, 4, length);
+        return frame;
+    }
+
+    static byte typeOf(byte[] frame) {
+        return frame[4];
+    }
+
+    static int senderOf(byte[] frame) {
+        return ((frame[5] & 0xFF) << 24) | ((frame[6] & 0xFF) << 16) | ((frame[7] & 0xFF) << 8) | (frame[8] & 0xFF);
+    }
+
+    static void setSender(byte[] frame, int sender) {
+        frame[5] = (byte) (sender >>> 24);
+        frame[6] = (byte) (sender >>> 16);
+        frame[7] = (byte) (sender >>> 8);
+        frame[8] = (byte) sender;
+    }
+
+    static int readVarint(InputStream in) throws IOException {
+        int zigzag = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new java.io.EOFException();
+            }
+            zigzag |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Bad varint");
+    }
+
+    static void writeFrames(OutputStream out, Iterable<byte[]> frames) throws IOException {
+        for (byte[] frame : frames) {
+            out.write(frame);
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,287 @@
+package Session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Relay of a shared drawing session: every frame a client sends is stamped
+// with the client's id and passed on to all other clients, in the order the
+// server received them. Edits since the last clear are kept and sent to
+// clients that join later, so they start with the same drawing; once they
+// add up to SNAPSHOT_BYTES they are folded into one deflated SNAPSHOT frame,
+// so a long session keeps its drawing compressed in a few large arrays
+// rather than as a frame per shape.
+//
+//   java Session.SessionServer [port]
+//
+// Each client has a reader thread and a writer thread. The writer drains
+// everything queued for its client into one buffered write, so a busy
+// session costs few syscalls, and a client that stops reading is dropped
+// once its queue passes OUT_LIMIT instead of holding up the others.
+public class SessionServer implements AutoCloseable {
+
+    private static final long OUT_LIMIT = 8L * 1024 * 1024;
+    private static final int SNAPSHOT_BYTES = 1024 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final CopyOnWriteArrayList<Peer> peers = new CopyOnWriteArrayList<>();
+    private final Thread acceptor;
+    private int nextId = 1;
+    private volatile boolean closed = false;
+
+    // ADD, STROKE and the last CLEAR in order, guarded by this. The first
+    // snapshotCount are SNAPSHOT frames holding the older ones, the frames
+    // after them add up to tailBytes.
+    private final ArrayList<byte[]> edits = new ArrayList<>();
+    private int snapshotCount = 0;
+    private int tailBytes = 0;
+    private long backlogBytes = 0;
+
+    private final AtomicLong framesRelayed = new AtomicLong();
+
+    private SessionServer(ServerSocket serverSocket) {
+        this.serverSocket = serverSocket;
+        acceptor = new Thread(this::acceptLoop, "session-accept");
+        acceptor.setDaemon(true);
+    }
+
+    // Listens on every interface, port 0 picks a free one
+    public static SessionServer start(int port) throws IOException {
+        return start(null, port);
+    }
+
+    public static SessionServer start(InetAddress bindAddress, int port) throws IOException {
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(bindAddress, port));
+        SessionServer server = new SessionServer(socket);
+        server.acceptor.start();
+        return server;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : SessionProtocol.DEFAULT_PORT;
+        SessionServer server = start(port);
+        System.out.println("Session server listening on port " + server.getPort());
+        server.acceptor.join();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getClientCount() {
+        return peers.size();
+    }
+
+    public long getFramesRelayed() {
+        return framesRelayed.get();
+    }
+
+    // Bytes kept for clients that join later
+    public synchronized long getBacklogBytes() {
+        return backlogBytes;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        for (Peer peer : peers) {
+            peer.close();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                join(socket);
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Session server: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Welcome and the drawing so far go out before the client sees any newer
+    // frame, both happen under the same lock as relaying
+    private synchronized void join(Socket socket) throws IOException {
+        Peer peer = new Peer(socket, nextId++);
+        SessionProtocol.FrameWriter welcome = new SessionProtocol.FrameWriter(SessionProtocol.WELCOME);
+        byte[] frame = welcome.toFrame();
+        SessionProtocol.setSender(frame, peer.id);
+        peer.send(frame);
+        for (byte[] edit : edits) {
+            // the backlog does not count against the limit
+            peer.limit += edit.length;
+            peer.send(edit);
+        }
+        peers.add(peer);
+        peer.start();
+    }
+
+    private synchronized void relay(Peer from, byte[] frame) {
+        SessionProtocol.setSender(frame, from.id);
+        byte type = SessionProtocol.typeOf(frame);
+        if (type == SessionProtocol.PING) {
+            from.send(frame);
+            return;
+        }
+        if (type == SessionProtocol.CLEAR) {
+            edits.clear();
+            snapshotCount = 0;
+            tailBytes = 0;
+            backlogBytes = 0;
+            keep(frame);
+        } else if (type == SessionProtocol.ADD || type == SessionProtocol.STROKE) {
+            keep(frame);
+        }
+        for (Peer peer : peers) {
+            if (peer != from) {
+                peer.send(frame);
+            }
+        }
+        framesRelayed.incrementAndGet();
+    }
+
+    private void keep(byte[] frame) {
+        edits.add(frame);
+        tailBytes += frame.length;
+        backlogBytes += frame.length;
+        if (tailBytes >= SNAPSHOT_BYTES) {
+            foldTail();
+        }
+    }
+
+    // Replaces the frames after the snapshots by one SNAPSHOT frame. Runs
+    // under the relay lock, a megabyte at the fastest deflate level is a few
+    // milliseconds.
+    private void foldTail() {
+        SessionProtocol.FrameWriter snapshot = new SessionProtocol.FrameWriter(SessionProtocol.SNAPSHOT);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(snapshot, deflater)) {
+            for (int i = snapshotCount; i < edits.size(); i++) {
+                out.write(edits.get(i));
+            }
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new IllegalStateException(e);
+        } finally {
+            deflater.end();
+        }
+        byte[] frame = snapshot.toFrame();
+        edits.subList(snapshotCount, edits.size()).clear();
+        edits.add(frame);
+        snapshotCount++;
+        backlogBytes += frame.length - tailBytes;
+        tailBytes = 0;
+    }
+
+    private synchronized void leave(Peer peer) {
+        if (!peers.remove(peer)) {
+            return;
+        }
+        peer.close();
+        // others drop the live stroke of the client that left
+        byte[] frame = new SessionProtocol.FrameWriter(SessionProtocol.LEAVE).toFrame();
+        SessionProtocol.setSender(frame, peer.id);
+        for (Peer other : peers) {
+            other.send(frame);
+        }
+    }
+
+    private class Peer {
+        final Socket socket;
+        final int id;
+        final LinkedBlockingQueue<byte[]> out = new LinkedBlockingQueue<>();
+        final AtomicLong queuedBytes = new AtomicLong();
+        long limit = OUT_LIMIT;
+        final Thread reader;
+        final Thread writer;
+
+        Peer(Socket socket, int id) {
+            this.socket = socket;
+            this.id = id;
+            reader = new Thread(this::readLoop, "session-read-" + id);
+            writer = new Thread(this::writeLoop, "session-write-" + id);
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+        }
+
+        void start() {
+            reader.start();
+            writer.start();
+        }
+
+        void send(byte[] frame) {
+            if (queuedBytes.addAndGet(frame.length) > limit) {
+                // not reading, let it go rather than buffer without end
+                close();
+                return;
+            }
+            out.add(frame);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+            writer.interrupt();
+        }
+
+        private void readLoop() {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+                byte[] frame;
+                while ((frame = SessionProtocol.readFrame(in)) != null) {
+                    relay(this, frame);
+                }
+            } catch (IOException e) {
+                // disconnected
+            }
+            leave(this);
+        }
+
+        private void writeLoop() {
+            ArrayList<byte[]> batch = new ArrayList<>();
+            try {
+                OutputStream stream = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                while (true) {
+                    batch.clear();
+                    batch.add(out.take());
+                    out.drainTo(batch);
+                    SessionProtocol.writeFrames(stream, batch);
+                    long sent = 0;
+                    for (byte[] frame : batch) {
+                        sent += frame.length;
+                    }
+                    queuedBytes.addAndGet(-sent);
+                }
+            } catch (IOException e) {
+                leave(this);
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package Shapes;
+import java.awt.Composite;
+import java.awt.CompositeContext;
+import java.awt.RenderingHints;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+// Composite for the blend modes Java2D has no rule for. The source is
+// scaled by the opacity, then mixed with the destination with the usual
+// separable blend formulas, worked out on premultiplied 8 bit channels:
+//
+//   result = src * (1 - dstAlpha) + dst * (1 - srcAlpha) + mix(src, dst)
+//
+// Packed int pixels (every BufferedImage type Painter uses) are done a row
+// at a time; other color models go through ColorModel one pixel at a time.
+public final class BlendComposite implements Composite {
+
+    private final Layer.Blend blend;
+    private final int alpha;
+
+    public BlendComposite(Layer.Blend blend, float opacity) {
+        this.blend = blend;
+        this.alpha = Math.round(Math.max(0f, Math.min(opacity, 1f)) * 255);
+    }
+
+    @Override
+    public CompositeContext createContext(ColorModel srcColorModel, ColorModel dstColorModel, RenderingHints hints) {
+        return new Context(srcColorModel, dstColorModel);
+    }
+
+    // Blends one premultiplied ARGB pixel over another
+    int blend(int src, int dst) {
+        int sa = src >>> 24;
+        if (alpha != 255) {
+            src = scale(src, alpha);
+            sa = src >>> 24;
+        }
+        if (sa == 0) {
+            return dst;
+        }
+        int da = dst >>> 24;
+        int outA = sa + da - div255(sa * da);
+        int outR = channel((src >> 16) & 0xFF, (dst >> 16) & 0xFF, sa, da, outA);
+        int outG = channel((src >> 8) & 0xFF, (dst >> 8) & 0xFF, sa, da, outA);
+        int outB = channel(src & 0xFF, dst & 0xFF, sa, da, outA);
+        return outA << 24 | outR << 16 | outG << 8 | outB;
+    }
+
+    private int channel(int s, int d, int sa, int da, int outA) {
+        int mix;
+        switch (blend) {
+            case MULTIPLY:
+                mix = s * d;
+                break;
+            case SCREEN:
+                mix = s * da + d * sa - s * d;
+                break;
+            case DARKEN:
+                mix = Math.min(s * da, d * sa);
+                break;
+            case LIGHTEN:
+                mix = Math.max(s * da, d * sa);
+                break;
+            default:
+                mix = s * da;
+        }
+        int c = div255(s * (255 - da) + d * (255 - sa) + mix);
+        return Math.min(c, outA);
+    }
+
+    private static int scale(int argb, int a) {
+        return div255((argb >>> 24) * a) << 24 | div255(((argb >> 16) & 0xFF) * a) << 16
+                | div255(((argb >> 8) & 0xFF) * a) << 8 | div255((argb & 0xFF) * a);
+    }
+
+    // x / 255 rounded, exact for 0 .. 255 * 255
+    private static int div255(int x) {
+        x += 128;
+        return (x + (x >> 8)) >> 8;
+    }
+
+    // Layout of packed int pixels with 8 bit channels, null for anything else
+    private static final class Packed {
+        final int rShift, gShift, bShift, aShift;
+        final boolean hasAlpha;
+        final boolean premultiplied;
+
+        private Packed(DirectColorModel cm) {
+            rShift = Integer.numberOfTrailingZeros(cm.getRedMask());
+            gShift = Integer.numberOfTrailingZeros(cm.getGreenMask());
+            bShift = Integer.numberOfTrailingZeros(cm.getBlueMask());
+            hasAlpha = cm.hasAlpha();
+            aShift = hasAlpha ? Integer.numberOfTrailingZeros(cm.getAlphaMask()) : 0;
+            premultiplied = cm.isAlphaPremultiplied();
+        }
+
+        static Packed of(ColorModel cm) {
+            if (!(cm instanceof DirectColorModel) || cm.getTransferType() != DataBuffer.TYPE_INT) {
+                return null;
+            }
+            DirectColorModel dcm = (DirectColorModel) cm;
+            if (Integer.bitCount(dcm.getRedMask()) != 8 || Integer.bitCount(dcm.getGreenMask()) != 8
+                    || Integer.bitCount(dcm.getBlueMask()) != 8
+                    || dcm.hasAlpha() && Integer.bitCount(dcm.getAlphaMask()) != 8) {
+                return null;
+            }
+            return new Packed(dcm);
+        }
+
+        // To premultiplied ARGB
+        int decode(int p) {
+            int a = hasAlpha ? (p >>> aShift) & 0xFF : 255;
+            int r = (p >>> rShift) & 0xFF;
+            int g = (p >>> gShift) & 0xFF;
+            int b = (p >>> bShift) & 0xFF;
+            if (!premultiplied && a != 255) {
+                r = div255(r * a);
+                g = div255(g * a);
+                b = div255(b * a);
+            }
+            return a << 24 | r << 16 | g << 8 | b;
+        }
+
+        int encode(int argb) {
+            int a = argb >>> 24;
+            int r = (argb >> 16) & 0xFF;
+            int g = (argb >> 8) & 0xFF;
+            int b = argb & 0xFF;
+            if (!premultiplied && a != 255) {
+                if (a == 0) {
+                    r = g = b = 0;
+                } else {
+                    r = Math.min(255, (r * 255 + a / 2) / a);
+                    g = Math.min(255, (g * 255 + a / 2) / a);
+                    b = Math.min(255, (b * 255 + a / 2) / a);
+                }
+            }
+            return (hasAlpha ? a << aShift : 0) | r << rShift | g << gShift | b << bShift;
+        }
+    }
+
+    private final class Context implements CompositeContext {
+        private final ColorModel srcModel;
+        private final ColorModel dstModel;
+        private final Packed src;
+        private final Packed dst;
+
+        Context(ColorModel srcModel, ColorModel dstModel) {
+            this.srcModel = srcModel;
+            this.dstModel = dstModel;
+            this.src = Packed.of(srcModel);
+            this.dst = Packed.of(dstModel);
+        }
+
+        @Override
+        public void compose(Raster srcRaster, Raster dstIn, WritableRaster dstOut) {
+            int w = Math.min(srcRaster.getWidth(), dstIn.getWidth());
+            int h = Math.min(srcRaster.getHeight(), dstIn.getHeight());
+            if (src != null && dst != null) {
+                int[] srcRow = new int[w];
+                int[] dstRow = new int[w];
+                for (int y = 0; y < h; y++) {
+                    srcRaster.getDataElements(srcRaster.getMinX(), srcRaster.getMinY() + y, w, 1, srcRow);
+                    dstIn.getDataElements(dstIn.getMinX(), dstIn.getMinY() + y, w, 1, dstRow);
+                    for (int x = 0; x < w; x++) {
+                        dstRow[x] = dst.encode(blend(src.decode(srcRow[x]), dst.decode(dstRow[x])));
+                    }
+                    dstOut.setDataElements(dstOut.getMinX(), dstOut.getMinY() + y, w, 1, dstRow);
+                }
+                return;
+            }
+            Object srcPixel = null;
+            Object dstPixel = null;
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    srcPixel = srcRaster.getDataElements(srcRaster.getMinX() + x, srcRaster.getMinY() + y, srcPixel);
+                    dstPixel = dstIn.getDataElements(dstIn.getMinX() + x, dstIn.getMinY() + y, dstPixel);
+                    int out = blend(premultiply(srcModel.getRGB(srcPixel)), premultiply(dstModel.getRGB(dstPixel)));
+                    dstPixel = dstModel.getDataElements(unpremultiply(out), dstPixel);
+                    dstOut.setDataElements(dstOut.getMinX() + x, dstOut.getMinY() + y, dstPixel);
+                }
+            }
+        }
+
+        @Override
+        public void dispose() {
+        }
+    }
+
+    private static int premultiply(int argb) {
+        int a = argb >>> 24;
+        if (a == 255) {
+            return argb;
+        }
+        return a << 24 | div255(((argb >> 16) & 0xFF) * a) << 16 | div255(((argb >> 8) & 0xFF) * a) << 8
+                | div255((argb & 0xFF) * a);
+    }
+
+    private static int unpremultiply(int argb) {
+        int a = argb >>> 24;
+        if (a == 255 || a == 0) {
+            return a == 0 ? 0 : argb;
+        }
+        return a << 24 | Math.min(255, (((argb >> 16) & 0xFF) * 255 + a / 2) / a) << 16
+                | Math.min(255, (((argb >> 8) & 0xFF) * 255 + a / 2) / a) << 8
+                | Math.min(255, ((argb & 0xFF) * 255 + a / 2) / a);
+    }
+}
@@ -0,0 +1,436 @@
+package Shapes;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+// ShapeStore that keeps shapes as struct-of-arrays in direct (off-heap)
+// buffers instead of one object per shape, so millions of shapes cost no
+// object headers and nothing for the GC to trace.
+// Every shape is one row of int columns; freehand points go to an off-heap
+// byte pool and text, which is rare, stays as TextShape objects.
+// Drawing goes through reused flyweights, one per shape type and thread.
+// Snapshots share the buffers: rows, pool bytes and texts are only ever
+// appended, so each store remembers up to where its buffers are shared (the
+// fences) and copies them first if it has to write below that, which only
+// happens after removeLast.
+public class ColumnarShapeStore implements ShapeStore {
+
+    private static final int TYPE_LINE = 1;
+    private static final int TYPE_RECT = 2;
+    private static final int TYPE_OVAL = 3;
+    private static final int TYPE_PATH = 4;
+    private static final int TYPE_TEXT = 5;
+
+    private static final int FLAG_DASHED = 1;
+    private static final int FLAG_FILLED = 2;
+
+    // Columns, one int per shape each
+    private static final int META = 0;  // type | flags << 8 | strokeSize << 16
+    private static final int X = 1;
+    private static final int Y = 2;
+    private static final int A = 3;     // x2 for lines, width for rect/oval
+    private static final int B = 4;     // y2 for lines, height for rect/oval
+    private static final int ARGB = 5;
+    private static final int EXTRA = 6; // path pool offset or text index
+    private static final int BX = 7;    // cached bounds
+    private static final int BY = 8;
+    private static final int BW = 9;
+    private static final int BH = 10;
+    private static final int LAYER = 11;
+    private static final int COLUMNS = 12;
+
+    // Path pool record: length, pointCount, minX, minY, maxX, maxY, bytes
+    private static final int PATH_HEADER = 24;
+
+    private IntBuffer[] columns = new IntBuffer[COLUMNS];
+    private int capacity;
+    private int size = 0;
+
+    private ByteBuffer pathPool;
+    private int poolEnd = 0;
+
+    private TextShape[] texts = new TextShape[8];
+    private int textCount = 0;
+
+    // Rows, pool bytes and texts below these are shared with other stores
+    private int columnsFence = 0;
+    private int poolFence = 0;
+    private int textFence = 0;
+
+    // Flyweights used by draw, one set per thread so a snapshot can be drawn
+    // in parallel
+    private static final ThreadLocal<Views> views = ThreadLocal.withInitial(Views::new);
+
+    public ColumnarShapeStore() {
+        this(1024);
+    }
+
+    public ColumnarShapeStore(int initialCapacity) {
+        capacity = Math.max(16, initialCapacity);
+        for (int c = 0; c < COLUMNS; c++) {
+            columns[c] = allocateInts(capacity);
+        }
+        pathPool = ByteBuffer.allocateDirect(64 * 1024);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // Off-heap bytes held by the columns and the path pool
+    public long offHeapBytes() {
+        return (long) capacity * COLUMNS * 4 + pathPool.capacity();
+    }
+
+    @Override
+    public Shape get(int index) {
+        checkIndex(index);
+        int meta = col(META, index);
+        int type = meta & 0xFF;
+        if (type == TYPE_TEXT) {
+            return texts[col(EXTRA, index)];
+        }
+        Shape s;
+        if (type == TYPE_LINE) {
+            s = new Line(0, 0, Color.BLACK, 1, 0, 0);
+        } else if (type == TYPE_RECT) {
+            s = new Rectangle(0, 0, Color.BLACK, 1, 0, 0);
+        } else if (type == TYPE_OVAL) {
+            s = new Oval(0, 0, Color.BLACK, 1, 0, 0);
+        } else {
+            s = new PathShape(0, 0, Color.BLACK, 1);
+        }
+        load(views.get(), s, index, meta, true);
+        return s;
+    }
+
+    @Override
+    public java.awt.Rectangle getBounds(int index) {
+        checkIndex(index);
+        return new java.awt.Rectangle(col(BX, index), col(BY, index), col(BW, index), col(BH, index));
+    }
+
+    @Override
+    public int getLayer(int index) {
+        checkIndex(index);
+        return col(LAYER, index);
+    }
+
+    @Override
+    public void draw(int index, Graphics2D g2) {
+        view(index).draw(g2);
+    }
+
+    @Override
+    public void drawDraft(int index, Graphics2D g2, double tolerance, double minTextHeight) {
+        view(index).drawDraft(g2, tolerance, minTextHeight);
+    }
+
+    @Override
+    public void drawPick(int index, Graphics2D g2, Color pickColor) {
+        view(index).drawPick(g2, pickColor);
+    }
+
+    // The flyweight of this thread loaded with a row, valid until the next
+    // call
+    private Shape view(int index) {
+        checkIndex(index);
+        int meta = col(META, index);
+        Views v = views.get();
+        switch (meta & 0xFF) {
+            case TYPE_LINE:
+                load(v, v.line, index, meta, false);
+                return v.line;
+            case TYPE_RECT:
+                load(v, v.rect, index, meta, false);
+                return v.rect;
+            case TYPE_OVAL:
+                load(v, v.oval, index, meta, false);
+                return v.oval;
+            case TYPE_PATH:
+                load(v, v.path, index, meta, false);
+                return v.path;
+            default:
+                return texts[col(EXTRA, index)];
+        }
+    }
+
+    @Override
+    public void add(Shape shape) {
+        if (size == capacity) {
+            grow();
+        } else if (size < columnsFence) {
+            unshareColumns();
+        }
+        int type;
+        int a = 0, b = 0, extra = 0;
+        if (shape instanceof Line) {
+            Line l = (Line) shape;
+            type = TYPE_LINE;
+            a = l.x2;
+            b = l.y2;
+        } else if (shape instanceof Rectangle) {
+            Rectangle r = (Rectangle) shape;
+            type = TYPE_RECT;
+            a = r.width;
+            b = r.height;
+        } else if (shape instanceof Oval) {
+            Oval o = (Oval) shape;
+            type = TYPE_OVAL;
+            a = o.width;
+            b = o.height;
+        } else if (shape instanceof PathShape) {
+            type = TYPE_PATH;
+            extra = writePath((PathShape) shape);
+        } else if (shape instanceof TextShape) {
+            type = TYPE_TEXT;
+            extra = addText((TextShape) shape);
+        } else {
+            throw new IllegalArgumentException("Unsupported shape: " + shape.getClass().getName());
+        }
+
+        int flags = (shape.dashed ? FLAG_DASHED : 0) | (shape.filled ? FLAG_FILLED : 0);
+        java.awt.Rectangle bounds = shape.getBounds();
+        int i = size;
+        columns[META].put(i, type | flags << 8 | shape.strokeSize << 16);
+        columns[X].put(i, shape.x);
+        columns[Y].put(i, shape.y);
+        columns[A].put(i, a);
+        columns[B].put(i, b);
+        columns[ARGB].put(i, shape.color.getRGB());
+        columns[EXTRA].put(i, extra);
+        columns[BX].put(i, bounds.x);
+        columns[BY].put(i, bounds.y);
+        columns[BW].put(i, bounds.width);
+        columns[BH].put(i, bounds.height);
+        columns[LAYER].put(i, shape.layer);
+        size++;
+    }
+
+    @Override
+    public Shape removeLast() {
+        Shape last = get(size - 1);
+        int type = col(META, size - 1) & 0xFF;
+        // shapes are only removed from the end, so their variable data is at
+        // the end of the pool too
+        if (type == TYPE_PATH) {
+            poolEnd = col(EXTRA, size - 1);
+        } else if (type == TYPE_TEXT) {
+            if (--textCount >= textFence) {
+                texts[textCount] = null;
+            }
+        }
+        size--;
+        return last;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        poolEnd = 0;
+        // shared buffers stay with the snapshots, the next writes get new ones
+        if (columnsFence > 0) {
+            columns = new IntBuffer[COLUMNS];
+            capacity = 1024;
+            for (int c = 0; c < COLUMNS; c++) {
+                columns[c] = allocateInts(capacity);
+            }
+            columnsFence = 0;
+        }
+        if (poolFence > 0) {
+            pathPool = ByteBuffer.allocateDirect(64 * 1024);
+            poolFence = 0;
+        }
+        if (textFence > 0) {
+            texts = new TextShape[8];
+            textFence = 0;
+        } else {
+            Arrays.fill(texts, 0, textCount, null);
+        }
+        textCount = 0;
+    }
+
+    @Override
+    public ShapeStore newEmpty() {
+        return new ColumnarShapeStore();
+    }
+
+    // Shares the buffers in constant time. This store keeps appending past
+    // the fences; the snapshot copies before any write of its own.
+    @Override
+    public ShapeStore snapshot() {
+        ColumnarShapeStore copy = new ColumnarShapeStore(this);
+        // an older snapshot may still see rows removed since
+        columnsFence = Math.max(columnsFence, size);
+        poolFence = Math.max(poolFence, poolEnd);
+        textFence = Math.max(textFence, textCount);
+        return copy;
+    }
+
+    private ColumnarShapeStore(ColumnarShapeStore source) {
+        columns = source.columns.clone();
+        capacity = source.capacity;
+        size = source.size;
+        pathPool = source.pathPool;
+        poolEnd = source.poolEnd;
+        texts = source.texts;
+        textCount = source.textCount;
+        columnsFence = capacity;
+        poolFence = pathPool.capacity();
+        textFence = texts.length;
+    }
+
+    // Copies a row into a shape; copies own their point buffer, flyweights
+    // reuse the scratch array
+    private void load(Views v, Shape s, int index, int meta, boolean copy) {
+        int argb = col(ARGB, index);
+        if (argb != v.lastArgb) {
+            v.lastArgb = argb;
+            v.lastColor = StyleTable.color(argb);
+        }
+        int flags = (meta >>> 8) & 0xFF;
+        s.setStyle(v.lastColor, meta >>> 16, (flags & FLAG_DASHED) != 0, (flags & FLAG_FILLED) != 0);
+        s.setOrigin(col(X, index), col(Y, index));
+        s.layer = col(LAYER, index);
+
+        int a = col(A, index);
+        int b = col(B, index);
+        if (s instanceof Line) {
+            ((Line) s).x2 = a;
+            ((Line) s).y2 = b;
+        } else if (s instanceof Rectangle) {
+            ((Rectangle) s).width = a;
+            ((Rectangle) s).height = b;
+        } else if (s instanceof Oval) {
+            ((Oval) s).width = a;
+            ((Oval) s).height = b;
+        } else if (s instanceof PathShape) {
+            readPath(v, (PathShape) s, index, copy);
+        }
+    }
+
+    private int writePath(PathShape path) {
+        int length = path.encodedLength();
+        ensurePool(PATH_HEADER + length);
+        if (poolEnd < poolFence) {
+            pathPool = copyPool(pathPool.capacity());
+            poolFence = 0;
+        }
+        int offset = poolEnd;
+        int[] extent = path.extent();
+        pathPool.putInt(offset, length);
+        pathPool.putInt(offset + 4, path.getPointCount());
+        for (int k = 0; k < 4; k++) {
+            pathPool.putInt(offset + 8 + k * 4, extent[k]);
+        }
+        ByteBuffer dst = pathPool.duplicate();
+        dst.position(offset + PATH_HEADER);
+        dst.put(path.encodedData(), 0, length);
+        poolEnd = offset + PATH_HEADER + length;
+        return offset;
+    }
+
+    private void readPath(Views v, PathShape path, int index, boolean copy) {
+        int offset = col(EXTRA, index);
+        int length = pathPool.getInt(offset);
+        byte[] target;
+        if (copy) {
+            target = new byte[length];
+        } else {
+            if (v.pathScratch.length < length) {
+                v.pathScratch = new byte[Math.max(length, v.pathScratch.length * 2)];
+            }
+            target = v.pathScratch;
+        }
+        ByteBuffer src = pathPool.duplicate();
+        src.position(offset + PATH_HEADER);
+        src.get(target, 0, length);
+        path.load(col(X, index), col(Y, index), target, length, pathPool.getInt(offset + 4),
+                pathPool.getInt(offset + 8), pathPool.getInt(offset + 12),
+                pathPool.getInt(offset + 16), pathPool.getInt(offset + 20));
+    }
+
+    private int col(int column, int index) {
+        return columns[column].get(index);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+    }
+
+    private int addText(TextShape text) {
+        if (textCount == texts.length || textCount < textFence) {
+            texts = Arrays.copyOf(texts, textCount == texts.length ? textCount * 2 : texts.length);
+            textFence = 0;
+        }
+        texts[textCount] = text;
+        return textCount++;
+    }
+
+    private void grow() {
+        copyColumns(capacity + (capacity >> 1));
+    }
+
+    // Own copies of the columns before writing below the fence
+    private void unshareColumns() {
+        copyColumns(capacity);
+    }
+
+    private void copyColumns(int newCapacity) {
+        IntBuffer[] copies = new IntBuffer[COLUMNS];
+        for (int c = 0; c < COLUMNS; c++) {
+            IntBuffer bigger = allocateInts(newCapacity);
+            IntBuffer old = columns[c].duplicate();
+            old.position(0).limit(size);
+            bigger.put(old);
+            bigger.clear();
+            copies[c] = bigger;
+        }
+        columns = copies;
+        capacity = newCapacity;
+        columnsFence = 0;
+    }
+
+    private void ensurePool(int extra) {
+        if (poolEnd + extra <= pathPool.capacity()) {
+            return;
+        }
+        long wanted = Math.max((long) pathPool.capacity() * 3 / 2, (long) poolEnd + extra);
+        if (wanted > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Path pool is full");
+        }
+        pathPool = copyPool((int) wanted);
+        poolFence = 0;
+    }
+
+    private ByteBuffer copyPool(int newCapacity) {
+        ByteBuffer bigger = ByteBuffer.allocateDirect(newCapacity);
+        ByteBuffer old = pathPool.duplicate();
+        old.position(0).limit(poolEnd);
+        bigger.put(old);
+        bigger.clear();
+        return bigger;
+    }
+
+    // Per-thread flyweights and the last color they used, consecutive shapes
+    // usually share it
+    private static class Views {
+        final Line line = new Line(0, 0, Color.BLACK, 1, 0, 0);
+        final Rectangle rect = new Rectangle(0, 0, Color.BLACK, 1, 0, 0);
+        final Oval oval = new Oval(0, 0, Color.BLACK, 1, 0, 0);
+        final PathShape path = new PathShape(0, 0, Color.BLACK, 1);
+        byte[] pathScratch = new byte[256];
+        int lastArgb = Color.BLACK.getRGB();
+        Color lastColor = Color.BLACK;
+    }
+
+    private static IntBuffer allocateInts(int count) {
+        return ByteBuffer.allocateDirect(count * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+}
@@ -0,0 +1,412 @@
+package Shapes;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Paint bucket region finder over a rendered sheet (packed ARGB pixels).
+// A pixel belongs to the region when every channel is within tolerance of
+// the seed pixel; contiguous regions grow from the seed through the four
+// neighbours, global ones take every matching pixel of the sheet.
+//
+// Contiguous fills start as a plain scanline fill: a seed grows into the
+// whole run of matching pixels on its row, and the rows above and below get
+// one seed per matching run under it. Its cost follows the region, so small
+// regions stay on the calling thread. A region that grows past
+// PARALLEL_THRESHOLD pixels on a big sheet is found again in parallel: the
+// sheet is cut into bands of rows, one task each, that find their runs of
+// matching pixels and join the runs that touch across rows (union-find).
+// The bands' runs are then joined across band edges and the region is every
+// run joined to the seed's. Global fills only need the bands' runs.
+public final class FloodFill {
+
+    // Regions (and for global fills sheets) smaller than this are filled on
+    // the calling thread
+    public static final int PARALLEL_THRESHOLD = 512 * 1024;
+
+    private FloodFill() {
+    }
+
+    // The filled pixels as runs per row, in row order
+    public static final class Region {
+        // y, x start, x end (exclusive) per run
+        private final int[] runs;
+        private final int runCount;
+        private final java.awt.Rectangle bounds;
+        private final long pixelCount;
+
+        Region(int[] runs, int runCount) {
+            this.runs = runs;
+            this.runCount = runCount;
+            int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+            long pixels = 0;
+            for (int i = 0; i < runCount; i++) {
+                int y = runs[i * 3];
+                x0 = Math.min(x0, runs[i * 3 + 1]);
+                x1 = Math.max(x1, runs[i * 3 + 2]);
+                y0 = Math.min(y0, y);
+                y1 = Math.max(y1, y + 1);
+                pixels += runs[i * 3 + 2] - runs[i * 3 + 1];
+            }
+            this.bounds = runCount == 0 ? new java.awt.Rectangle() : new java.awt.Rectangle(x0, y0, x1 - x0, y1 - y0);
+            this.pixelCount = pixels;
+        }
+
+        public boolean isEmpty() {
+            return runCount == 0;
+        }
+
+        public int getRunCount() {
+            return runCount;
+        }
+
+        public long getPixelCount() {
+            return pixelCount;
+        }
+
+        public java.awt.Rectangle getBounds() {
+            return new java.awt.Rectangle(bounds);
+        }
+
+        public int runY(int i) {
+            return runs[i * 3];
+        }
+
+        public int runStart(int i) {
+            return runs[i * 3 + 1];
+        }
+
+        public int runEnd(int i) {
+            return runs[i * 3 + 2];
+        }
+
+        // The same runs moved by dx, dy
+        public Region translated(int dx, int dy) {
+            int[] moved = new int[runCount * 3];
+            for (int i = 0; i < runCount; i++) {
+                moved[i * 3] = runs[i * 3] + dy;
+                moved[i * 3 + 1] = runs[i * 3 + 1] + dx;
+                moved[i * 3 + 2] = runs[i * 3 + 2] + dx;
+            }
+            return new Region(moved, runCount);
+        }
+
+        // Record: run count, then y, start, end per run
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(runCount);
+            for (int i = 0; i < runCount * 3; i++) {
+                out.writeInt(runs[i]);
+            }
+        }
+
+        public static Region read(DataInput in) throws IOException {
+            int count = in.readInt();
+            if (count < 0 || count > Integer.MAX_VALUE / 3) {
+                throw new IOException("Bad fill run count " + count);
+            }
+            int[] runs = new int[count * 3];
+            for (int i = 0; i < runs.length; i++) {
+                runs[i] = in.readInt();
+            }
+            return new Region(runs, count);
+        }
+    }
+
+    // The region at (x, y). tolerance is the largest channel difference
+    // (0 .. 255) that still matches; pool may be null for a single thread.
+    public static Region fill(int[] pixels, int width, int height, int x, int y, int tolerance, boolean contiguous,
+            ForkJoinPool pool) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return new Region(new int[0], 0);
+        }
+        int seed = pixels[y * width + x];
+        boolean parallel = pool != null && pool.getParallelism() > 1 && (long) width * height >= PARALLEL_THRESHOLD;
+        if (contiguous) {
+            Region region = scanline(pixels, width, height, x, y, seed, tolerance,
+                    parallel ? PARALLEL_THRESHOLD : Long.MAX_VALUE);
+            if (region != null) {
+                return region;
+            }
+        }
+
+        int bandCount = parallel ? Math.min(height, pool.getParallelism() * 4) : 1;
+        int bandHeight = (height + bandCount - 1) / bandCount;
+        bandCount = (height + bandHeight - 1) / bandHeight;
+        Band[] bands = new Band[bandCount];
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(bandCount);
+        for (int b = 0; b < bandCount; b++) {
+            Band band = new Band(pixels, width, b * bandHeight, Math.min(height, (b + 1) * bandHeight), seed,
+                    tolerance, contiguous);
+            bands[b] = band;
+            if (parallel) {
+                tasks.add(pool.submit(band::findRuns));
+            } else {
+                band.findRuns();
+            }
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+
+        int total = 0;
+        for (Band band : bands) {
+            band.offset = total;
+            total += band.runCount;
+        }
+        int[] runs = new int[total * 3];
+        for (Band band : bands) {
+            System.arraycopy(band.runs, 0, runs, band.offset * 3, band.runCount * 3);
+        }
+        if (!contiguous) {
+            return new Region(runs, total);
+        }
+
+        // One union-find over all runs. Roots are always the smallest index,
+        // so parents point backwards and a single forward pass flattens it.
+        int[] parent = new int[total];
+        for (Band band : bands) {
+            for (int i = 0; i < band.runCount; i++) {
+                parent[band.offset + i] = band.parent[i] + band.offset;
+            }
+        }
+        for (int b = 1; b < bandCount; b++) {
+            Band above = bands[b - 1];
+            Band below = bands[b];
+            joinRows(runs, parent, above.offset + above.rowStart[above.rows - 1], above.offset + above.runCount,
+                    below.offset, below.offset + below.rowStart[1]);
+        }
+        for (int i = 0; i < total; i++) {
+            parent[i] = parent[parent[i]];
+        }
+
+        int seedRun = -1;
+        Band home = bands[y / bandHeight];
+        for (int i = home.rowStart[y - home.y0]; i < home.rowStart[y - home.y0 + 1]; i++) {
+            if (home.runs[i * 3 + 1] <= x && x < home.runs[i * 3 + 2]) {
+                seedRun = home.offset + i;
+                break;
+            }
+        }
+        int root = parent[seedRun];
+        int count = 0;
+        for (int i = 0; i < total; i++) {
+            if (parent[i] == root) {
+                runs[count * 3] = runs[i * 3];
+                runs[count * 3 + 1] = runs[i * 3 + 1];
+                runs[count * 3 + 2] = runs[i * 3 + 2];
+                count++;
+            }
+        }
+        return new Region(runs, count);
+    }
+
+    // Joins the runs a0 .. a1 of one row with the touching runs b0 .. b1 of
+    // the next, both sorted by x
+    static void joinRows(int[] runs, int[] parent, int a0, int a1, int b0, int b1) {
+        int a = a0;
+        int b = b0;
+        while (a < a1 && b < b1) {
+            if (runs[a * 3 + 1] < runs[b * 3 + 2] && runs[b * 3 + 1] < runs[a * 3 + 2]) {
+                union(parent, a, b);
+            }
+            if (runs[a * 3 + 2] < runs[b * 3 + 2]) {
+                a++;
+            } else {
+                b++;
+            }
+        }
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int ra = find(parent, a);
+        int rb = find(parent, b);
+        if (ra < rb) {
+            parent[rb] = ra;
+        } else if (rb < ra) {
+            parent[ra] = rb;
+        }
+    }
+
+    // Single threaded fill with a stack of seeds and a mask of filled pixels,
+    // null once more than limit pixels are filled. The mask is a BitSet per
+    // row, made when the fill first reaches the row, so a small fill on a
+    // big sheet only pays for the rows it touches.
+    private static Region scanline(int[] pixels, int width, int height, int x, int y, int seed, int tolerance,
+            long limit) {
+        BitSet[] filledRows = new BitSet[height];
+        int[] stack = new int[64];
+        int size = 0;
+        stack[size++] = y * width + x;
+        int[] runs = new int[48];
+        int runCount = 0;
+        long filled = 0;
+        while (size > 0) {
+            int s = stack[--size];
+            int rowY = s / width;
+            BitSet mask = filledRows[rowY];
+            if (mask == null) {
+                mask = new BitSet(width);
+                filledRows[rowY] = mask;
+            }
+            int row = rowY * width;
+            if (mask.get(s - row) || !matches(pixels[s], seed, tolerance)) {
+                continue;
+            }
+            int left = s - row;
+            while (left > 0 && !mask.get(left - 1) && matches(pixels[row + left - 1], seed, tolerance)) {
+                left--;
+            }
+            int right = s - row + 1;
+            while (right < width && !mask.get(right) && matches(pixels[row + right], seed, tolerance)) {
+                right++;
+            }
+            mask.set(left, right);
+            filled += right - left;
+            if (filled > limit) {
+                return null;
+            }
+            if (runCount * 3 == runs.length) {
+                runs = java.util.Arrays.copyOf(runs, runs.length * 2);
+            }
+            runs[runCount * 3] = rowY;
+            runs[runCount * 3 + 1] = left;
+            runs[runCount * 3 + 2] = right;
+            runCount++;
+            // one seed per open run of the rows above and below
+            for (int nextY = rowY - 1; nextY <= rowY + 1; nextY += 2) {
+                if (nextY < 0 || nextY >= height) {
+                    continue;
+                }
+                BitSet nextMask = filledRows[nextY];
+                int next = nextY * width;
+                boolean inRun = false;
+                for (int i = left; i < right; i++) {
+                    boolean open = (nextMask == null || !nextMask.get(i)) && matches(pixels[next + i], seed, tolerance);
+                    if (open && !inRun) {
+                        if (size == stack.length) {
+                            stack = java.util.Arrays.copyOf(stack, size * 2);
+                        }
+                        stack[size++] = next + i;
+                    }
+                    inRun = open;
+                }
+            }
+        }
+        // runs come out in fill order, the region keeps them by row: counted
+        // out by row, then by x within a row
+        int[] rowStart = new int[height + 1];
+        for (int i = 0; i < runCount; i++) {
+            rowStart[runs[i * 3] + 1]++;
+        }
+        for (int r = 0; r < height; r++) {
+            rowStart[r + 1] += rowStart[r];
+        }
+        int[] sorted = new int[runCount * 3];
+        int[] next = java.util.Arrays.copyOf(rowStart, height);
+        for (int i = 0; i < runCount; i++) {
+            int at = next[runs[i * 3]]++;
+            System.arraycopy(runs, i * 3, sorted, at * 3, 3);
+        }
+        for (int r = 0; r < height; r++) {
+            for (int i = rowStart[r] + 1; i < rowStart[r + 1]; i++) {
+                for (int j = i; j > rowStart[r] && sorted[j * 3 + 1] < sorted[(j - 1) * 3 + 1]; j--) {
+                    int start = sorted[j * 3 + 1];
+                    int end = sorted[j * 3 + 2];
+                    sorted[j * 3 + 1] = sorted[(j - 1) * 3 + 1];
+                    sorted[j * 3 + 2] = sorted[(j - 1) * 3 + 2];
+                    sorted[(j - 1) * 3 + 1] = start;
+                    sorted[(j - 1) * 3 + 2] = end;
+                }
+            }
+        }
+        return new Region(sorted, runCount);
+    }
+
+    static boolean matches(int p, int seed, int tolerance) {
+        if (p == seed) {
+            return true;
+        }
+        return tolerance > 0
+                && Math.abs((p >>> 24) - (seed >>> 24)) <= tolerance
+                && Math.abs(((p >> 16) & 0xFF) - ((seed >> 16) & 0xFF)) <= tolerance
+                && Math.abs(((p >> 8) & 0xFF) - ((seed >> 8) & 0xFF)) <= tolerance
+                && Math.abs((p & 0xFF) - (seed & 0xFF)) <= tolerance;
+    }
+
+    // Rows y0 .. y1 (exclusive) of the sheet: its runs of matching pixels,
+    // and for a contiguous fill which of them touch
+    private static final class Band {
+        final int[] pixels;
+        final int width;
+        final int y0, y1, rows;
+        final int seed;
+        final int tolerance;
+        final boolean join;
+        int[] runs = new int[48];
+        int runCount;
+        // index of the first run of every row, plus the end
+        final int[] rowStart;
+        int[] parent;
+        int offset;
+
+        Band(int[] pixels, int width, int y0, int y1, int seed, int tolerance, boolean join) {
+            this.pixels = pixels;
+            this.width = width;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.rows = y1 - y0;
+            this.seed = seed;
+            this.tolerance = tolerance;
+            this.join = join;
+            this.rowStart = new int[rows + 1];
+        }
+
+        void findRuns() {
+            for (int y = y0; y < y1; y++) {
+                rowStart[y - y0] = runCount;
+                int row = y * width;
+                int x = 0;
+                while (x < width) {
+                    while (x < width && !matches(pixels[row + x], seed, tolerance)) {
+                        x++;
+                    }
+                    int start = x;
+                    while (x < width && matches(pixels[row + x], seed, tolerance)) {
+                        x++;
+                    }
+                    if (x > start) {
+                        if (runCount * 3 == runs.length) {
+                            runs = java.util.Arrays.copyOf(runs, runs.length * 2);
+                        }
+                        runs[runCount * 3] = y;
+                        runs[runCount * 3 + 1] = start;
+                        runs[runCount * 3 + 2] = x;
+                        runCount++;
+                    }
+                }
+            }
+            rowStart[rows] = runCount;
+            if (join) {
+                parent = new int[runCount];
+                for (int i = 0; i < runCount; i++) {
+                    parent[i] = i;
+                }
+                for (int r = 1; r < rows; r++) {
+                    joinRows(runs, parent, rowStart[r - 1], rowStart[r], rowStart[r], rowStart[r + 1]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package Shapes;
+import java.awt.AlphaComposite;
+import java.awt.Composite;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// A named layer of a drawing. Shapes refer to their layer by id (see
+// Shape.getLayer), so layers can be reordered and restyled without touching
+// a shape. Layers are immutable: every change makes a new one, which lets
+// undo steps, snapshots and export threads share them.
+public final class Layer {
+
+    // How a layer is combined with what is under it, same meaning as the
+    // blend modes of other paint programs
+    public enum Blend {
+        NORMAL, MULTIPLY, SCREEN, DARKEN, LIGHTEN
+    }
+
+    private final int id;
+    private final String name;
+    private final boolean visible;
+    private final float opacity;
+    private final Blend blend;
+    private final boolean locked;
+
+    // Built on first use
+    private Composite composite;
+
+    public Layer(int id, String name) {
+        this(id, name, true, 1f, Blend.NORMAL, false);
+    }
+
+    public Layer(int id, String name, boolean visible, float opacity, Blend blend, boolean locked) {
+        this.id = id;
+        this.name = name;
+        this.visible = visible;
+        this.opacity = Math.max(0f, Math.min(opacity, 1f));
+        this.blend = blend;
+        this.locked = locked;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public float getOpacity() {
+        return opacity;
+    }
+
+    public Blend getBlend() {
+        return blend;
+    }
+
+    public boolean isLocked() {
+        return locked;
+    }
+
+    public Layer withName(String name) {
+        return new Layer(id, name, visible, opacity, blend, locked);
+    }
+
+    public Layer withVisible(boolean visible) {
+        return new Layer(id, name, visible, opacity, blend, locked);
+    }
+
+    public Layer withOpacity(float opacity) {
+        return new Layer(id, name, visible, opacity, blend, locked);
+    }
+
+    public Layer withBlend(Blend blend) {
+        return new Layer(id, name, visible, opacity, blend, locked);
+    }
+
+    public Layer withLocked(boolean locked) {
+        return new Layer(id, name, visible, opacity, blend, locked);
+    }
+
+    // True when drawing the layer's pixels straight over what is under it
+    // gives the same result as compositing them
+    public boolean isPlain() {
+        return blend == Blend.NORMAL && opacity == 1f;
+    }
+
+    // Composite to draw the layer's rendered pixels with
+    public Composite getComposite() {
+        if (composite == null) {
+            composite = blend == Blend.NORMAL ? AlphaComposite.SrcOver.derive(opacity)
+                    : new BlendComposite(blend, opacity);
+        }
+        return composite;
+    }
+
+    // The layer with an id, null when there is none
+    public static Layer find(List<Layer> layers, int id) {
+        for (Layer layer : layers) {
+            if (layer.id == id) {
+                return layer;
+            }
+        }
+        return null;
+    }
+
+    // Position of the layer with an id, -1 when there is none
+    public static int indexOf(List<Layer> layers, int id) {
+        for (int i = 0; i < layers.size(); i++) {
+            if (layers.get(i).id == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Id for a new layer, one more than the largest in use
+    public static int nextId(List<Layer> layers) {
+        int max = -1;
+        for (Layer layer : layers) {
+            max = Math.max(max, layer.id);
+        }
+        return max + 1;
+    }
+
+    // Layer table record: count, then per layer id, name, flags, opacity
+    // and blend, bottom layer first
+    public static void writeTable(DataOutput out, List<Layer> layers) throws IOException {
+        out.writeInt(layers.size());
+        for (Layer layer : layers) {
+            out.writeInt(layer.id);
+            out.writeUTF(layer.name);
+            out.writeByte((layer.visible ? 1 : 0) | (layer.locked ? 2 : 0));
+            out.writeFloat(layer.opacity);
+            out.writeByte(layer.blend.ordinal());
+        }
+    }
+
+    public static List<Layer> readTable(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > 65536) {
+            throw new IOException("Bad layer count " + count);
+        }
+        Blend[] blends = Blend.values();
+        List<Layer> layers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int id = in.readInt();
+            String name = in.readUTF();
+            int flags = in.readUnsignedByte();
+            float opacity = in.readFloat();
+            int blend = in.readUnsignedByte();
+            layers.add(new Layer(id, name, (flags & 1) != 0, opacity,
+                    blend < blends.length ? blends[blend] : Blend.NORMAL, (flags & 2) != 0));
+        }
+        return layers;
+    }
+}
@@ -24,11 +24,26 @@ public class Line extends Shape {
 
     // Method
     @Override
-    public void draw(Graphics2D g2) {
+    protected void draw(Graphics2D g2, Color paint) {
 
-        g2.setColor(color);
+        g2.setColor(paint);
         g2.setStroke(makeStroke());
         g2.drawLine(x, y, x2, y2);
     }
 
+    @Override
+    public Shape translated(int dx, int dy) {
+        return withStyle(new Line(x + dx, y + dy, color, strokeSize, x2 + dx, y2 + dy));
+    }
+
+    @Override
+    public java.awt.Rectangle getBounds() {
+        // Square caps of a solid line stick out diagonally at the ends
+        int pad = dashed ? strokePad() : (int) Math.ceil(strokeSize * 0.7072) + 1;
+        java.awt.Rectangle r = new java.awt.Rectangle(Math.min(x, x2), Math.min(y, y2),
+                Math.abs(x2 - x) + 1, Math.abs(y2 - y) + 1);
+        r.grow(pad, pad);
+        return r;
+    }
+
 }
@@ -0,0 +1,181 @@
+package Shapes;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// ShapeStore over the memory-mapped records of a ShapeDocument.
+// Bounds come straight from the mapped bounds section, so the spatial index
+// can be built without decoding anything. Shapes are decoded a chunk at a
+// time on first use and kept; shapes drawn after loading go to a ShapeVector
+// behind the loaded ones.
+public class MappedShapeStore implements ShapeStore {
+
+    // Shared with snapshots, the mapped data never changes
+    private final ByteBuffer records;
+    private final int[] chunkOffsets;
+    private final int chunkSize;
+    private final IntBuffer bounds;
+    private final IntBuffer layers; // null when every shape is on layer 0
+    private final Color[] colors;
+    private final int[] strokes;
+    private final byte[] flags;
+    private final AtomicReferenceArray<Shape[]> decoded;
+
+    // Loaded shapes still in the drawing (undo may remove some from the end)
+    private int loadedCount;
+    private ShapeVector added = ShapeVector.EMPTY;
+
+    MappedShapeStore(ByteBuffer records, int[] chunkOffsets, int chunkSize, IntBuffer bounds, IntBuffer layers,
+            int count, Color[] colors, int[] strokes, byte[] flags) {
+        this.records = records;
+        this.chunkOffsets = chunkOffsets;
+        this.chunkSize = chunkSize;
+        this.bounds = bounds;
+        this.layers = layers;
+        this.colors = colors;
+        this.strokes = strokes;
+        this.flags = flags;
+        this.decoded = new AtomicReferenceArray<>(chunkOffsets.length - 1);
+        this.loadedCount = count;
+    }
+
+    private MappedShapeStore(MappedShapeStore other) {
+        this.records = other.records;
+        this.chunkOffsets = other.chunkOffsets;
+        this.chunkSize = other.chunkSize;
+        this.bounds = other.bounds;
+        this.layers = other.layers;
+        this.colors = other.colors;
+        this.strokes = other.strokes;
+        this.flags = other.flags;
+        this.decoded = other.decoded;
+        this.loadedCount = other.loadedCount;
+        this.added = other.added;
+    }
+
+    @Override
+    public int size() {
+        return loadedCount + added.size();
+    }
+
+    // Number of chunks decoded so far, shared by all snapshots
+    public int getDecodedChunkCount() {
+        int n = 0;
+        for (int c = 0; c < decoded.length(); c++) {
+            if (decoded.get(c) != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public Shape get(int index) {
+        if (index >= loadedCount) {
+            return added.get(index - loadedCount);
+        }
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size());
+        }
+        Shape[] chunk = decoded.get(index / chunkSize);
+        if (chunk == null) {
+            chunk = decodeChunk(index / chunkSize);
+        }
+        return chunk[index % chunkSize];
+    }
+
+    @Override
+    public java.awt.Rectangle getBounds(int index) {
+        if (index >= loadedCount || index < 0) {
+            return get(index).getBounds();
+        }
+        int b = index * 4;
+        return new java.awt.Rectangle(bounds.get(b), bounds.get(b + 1), bounds.get(b + 2), bounds.get(b + 3));
+    }
+
+    // Read from the mapping too, so layers can be sorted out without decoding
+    @Override
+    public int getLayer(int index) {
+        if (index >= loadedCount || index < 0) {
+            return get(index).getLayer();
+        }
+        return layers != null ? layers.get(index) : 0;
+    }
+
+    @Override
+    public void draw(int index, Graphics2D g2) {
+        get(index).draw(g2);
+    }
+
+    @Override
+    public void add(Shape shape) {
+        added = added.append(shape);
+    }
+
+    @Override
+    public Shape removeLast() {
+        if (added.size() > 0) {
+            Shape last = added.get(added.size() - 1);
+            added = added.removeLast();
+            return last;
+        }
+        Shape last = get(loadedCount - 1);
+        loadedCount--;
+        return last;
+    }
+
+    @Override
+    public void clear() {
+        loadedCount = 0;
+        added = ShapeVector.EMPTY;
+    }
+
+    // A new drawing does not come from a file, plain objects are fine
+    @Override
+    public ShapeStore newEmpty() {
+        return new ShapeList();
+    }
+
+    // The mapping and decoded chunks are immutable and the added shapes are a
+    // persistent vector, so snapshots share all of it
+    @Override
+    public ShapeStore snapshot() {
+        return new MappedShapeStore(this);
+    }
+
+    // Two threads may decode the same chunk at once, both results are equal
+    // and the first one published wins
+    private Shape[] decodeChunk(int c) {
+        int start = chunkOffsets[c];
+        byte[] data = new byte[chunkOffsets[c + 1] - start];
+        records.duplicate().position(start).get(data);
+        int first = c * chunkSize;
+        int n = Math.min(chunkSize, bounds.limit() / 4 - first);
+        Shape[] chunk = new Shape[n];
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            for (int i = 0; i < n; i++) {
+                int type = in.readUnsignedByte();
+                int style = in.readInt();
+                int x = in.readInt();
+                int y = in.readInt();
+                chunk[i] = ShapeCodec.readFields(in, type, x, y, colors[style], strokes[style],
+                        ShapeDocument.isDashed(flags[style]), ShapeDocument.isFilled(flags[style]));
+                if (layers != null) {
+                    chunk[i].setLayer(layers.get(first + i));
+                }
+            }
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalStateException("Corrupt jpaint record in chunk " + c, e);
+        }
+        if (!decoded.compareAndSet(c, null, chunk)) {
+            chunk = decoded.get(c);
+        }
+        return chunk;
+    }
+}
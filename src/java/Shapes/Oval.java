@@ -24,8 +24,8 @@ public class Oval extends Shape {
 
     // Method
     @Override
-    public void draw(Graphics2D g2) {
-        g2.setColor(color);
+    protected void draw(Graphics2D g2, Color paint) {
+        g2.setColor(paint);
 
         if (filled) {
             g2.fillOval(x, y, width, height);
@@ -35,4 +35,36 @@ public class Oval extends Shape {
         }
     }
 
+    @Override
+    public Shape translated(int dx, int dy) {
+        return withStyle(new Oval(x + dx, y + dy, color, strokeSize, width, height));
+    }
+
+    @Override
+    public java.awt.Rectangle getBounds() {
+        java.awt.Rectangle r = new java.awt.Rectangle(x, y, width + 1, height + 1);
+        int pad = filled ? 1 : strokePad();
+        r.grow(pad, pad);
+        return r;
+    }
+
+    // The rectangle inscribed in a filled oval, one pixel smaller on every
+    // side because the oval is drawn as curves that only approximate it
+    @Override
+    public java.awt.Rectangle getOpaqueInterior() {
+        if (!filled || color.getAlpha() != 255) {
+            return null;
+        }
+        double halfW = width / 2.0 / Math.sqrt(2);
+        double halfH = height / 2.0 / Math.sqrt(2);
+        int x0 = (int) Math.ceil(x + width / 2.0 - halfW) + 1;
+        int y0 = (int) Math.ceil(y + height / 2.0 - halfH) + 1;
+        int x1 = (int) Math.floor(x + width / 2.0 + halfW) - 1;
+        int y1 = (int) Math.floor(y + height / 2.0 + halfH) - 1;
+        if (x1 <= x0 || y1 <= y0) {
+            return null;
+        }
+        return new java.awt.Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
 }
@@ -1,29 +1,431 @@
 package Shapes;
 import java.awt.*;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
 
 // this class is used to draw freehand lines on the canvas
-// it extends the Shape class and uses Path2D to draw the lines
+// it extends the Shape class and keeps its points in a compact byte buffer:
+// the first point is (x, y) and every following point is stored as the
+// zig-zag varint delta from the one before, usually two bytes per point.
+// Samples closer than minDistance to the last point are dropped and samples
+// that keep going in the same direction replace the last point instead of
+// adding one.
 public class PathShape extends Shape {
-    private Path2D path;
+
+    // Default decimation, in canvas units and degrees
+    public static final double DEFAULT_MIN_DISTANCE = 1.0;
+    public static final double DEFAULT_MAX_ANGLE = 3.0;
+
+    // Encoded deltas of every point after the first
+    private byte[] data = new byte[32];
+    private int length = 0;
+    private int pointCount = 1;
+
+    // Where the deltas of the last point start, so it can be replaced
+    private int lastOffset = 0;
+
+    // Extent of the points, kept up to date while the user draws
+    private int minX, minY, maxX, maxY;
+
+    // Last two points, the segment between them is what the last addPoint drew
+    private int prevX, prevY, lastX, lastY;
+
+    // Area touched by the last addPoint (the old end point when it was moved)
+    private int damageX0, damageY0, damageX1, damageY1;
+
+    // Decimation settings
+    private double minDistance = DEFAULT_MIN_DISTANCE;
+    private double maxAngleCos = Math.cos(Math.toRadians(DEFAULT_MAX_ANGLE));
+    private double tolerance = DEFAULT_MIN_DISTANCE / 2;
+
+    // Direction of the segment being extended and the dropped sample that
+    // will be kept as the end point on finish
+    private double runDX, runDY;
+    private boolean hasPending = false;
+    private int pendingX, pendingY;
+
+    // Drawing view over the buffer, no Path2D is built to draw the path
+    private final java.awt.Shape view = new PointsView();
 
     // Constructor
     public PathShape(int x, int y, Color color, int strokeSize) {
         super(x, y, color, strokeSize);
-        path = new Path2D.Float();
-        path.moveTo(x, y);
+        minX = maxX = x;
+        minY = maxY = y;
+        prevX = lastX = x;
+        prevY = lastY = y;
+    }
+
+    // Distance below which samples are dropped and the largest turn, in
+    // degrees, that still just extends the last segment. Zero turns them off.
+    public void setDecimation(double minDistance, double maxAngleDegrees) {
+        this.minDistance = minDistance;
+        this.tolerance = minDistance / 2;
+        this.maxAngleCos = maxAngleDegrees > 0 ? Math.cos(Math.toRadians(maxAngleDegrees)) : 2;
     }
 
     // Add a point to the path
     public void addPoint(int x, int y) {
-        path.lineTo(x, y);
+        if (x == lastX && y == lastY) {
+            return;
+        }
+        long dx = x - lastX;
+        long dy = y - lastY;
+        if (dx * dx + dy * dy < minDistance * minDistance) {
+            // too close to draw a difference, remember it in case the stroke ends here
+            hasPending = true;
+            pendingX = x;
+            pendingY = y;
+            return;
+        }
+        hasPending = false;
+
+        damageX0 = Math.min(prevX, Math.min(lastX, x));
+        damageY0 = Math.min(prevY, Math.min(lastY, y));
+        damageX1 = Math.max(prevX, Math.max(lastX, x));
+        damageY1 = Math.max(prevY, Math.max(lastY, y));
+        include(x, y);
+
+        if (pointCount >= 2 && continuesRun(x, y)) {
+            // same direction: move the end of the last segment
+            length = lastOffset;
+            append(x - prevX, y - prevY);
+            lastX = x;
+            lastY = y;
+            return;
+        }
+
+        lastOffset = length;
+        append(x - lastX, y - lastY);
+        prevX = lastX;
+        prevY = lastY;
+        lastX = x;
+        lastY = y;
+        pointCount++;
+
+        double len = Math.hypot(x - prevX, y - prevY);
+        runDX = (x - prevX) / len;
+        runDY = (y - prevY) / len;
+    }
+
+    // Called when the stroke is done: keeps the real end point and drops the
+    // unused part of the buffer
+    public void finish() {
+        if (hasPending) {
+            hasPending = false;
+            include(pendingX, pendingY);
+            lastOffset = length;
+            append(pendingX - lastX, pendingY - lastY);
+            prevX = lastX;
+            prevY = lastY;
+            lastX = pendingX;
+            lastY = pendingY;
+            pointCount++;
+        }
+        if (data.length != length) {
+            data = Arrays.copyOf(data, length);
+        }
+    }
+
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    // Bytes used by the point buffer
+    public int getEncodedSize() {
+        return data.length;
+    }
+
+    // Raw access for ShapeStore backends that keep the points elsewhere
+    byte[] encodedData() {
+        return data;
+    }
+
+    int encodedLength() {
+        return length;
+    }
+
+    int[] extent() {
+        return new int[] { minX, minY, maxX, maxY };
+    }
+
+    // Points this flyweight at another path's encoded points
+    void load(int x, int y, byte[] data, int length, int pointCount, int minX, int minY, int maxX, int maxY) {
+        setOrigin(x, y);
+        this.data = data;
+        this.length = length;
+        this.pointCount = pointCount;
+        this.lastOffset = length;
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.hasPending = false;
+    }
+
+    // Builds a standalone Path2D copy of the points, for code that needs one
+    public Path2D toPath2D() {
+        Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO, pointCount);
+        path.append(view.getPathIterator(null), false);
+        return path;
     }
 
     // Draw the path
     @Override
-    public void draw(Graphics2D g2) {
+    protected void draw(Graphics2D g2, Color paint) {
+        g2.setColor(paint);
+        g2.setStroke(makeStroke());
+        g2.draw(view);
+    }
+
+    // Draws the path without the points that are closer than tolerance to
+    // the last one drawn, the end point is always kept
+    @Override
+    public void drawDraft(Graphics2D g2, double tolerance, double minTextHeight) {
+        if (tolerance <= 1 || pointCount <= 2) {
+            draw(g2);
+            return;
+        }
+        Path2D.Float simplified = new Path2D.Float(Path2D.WIND_NON_ZERO, Math.min(pointCount, 256));
+        float[] c = new float[6];
+        double tol2 = tolerance * tolerance;
+        float lastX = 0, lastY = 0;
+        float skippedX = 0, skippedY = 0;
+        boolean skipped = false;
+        for (PathIterator it = view.getPathIterator(null); !it.isDone(); it.next()) {
+            if (it.currentSegment(c) == PathIterator.SEG_MOVETO) {
+                simplified.moveTo(c[0], c[1]);
+            } else if ((c[0] - lastX) * (c[0] - lastX) + (c[1] - lastY) * (c[1] - lastY) >= tol2) {
+                simplified.lineTo(c[0], c[1]);
+                skipped = false;
+            } else {
+                skippedX = c[0];
+                skippedY = c[1];
+                skipped = true;
+                continue;
+            }
+            lastX = c[0];
+            lastY = c[1];
+        }
+        if (skipped) {
+            simplified.lineTo(skippedX, skippedY);
+        }
         g2.setColor(color);
         g2.setStroke(makeStroke());
-        g2.draw(path);
+        g2.draw(simplified);
+    }
+
+    @Override
+    public Shape translated(int dx, int dy) {
+        // the points are deltas from the origin, only the origin moves
+        PathShape moved = new PathShape(x + dx, y + dy, color, strokeSize);
+        moved.load(x + dx, y + dy, Arrays.copyOf(data, length), length, pointCount,
+                minX + dx, minY + dy, maxX + dx, maxY + dy);
+        return withStyle(moved);
+    }
+
+    // Area the stroke covers, used to show what the eraser reveals
+    public java.awt.Shape getOutline() {
+        return makeStroke().createStrokedShape(view);
+    }
+
+    @Override
+    public java.awt.Rectangle getBounds() {
+        java.awt.Rectangle r = new java.awt.Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+        int pad = joinPad();
+        r.grow(pad, pad);
+        return r;
+    }
+
+    // Area changed by the last addPoint: the new segment, the join at its
+    // start and the old end point if it was moved, padded for the stroke
+    public java.awt.Rectangle getLastSegmentBounds() {
+        java.awt.Rectangle r = new java.awt.Rectangle(damageX0, damageY0,
+                damageX1 - damageX0 + 1, damageY1 - damageY0 + 1);
+        int pad = joinPad();
+        r.grow(pad, pad);
+        return r;
+    }
+
+    // Solid strokes use mitered joins (limit 10), so a sharp turn can reach
+    // five stroke widths past the point; dashed strokes use round joins
+    protected int joinPad() {
+        return dashed ? strokePad() : strokeSize * 5 + 1;
+    }
+
+    // True when (x, y) stays within the turn angle and the distance tolerance
+    // of the segment being extended
+    private boolean continuesRun(int x, int y) {
+        double ax = x - prevX;
+        double ay = y - prevY;
+        double len = Math.hypot(ax, ay);
+        double cos = (ax * runDX + ay * runDY) / len;
+        double off = Math.abs(ax * runDY - ay * runDX);
+        return cos >= maxAngleCos && off <= tolerance;
+    }
+
+    private void include(int x, int y) {
+        minX = Math.min(minX, x);
+        minY = Math.min(minY, y);
+        maxX = Math.max(maxX, x);
+        maxY = Math.max(maxY, y);
+    }
+
+    private void append(int dx, int dy) {
+        if (length + 10 > data.length) {
+            data = Arrays.copyOf(data, Math.max(32, data.length + (data.length >> 1) + 10));
+        }
+        writeVarint(dx);
+        writeVarint(dy);
+    }
+
+    private void writeVarint(int v) {
+        int z = (v << 1) ^ (v >> 31);
+        while ((z & ~0x7F) != 0) {
+            data[length++] = (byte) ((z & 0x7F) | 0x80);
+            z >>>= 7;
+        }
+        data[length++] = (byte) z;
+    }
+
+    // java.awt.Shape over the encoded points, Graphics2D only needs its
+    // path iterator; hit testing falls back to a Path2D copy
+    private class PointsView implements java.awt.Shape {
+        @Override
+        public java.awt.Rectangle getBounds() {
+            return new java.awt.Rectangle(minX, minY, maxX - minX, maxY - minY);
+        }
+
+        @Override
+        public Rectangle2D getBounds2D() {
+            return getBounds();
+        }
+
+        @Override
+        public boolean contains(double px, double py) {
+            return toPath2D().contains(px, py);
+        }
+
+        @Override
+        public boolean contains(Point2D p) {
+            return toPath2D().contains(p);
+        }
+
+        @Override
+        public boolean intersects(double rx, double ry, double w, double h) {
+            return toPath2D().intersects(rx, ry, w, h);
+        }
+
+        @Override
+        public boolean intersects(Rectangle2D r) {
+            return toPath2D().intersects(r);
+        }
+
+        @Override
+        public boolean contains(double rx, double ry, double w, double h) {
+            return toPath2D().contains(rx, ry, w, h);
+        }
+
+        @Override
+        public boolean contains(Rectangle2D r) {
+            return toPath2D().contains(r);
+        }
+
+        @Override
+        public PathIterator getPathIterator(AffineTransform at) {
+            return new PointsIterator(at);
+        }
+
+        @Override
+        public PathIterator getPathIterator(AffineTransform at, double flatness) {
+            // only straight segments, nothing to flatten
+            return new PointsIterator(at);
+        }
+    }
+
+    // Decodes the deltas one segment at a time
+    private class PointsIterator implements PathIterator {
+        private final AffineTransform at;
+        private final byte[] buf = data;
+        private final int end = length;
+        private int pos = 0;
+        private int index = 0;
+        private int curX = x, curY = y;
+
+        PointsIterator(AffineTransform at) {
+            this.at = at;
+        }
+
+        @Override
+        public int getWindingRule() {
+            return WIND_NON_ZERO;
+        }
+
+        @Override
+        public boolean isDone() {
+            return index > 0 && pos >= end;
+        }
+
+        @Override
+        public void next() {
+            if (index > 0) {
+                curX += readVarint();
+                curY += readVarint();
+            }
+            index++;
+        }
+
+        // Peek the next point without consuming it
+        private double peekX, peekY;
+
+        private void peek() {
+            if (index == 0) {
+                peekX = curX;
+                peekY = curY;
+                return;
+            }
+            int save = pos;
+            peekX = curX + readVarint();
+            peekY = curY + readVarint();
+            pos = save;
+        }
+
+        @Override
+        public int currentSegment(float[] coords) {
+            peek();
+            coords[0] = (float) peekX;
+            coords[1] = (float) peekY;
+            if (at != null) {
+                at.transform(coords, 0, coords, 0, 1);
+            }
+            return index == 0 ? SEG_MOVETO : SEG_LINETO;
+        }
+
+        @Override
+        public int currentSegment(double[] coords) {
+            peek();
+            coords[0] = peekX;
+            coords[1] = peekY;
+            if (at != null) {
+                at.transform(coords, 0, coords, 0, 1);
+            }
+            return index == 0 ? SEG_MOVETO : SEG_LINETO;
+        }
+
+        private int readVarint() {
+            int z = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                z |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return (z >>> 1) ^ -(z & 1);
+        }
     }
 }
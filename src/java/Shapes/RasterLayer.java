@@ -0,0 +1,441 @@
+package Shapes;
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+
+// Brush and eraser strokes and paint bucket fills flattened into pixels,
+// drawn above the vector shapes. The layer is a sparse grid of TILE_SIZE
+// tiles: only tiles something was drawn on exist, a missing tile is
+// transparent, so the sheet size does not matter. Tile pixels are kept in
+// memory only while in the working set of the TileStore.
+//
+// Tiles are never changed once they are in the layer. Baking a stroke copies
+// the tiles it touches, draws into the copies and swaps them in, so undo only
+// has to swap the old tiles back (see Patch) and snapshots share every tile.
+// The eraser clears pixels to transparent and drops tiles that end up empty.
+public class RasterLayer {
+
+    public static final int TILE_SIZE = 128;
+    private static final long TILE_BYTES = (long) TILE_SIZE * TILE_SIZE * 4;
+
+    // Tiles by key(column, row)
+    private final java.util.HashMap<Long, Tile> tiles;
+
+    public RasterLayer() {
+        tiles = new java.util.HashMap<>();
+    }
+
+    private RasterLayer(java.util.HashMap<Long, Tile> tiles) {
+        this.tiles = tiles;
+    }
+
+    // One tile: pixels, the PNG it was saved as in a document, or a slot of
+    // the TileStore file. Pixels that went out of the working set are read
+    // back (or the PNG decoded) the next time the tile is drawn.
+    static final class Tile {
+        volatile BufferedImage image;
+        final ByteBuffer encoded;
+        volatile int slot = -1;
+
+        Tile(BufferedImage image) {
+            this.image = image;
+            this.encoded = null;
+            TileStore.shared().touch(this);
+        }
+
+        Tile(ByteBuffer encoded) {
+            this.encoded = encoded;
+        }
+
+        BufferedImage image() {
+            BufferedImage current = image;
+            if (current == null) {
+                current = load();
+                image = current;
+            }
+            TileStore.shared().touch(this);
+            return current;
+        }
+
+        private BufferedImage load() {
+            BufferedImage loaded = newTileImage();
+            int from = slot;
+            if (from >= 0) {
+                TileStore.shared().read(from, pixels(loaded));
+                return loaded;
+            }
+            try {
+                byte[] png = new byte[encoded.remaining()];
+                encoded.duplicate().get(png);
+                BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+                if (decoded == null) {
+                    throw new IOException("Unsupported tile image");
+                }
+                Graphics2D g = loaded.createGraphics();
+                g.setComposite(AlphaComposite.Src);
+                g.drawImage(decoded, 0, 0, null);
+                g.dispose();
+            } catch (IOException e) {
+                throw new IllegalStateException("Corrupt jpaint raster tile", e);
+            }
+            return loaded;
+        }
+    }
+
+    // Tiles swapped by a stroke. While the stroke is applied the patch holds
+    // the tiles from before it, after an undo the ones from after it, so the
+    // same swap does both. The held tiles can be taken out (for the undo
+    // spill file) and put back before the next swap.
+    public static final class Patch {
+        private final int[] cols;
+        private final int[] rows;
+        private Tile[] held;
+        private final java.awt.Rectangle bounds;
+
+        Patch(int[] cols, int[] rows, Tile[] held, java.awt.Rectangle bounds) {
+            this.cols = cols;
+            this.rows = rows;
+            this.held = held;
+            this.bounds = bounds;
+        }
+
+        // Canvas area covered by the swapped tiles
+        public java.awt.Rectangle getBounds() {
+            return new java.awt.Rectangle(bounds);
+        }
+
+        public int getTileCount() {
+            return cols.length;
+        }
+
+        public boolean isTaken() {
+            return held == null;
+        }
+
+        // Pixel memory kept alive only by this patch
+        public long retainedBytes() {
+            if (held == null) {
+                return 0;
+            }
+            long bytes = 0;
+            for (Tile t : held) {
+                if (t != null && t.image != null) {
+                    bytes += TILE_BYTES;
+                }
+            }
+            return bytes;
+        }
+
+        // Takes the held tiles out, as a patch of the same tiles that holds
+        // them; writeTiles saves them and restoreTiles puts them back
+        public Patch takeTiles() {
+            Patch taken = new Patch(cols, rows, held, bounds);
+            held = null;
+            return taken;
+        }
+
+        // Writes the held tiles as raw ARGB
+        public void writeTiles(DataOutput out) throws IOException {
+            ByteBuffer bytes = ByteBuffer.allocate(TILE_SIZE * TILE_SIZE * 4);
+            for (Tile t : held) {
+                out.writeBoolean(t != null);
+                if (t != null) {
+                    bytes.clear();
+                    bytes.asIntBuffer().put(pixels(t.image()));
+                    out.write(bytes.array());
+                }
+            }
+        }
+
+        // Reads tiles written by writeTiles, as a patch like takeTiles gives
+        public Patch readTiles(DataInput in) throws IOException {
+            byte[] bytes = new byte[TILE_SIZE * TILE_SIZE * 4];
+            Tile[] read = new Tile[cols.length];
+            for (int i = 0; i < read.length; i++) {
+                if (in.readBoolean()) {
+                    in.readFully(bytes);
+                    BufferedImage image = newTileImage();
+                    ByteBuffer.wrap(bytes).asIntBuffer().get(pixels(image));
+                    read[i] = new Tile(image);
+                }
+            }
+            return new Patch(cols, rows, read, bounds);
+        }
+
+        // Puts back tiles taken out with takeTiles or read with readTiles
+        public void restoreTiles(Patch taken) {
+            held = taken.held;
+        }
+    }
+
+    // Copy of the layer, tiles are shared
+    public RasterLayer snapshot() {
+        return new RasterLayer(new java.util.HashMap<>(tiles));
+    }
+
+    public boolean isEmpty() {
+        return tiles.isEmpty();
+    }
+
+    // Tiles that hold pixels
+    public int getTileCount() {
+        return tiles.size();
+    }
+
+    // Draws the stroke into the layer, erase clears the pixels under it
+    // instead. Returns the patch that undoes it.
+    public Patch bake(Shape stroke, boolean erase) {
+        java.awt.Rectangle b = stroke.getBounds();
+        int c0 = Math.max(0, Math.floorDiv(b.x, TILE_SIZE));
+        int r0 = Math.max(0, Math.floorDiv(b.y, TILE_SIZE));
+        int c1 = Math.floorDiv(b.x + b.width - 1, TILE_SIZE);
+        int r1 = Math.floorDiv(b.y + b.height - 1, TILE_SIZE);
+        if (c1 < c0 || r1 < r0) {
+            return new Patch(new int[0], new int[0], new Tile[0], new java.awt.Rectangle());
+        }
+        int n = (c1 - c0 + 1) * (r1 - r0 + 1);
+        int[] pc = new int[n];
+        int[] pr = new int[n];
+        Tile[] held = new Tile[n];
+        int k = 0;
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                Tile old = tiles.get(key(c, r));
+                if (erase && old == null) {
+                    continue;
+                }
+                BufferedImage image = newTileImage();
+                if (old != null) {
+                    System.arraycopy(pixels(old.image()), 0, pixels(image), 0, TILE_SIZE * TILE_SIZE);
+                }
+                Graphics2D g = image.createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g.translate(-c * TILE_SIZE, -r * TILE_SIZE);
+                if (erase) {
+                    g.setComposite(AlphaComposite.Clear);
+                }
+                stroke.draw(g);
+                g.dispose();
+
+                put(c, r, erase && isClear(image) ? null : new Tile(image));
+                pc[k] = c;
+                pr[k] = r;
+                held[k] = old;
+                k++;
+            }
+        }
+        java.awt.Rectangle area = new java.awt.Rectangle(c0 * TILE_SIZE, r0 * TILE_SIZE,
+                (c1 - c0 + 1) * TILE_SIZE, (r1 - r0 + 1) * TILE_SIZE);
+        return new Patch(Arrays.copyOf(pc, k), Arrays.copyOf(pr, k), Arrays.copyOf(held, k), area);
+    }
+
+    // Sets the pixels of a paint bucket region to a color. Returns the patch
+    // that undoes it.
+    public Patch fill(FloodFill.Region region, java.awt.Color color) {
+        if (region.isEmpty()) {
+            return new Patch(new int[0], new int[0], new Tile[0], new java.awt.Rectangle());
+        }
+        int a = color.getAlpha();
+        int argb = a == 255 ? color.getRGB()
+                : a << 24 | (color.getRed() * a + 127) / 255 << 16 | (color.getGreen() * a + 127) / 255 << 8
+                        | (color.getBlue() * a + 127) / 255;
+
+        // copies of the touched tiles by key, in the order first touched
+        java.util.LinkedHashMap<Long, int[]> copies = new java.util.LinkedHashMap<>();
+        java.util.HashMap<Long, BufferedImage> images = new java.util.HashMap<>();
+        for (int i = 0; i < region.getRunCount(); i++) {
+            int y = region.runY(i);
+            int r = y / TILE_SIZE;
+            int end = region.runEnd(i);
+            for (int x = region.runStart(i); x < end; ) {
+                int c = x / TILE_SIZE;
+                long key = key(c, r);
+                int[] pixels = copies.get(key);
+                if (pixels == null) {
+                    BufferedImage image = newTileImage();
+                    pixels = pixels(image);
+                    Tile old = tiles.get(key);
+                    if (old != null) {
+                        System.arraycopy(pixels(old.image()), 0, pixels, 0, TILE_SIZE * TILE_SIZE);
+                    }
+                    copies.put(key, pixels);
+                    images.put(key, image);
+                }
+                int to = Math.min(end, (c + 1) * TILE_SIZE);
+                int base = (y - r * TILE_SIZE) * TILE_SIZE - c * TILE_SIZE;
+                Arrays.fill(pixels, base + x, base + to, argb);
+                x = to;
+            }
+        }
+
+        int n = copies.size();
+        int[] pc = new int[n];
+        int[] pr = new int[n];
+        Tile[] held = new Tile[n];
+        int k = 0;
+        int c0 = Integer.MAX_VALUE, r0 = Integer.MAX_VALUE, c1 = 0, r1 = 0;
+        for (long key : copies.keySet()) {
+            pc[k] = (int) key;
+            pr[k] = (int) (key >>> 32);
+            held[k] = tiles.put(key, new Tile(images.get(key)));
+            c0 = Math.min(c0, pc[k]);
+            r0 = Math.min(r0, pr[k]);
+            c1 = Math.max(c1, pc[k]);
+            r1 = Math.max(r1, pr[k]);
+            k++;
+        }
+        java.awt.Rectangle area = new java.awt.Rectangle(c0 * TILE_SIZE, r0 * TILE_SIZE,
+                (c1 - c0 + 1) * TILE_SIZE, (r1 - r0 + 1) * TILE_SIZE);
+        return new Patch(pc, pr, held, area);
+    }
+
+    // Undoes or redoes a patch, its tiles must not be taken
+    public void swap(Patch patch) {
+        if (patch.held == null) {
+            throw new IllegalStateException("Patch tiles were not restored");
+        }
+        for (int i = 0; i < patch.cols.length; i++) {
+            patch.held[i] = put(patch.cols[i], patch.rows[i], patch.held[i]);
+        }
+    }
+
+    // Draws the tiles that intersect area (canvas coordinates). Big areas
+    // over few tiles walk the tiles instead of the grid.
+    public void paint(Graphics2D g2, java.awt.Rectangle area) {
+        if (tiles.isEmpty() || area.isEmpty()) {
+            return;
+        }
+        int c0 = Math.max(0, Math.floorDiv(area.x, TILE_SIZE));
+        int r0 = Math.max(0, Math.floorDiv(area.y, TILE_SIZE));
+        int c1 = Math.floorDiv(area.x + area.width - 1, TILE_SIZE);
+        int r1 = Math.floorDiv(area.y + area.height - 1, TILE_SIZE);
+        if ((long) (c1 - c0 + 1) * (r1 - r0 + 1) > tiles.size()) {
+            for (java.util.Map.Entry<Long, Tile> e : tiles.entrySet()) {
+                int c = (int) (long) e.getKey();
+                int r = (int) (e.getKey() >>> 32);
+                if (c >= c0 && c <= c1 && r >= r0 && r <= r1) {
+                    g2.drawImage(e.getValue().image(), c * TILE_SIZE, r * TILE_SIZE, null);
+                }
+            }
+            return;
+        }
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                Tile t = tiles.get(key(c, r));
+                if (t != null) {
+                    g2.drawImage(t.image(), c * TILE_SIZE, r * TILE_SIZE, null);
+                }
+            }
+        }
+    }
+
+    // Raster section of a document: tile size, tile count, then per tile its
+    // column, row, PNG length and PNG. Tiles still encoded from the document
+    // they came from are copied as they are.
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(TILE_SIZE);
+        out.writeInt(getTileCount());
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        // keys sort by row, then column
+        long[] keys = new long[tiles.size()];
+        int n = 0;
+        for (long key : tiles.keySet()) {
+            keys[n++] = key;
+        }
+        Arrays.sort(keys);
+        for (long key : keys) {
+            int c = (int) key;
+            int r = (int) (key >>> 32);
+            Tile t = tiles.get(key);
+            png.reset();
+            ByteBuffer encoded = t.encoded;
+            if (encoded != null) {
+                byte[] raw = new byte[encoded.remaining()];
+                encoded.duplicate().get(raw);
+                png.write(raw);
+            } else {
+                // PNG has no premultiplied alpha
+                BufferedImage argb = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = argb.createGraphics();
+                g.setComposite(AlphaComposite.Src);
+                g.drawImage(t.image(), 0, 0, null);
+                g.dispose();
+                ImageIO.write(argb, "png", png);
+            }
+            out.writeInt(c);
+            out.writeInt(r);
+            out.writeInt(png.size());
+            png.writeTo(out);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // Reads a section written by encode, the tiles stay encoded until drawn
+    public static RasterLayer decode(ByteBuffer section) throws IOException {
+        ByteBuffer buf = section.duplicate();
+        try {
+            int tileSize = buf.getInt();
+            int count = buf.getInt();
+            if (tileSize != TILE_SIZE || count < 0) {
+                throw new IOException("Unsupported jpaint raster section");
+            }
+            RasterLayer layer = new RasterLayer();
+            for (int i = 0; i < count; i++) {
+                int c = buf.getInt();
+                int r = buf.getInt();
+                int length = buf.getInt();
+                if (c < 0 || r < 0 || length < 0 || length > buf.remaining()) {
+                    throw new IOException("Corrupt jpaint raster section");
+                }
+                ByteBuffer png = buf.slice();
+                png.limit(length);
+                buf.position(buf.position() + length);
+                layer.tiles.put(key(c, r), new Tile(png));
+            }
+            return layer;
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("Corrupt jpaint raster section", e);
+        }
+    }
+
+    private static long key(int c, int r) {
+        return (long) r << 32 | c;
+    }
+
+    // Sets or (for null) removes a tile, returns the one it replaced
+    private Tile put(int c, int r, Tile t) {
+        return t != null ? tiles.put(key(c, r), t) : tiles.remove(key(c, r));
+    }
+
+    private static BufferedImage newTileImage() {
+        return new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB_PRE);
+    }
+
+    static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private static boolean isClear(BufferedImage image) {
+        for (int p : pixels(image)) {
+            if (p != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -24,8 +24,8 @@ public class Rectangle extends Shape {
 
     // Method
     @Override
-    public void draw(Graphics2D g2) {
-        g2.setColor(color);
+    protected void draw(Graphics2D g2, Color paint) {
+        g2.setColor(paint);
 
         if (filled) {
             g2.fillRect(x, y, width, height);
@@ -35,4 +35,26 @@ public class Rectangle extends Shape {
         }
     }
 
+    @Override
+    public Shape translated(int dx, int dy) {
+        return withStyle(new Rectangle(x + dx, y + dy, color, strokeSize, width, height));
+    }
+
+    @Override
+    public java.awt.Rectangle getBounds() {
+        java.awt.Rectangle r = new java.awt.Rectangle(x, y, width + 1, height + 1);
+        int pad = filled ? 1 : strokePad();
+        r.grow(pad, pad);
+        return r;
+    }
+
+    // A filled rectangle covers its integer area completely
+    @Override
+    public java.awt.Rectangle getOpaqueInterior() {
+        if (!filled || color.getAlpha() != 255 || width <= 0 || height <= 0) {
+            return null;
+        }
+        return new java.awt.Rectangle(x, y, width, height);
+    }
+
 }
\ No newline at end of file
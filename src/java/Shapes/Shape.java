@@ -11,39 +11,111 @@ public abstract class Shape {
 
     protected int strokeSize = 3;
 
+    // Id of the Layer the shape is on
+    protected int layer = 0;
+
+    // Shared stroke from the StyleTable, looked up on first use
+    private Stroke stroke;
+
     // Constructor
     public Shape(int x, int y, Color color, int strokeSize) {
         this.x = x;
         this.y = y;
-        this.color = color;
+        this.color = StyleTable.color(color);
         this.strokeSize = strokeSize;
     }
 
     // Accessors
     public void setDashed(boolean dashed) {
         this.dashed = dashed;
+        this.stroke = null;
     }
 
     public void setFilled(boolean filled) {
         this.filled = filled;
     }
 
-    // Abstract Method
-    public abstract void draw(Graphics2D g2);
+    // Set before the shape is committed, like the style
+    public void setLayer(int layer) {
+        this.layer = layer;
+    }
 
-    // Using Stroke interface and return object based on the dashed flag
-    protected Stroke makeStroke() {
-        if (dashed) {
-            float dashValue = (float) strokeSize * 3f;
-            return new BasicStroke(
-                    (float) strokeSize,
-                    BasicStroke.CAP_ROUND,
-                    BasicStroke.JOIN_ROUND,
-                    10f,
-                    new float[] { dashValue, dashValue },
-                    0f);
+    public int getLayer() {
+        return layer;
+    }
+
+    // Used by stores that draw through one reused flyweight per shape type,
+    // keeps the cached stroke when the stroke does not change
+    void setStyle(Color color, int strokeSize, boolean dashed, boolean filled) {
+        if (strokeSize != this.strokeSize || dashed != this.dashed) {
+            stroke = null;
         }
+        this.color = color;
+        this.strokeSize = strokeSize;
+        this.dashed = dashed;
+        this.filled = filled;
+    }
+
+    void setOrigin(int x, int y) {
+        this.x = x;
+        this.y = y;
+    }
 
-        return new BasicStroke((float) strokeSize);
+    public void draw(Graphics2D g2) {
+        draw(g2, color);
+    }
+
+    // Abstract Method, draws the shape in paint instead of its own color.
+    // Committed shapes are read by several threads at once (export, bucket
+    // fill, autosave), so a different color is passed in, never set.
+    protected abstract void draw(Graphics2D g2, Color paint);
+
+    // Fast, simplified drawing for previews while the view moves. tolerance
+    // is how far (in canvas units) detail may be off, text smaller than
+    // minTextHeight may be drawn as a box. Plain draw by default.
+    public void drawDraft(Graphics2D g2, double tolerance, double minTextHeight) {
+        draw(g2);
+    }
+
+    // Draws the shape in a single pick color (see UIFrame.PickBuffer), the
+    // graphics has anti-aliasing off so every pixel gets exactly that color
+    public void drawPick(Graphics2D g2, Color pickColor) {
+        draw(g2, pickColor);
+    }
+
+    // Copy moved by dx, dy. Committed shapes are shared with undo steps and
+    // snapshots, so they are never moved in place.
+    public abstract Shape translated(int dx, int dy);
+
+    // Copies dashed, filled and the layer to a copy made by translated
+    protected <T extends Shape> T withStyle(T copy) {
+        copy.setDashed(dashed);
+        copy.setFilled(filled);
+        copy.setLayer(layer);
+        return copy;
+    }
+
+    // Area covered on the canvas, including the stroke width and one pixel of
+    // anti-aliasing, used to find out which cached pixels a shape touches
+    public abstract java.awt.Rectangle getBounds();
+
+    // Area in which every pixel is completely painted with an opaque color,
+    // so whatever is under it cannot show through. Null when there is none.
+    public java.awt.Rectangle getOpaqueInterior() {
+        return null;
+    }
+
+    // Half of the stroke width rounded up plus the anti-aliasing fringe
+    protected int strokePad() {
+        return (int) Math.ceil(strokeSize / 2.0) + 1;
+    }
+
+    // Using Stroke interface and return object based on the dashed flag,
+    // strokes are interned so drawing does not allocate one per frame
+    protected Stroke makeStroke() {
+        if (stroke == null) {
+            stroke = StyleTable.stroke(strokeSize, dashed);
+        }
+        return stroke;
     }
 }
\ No newline at end of file
@@ -0,0 +1,158 @@
+package Shapes;
+import java.awt.Color;
+import java.awt.Font;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// Binary form of a single shape, used wherever shapes are written out.
+// Record: type byte, flags byte, x, y, ARGB, stroke size, the layer id when
+// it is not 0 (FLAG_LAYER), then the fields of the type (line end point,
+// rect/oval size, path points, text and font, plus the box width for
+// wrapped text).
+public final class ShapeCodec {
+
+    public static final int TYPE_LINE = 1;
+    public static final int TYPE_RECT = 2;
+    public static final int TYPE_OVAL = 3;
+    public static final int TYPE_PATH = 4;
+    public static final int TYPE_TEXT = 5;
+    public static final int TYPE_TEXT_BOX = 6;
+
+    private static final int FLAG_DASHED = 1;
+    private static final int FLAG_FILLED = 2;
+    private static final int FLAG_LAYER = 4;
+
+    private ShapeCodec() {
+    }
+
+    public static int typeOf(Shape shape) {
+        if (shape instanceof Line) {
+            return TYPE_LINE;
+        } else if (shape instanceof Rectangle) {
+            return TYPE_RECT;
+        } else if (shape instanceof Oval) {
+            return TYPE_OVAL;
+        } else if (shape instanceof PathShape) {
+            return TYPE_PATH;
+        } else if (shape instanceof TextShape) {
+            // older readers know unwrapped text, keep writing it the old way
+            return ((TextShape) shape).getWrapWidth() > 0 ? TYPE_TEXT_BOX : TYPE_TEXT;
+        }
+        throw new IllegalArgumentException("Unsupported shape: " + shape.getClass().getName());
+    }
+
+    public static void write(DataOutput out, Shape shape) throws IOException {
+        int type = typeOf(shape);
+        out.writeByte(type);
+        out.writeByte((shape.dashed ? FLAG_DASHED : 0) | (shape.filled ? FLAG_FILLED : 0)
+                | (shape.layer != 0 ? FLAG_LAYER : 0));
+        out.writeInt(shape.x);
+        out.writeInt(shape.y);
+        out.writeInt(shape.color.getRGB());
+        out.writeInt(shape.strokeSize);
+        if (shape.layer != 0) {
+            out.writeInt(shape.layer);
+        }
+        writeFields(out, shape, type);
+    }
+
+    // Only the fields of the type, for formats that keep the style elsewhere
+    public static void writeFields(DataOutput out, Shape shape, int type) throws IOException {
+        switch (type) {
+            case TYPE_LINE:
+                out.writeInt(((Line) shape).x2);
+                out.writeInt(((Line) shape).y2);
+                break;
+            case TYPE_RECT:
+                out.writeInt(((Rectangle) shape).width);
+                out.writeInt(((Rectangle) shape).height);
+                break;
+            case TYPE_OVAL:
+                out.writeInt(((Oval) shape).width);
+                out.writeInt(((Oval) shape).height);
+                break;
+            case TYPE_PATH: {
+                PathShape path = (PathShape) shape;
+                int[] extent = path.extent();
+                out.writeInt(path.getPointCount());
+                for (int v : extent) {
+                    out.writeInt(v);
+                }
+                out.writeInt(path.encodedLength());
+                out.write(path.encodedData(), 0, path.encodedLength());
+                break;
+            }
+            default: {
+                TextShape text = (TextShape) shape;
+                Font font = text.getFont();
+                out.writeUTF(text.getText());
+                out.writeUTF(font.getName());
+                out.writeInt(font.getStyle());
+                out.writeInt(font.getSize());
+                if (type == TYPE_TEXT_BOX) {
+                    out.writeInt(text.getWrapWidth());
+                }
+            }
+        }
+    }
+
+    public static Shape read(DataInput in) throws IOException {
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int x = in.readInt();
+        int y = in.readInt();
+        Color color = StyleTable.color(in.readInt());
+        int strokeSize = in.readInt();
+        int layer = (flags & FLAG_LAYER) != 0 ? in.readInt() : 0;
+        Shape shape = readFields(in, type, x, y, color, strokeSize,
+                (flags & FLAG_DASHED) != 0, (flags & FLAG_FILLED) != 0);
+        shape.setLayer(layer);
+        return shape;
+    }
+
+    // Reads what writeFields wrote and builds the shape with the given style
+    public static Shape readFields(DataInput in, int type, int x, int y, Color color, int strokeSize,
+            boolean dashed, boolean filled) throws IOException {
+        Shape shape;
+        switch (type) {
+            case TYPE_LINE:
+                shape = new Line(x, y, color, strokeSize, in.readInt(), in.readInt());
+                break;
+            case TYPE_RECT:
+                shape = new Rectangle(x, y, color, strokeSize, in.readInt(), in.readInt());
+                break;
+            case TYPE_OVAL:
+                shape = new Oval(x, y, color, strokeSize, in.readInt(), in.readInt());
+                break;
+            case TYPE_PATH: {
+                int pointCount = in.readInt();
+                int minX = in.readInt();
+                int minY = in.readInt();
+                int maxX = in.readInt();
+                int maxY = in.readInt();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                PathShape path = new PathShape(x, y, color, strokeSize);
+                path.load(x, y, data, data.length, pointCount, minX, minY, maxX, maxY);
+                shape = path;
+                break;
+            }
+            case TYPE_TEXT:
+            case TYPE_TEXT_BOX: {
+                String text = in.readUTF();
+                String family = in.readUTF();
+                int style = in.readInt();
+                int size = in.readInt();
+                int wrapWidth = type == TYPE_TEXT_BOX ? in.readInt() : 0;
+                shape = new TextShape(x, y, color, strokeSize, text, family, size, style, wrapWidth);
+                break;
+            }
+            default:
+                throw new IOException("Unknown shape type " + type);
+        }
+        shape.setDashed(dashed);
+        shape.setFilled(filled);
+        return shape;
+    }
+}
@@ -0,0 +1,395 @@
+package Shapes;
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+// The native .jpaint document: the vector shapes, a style table, the raster
+// layer of baked strokes and an optional embedded background image, so a
+// drawing can be reopened and edited.
+//
+// Layout (big endian):
+//   header    HEADER_SIZE bytes, magic, version, sizes and section offsets
+//   records   per shape: type byte, style index, x, y, then the fields of
+//             the type as written by ShapeCodec.writeFields
+//   styles    per distinct style: ARGB, stroke size, flags
+//   bounds    per shape: x, y, width, height
+//   chunks    start offset of every CHUNK_SIZE records in the record
+//             section, plus its end
+//   image     encoded background image (PNG), may be empty
+//   raster    RasterLayer.encode output, may be empty (version 2 on, version
+//             1 files have no raster and an 80 byte header)
+//   layers    Layer.writeTable output, may be empty (version 3 on)
+//   layer ids per shape: the id of its layer, empty when every shape is on
+//             layer 0 (version 3 on)
+//
+// Opening maps the file and reads only the header, styles and chunk index.
+// Bounds are read straight from the mapping and records are decoded a chunk
+// at a time the first time one of its shapes is drawn (see MappedShapeStore).
+// Raster tiles stay PNG in the mapping until they are drawn.
+public class ShapeDocument {
+
+    public static final String EXTENSION = ".jpaint";
+
+    private static final int MAGIC = 0x4A504E54; // "JPNT"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 128;
+    private static final int V2_HEADER_SIZE = 96;
+    private static final int V1_HEADER_SIZE = 80;
+    static final int CHUNK_SIZE = 1024;
+
+    private static final int FLAG_DASHED = 1;
+    private static final int FLAG_FILLED = 2;
+
+    private final int width;
+    private final int height;
+    private final ShapeStore shapes;
+    private final RasterLayer raster;
+    private final ByteBuffer background;
+    private final List<Layer> layers;
+
+    private ShapeDocument(int width, int height, ShapeStore shapes, RasterLayer raster, ByteBuffer background,
+            List<Layer> layers) {
+        this.width = width;
+        this.height = height;
+        this.shapes = shapes;
+        this.raster = raster;
+        this.background = background;
+        this.layers = layers;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Lazily decoded shapes, can be edited like any other store
+    public ShapeStore getShapes() {
+        return shapes;
+    }
+
+    // Baked strokes, empty for documents without any
+    public RasterLayer getRaster() {
+        return raster;
+    }
+
+    // Layer table, bottom layer first; empty for documents saved without one
+    public List<Layer> getLayers() {
+        return layers;
+    }
+
+    public boolean hasBackground() {
+        return background != null;
+    }
+
+    // Stream over the encoded background image, read from the mapping
+    public InputStream openBackground() {
+        ByteBuffer buf = background.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!buf.hasRemaining()) {
+                    return -1;
+                }
+                int n = Math.min(len, buf.remaining());
+                buf.get(b, off, n);
+                return n;
+            }
+        };
+    }
+
+    // Writes the document to a temporary file next to the target and moves it
+    // in place, so a document that is mapped right now is never overwritten
+    public static void write(Path file, ShapeStore shapes, int width, int height, byte[] background)
+            throws IOException {
+        write(file, shapes, null, width, height, background);
+    }
+
+    // raster may be null
+    public static void write(Path file, ShapeStore shapes, RasterLayer raster, int width, int height,
+            byte[] background) throws IOException {
+        write(file, shapes, raster, null, width, height, background);
+    }
+
+    // raster and layers may be null
+    public static void write(Path file, ShapeStore shapes, RasterLayer raster, List<Layer> layers, int width,
+            int height, byte[] background) throws IOException {
+        byte[] rasterBytes = raster != null && !raster.isEmpty() ? raster.encode() : null;
+        byte[] layerBytes = null;
+        if (layers != null && !layers.isEmpty()) {
+            ByteArrayOutputStream table = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(table);
+            Layer.writeTable(out, layers);
+            out.flush();
+            layerBytes = table.toByteArray();
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeTo(ch, shapes, width, height, background, rasterBytes, layerBytes);
+                ch.force(false);
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (java.nio.file.AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void writeTo(FileChannel ch, ShapeStore shapes, int width, int height, byte[] background,
+            byte[] raster, byte[] layers) throws IOException {
+        int count = shapes.size();
+        int chunkCount = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        long[] chunkOffsets = new long[chunkCount + 1];
+        HashMap<Long, Integer> styleIndex = new HashMap<>();
+        ArrayList<Long> styles = new ArrayList<>();
+
+        // records, one chunk at a time
+        long pos = HEADER_SIZE;
+        long recordsOffset = pos;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int c = 0; c < chunkCount; c++) {
+            chunkOffsets[c] = pos - recordsOffset;
+            bytes.reset();
+            int end = Math.min(count, (c + 1) * CHUNK_SIZE);
+            for (int i = c * CHUNK_SIZE; i < end; i++) {
+                Shape s = shapes.get(i);
+                int flags = (s.dashed ? FLAG_DASHED : 0) | (s.filled ? FLAG_FILLED : 0);
+                long key = (s.color.getRGB() & 0xFFFFFFFFL) | (long) (s.strokeSize & 0xFFFFFF) << 32
+                        | (long) flags << 56;
+                Integer style = styleIndex.get(key);
+                if (style == null) {
+                    style = styles.size();
+                    styleIndex.put(key, style);
+                    styles.add(key);
+                }
+                int type = ShapeCodec.typeOf(s);
+                out.writeByte(type);
+                out.writeInt(style);
+                out.writeInt(s.x);
+                out.writeInt(s.y);
+                ShapeCodec.writeFields(out, s, type);
+            }
+            out.flush();
+            pos += writeFully(ch, ByteBuffer.wrap(bytes.toByteArray(), 0, bytes.size()), pos);
+        }
+        chunkOffsets[chunkCount] = pos - recordsOffset;
+
+        long styleOffset = pos;
+        ByteBuffer styleBuf = ByteBuffer.allocate(styles.size() * 12);
+        for (long key : styles) {
+            styleBuf.putInt((int) key);
+            styleBuf.putInt((int) (key >>> 32) & 0xFFFFFF);
+            styleBuf.putInt((int) (key >>> 56));
+        }
+        styleBuf.flip();
+        pos += writeFully(ch, styleBuf, pos);
+
+        long boundsOffset = pos;
+        ByteBuffer boundsBuf = ByteBuffer.allocate(CHUNK_SIZE * 16);
+        for (int i = 0; i < count; i++) {
+            java.awt.Rectangle b = shapes.getBounds(i);
+            boundsBuf.putInt(b.x).putInt(b.y).putInt(b.width).putInt(b.height);
+            if (!boundsBuf.hasRemaining() || i == count - 1) {
+                boundsBuf.flip();
+                pos += writeFully(ch, boundsBuf, pos);
+                boundsBuf.clear();
+            }
+        }
+
+        long chunkIndexOffset = pos;
+        ByteBuffer chunkBuf = ByteBuffer.allocate(chunkOffsets.length * 8);
+        for (long offset : chunkOffsets) {
+            chunkBuf.putLong(offset);
+        }
+        chunkBuf.flip();
+        pos += writeFully(ch, chunkBuf, pos);
+
+        long backgroundOffset = pos;
+        long backgroundLength = background == null ? 0 : background.length;
+        if (background != null) {
+            pos += writeFully(ch, ByteBuffer.wrap(background), pos);
+        }
+
+        long rasterOffset = pos;
+        long rasterLength = raster == null ? 0 : raster.length;
+        if (raster != null) {
+            pos += writeFully(ch, ByteBuffer.wrap(raster), pos);
+        }
+
+        long layersOffset = pos;
+        long layersLength = layers == null ? 0 : layers.length;
+        if (layers != null) {
+            pos += writeFully(ch, ByteBuffer.wrap(layers), pos);
+        }
+
+        // layer ids only when some shape is not on the bottom layer
+        long layerIdsOffset = pos;
+        boolean layered = false;
+        for (int i = 0; i < count && !layered; i++) {
+            layered = shapes.getLayer(i) != 0;
+        }
+        if (layered) {
+            ByteBuffer idBuf = ByteBuffer.allocate(CHUNK_SIZE * 4);
+            for (int i = 0; i < count; i++) {
+                idBuf.putInt(shapes.getLayer(i));
+                if (!idBuf.hasRemaining() || i == count - 1) {
+                    idBuf.flip();
+                    pos += writeFully(ch, idBuf, pos);
+                    idBuf.clear();
+                }
+            }
+        }
+        long layerIdsLength = pos - layerIdsOffset;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION);
+        header.putInt(width).putInt(height);
+        header.putInt(count).putInt(styles.size());
+        header.putInt(CHUNK_SIZE).putInt(chunkCount);
+        header.putLong(recordsOffset).putLong(styleOffset).putLong(boundsOffset);
+        header.putLong(chunkIndexOffset).putLong(backgroundOffset).putLong(backgroundLength);
+        header.putLong(rasterOffset).putLong(rasterLength);
+        header.putLong(layersOffset).putLong(layersLength);
+        header.putLong(layerIdsOffset).putLong(layerIdsLength);
+        header.flip();
+        writeFully(ch, header, 0);
+    }
+
+    // Maps the document, shapes are decoded when they are first used
+    public static ShapeDocument open(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = ch.size();
+            if (fileSize < V1_HEADER_SIZE) {
+                throw new IOException("Not a jpaint document: " + file.getFileName());
+            }
+            ByteBuffer header = ByteBuffer.allocate((int) Math.min(HEADER_SIZE, fileSize));
+            while (header.hasRemaining() && ch.read(header, header.position()) >= 0) {
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a jpaint document: " + file.getFileName());
+            }
+            int version = header.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported jpaint version " + version);
+            }
+            if (fileSize < (version >= 3 ? HEADER_SIZE : version == 2 ? V2_HEADER_SIZE : V1_HEADER_SIZE)) {
+                throw new IOException("Corrupt jpaint header");
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            int count = header.getInt();
+            int styleCount = header.getInt();
+            int chunkSize = header.getInt();
+            int chunkCount = header.getInt();
+            long recordsOffset = header.getLong();
+            long styleOffset = header.getLong();
+            long boundsOffset = header.getLong();
+            long chunkIndexOffset = header.getLong();
+            long backgroundOffset = header.getLong();
+            long backgroundLength = header.getLong();
+            long rasterOffset = version >= 2 ? header.getLong() : 0;
+            long rasterLength = version >= 2 ? header.getLong() : 0;
+            long layersOffset = version >= 3 ? header.getLong() : 0;
+            long layersLength = version >= 3 ? header.getLong() : 0;
+            long layerIdsOffset = version >= 3 ? header.getLong() : 0;
+            long layerIdsLength = version >= 3 ? header.getLong() : 0;
+            if (count < 0 || chunkSize <= 0 || chunkCount != (count + chunkSize - 1) / chunkSize
+                    || backgroundOffset + backgroundLength > fileSize || rasterOffset + rasterLength > fileSize
+                    || layersOffset + layersLength > fileSize || layerIdsOffset + layerIdsLength > fileSize
+                    || layerIdsLength != 0 && layerIdsLength != (long) count * 4) {
+                throw new IOException("Corrupt jpaint header");
+            }
+
+            ByteBuffer styleBuf = map(ch, styleOffset, (long) styleCount * 12);
+            Color[] colors = new Color[styleCount];
+            int[] strokes = new int[styleCount];
+            byte[] flags = new byte[styleCount];
+            for (int s = 0; s < styleCount; s++) {
+                colors[s] = StyleTable.color(styleBuf.getInt());
+                strokes[s] = styleBuf.getInt();
+                flags[s] = (byte) styleBuf.getInt();
+            }
+
+            ByteBuffer chunkBuf = map(ch, chunkIndexOffset, (long) (chunkCount + 1) * 8);
+            int[] chunkOffsets = new int[chunkCount + 1];
+            for (int c = 0; c <= chunkCount; c++) {
+                long offset = chunkBuf.getLong();
+                if (offset > Integer.MAX_VALUE) {
+                    throw new IOException("Document too large to map");
+                }
+                chunkOffsets[c] = (int) offset;
+            }
+
+            ByteBuffer records = map(ch, recordsOffset, chunkOffsets[chunkCount]);
+            IntBuffer bounds = map(ch, boundsOffset, (long) count * 16).asIntBuffer();
+            IntBuffer layerIds = layerIdsLength > 0 ? map(ch, layerIdsOffset, layerIdsLength).asIntBuffer() : null;
+            MappedShapeStore store = new MappedShapeStore(records, chunkOffsets, chunkSize, bounds, layerIds, count,
+                    colors, strokes, flags);
+            ByteBuffer background = backgroundLength > 0 ? map(ch, backgroundOffset, backgroundLength) : null;
+            RasterLayer raster = rasterLength > 0 ? RasterLayer.decode(map(ch, rasterOffset, rasterLength))
+                    : new RasterLayer();
+            List<Layer> layers = List.of();
+            if (layersLength > 0) {
+                ByteBuffer table = map(ch, layersOffset, layersLength);
+                byte[] bytes = new byte[table.remaining()];
+                table.get(bytes);
+                layers = List.copyOf(Layer.readTable(new DataInputStream(new ByteArrayInputStream(bytes))));
+            }
+            return new ShapeDocument(width, height, store, raster, background, layers);
+        }
+    }
+
+    // The mapping stays valid after the channel is closed
+    private static ByteBuffer map(FileChannel ch, long offset, long length) throws IOException {
+        if (length > Integer.MAX_VALUE || offset + length > ch.size()) {
+            throw new IOException("Corrupt or too large jpaint section");
+        }
+        return ch.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    private static int writeFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        int written = 0;
+        while (buf.hasRemaining()) {
+            written += ch.write(buf, pos + written);
+        }
+        return written;
+    }
+
+    // Decodes the style flags written by write
+    static boolean isDashed(byte flags) {
+        return (flags & FLAG_DASHED) != 0;
+    }
+
+    static boolean isFilled(byte flags) {
+        return (flags & FLAG_FILLED) != 0;
+    }
+}
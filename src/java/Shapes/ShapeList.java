@@ -0,0 +1,71 @@
+package Shapes;
+import java.awt.Graphics2D;
+
+// Default ShapeStore: one object per shape in a persistent ShapeVector, so
+// snapshots share everything with the live list and cost O(1)
+public class ShapeList implements ShapeStore {
+
+    private ShapeVector shapes;
+
+    public ShapeList() {
+        this(ShapeVector.EMPTY);
+    }
+
+    private ShapeList(ShapeVector shapes) {
+        this.shapes = shapes;
+    }
+
+    @Override
+    public int size() {
+        return shapes.size();
+    }
+
+    @Override
+    public Shape get(int index) {
+        return shapes.get(index);
+    }
+
+    @Override
+    public java.awt.Rectangle getBounds(int index) {
+        return shapes.get(index).getBounds();
+    }
+
+    @Override
+    public int getLayer(int index) {
+        return shapes.get(index).getLayer();
+    }
+
+    @Override
+    public void draw(int index, Graphics2D g2) {
+        shapes.get(index).draw(g2);
+    }
+
+    @Override
+    public void add(Shape shape) {
+        shapes = shapes.append(shape);
+    }
+
+    @Override
+    public Shape removeLast() {
+        Shape last = shapes.get(shapes.size() - 1);
+        shapes = shapes.removeLast();
+        return last;
+    }
+
+    @Override
+    public void clear() {
+        shapes = ShapeVector.EMPTY;
+    }
+
+    @Override
+    public ShapeStore newEmpty() {
+        return new ShapeList();
+    }
+
+    // Committed shapes are not changed any more and the vector is immutable,
+    // so the snapshot just shares it
+    @Override
+    public ShapeStore snapshot() {
+        return new ShapeList(shapes);
+    }
+}
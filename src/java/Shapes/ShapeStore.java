@@ -0,0 +1,46 @@
+package Shapes;
+import java.awt.Graphics2D;
+
+// The committed shapes of a drawing, in drawing order.
+// Painter only talks to this interface so the shapes can live in plain
+// objects (ShapeList) or in packed columns (ColumnarShapeStore).
+public interface ShapeStore {
+
+    int size();
+
+    // The shape at an index; backends that do not keep objects build a new one
+    Shape get(int index);
+
+    // Same as get(index).getBounds() without having to build the shape
+    java.awt.Rectangle getBounds(int index);
+
+    // Same as get(index).getLayer()
+    default int getLayer(int index) {
+        return get(index).getLayer();
+    }
+
+    // Same as get(index).draw(g2), backends may draw through a reused flyweight
+    void draw(int index, Graphics2D g2);
+
+    // Same as get(index).drawDraft(g2, tolerance, minTextHeight)
+    default void drawDraft(int index, Graphics2D g2, double tolerance, double minTextHeight) {
+        get(index).drawDraft(g2, tolerance, minTextHeight);
+    }
+
+    // Same as get(index).drawPick(g2, pickColor)
+    default void drawPick(int index, Graphics2D g2, java.awt.Color pickColor) {
+        get(index).drawPick(g2, pickColor);
+    }
+
+    void add(Shape shape);
+
+    Shape removeLast();
+
+    void clear();
+
+    // Empty store of the same kind
+    ShapeStore newEmpty();
+
+    // Copy that later edits do not affect, safe to draw from other threads
+    ShapeStore snapshot();
+}
@@ -0,0 +1,146 @@
+package Shapes;
+
+// Immutable list of shapes that shares structure between versions.
+// It is a 32-way trie with the last (up to 32) shapes kept in a separate
+// tail array: append and removeLast copy at most one path of the tree, so
+// every older version stays valid and keeping one costs nothing.
+public final class ShapeVector {
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private static final Object[] EMPTY_NODE = new Object[WIDTH];
+    public static final ShapeVector EMPTY = new ShapeVector(0, BITS, EMPTY_NODE, new Object[0]);
+
+    private final int count;
+    private final int shift;
+    private final Object[] root;
+    private final Object[] tail;
+
+    private ShapeVector(int count, int shift, Object[] root, Object[] tail) {
+        this.count = count;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public Shape get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + count);
+        }
+        return (Shape) leafFor(index)[index & MASK];
+    }
+
+    public ShapeVector append(Shape shape) {
+        int inTail = count - tailOffset();
+        if (inTail < WIDTH) {
+            Object[] newTail = new Object[inTail + 1];
+            System.arraycopy(tail, 0, newTail, 0, inTail);
+            newTail[inTail] = shape;
+            return new ShapeVector(count + 1, shift, root, newTail);
+        }
+
+        // full tail: move it into the tree and start a new one
+        Object[] newRoot;
+        int newShift = shift;
+        if ((count >>> BITS) > (1 << shift)) {
+            // the tree is full at this height, grow a level
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += BITS;
+        } else {
+            newRoot = pushTail(shift, root, tail);
+        }
+        return new ShapeVector(count + 1, newShift, newRoot, new Object[] { shape });
+    }
+
+    public ShapeVector removeLast() {
+        if (count == 0) {
+            throw new IllegalStateException("Empty vector");
+        }
+        if (count == 1) {
+            return EMPTY;
+        }
+        if (count - tailOffset() > 1) {
+            Object[] newTail = new Object[tail.length - 1];
+            System.arraycopy(tail, 0, newTail, 0, newTail.length);
+            return new ShapeVector(count - 1, shift, root, newTail);
+        }
+
+        // the tail becomes empty: the last leaf of the tree is the new tail
+        Object[] newTail = leafFor(count - 2);
+        Object[] newRoot = popTail(shift, root);
+        int newShift = shift;
+        if (newRoot == null) {
+            newRoot = EMPTY_NODE;
+        }
+        if (shift > BITS && newRoot[1] == null) {
+            newRoot = (Object[]) newRoot[0];
+            newShift -= BITS;
+        }
+        return new ShapeVector(count - 1, newShift, newRoot, newTail);
+    }
+
+    private int tailOffset() {
+        return count < WIDTH ? 0 : ((count - 1) >>> BITS) << BITS;
+    }
+
+    private Object[] leafFor(int index) {
+        if (index >= tailOffset()) {
+            return tail;
+        }
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(index >>> level) & MASK];
+        }
+        return node;
+    }
+
+    private Object[] pushTail(int level, Object[] parent, Object[] tailNode) {
+        int sub = ((count - 1) >>> level) & MASK;
+        Object[] copy = parent.clone();
+        Object inserted;
+        if (level == BITS) {
+            inserted = tailNode;
+        } else {
+            Object[] child = (Object[]) parent[sub];
+            inserted = child != null ? pushTail(level - BITS, child, tailNode) : newPath(level - BITS, tailNode);
+        }
+        copy[sub] = inserted;
+        return copy;
+    }
+
+    private Object[] popTail(int level, Object[] node) {
+        int sub = ((count - 2) >>> level) & MASK;
+        if (level > BITS) {
+            Object[] child = popTail(level - BITS, (Object[]) node[sub]);
+            if (child == null && sub == 0) {
+                return null;
+            }
+            Object[] copy = node.clone();
+            copy[sub] = child;
+            return copy;
+        }
+        if (sub == 0) {
+            return null;
+        }
+        Object[] copy = node.clone();
+        copy[sub] = null;
+        return copy;
+    }
+
+    private static Object[] newPath(int level, Object[] node) {
+        if (level == 0) {
+            return node;
+        }
+        Object[] path = new Object[WIDTH];
+        path[0] = newPath(level - BITS, node);
+        return path;
+    }
+}
@@ -0,0 +1,91 @@
+package Shapes;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Shared, immutable style objects.
+// Shapes look their stroke, font and color up here once and keep the
+// reference, so painting does not allocate and shapes with the same style
+// share one object.
+public final class StyleTable {
+
+    // Past this many entries new styles are handed back without interning,
+    // so documents with random colors do not grow the table forever
+    private static final int MAX_ENTRIES = 4096;
+
+    private static final ConcurrentHashMap<Long, BasicStroke> strokes = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Font> fonts = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, Color> colors = new ConcurrentHashMap<>();
+
+    private StyleTable() {
+    }
+
+    // Stroke used by the shapes: solid strokes keep the BasicStroke defaults,
+    // dashed strokes use round caps and joins with dashes three widths long
+    public static BasicStroke stroke(int size, boolean dashed) {
+        if (dashed) {
+            return stroke(size, true, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+        }
+        return stroke(size, false, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER);
+    }
+
+    public static BasicStroke stroke(int size, boolean dashed, int cap, int join) {
+        // key: size | dashed | cap | join
+        long key = ((long) size << 8) | (dashed ? 1 << 4 : 0) | (cap << 2) | join;
+        BasicStroke stroke = strokes.get(key);
+        if (stroke == null) {
+            stroke = createStroke(size, dashed, cap, join);
+            if (strokes.size() < MAX_ENTRIES) {
+                BasicStroke existing = strokes.putIfAbsent(key, stroke);
+                if (existing != null) {
+                    stroke = existing;
+                }
+            }
+        }
+        return stroke;
+    }
+
+    public static Font font(String family, int style, int size) {
+        String key = family + '\0' + style + '\0' + size;
+        Font font = fonts.get(key);
+        if (font == null) {
+            font = new Font(family, style, size);
+            if (fonts.size() < MAX_ENTRIES) {
+                Font existing = fonts.putIfAbsent(key, font);
+                if (existing != null) {
+                    font = existing;
+                }
+            }
+        }
+        return font;
+    }
+
+    public static Color color(Color color) {
+        if (color == null) {
+            return null;
+        }
+        Integer key = color.getRGB();
+        Color shared = colors.get(key);
+        if (shared != null) {
+            return shared;
+        }
+        if (colors.size() < MAX_ENTRIES) {
+            shared = colors.putIfAbsent(key, color);
+        }
+        return shared != null ? shared : color;
+    }
+
+    public static Color color(int argb) {
+        Color shared = colors.get(argb);
+        return shared != null ? shared : color(new Color(argb, true));
+    }
+
+    private static BasicStroke createStroke(int size, boolean dashed, int cap, int join) {
+        if (dashed) {
+            float dashValue = (float) size * 3f;
+            return new BasicStroke((float) size, cap, join, 10f, new float[] { dashValue, dashValue }, 0f);
+        }
+        return new BasicStroke((float) size, cap, join);
+    }
+}
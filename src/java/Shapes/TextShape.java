@@ -1,28 +1,206 @@
 package Shapes;
 import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.LineBreakMeasurer;
+import java.awt.font.LineMetrics;
+import java.awt.font.TextAttribute;
+import java.text.AttributedString;
 
+// Text placed at a baseline point. Lines are split at '\n' and, for a text
+// box (wrap width above 0), wrapped to the box width. The first line's
+// baseline is at y.
 public class TextShape extends Shape {
 
+    // Every layout uses the same context, so glyph positions do not depend
+    // on the tile being drawn. Integer metrics like drawString, fractional
+    // ones make drawing about half again slower.
+    private static final FontRenderContext FRC = new FontRenderContext(null, true, false);
+
     private String text;
-    private String fontFamily;
-    private int fontSize;
-    private int fontStyle;
+    // Shared with every text using the same family, style and size
+    private Font font;
+    // Box width the lines wrap at, 0 for no wrapping
+    private int wrapWidth;
+
+    // Shaped lines, built on first use and kept: text, font and width never
+    // change after the shape is made. Relative to x, y so moved copies share
+    // it. Immutable once published, export threads draw it too.
+    private volatile Layout layout;
+
+    private static final class Layout {
+        final GlyphVector[] lines; // null for empty lines
+        final float[] baselines;
+        final java.awt.Rectangle[] boxes; // logical box of every line
+        final java.awt.Rectangle bounds;
+
+        Layout(GlyphVector[] lines, float[] baselines, java.awt.Rectangle[] boxes, java.awt.Rectangle bounds) {
+            this.lines = lines;
+            this.baselines = baselines;
+            this.boxes = boxes;
+            this.bounds = bounds;
+        }
+    }
 
     public TextShape(int x, int y, Color color, int strokeSize,
                      String text, String fontFamily, int fontSize, int fontStyle) {
+        this(x, y, color, strokeSize, text, fontFamily, fontSize, fontStyle, 0);
+    }
+
+    public TextShape(int x, int y, Color color, int strokeSize,
+                     String text, String fontFamily, int fontSize, int fontStyle, int wrapWidth) {
 
         super(x, y, color, strokeSize);
 
         this.text = text;
-        this.fontFamily = fontFamily;
-        this.fontSize = fontSize;
-        this.fontStyle = fontStyle;
+        this.font = StyleTable.font(fontFamily, fontStyle, fontSize);
+        this.wrapWidth = Math.max(0, wrapWidth);
+    }
+
+    private TextShape(int x, int y, Color color, int strokeSize, String text, Font font, int wrapWidth,
+            Layout layout) {
+        super(x, y, color, strokeSize);
+        this.text = text;
+        this.font = font;
+        this.wrapWidth = wrapWidth;
+        this.layout = layout;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public Font getFont() {
+        return font;
+    }
+
+    public int getWrapWidth() {
+        return wrapWidth;
+    }
+
+    // Number of lines after wrapping
+    public int getLineCount() {
+        return layout().lines.length;
+    }
+
+    @Override
+    protected void draw(Graphics2D g2, Color paint) {
+        Layout l = layout();
+        g2.setColor(paint);
+        for (int i = 0; i < l.lines.length; i++) {
+            if (l.lines[i] != null) {
+                g2.drawGlyphVector(l.lines[i], x, y + l.baselines[i]);
+            }
+        }
+    }
+
+    // Text too small to read is drawn as a light box per line
+    @Override
+    public void drawDraft(Graphics2D g2, double tolerance, double minTextHeight) {
+        if (font.getSize2D() >= minTextHeight) {
+            draw(g2);
+            return;
+        }
+        Layout l = layout();
+        g2.setColor(StyleTable.color(color.getRGB() & 0xFFFFFF | 0x50000000));
+        for (int i = 0; i < l.lines.length; i++) {
+            if (l.lines[i] != null) {
+                java.awt.Rectangle box = l.boxes[i];
+                g2.fillRect(x + box.x, y + box.y, box.width, box.height);
+            }
+        }
+    }
+
+    // The whole box is pickable, not just the glyphs
+    @Override
+    public void drawPick(Graphics2D g2, Color pickColor) {
+        g2.setColor(pickColor);
+        java.awt.Rectangle r = getBounds();
+        g2.fillRect(r.x, r.y, r.width, r.height);
     }
 
     @Override
-    public void draw(Graphics2D g2) {
-        g2.setColor(color);
-        g2.setFont(new Font(fontFamily, fontStyle, fontSize));
-        g2.drawString(text, x, y);
+    public Shape translated(int dx, int dy) {
+        return withStyle(new TextShape(x + dx, y + dy, color, strokeSize, text, font, wrapWidth, layout));
+    }
+
+    @Override
+    public java.awt.Rectangle getBounds() {
+        java.awt.Rectangle r = new java.awt.Rectangle(layout().bounds);
+        r.translate(x, y);
+        return r;
+    }
+
+    private Layout layout() {
+        Layout l = layout;
+        if (l == null) {
+            l = layOut();
+            layout = l;
+        }
+        return l;
+    }
+
+    // Glyphs are laid out with Font.layoutGlyphVector, which does the full
+    // shaping drawString would do, so drawing is a plain glyph blit
+    private Layout layOut() {
+        char[] chars = text.toCharArray();
+        java.util.ArrayList<int[]> ranges = new java.util.ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= chars.length; i++) {
+            if (i < chars.length && chars[i] != '\n') {
+                continue;
+            }
+            if (i > start && wrapWidth > 0) {
+                AttributedString styled = new AttributedString(text.substring(start, i));
+                styled.addAttribute(TextAttribute.FONT, font);
+                LineBreakMeasurer measurer = new LineBreakMeasurer(styled.getIterator(), FRC);
+                while (measurer.getPosition() < i - start) {
+                    int from = measurer.getPosition();
+                    ranges.add(new int[] { start + from, start + measurer.nextOffset(wrapWidth) });
+                    measurer.setPosition(ranges.get(ranges.size() - 1)[1] - start);
+                }
+            } else {
+                ranges.add(new int[] { start, i });
+            }
+            start = i + 1;
+        }
+
+        // Each baseline is the previous one plus its descent and leading
+        // plus this line's ascent. The box is the union of the logical boxes
+        // and the ink boxes, italics and some glyphs draw outside their
+        // advance.
+        int count = ranges.size();
+        GlyphVector[] lines = new GlyphVector[count];
+        float[] baselines = new float[count];
+        java.awt.Rectangle[] boxes = new java.awt.Rectangle[count];
+        java.awt.geom.Rectangle2D box = null;
+        float below = 0;
+        for (int i = 0; i < count; i++) {
+            int from = ranges.get(i)[0];
+            int to = ranges.get(i)[1];
+            LineMetrics metrics = from < to ? font.getLineMetrics(chars, from, to, FRC)
+                    : font.getLineMetrics("Mg", FRC);
+            baselines[i] = i == 0 ? 0 : below + metrics.getAscent();
+            below = baselines[i] + metrics.getDescent() + metrics.getLeading();
+            java.awt.geom.Rectangle2D r = new java.awt.geom.Rectangle2D.Float(0,
+                    baselines[i] - metrics.getAscent(), 0, metrics.getAscent() + metrics.getDescent());
+            if (from < to) {
+                lines[i] = font.layoutGlyphVector(FRC, chars, from, to, Font.LAYOUT_LEFT_TO_RIGHT);
+                java.awt.geom.Rectangle2D logical = lines[i].getLogicalBounds();
+                r.setRect(r.getX(), r.getY(), logical.getWidth(), r.getHeight());
+                boxes[i] = r.getBounds();
+                java.awt.geom.Rectangle2D ink = lines[i].getVisualBounds();
+                r.add(new java.awt.geom.Rectangle2D.Double(ink.getX(), ink.getY() + baselines[i], ink.getWidth(),
+                        ink.getHeight()));
+            }
+            if (box == null) {
+                box = r;
+            } else {
+                box.add(r);
+            }
+        }
+        java.awt.Rectangle bounds = box.getBounds();
+        bounds.grow(2, 2);
+        return new Layout(lines, baselines, boxes, bounds);
     }
 }
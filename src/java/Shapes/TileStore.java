@@ -0,0 +1,172 @@
+package Shapes;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// Working set of raster tile pixels. Decoded tiles are kept in memory up to
+// a byte limit, least recently used first out. A tile that goes out is
+// written to a slot of a memory-mapped scratch file (tiles never change, so
+// only once) and read back from it the next time it is drawn; tiles still
+// encoded from a document are just decoded again. The slot is freed when
+// the tile is garbage collected, no matter which layer, snapshot or undo
+// step held it.
+// The scratch file is mapped in chunks as it grows and deleted on exit.
+public class TileStore {
+
+    // Decoded tile memory kept by the shared store unless set otherwise,
+    // in MB
+    public static final long DEFAULT_MEMORY_LIMIT = Long.getLong("jpainter.rasterMemory", 256) << 20;
+
+    private static final int TILE_INTS = RasterLayer.TILE_SIZE * RasterLayer.TILE_SIZE;
+    private static final int TILE_BYTES = TILE_INTS * 4;
+    // 16 MB of slots per mapping
+    private static final int CHUNK_SLOTS = 256;
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private static TileStore shared;
+
+    private long memoryLimit;
+    private long residentBytes;
+    // access-ordered so the first entry is always the least recently used tile
+    private final LinkedHashMap<RasterLayer.Tile, Boolean> resident = new LinkedHashMap<>(64, 0.75f, true);
+
+    private final Path path;
+    private FileChannel channel;
+    private final ArrayList<IntBuffer> chunks = new ArrayList<>();
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    private int slotCount;
+    private long written;
+
+    // The scratch file is created on the first eviction
+    public TileStore(Path path, long memoryLimit) {
+        this.path = path;
+        this.memoryLimit = memoryLimit;
+    }
+
+    // Store used by every raster layer, its file is in the temp directory
+    public static synchronized TileStore shared() {
+        if (shared == null) {
+            try {
+                Path file = Files.createTempFile("jpaint-tiles", ".bin");
+                file.toFile().deleteOnExit();
+                shared = new TileStore(file, DEFAULT_MEMORY_LIMIT);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot create the raster scratch file", e);
+            }
+        }
+        return shared;
+    }
+
+    public synchronized void setMemoryLimit(long bytes) {
+        memoryLimit = bytes;
+        evict(null);
+    }
+
+    public synchronized long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    // Decoded tile pixels held in memory
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+
+    // Slots in use in the scratch file
+    public synchronized int getStoredTileCount() {
+        return slotCount - freeCount;
+    }
+
+    // Size of the scratch file
+    public synchronized long getFileBytes() {
+        return (long) chunks.size() * CHUNK_SLOTS * TILE_BYTES;
+    }
+
+    // Tiles written to the scratch file so far
+    public synchronized long getWriteCount() {
+        return written;
+    }
+
+    // Marks a tile as just used, which can push others out
+    synchronized void touch(RasterLayer.Tile tile) {
+        if (resident.put(tile, Boolean.TRUE) == null) {
+            residentBytes += TILE_BYTES;
+            evict(tile);
+        }
+    }
+
+    // Pixels of a tile that went out, into pixels
+    void read(int slot, int[] pixels) {
+        chunk(slot / CHUNK_SLOTS).get(slot % CHUNK_SLOTS * TILE_INTS, pixels);
+    }
+
+    private synchronized IntBuffer chunk(int index) {
+        return chunks.get(index);
+    }
+
+    // Drops the least recently used tiles, other than keep, until the limit
+    // holds
+    private void evict(RasterLayer.Tile keep) {
+        Iterator<RasterLayer.Tile> it = resident.keySet().iterator();
+        while (residentBytes > memoryLimit && it.hasNext()) {
+            RasterLayer.Tile tile = it.next();
+            if (tile == keep) {
+                continue;
+            }
+            it.remove();
+            residentBytes -= TILE_BYTES;
+            java.awt.image.BufferedImage image = tile.image;
+            if (image == null) {
+                continue;
+            }
+            if (tile.slot < 0 && tile.encoded == null) {
+                int slot = allocate();
+                chunks.get(slot / CHUNK_SLOTS).put(slot % CHUNK_SLOTS * TILE_INTS, RasterLayer.pixels(image));
+                written++;
+                CLEANER.register(tile, () -> release(slot));
+                tile.slot = slot;
+            }
+            // the slot is set before the pixels go, readers check them in
+            // the other order
+            tile.image = null;
+        }
+    }
+
+    private int allocate() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if (slotCount == chunks.size() * CHUNK_SLOTS) {
+            try {
+                if (channel == null) {
+                    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE);
+                }
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE,
+                        (long) chunks.size() * CHUNK_SLOTS * TILE_BYTES, (long) CHUNK_SLOTS * TILE_BYTES);
+                chunks.add(mapped.order(ByteOrder.nativeOrder()).asIntBuffer());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot grow the raster scratch file", e);
+            }
+        }
+        return slotCount++;
+    }
+
+    private synchronized void release(int slot) {
+        if (freeCount == freeSlots.length) {
+            freeSlots = java.util.Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+}
@@ -0,0 +1,241 @@
+package UIFrame;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.SwingWorker;
+
+// Loads a background image off the EDT.
+// A small subsampled preview is decoded first so the user sees the image
+// right away, then the working copy: full resolution when it fits in the
+// memory budget, otherwise subsampled just enough to fit.
+// Both are converted to a premultiplied INT format that blits fast.
+public class BackgroundLoader extends SwingWorker<BufferedImage, BufferedImage> {
+
+    // Longest side of the first preview
+    private static final int PREVIEW_SIZE = 1024;
+
+    // Receives the images on the EDT
+    public interface Listener {
+        // Called once the size is known, before any pixels
+        void sizeKnown(int width, int height);
+
+        // Called with the preview and then with the working copy
+        void imageLoaded(BufferedImage image, boolean finalImage);
+
+        void failed(Exception e);
+    }
+
+    // A File or an InputStream, anything ImageIO can open
+    private final Object source;
+    private final String name;
+    private final long memoryBudget;
+    private final Listener listener;
+    private volatile ImageReader reader;
+
+    public BackgroundLoader(File file, long memoryBudget, Listener listener) {
+        this(file, file.getName(), memoryBudget, listener);
+    }
+
+    // Loads an image that is already in memory, like the one embedded in a
+    // document
+    public BackgroundLoader(InputStream in, String name, long memoryBudget, Listener listener) {
+        this((Object) in, name, memoryBudget, listener);
+    }
+
+    private BackgroundLoader(Object source, String name, long memoryBudget, Listener listener) {
+        this.source = source;
+        this.name = name;
+        this.memoryBudget = memoryBudget;
+        this.listener = listener;
+    }
+
+    // Subsampling step that keeps a width x height image under the budget
+    public static int subsamplingFor(int width, int height, long memoryBudget) {
+        long bytes = (long) width * height * 4;
+        int step = 1;
+        while (bytes / ((long) step * step) > memoryBudget) {
+            step++;
+        }
+        return step;
+    }
+
+    @Override
+    protected BufferedImage doInBackground() throws Exception {
+        PainterEvents.ImageLoad event = new PainterEvents.ImageLoad();
+        event.begin();
+        try (ImageInputStream in = ImageIO.createImageInputStream(source)) {
+            if (in == null) {
+                throw new IOException("Cannot open " + name);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + name);
+            }
+            reader = readers.next();
+            try {
+                reader.setInput(in, false, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                fireSize(width, height);
+
+                int fullStep = subsamplingFor(width, height, memoryBudget);
+                int previewStep = Math.max(1, (Math.max(width, height) + PREVIEW_SIZE - 1) / PREVIEW_SIZE);
+
+                // the preview pass counts for the first 20% of the progress
+                if (previewStep > fullStep) {
+                    BufferedImage preview = read(previewStep, 0, 20);
+                    if (preview == null || isCancelled()) {
+                        return null;
+                    }
+                    publish(toBlitFormat(preview));
+                }
+                BufferedImage working = read(fullStep, previewStep > fullStep ? 20 : 0, 100);
+                if (working == null || isCancelled()) {
+                    return null;
+                }
+                working = toBlitFormat(working);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.source = name;
+                    event.width = width;
+                    event.height = height;
+                    event.subsampling = fullStep;
+                    event.bytes = (long) working.getWidth() * working.getHeight() * 4;
+                    event.commit();
+                }
+                return working;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Stops a decode that is running, the worker itself is cancelled too
+    public void abort() {
+        ImageReader r = reader;
+        if (r != null) {
+            r.abort();
+        }
+        cancel(false);
+    }
+
+    @Override
+    protected void process(List<BufferedImage> chunks) {
+        if (!isCancelled()) {
+            listener.imageLoaded(chunks.get(chunks.size() - 1), false);
+        }
+    }
+
+    @Override
+    protected void done() {
+        if (isCancelled()) {
+            return;
+        }
+        try {
+            BufferedImage image = get();
+            if (image != null) {
+                listener.imageLoaded(image, true);
+            }
+        } catch (Exception e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            listener.failed(cause instanceof Exception ? (Exception) cause : e);
+        }
+    }
+
+    // Decodes with a subsampling step, reporting progress between from and to
+    private BufferedImage read(int step, int from, int to) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(step, step, 0, 0);
+        IIOReadProgressListener progress = new IIOReadProgressListener() {
+            @Override
+            public void imageProgress(ImageReader source, float percentageDone) {
+                setProgress(Math.min(to, from + (int) (percentageDone * (to - from) / 100f)));
+                if (isCancelled()) {
+                    source.abort();
+                }
+            }
+
+            @Override
+            public void sequenceStarted(ImageReader source, int minIndex) {
+            }
+
+            @Override
+            public void sequenceComplete(ImageReader source) {
+            }
+
+            @Override
+            public void imageStarted(ImageReader source, int imageIndex) {
+            }
+
+            @Override
+            public void imageComplete(ImageReader source) {
+            }
+
+            @Override
+            public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+            }
+
+            @Override
+            public void thumbnailProgress(ImageReader source, float percentageDone) {
+            }
+
+            @Override
+            public void thumbnailComplete(ImageReader source) {
+            }
+
+            @Override
+            public void readAborted(ImageReader source) {
+            }
+        };
+        reader.addIIOReadProgressListener(progress);
+        try {
+            BufferedImage image = reader.read(0, param);
+            return isCancelled() ? null : image;
+        } finally {
+            reader.removeIIOReadProgressListener(progress);
+        }
+    }
+
+    private void fireSize(int width, int height) {
+        javax.swing.SwingUtilities.invokeLater(() -> {
+            if (!isCancelled()) {
+                listener.sizeKnown(width, height);
+            }
+        });
+    }
+
+    // Copies the image into the screen's preferred format (or premultiplied
+    // INT ARGB when headless) so drawing it is a plain blit
+    public static BufferedImage toBlitFormat(BufferedImage src) {
+        BufferedImage dst;
+        if (GraphicsEnvironment.isHeadless()) {
+            if (src.getType() == BufferedImage.TYPE_INT_ARGB_PRE) {
+                return src;
+            }
+            dst = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_ARGB_PRE);
+        } else {
+            dst = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                    .getDefaultConfiguration()
+                    .createCompatibleImage(src.getWidth(), src.getHeight(), Transparency.TRANSLUCENT);
+            if (dst.getType() == src.getType()) {
+                return src;
+            }
+        }
+        Graphics2D g2 = dst.createGraphics();
+        g2.drawImage(src, 0, 0, null);
+        g2.dispose();
+        return dst;
+    }
+}
@@ -0,0 +1,646 @@
+package UIFrame;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.Paint;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Arc2D;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.DataBufferInt;
+import java.awt.image.ImageObserver;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.RenderableImage;
+import java.text.AttributedCharacterIterator;
+import java.util.Map;
+
+// Graphics of an export band, in sheet coordinates moved by whole pixels.
+// A band drawn through it gets exactly the pixels the same rows get when the
+// whole sheet is drawn through it in one pass.
+// Drawn directly that does not hold: the rasterizer flattens curves and
+// strokes outlines from the device coordinates, splits long lines where they
+// leave the clip, and starts an edge that comes in over the top of the clip
+// from that row, so a shape cut by a band edge, or drawn a few rows up, is
+// anti-aliased a little differently. Here every shape is turned into the
+// area to fill first, from sheet coordinates only: strokes are outlined the
+// way the rasterizer does it (ends moved to pixel centers, then
+// BasicStroke.createStrokedShape), curves are flattened, lines are cut into
+// short pieces and at every pixel row, and every point is put on a grid that
+// whole pixel moves keep exact. The rasterizer only gets short lines that
+// never cross a band edge. Scaled images are resampled here from sheet
+// positions for the same reason; anything else goes straight through.
+final class BandGraphics extends Graphics2D {
+
+    // Curves are replaced by lines at most this far (pixels) from them
+    private static final double FLATNESS = 0.05;
+
+    // Longest line handed to the rasterizer, which splits longer ones at the
+    // clip on its own
+    private static final double MAX_SEGMENT = 64;
+
+    // Points are rounded to this many steps per pixel
+    private static final double GRID = 256;
+
+    // Taller text is filled as outlines by Java2D too (OutlineTextRenderer)
+    private static final int OUTLINE_TEXT_HEIGHT = 100;
+
+    private final Graphics2D g;
+
+    BandGraphics(Graphics2D g) {
+        this.g = g;
+    }
+
+    @Override
+    public void draw(Shape s) {
+        Stroke stroke = g.getStroke();
+        if (stroke instanceof BasicStroke
+                && g.getRenderingHint(RenderingHints.KEY_ANTIALIASING) == RenderingHints.VALUE_ANTIALIAS_ON
+                && g.getRenderingHint(RenderingHints.KEY_STROKE_CONTROL) != RenderingHints.VALUE_STROKE_PURE) {
+            s = toPixelCenters(s);
+        }
+        fill(stroke.createStrokedShape(s));
+    }
+
+    @Override
+    public void fill(Shape s) {
+        g.fill(cut(s));
+    }
+
+    @Override
+    public void drawLine(int x1, int y1, int x2, int y2) {
+        draw(new Line2D.Float(x1, y1, x2, y2));
+    }
+
+    @Override
+    public void drawRect(int x, int y, int width, int height) {
+        if (width >= 0 && height >= 0) {
+            draw(new Rectangle(x, y, width, height));
+        }
+    }
+
+    @Override
+    public void drawOval(int x, int y, int width, int height) {
+        draw(new Ellipse2D.Float(x, y, width, height));
+    }
+
+    @Override
+    public void fillOval(int x, int y, int width, int height) {
+        fill(new Ellipse2D.Float(x, y, width, height));
+    }
+
+    @Override
+    public void drawRoundRect(int x, int y, int width, int height, int arcWidth, int arcHeight) {
+        draw(new RoundRectangle2D.Float(x, y, width, height, arcWidth, arcHeight));
+    }
+
+    @Override
+    public void fillRoundRect(int x, int y, int width, int height, int arcWidth, int arcHeight) {
+        fill(new RoundRectangle2D.Float(x, y, width, height, arcWidth, arcHeight));
+    }
+
+    @Override
+    public void drawArc(int x, int y, int width, int height, int startAngle, int arcAngle) {
+        draw(new Arc2D.Float(x, y, width, height, startAngle, arcAngle, Arc2D.OPEN));
+    }
+
+    @Override
+    public void fillArc(int x, int y, int width, int height, int startAngle, int arcAngle) {
+        fill(new Arc2D.Float(x, y, width, height, startAngle, arcAngle, Arc2D.PIE));
+    }
+
+    @Override
+    public void drawPolyline(int[] xPoints, int[] yPoints, int nPoints) {
+        if (nPoints > 0) {
+            Path2D.Float path = new Path2D.Float();
+            path.moveTo(xPoints[0], yPoints[0]);
+            for (int i = 1; i < nPoints; i++) {
+                path.lineTo(xPoints[i], yPoints[i]);
+            }
+            draw(path);
+        }
+    }
+
+    @Override
+    public void drawPolygon(int[] xPoints, int[] yPoints, int nPoints) {
+        draw(new Polygon(xPoints, yPoints, nPoints));
+    }
+
+    @Override
+    public void fillPolygon(int[] xPoints, int[] yPoints, int nPoints) {
+        fill(new Polygon(xPoints, yPoints, nPoints));
+    }
+
+    // Whole pixel rectangles are covered fully or not at all wherever they
+    // are drawn
+    @Override
+    public void fillRect(int x, int y, int width, int height) {
+        g.fillRect(x, y, width, height);
+    }
+
+    @Override
+    public void clearRect(int x, int y, int width, int height) {
+        g.clearRect(x, y, width, height);
+    }
+
+    @Override
+    public void drawGlyphVector(GlyphVector gv, float x, float y) {
+        Font font = gv.getFont();
+        if (font.isTransformed() || (int) (font.getSize2D() + 0.5f) > OUTLINE_TEXT_HEIGHT) {
+            fill(gv.getOutline(x, y));
+        } else {
+            g.drawGlyphVector(gv, x, y);
+        }
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, int width, int height, ImageObserver observer) {
+        if (!(img instanceof BufferedImage) || width <= 0 || height <= 0
+                || img.getWidth(null) == width && img.getHeight(null) == height) {
+            return g.drawImage(img, x, y, width, height, observer);
+        }
+        Rectangle area = new Rectangle(x, y, width, height);
+        Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            area = area.intersection(clip);
+        }
+        if (area.isEmpty()) {
+            return true;
+        }
+        return g.drawImage(resample((BufferedImage) img, x, y, width, height, area), area.x, area.y, null);
+    }
+
+    // Ends of the segments moved to the nearest pixel center, control points
+    // along with them, like the rasterizer does for anti-aliased strokes
+    // unless the stroke control hint is pure
+    private static Shape toPixelCenters(Shape s) {
+        PathIterator it = s.getPathIterator(null);
+        Path2D.Double out = new Path2D.Double(it.getWindingRule());
+        double[] c = new double[6];
+        double lastX = 0, lastY = 0;
+        double moveX = 0, moveY = 0;
+        for (; !it.isDone(); it.next()) {
+            int type = it.currentSegment(c);
+            if (type == PathIterator.SEG_CLOSE) {
+                out.closePath();
+                lastX = moveX;
+                lastY = moveY;
+                continue;
+            }
+            int end = type == PathIterator.SEG_CUBICTO ? 4 : type == PathIterator.SEG_QUADTO ? 2 : 0;
+            double x = Math.floor(c[end]) + 0.5 - c[end];
+            double y = Math.floor(c[end + 1]) + 0.5 - c[end + 1];
+            c[end] += x;
+            c[end + 1] += y;
+            switch (type) {
+                case PathIterator.SEG_MOVETO:
+                    out.moveTo(c[0], c[1]);
+                    moveX = x;
+                    moveY = y;
+                    break;
+                case PathIterator.SEG_LINETO:
+                    out.lineTo(c[0], c[1]);
+                    break;
+                case PathIterator.SEG_QUADTO:
+                    out.quadTo(c[0] + (lastX + x) / 2, c[1] + (lastY + y) / 2, c[2], c[3]);
+                    break;
+                default:
+                    out.curveTo(c[0] + lastX, c[1] + lastY, c[2] + x, c[3] + y, c[4], c[5]);
+            }
+            lastX = x;
+            lastY = y;
+        }
+        return out;
+    }
+
+    // The area of s as lines on the grid, cut at every pixel row the clip
+    // reaches; rows outside it do not change a pixel
+    private Path2D.Double cut(Shape s) {
+        Rectangle clip = g.getClipBounds();
+        double top = clip != null ? clip.y - 1 : Double.NEGATIVE_INFINITY;
+        double bottom = clip != null ? clip.y + clip.height + 1 : Double.POSITIVE_INFINITY;
+        PathIterator it = s.getPathIterator(null, FLATNESS);
+        Path2D.Double out = new Path2D.Double(it.getWindingRule());
+        double[] c = new double[6];
+        double x = 0, y = 0;
+        double startX = 0, startY = 0;
+        for (; !it.isDone(); it.next()) {
+            switch (it.currentSegment(c)) {
+                case PathIterator.SEG_MOVETO:
+                    x = startX = snap(c[0]);
+                    y = startY = snap(c[1]);
+                    out.moveTo(x, y);
+                    break;
+                case PathIterator.SEG_LINETO:
+                    double toX = snap(c[0]);
+                    double toY = snap(c[1]);
+                    lineTo(out, x, y, toX, toY, top, bottom);
+                    x = toX;
+                    y = toY;
+                    break;
+                default:
+                    // a flattened path has nothing but moves, lines and
+                    // closes
+                    lineTo(out, x, y, startX, startY, top, bottom);
+                    out.closePath();
+                    x = startX;
+                    y = startY;
+            }
+        }
+        return out;
+    }
+
+    // Adds the line to (x1, y1) in pieces of at most MAX_SEGMENT, each cut
+    // at the whole rows between top and bottom it crosses
+    private static void lineTo(Path2D.Double out, double x0, double y0, double x1, double y1, double top,
+            double bottom) {
+        int pieces = (int) Math.ceil(Math.hypot(x1 - x0, y1 - y0) / MAX_SEGMENT);
+        double fromX = x0, fromY = y0;
+        for (int i = 1; i <= pieces; i++) {
+            double toX = i == pieces ? x1 : snap(x0 + (x1 - x0) * i / pieces);
+            double toY = i == pieces ? y1 : snap(y0 + (y1 - y0) * i / pieces);
+            if (toY > fromY) {
+                for (double row = Math.max(Math.floor(fromY) + 1, top); row < toY && row <= bottom; row++) {
+                    out.lineTo(snap(fromX + (toX - fromX) * (row - fromY) / (toY - fromY)), row);
+                }
+            } else if (toY < fromY) {
+                for (double row = Math.min(Math.ceil(fromY) - 1, bottom); row > toY && row >= top; row--) {
+                    out.lineTo(snap(fromX + (toX - fromX) * (row - fromY) / (toY - fromY)), row);
+                }
+            }
+            out.lineTo(toX, toY);
+            fromX = toX;
+            fromY = toY;
+        }
+    }
+
+    private static double snap(double v) {
+        return Math.rint(v * GRID) / GRID;
+    }
+
+    // The part in area of img scaled to width x height at (x, y), every
+    // pixel sampled from its sheet position alone. Bilinear unless the
+    // interpolation hint asks for nearest neighbor.
+    private BufferedImage resample(BufferedImage img, int x, int y, int width, int height, Rectangle area) {
+        Object interpolation = g.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+        boolean bilinear = interpolation != null
+                && interpolation != RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+        int imageWidth = img.getWidth();
+        int imageHeight = img.getHeight();
+        BufferedImage out = new BufferedImage(area.width, area.height, BufferedImage.TYPE_INT_ARGB_PRE);
+        int[] pixels = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+        int[] above = new int[imageWidth];
+        int[] below = new int[imageWidth];
+        int aboveRow = -1, belowRow = -1;
+        for (int r = 0; r < area.height; r++) {
+            double sy = (area.y + r - y + 0.5) * imageHeight / height;
+            int row0, row1;
+            double wy;
+            if (bilinear) {
+                sy -= 0.5;
+                row0 = (int) Math.floor(sy);
+                wy = sy - row0;
+                row1 = Math.min(imageHeight - 1, row0 + 1);
+                row0 = Math.max(0, row0);
+            } else {
+                row0 = row1 = Math.min(imageHeight - 1, (int) sy);
+                wy = 0;
+            }
+            if (row0 != aboveRow) {
+                img.getRGB(0, row0, imageWidth, 1, above, 0, imageWidth);
+                aboveRow = row0;
+            }
+            if (row1 != belowRow) {
+                img.getRGB(0, row1, imageWidth, 1, below, 0, imageWidth);
+                belowRow = row1;
+            }
+            for (int c = 0; c < area.width; c++) {
+                double sx = (area.x + c - x + 0.5) * imageWidth / width;
+                int col0, col1;
+                double wx;
+                if (bilinear) {
+                    sx -= 0.5;
+                    col0 = (int) Math.floor(sx);
+                    wx = sx - col0;
+                    col1 = Math.min(imageWidth - 1, col0 + 1);
+                    col0 = Math.max(0, col0);
+                } else {
+                    col0 = col1 = Math.min(imageWidth - 1, (int) sx);
+                    wx = 0;
+                }
+                pixels[r * area.width + c] = blend(above[col0], above[col1], below[col0], below[col1], wx, wy);
+            }
+        }
+        return out;
+    }
+
+    // Bilinear mix of four ARGB pixels as a premultiplied pixel
+    private static int blend(int p00, int p10, int p01, int p11, double wx, double wy) {
+        double w00 = (1 - wx) * (1 - wy), w10 = wx * (1 - wy), w01 = (1 - wx) * wy, w11 = wx * wy;
+        double a = 0, r = 0, gr = 0, b = 0;
+        int[] samples = { p00, p10, p01, p11 };
+        double[] weights = { w00, w10, w01, w11 };
+        for (int i = 0; i < 4; i++) {
+            int p = samples[i];
+            double alpha = (p >>> 24) * weights[i];
+            a += alpha;
+            r += ((p >> 16) & 0xFF) * alpha / 255;
+            gr += ((p >> 8) & 0xFF) * alpha / 255;
+            b += (p & 0xFF) * alpha / 255;
+        }
+        return (int) (a + 0.5) << 24 | (int) (r + 0.5) << 16 | (int) (gr + 0.5) << 8 | (int) (b + 0.5);
+    }
+
+    // The rest goes straight to the band's graphics
+
+    @Override
+    public Graphics create() {
+        return new BandGraphics((Graphics2D) g.create());
+    }
+
+    @Override
+    public void dispose() {
+        g.dispose();
+    }
+
+    @Override
+    public void drawString(String str, int x, int y) {
+        g.drawString(str, x, y);
+    }
+
+    @Override
+    public void drawString(String str, float x, float y) {
+        g.drawString(str, x, y);
+    }
+
+    @Override
+    public void drawString(AttributedCharacterIterator iterator, int x, int y) {
+        g.drawString(iterator, x, y);
+    }
+
+    @Override
+    public void drawString(AttributedCharacterIterator iterator, float x, float y) {
+        g.drawString(iterator, x, y);
+    }
+
+    @Override
+    public boolean drawImage(Image img, AffineTransform xform, ImageObserver obs) {
+        return g.drawImage(img, xform, obs);
+    }
+
+    @Override
+    public void drawImage(BufferedImage img, BufferedImageOp op, int x, int y) {
+        g.drawImage(img, op, x, y);
+    }
+
+    @Override
+    public void drawRenderedImage(RenderedImage img, AffineTransform xform) {
+        g.drawRenderedImage(img, xform);
+    }
+
+    @Override
+    public void drawRenderableImage(RenderableImage img, AffineTransform xform) {
+        g.drawRenderableImage(img, xform);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, ImageObserver observer) {
+        return g.drawImage(img, x, y, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, Color bgcolor, ImageObserver observer) {
+        return g.drawImage(img, x, y, bgcolor, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, int width, int height, Color bgcolor,
+            ImageObserver observer) {
+        return g.drawImage(img, x, y, width, height, bgcolor, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2,
+            ImageObserver observer) {
+        return g.drawImage(img, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2,
+            Color bgcolor, ImageObserver observer) {
+        return g.drawImage(img, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, bgcolor, observer);
+    }
+
+    @Override
+    public boolean hit(Rectangle rect, Shape s, boolean onStroke) {
+        return g.hit(rect, s, onStroke);
+    }
+
+    @Override
+    public GraphicsConfiguration getDeviceConfiguration() {
+        return g.getDeviceConfiguration();
+    }
+
+    @Override
+    public void setComposite(Composite comp) {
+        g.setComposite(comp);
+    }
+
+    @Override
+    public Composite getComposite() {
+        return g.getComposite();
+    }
+
+    @Override
+    public void setPaint(Paint paint) {
+        g.setPaint(paint);
+    }
+
+    @Override
+    public Paint getPaint() {
+        return g.getPaint();
+    }
+
+    @Override
+    public void setStroke(Stroke s) {
+        g.setStroke(s);
+    }
+
+    @Override
+    public Stroke getStroke() {
+        return g.getStroke();
+    }
+
+    @Override
+    public void setRenderingHint(RenderingHints.Key hintKey, Object hintValue) {
+        g.setRenderingHint(hintKey, hintValue);
+    }
+
+    @Override
+    public Object getRenderingHint(RenderingHints.Key hintKey) {
+        return g.getRenderingHint(hintKey);
+    }
+
+    @Override
+    public void setRenderingHints(Map<?, ?> hints) {
+        g.setRenderingHints(hints);
+    }
+
+    @Override
+    public void addRenderingHints(Map<?, ?> hints) {
+        g.addRenderingHints(hints);
+    }
+
+    @Override
+    public RenderingHints getRenderingHints() {
+        return g.getRenderingHints();
+    }
+
+    @Override
+    public void translate(int x, int y) {
+        g.translate(x, y);
+    }
+
+    @Override
+    public void translate(double tx, double ty) {
+        g.translate(tx, ty);
+    }
+
+    @Override
+    public void rotate(double theta) {
+        g.rotate(theta);
+    }
+
+    @Override
+    public void rotate(double theta, double x, double y) {
+        g.rotate(theta, x, y);
+    }
+
+    @Override
+    public void scale(double sx, double sy) {
+        g.scale(sx, sy);
+    }
+
+    @Override
+    public void shear(double shx, double shy) {
+        g.shear(shx, shy);
+    }
+
+    @Override
+    public void transform(AffineTransform tx) {
+        g.transform(tx);
+    }
+
+    @Override
+    public void setTransform(AffineTransform tx) {
+        g.setTransform(tx);
+    }
+
+    @Override
+    public AffineTransform getTransform() {
+        return g.getTransform();
+    }
+
+    @Override
+    public void setBackground(Color color) {
+        g.setBackground(color);
+    }
+
+    @Override
+    public Color getBackground() {
+        return g.getBackground();
+    }
+
+    @Override
+    public void clip(Shape s) {
+        g.clip(s);
+    }
+
+    @Override
+    public FontRenderContext getFontRenderContext() {
+        return g.getFontRenderContext();
+    }
+
+    @Override
+    public Color getColor() {
+        return g.getColor();
+    }
+
+    @Override
+    public void setColor(Color c) {
+        g.setColor(c);
+    }
+
+    @Override
+    public void setPaintMode() {
+        g.setPaintMode();
+    }
+
+    @Override
+    public void setXORMode(Color c1) {
+        g.setXORMode(c1);
+    }
+
+    @Override
+    public Font getFont() {
+        return g.getFont();
+    }
+
+    @Override
+    public void setFont(Font font) {
+        g.setFont(font);
+    }
+
+    @Override
+    public FontMetrics getFontMetrics(Font f) {
+        return g.getFontMetrics(f);
+    }
+
+    @Override
+    public Rectangle getClipBounds() {
+        return g.getClipBounds();
+    }
+
+    @Override
+    public void clipRect(int x, int y, int width, int height) {
+        g.clipRect(x, y, width, height);
+    }
+
+    @Override
+    public void setClip(int x, int y, int width, int height) {
+        g.setClip(x, y, width, height);
+    }
+
+    @Override
+    public Shape getClip() {
+        return g.getClip();
+    }
+
+    @Override
+    public void setClip(Shape clip) {
+        g.setClip(clip);
+    }
+
+    @Override
+    public void copyArea(int x, int y, int width, int height, int dx, int dy) {
+        g.copyArea(x, y, width, height, dx, dy);
+    }
+}
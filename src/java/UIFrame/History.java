@@ -0,0 +1,389 @@
+package UIFrame;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+// Undo/redo stacks of commands.
+// Undo and redo are O(1) whatever the depth. Commands that keep large data
+// alive (a cleared drawing, a replaced background) report it, and when the
+// undo stack holds more than the memory budget the oldest of them move that
+// data to a temporary spill file until they are undone. Spilling is done by
+// a background thread, the Event Dispatch Thread only hands the data over.
+// The file only keeps what commands still on the stacks may read back: it
+// shrinks as spilled data is read back or dropped and is deleted when the
+// history is cleared or disposed.
+public class History {
+
+    public interface Command {
+        void undo();
+
+        void redo();
+
+        // Bytes only this command keeps in memory
+        default long retainedBytes() {
+            return 0;
+        }
+
+        // Hands the retained data to the spill file and drops it, returns
+        // false when there was nothing to spill
+        default boolean spill(SpillFile file) {
+            return false;
+        }
+
+        // The command left the history for good, what it spilled is not
+        // needed any more
+        default void discard() {
+        }
+    }
+
+    private final ArrayList<Command> undoStack = new ArrayList<>();
+    private final ArrayList<Command> redoStack = new ArrayList<>();
+
+    private long memoryBudget;
+    private long retained = 0;
+
+    // Commands below this index have been spilled or had nothing to spill
+    private int spillCursor = 0;
+    private SpillFile spillFile;
+
+    public History(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        enforceBudget();
+    }
+
+    // Records a command that has already been applied
+    public void push(Command command) {
+        undoStack.add(command);
+        retained += command.retainedBytes();
+        discardAll(redoStack);
+        enforceBudget();
+    }
+
+    // Forgets everything, for a new document
+    public void clear() {
+        discardAll(undoStack);
+        discardAll(redoStack);
+        retained = 0;
+        spillCursor = 0;
+        closeSpillFile();
+    }
+
+    // Clears the history and deletes the spill file, for when the drawing
+    // goes away
+    public void dispose() {
+        clear();
+    }
+
+    public boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    public int getUndoDepth() {
+        return undoStack.size();
+    }
+
+    public long getRetainedBytes() {
+        return retained;
+    }
+
+    // Bytes of spilled data still needed, 0 without a spill file
+    public long getSpilledBytes() {
+        return spillFile != null ? spillFile.getLiveBytes() : 0;
+    }
+
+    public void undo() {
+        if (undoStack.isEmpty()) {
+            return;
+        }
+        Command command = undoStack.remove(undoStack.size() - 1);
+        retained -= command.retainedBytes();
+        spillCursor = Math.min(spillCursor, undoStack.size());
+        command.undo();
+        redoStack.add(command);
+    }
+
+    public void redo() {
+        if (redoStack.isEmpty()) {
+            return;
+        }
+        Command command = redoStack.remove(redoStack.size() - 1);
+        command.redo();
+        undoStack.add(command);
+        retained += command.retainedBytes();
+        enforceBudget();
+    }
+
+    private static void discardAll(ArrayList<Command> commands) {
+        for (Command command : commands) {
+            command.discard();
+        }
+        commands.clear();
+    }
+
+    private void closeSpillFile() {
+        if (spillFile != null) {
+            spillFile.close();
+            spillFile = null;
+        }
+    }
+
+    // Spills the oldest commands until the undo stack fits in the budget
+    private void enforceBudget() {
+        while (retained > memoryBudget && spillCursor < undoStack.size()) {
+            Command command = undoStack.get(spillCursor++);
+            long bytes = command.retainedBytes();
+            if (bytes == 0) {
+                continue;
+            }
+            if (spillFile == null) {
+                try {
+                    spillFile = new SpillFile();
+                } catch (IOException e) {
+                    // keep it in memory, the history is still correct
+                    System.err.println("Could not spill undo history: " + e.getMessage());
+                    return;
+                }
+            }
+            if (command.spill(spillFile)) {
+                retained -= bytes - command.retainedBytes();
+            }
+        }
+    }
+
+    // Temporary file holding spilled history data. Data is written at the
+    // end by one background thread and read back from any thread; the file
+    // is cut back to the end of the last entry still in use.
+    public static class SpillFile {
+
+        // Streams data into the file
+        public interface Writer<T> {
+            void write(T data, DataOutputStream out) throws IOException;
+        }
+
+        // Builds the data back from what the writer wrote
+        public interface Reader<T> {
+            T read(DataInputStream in) throws IOException;
+        }
+
+        private final File path;
+        private final FileChannel channel;
+        private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "undo-spill");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Offset and length of the entries in use, guarded by this
+        private final TreeMap<Long, Long> live = new TreeMap<>();
+        private long liveBytes;
+        private boolean closed;
+
+        // Written by the writer thread only
+        private long end;
+
+        SpillFile() throws IOException {
+            path = File.createTempFile("jpainter-history", ".bin");
+            path.deleteOnExit();
+            channel = FileChannel.open(path.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        // Writes data in the background. Until the write is done the entry
+        // keeps the data and hands it back from memory.
+        public <T> Entry<T> writeLater(T data, Writer<T> encoder) {
+            Entry<T> entry = new Entry<>(this, data);
+            try {
+                writer.execute(() -> append(entry, encoder));
+            } catch (RejectedExecutionException e) {
+                // closed, the entry just stays in memory
+            }
+            return entry;
+        }
+
+        public synchronized long getLiveBytes() {
+            return liveBytes;
+        }
+
+        // Size of the file on disk
+        public long getFileBytes() throws IOException {
+            return channel.size();
+        }
+
+        private <T> void append(Entry<T> entry, Writer<T> encoder) {
+            T data = entry.pendingData();
+            if (data == null) {
+                return; // taken back before it was written
+            }
+            long offset = end;
+            try {
+                channel.position(offset);
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+                encoder.write(data, out);
+                out.flush();
+                long length = channel.position() - offset;
+                end = offset + length;
+                synchronized (this) {
+                    live.put(offset, length);
+                    liveBytes += length;
+                }
+                entry.written(offset, length);
+            } catch (IOException | RuntimeException e) {
+                // the entry keeps the data in memory. Data taken back while
+                // it was written may change under the writer and fail, the
+                // entry is dropped then anyway.
+                if (entry.pendingData() != null) {
+                    System.err.println("Could not spill undo history: " + e.getMessage());
+                }
+                try {
+                    channel.truncate(offset);
+                } catch (IOException ignored) {
+                    // the next write goes past the garbage
+                }
+            }
+        }
+
+        private byte[] read(long offset, long length) throws IOException {
+            ByteBuffer data = ByteBuffer.allocate(Math.toIntExact(length));
+            while (data.hasRemaining()) {
+                if (channel.read(data, offset + data.position()) < 0) {
+                    throw new EOFException("Undo spill file is shorter than expected");
+                }
+            }
+            return data.array();
+        }
+
+        // An entry is no longer needed, cuts the file back if it was the
+        // last one
+        private void release(long offset) {
+            synchronized (this) {
+                Long length = live.remove(offset);
+                if (length == null || closed) {
+                    return;
+                }
+                liveBytes -= length;
+            }
+            try {
+                writer.execute(this::trim);
+            } catch (RejectedExecutionException e) {
+                // closed meanwhile
+            }
+        }
+
+        private void trim() {
+            long used;
+            synchronized (this) {
+                Map.Entry<Long, Long> last = live.lastEntry();
+                used = last == null ? 0 : last.getKey() + last.getValue();
+            }
+            if (used < end) {
+                try {
+                    channel.truncate(used);
+                    end = used;
+                } catch (IOException e) {
+                    // the space is reused once the file is recreated
+                }
+            }
+        }
+
+        // Closes and deletes the file once the pending writes are done
+        void close() {
+            synchronized (this) {
+                closed = true;
+                live.clear();
+                liveBytes = 0;
+            }
+            writer.execute(() -> {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // deleted below or on exit anyway
+                }
+                path.delete();
+            });
+            writer.shutdown();
+        }
+    }
+
+    // Data handed to the spill file. It stays in memory until it is written,
+    // then it is read back from the file.
+    public static final class Entry<T> {
+        private final SpillFile file;
+        private T data;
+        private long offset = -1;
+        private long length;
+        private boolean dropped;
+
+        Entry(SpillFile file, T data) {
+            this.file = file;
+            this.data = data;
+        }
+
+        // The data, from memory or from the file; the entry is used up
+        public T restore(SpillFile.Reader<T> reader) throws IOException {
+            long at;
+            long size;
+            synchronized (this) {
+                dropped = true;
+                if (data != null) {
+                    T kept = data;
+                    data = null;
+                    return kept;
+                }
+                at = offset;
+                size = length;
+            }
+            try {
+                return reader.read(new DataInputStream(new ByteArrayInputStream(file.read(at, size))));
+            } finally {
+                file.release(at);
+            }
+        }
+
+        // Frees what the entry holds, in memory or in the file
+        public synchronized void discard() {
+            dropped = true;
+            data = null;
+            if (offset >= 0) {
+                file.release(offset);
+                offset = -1;
+            }
+        }
+
+        private synchronized T pendingData() {
+            return dropped ? null : data;
+        }
+
+        private synchronized void written(long offset, long length) {
+            if (dropped) {
+                file.release(offset);
+                return;
+            }
+            this.offset = offset;
+            this.length = length;
+            data = null;
+        }
+    }
+}
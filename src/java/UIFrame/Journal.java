@@ -0,0 +1,615 @@
+package UIFrame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import Shapes.FloodFill;
+import Shapes.Layer;
+import Shapes.RasterLayer;
+import Shapes.Shape;
+import Shapes.ShapeCodec;
+import Shapes.ShapeDocument;
+import Shapes.ShapeStore;
+
+// Crash-safe autosave: an append-only journal of the edits made in Painter.
+// Edits are encoded on the EDT and queued for a writer thread that appends
+// them in batches and fsyncs at most once per sync interval, so the EDT never
+// waits for the disk.
+// When the journal grows past the compaction size (or the queue overflows)
+// the current drawing is written as a snapshot document and a new journal
+// generation starts from it. Recovery loads the newest snapshot and replays
+// the journal written after it, stopping at the first torn record.
+//
+// Files in the journal directory, N is the generation:
+//   journal-N.log     records: length, CRC32, then op code and data; the
+//                     first record is BASE and names the snapshot
+//   snapshot-N.jpaint drawing (and embedded background) the journal starts
+//                     from
+public class Journal {
+
+    static final int OP_BASE = 0;
+    static final int OP_ADD = 1;
+    static final int OP_UNDO = 2;
+    static final int OP_REDO = 3;
+    static final int OP_CLEAR = 4;
+    static final int OP_IMAGE = 5;
+    static final int OP_STROKE = 6;
+    static final int OP_COMPACT = 7;
+    static final int OP_MOVE = 8;
+    static final int OP_DELETE = 9;
+    static final int OP_LAYERS = 10;
+    static final int OP_FILL = 11;
+
+    private static final long DEFAULT_SYNC_INTERVAL = 1000;
+    private static final long DEFAULT_COMPACT_BYTES = 16L * 1024 * 1024;
+
+    // Encoded edits waiting for the writer, past this the journal compacts
+    // instead of queueing more
+    private static final long QUEUE_LIMIT = 4L * 1024 * 1024;
+
+    // Milliseconds before a snapshot is tried again after a write error
+    private static final int RETRY_DELAY = 10000;
+
+    // What a snapshot is made of, captured on the EDT
+    public static class State {
+        final ShapeStore shapes;
+        final RasterLayer raster;
+        final java.util.List<Layer> layers;
+        final SheetBackground background;
+        final int width;
+        final int height;
+
+        public State(ShapeStore shapes, RasterLayer raster, SheetBackground background, int width, int height) {
+            this(shapes, raster, null, background, width, height);
+        }
+
+        public State(ShapeStore shapes, RasterLayer raster, java.util.List<Layer> layers, SheetBackground background,
+                int width, int height) {
+            this.shapes = shapes;
+            this.raster = raster;
+            this.layers = layers;
+            this.background = background;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    // Applies recovered edits, called on the thread that runs replay
+    public interface Replayer {
+        // Start of the journal: the snapshot and the image its background
+        // comes from (null when it is embedded in the document or missing)
+        void base(ShapeDocument snapshot, File backgroundImage);
+
+        void add(Shape shape);
+
+        // A brush or eraser stroke baked into the raster layer
+        void stroke(Shape stroke, boolean erase);
+
+        void undo();
+
+        void redo();
+
+        void clear();
+
+        // Removal of the covered shapes, see Painter.compactDocument
+        void compact();
+
+        // Shapes moved or deleted with the SELECT tool, by id
+        void move(java.util.BitSet ids, int dx, int dy);
+
+        void delete(java.util.BitSet ids);
+
+        // A new layer table, see Painter.applyLayers
+        void layers(java.util.List<Layer> layers);
+
+        // A paint bucket fill of the raster layer, as runs of pixels
+        void fill(FloodFill.Region region, java.awt.Color color);
+
+        void image(File file, int width, int height);
+    }
+
+    private final File dir;
+    private final long syncInterval;
+    private final long compactBytes;
+    private final Supplier<State> state;
+
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private boolean overflowed = false;
+    private volatile boolean compactionRequested = false;
+
+    private static final Object STOP = new Object();
+    private Thread writer;
+
+    // Writer thread state
+    private FileChannel channel;
+    private int generation;
+    private long journalBytes;
+    private boolean unsynced;
+    private long lastSync;
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong syncCount = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+
+    public Journal(File dir, Supplier<State> state) {
+        this(dir, Long.getLong("jpainter.autosave.sync", DEFAULT_SYNC_INTERVAL),
+                Long.getLong("jpainter.autosave.compact", DEFAULT_COMPACT_BYTES), state);
+    }
+
+    // syncInterval in milliseconds, 0 syncs after every batch
+    public Journal(File dir, long syncInterval, long compactBytes, Supplier<State> state) {
+        this.dir = dir;
+        this.syncInterval = syncInterval;
+        this.compactBytes = compactBytes;
+        this.state = state;
+    }
+
+    public static File defaultDirectory() {
+        String configured = System.getProperty("jpainter.autosave.dir");
+        if (configured != null) {
+            return new File(configured);
+        }
+        return new File(System.getProperty("user.home"), ".jpainter" + File.separator + "autosave");
+    }
+
+    public static boolean isEnabled() {
+        return !"false".equals(System.getProperty("jpainter.autosave"));
+    }
+
+    // True when a previous session left a journal behind
+    public static boolean exists(File dir) {
+        return latestGeneration(dir) >= 0;
+    }
+
+    // Starts a new journal from the current drawing, older files are removed
+    // once its snapshot is on disk
+    public void start() {
+        generation = Math.max(latestGeneration(dir), latestSnapshot(dir));
+        queue.add(state.get());
+        writer = new Thread(this::writeLoop, "autosave-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Flushes everything queued, syncs and stops the writer. With discard the
+    // journal files are deleted, for a clean exit.
+    public void close(boolean discard) {
+        if (writer == null) {
+            return;
+        }
+        queue.add(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+        if (discard) {
+            deleteGenerationsBelow(Integer.MAX_VALUE);
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getSyncCount() {
+        return syncCount.get();
+    }
+
+    public long getCompactionCount() {
+        return compactions.get();
+    }
+
+    // Edits, called on the EDT after the edit was applied
+
+    public void recordAdd(Shape shape) {
+        record(OP_ADD, out -> ShapeCodec.write(out, shape));
+    }
+
+    public void recordStroke(Shape stroke, boolean erase) {
+        record(OP_STROKE, out -> {
+            out.writeBoolean(erase);
+            ShapeCodec.write(out, stroke);
+        });
+    }
+
+    public void recordUndo() {
+        record(OP_UNDO, null);
+    }
+
+    public void recordRedo() {
+        record(OP_REDO, null);
+    }
+
+    public void recordClear() {
+        record(OP_CLEAR, null);
+    }
+
+    public void recordCompact() {
+        record(OP_COMPACT, null);
+    }
+
+    public void recordMove(java.util.BitSet ids, int dx, int dy) {
+        record(OP_MOVE, out -> {
+            writeIds(out, ids);
+            out.writeInt(dx);
+            out.writeInt(dy);
+        });
+    }
+
+    public void recordDelete(java.util.BitSet ids) {
+        record(OP_DELETE, out -> writeIds(out, ids));
+    }
+
+    private static void writeIds(DataOutputStream out, java.util.BitSet ids) throws IOException {
+        long[] words = ids.toLongArray();
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    private static java.util.BitSet readIds(DataInputStream in) throws IOException {
+        long[] words = new long[in.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+        return java.util.BitSet.valueOf(words);
+    }
+
+    public void recordLayers(java.util.List<Layer> layers) {
+        record(OP_LAYERS, out -> Layer.writeTable(out, layers));
+    }
+
+    public void recordFill(FloodFill.Region region, java.awt.Color color) {
+        record(OP_FILL, out -> {
+            out.writeInt(color.getRGB());
+            region.write(out);
+        });
+    }
+
+    public void recordImage(File file, int width, int height) {
+        record(OP_IMAGE, out -> {
+            out.writeUTF(file.getAbsolutePath());
+            out.writeInt(width);
+            out.writeInt(height);
+        });
+    }
+
+    // Replaces everything journaled so far with a snapshot of the drawing,
+    // used when a whole new document is loaded
+    public void compact(State current) {
+        overflowed = false;
+        queue.add(current);
+    }
+
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private void record(int op, Body body) {
+        if (overflowed) {
+            return;
+        }
+        byte[] data;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(op);
+            if (body != null) {
+                body.write(out);
+            }
+            out.flush();
+            data = frame(bytes.toByteArray());
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+        if (queuedBytes.get() + data.length > QUEUE_LIMIT) {
+            // the disk is not keeping up: drop the queued edits and let one
+            // snapshot cover them
+            overflowed = true;
+            compact(state.get());
+            return;
+        }
+        queuedBytes.addAndGet(data.length);
+        queue.add(data);
+    }
+
+    private static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buf = ByteBuffer.allocate(8 + payload.length);
+        buf.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        return buf.array();
+    }
+
+    private void writeLoop() {
+        ArrayList<Object> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                Object first = queue.poll(syncInterval > 0 ? syncInterval : 1000, TimeUnit.MILLISECONDS);
+                batch.clear();
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+                // a later snapshot covers every edit before it
+                int start = -1;
+                for (int i = batch.size() - 1; i >= 0; i--) {
+                    if (batch.get(i) instanceof State) {
+                        start = i;
+                        break;
+                    }
+                }
+                ByteArrayOutputStream pending = new ByteArrayOutputStream();
+                for (int i = 0; i < batch.size(); i++) {
+                    Object item = batch.get(i);
+                    if (item == STOP) {
+                        running = false;
+                    } else if (item instanceof byte[]) {
+                        queuedBytes.addAndGet(-((byte[]) item).length);
+                        if (i > start && channel != null) {
+                            pending.write((byte[]) item);
+                        }
+                    } else if (i == start) {
+                        writeSnapshot((State) item);
+                    }
+                }
+                if (pending.size() > 0) {
+                    append(pending.toByteArray());
+                }
+                long now = System.currentTimeMillis();
+                if (unsynced && (!running || now - lastSync >= syncInterval)) {
+                    channel.force(false);
+                    unsynced = false;
+                    lastSync = now;
+                    syncCount.incrementAndGet();
+                }
+                if (journalBytes > compactBytes && !compactionRequested) {
+                    compactionRequested = true;
+                    SwingUtilities.invokeLater(() -> compact(state.get()));
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (IOException e) {
+                // keep the session going, edits are dropped until a snapshot
+                // written a bit later starts over
+                System.err.println("Autosave failed: " + e.getMessage());
+                closeChannel();
+                SwingUtilities.invokeLater(() -> {
+                    Timer retry = new Timer(RETRY_DELAY, ev -> compact(state.get()));
+                    retry.setRepeats(false);
+                    retry.start();
+                });
+            }
+        }
+        closeChannel();
+    }
+
+    private void append(byte[] data) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        journalBytes += data.length;
+        bytesWritten.addAndGet(data.length);
+        unsynced = true;
+    }
+
+    // Writes the next generation: snapshot first, then a journal that starts
+    // with BASE. Only then are the older generations deleted.
+    private void writeSnapshot(State s) throws IOException {
+        int next = generation + 1;
+        dir.mkdirs();
+        File source = s.background != null ? s.background.getSource() : null;
+        byte[] embedded = null;
+        if (s.background != null && (source == null || !source.isFile())) {
+            source = null;
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(s.background.getImage(), "png", png);
+            embedded = png.toByteArray();
+        }
+        ShapeDocument.write(snapshotFile(dir, next).toPath(), s.shapes, s.raster, s.layers, s.width, s.height,
+                embedded);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(OP_BASE);
+        out.writeUTF(source != null ? source.getAbsolutePath() : "");
+        out.flush();
+
+        closeChannel();
+        channel = FileChannel.open(journalFile(dir, next).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        generation = next;
+        journalBytes = 0;
+        append(frame(bytes.toByteArray()));
+        channel.force(false);
+        unsynced = false;
+        lastSync = System.currentTimeMillis();
+        syncCount.incrementAndGet();
+        compactions.incrementAndGet();
+        compactionRequested = false;
+        deleteGenerationsBelow(next);
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                if (unsynced) {
+                    channel.force(false);
+                    syncCount.incrementAndGet();
+                }
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Autosave failed: " + e.getMessage());
+            }
+            channel = null;
+            unsynced = false;
+        }
+    }
+
+    private void deleteGenerationsBelow(int limit) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            int gen = generationOf(f.getName());
+            if (gen >= 0 && gen < limit) {
+                f.delete();
+            }
+        }
+    }
+
+    // Loads the newest journal and replays it, returns the number of edits
+    // replayed or -1 when there was nothing to recover
+    public static int replay(File dir, Replayer replayer) throws IOException {
+        int gen = latestGeneration(dir);
+        if (gen < 0) {
+            return -1;
+        }
+        ByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(journalFile(dir, gen).toPath(), StandardOpenOption.READ)) {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        ShapeDocument snapshot = ShapeDocument.open(snapshotFile(dir, gen).toPath());
+        int replayed = 0;
+        CRC32 crc = new CRC32();
+        while (buf.remaining() >= 8) {
+            int length = buf.getInt();
+            int sum = buf.getInt();
+            if (length <= 0 || length > buf.remaining()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buf.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != sum) {
+                // torn write from the crash
+                break;
+            }
+            DataInputStream in = new DataInputStream(new java.io.ByteArrayInputStream(payload));
+            int op = in.readUnsignedByte();
+            switch (op) {
+                case OP_BASE: {
+                    String source = in.readUTF();
+                    replayer.base(snapshot, source.isEmpty() ? null : new File(source));
+                    break;
+                }
+                case OP_ADD:
+                    replayer.add(ShapeCodec.read(in));
+                    break;
+                case OP_STROKE: {
+                    boolean erase = in.readBoolean();
+                    replayer.stroke(ShapeCodec.read(in), erase);
+                    break;
+                }
+                case OP_UNDO:
+                    replayer.undo();
+                    break;
+                case OP_REDO:
+                    replayer.redo();
+                    break;
+                case OP_CLEAR:
+                    replayer.clear();
+                    break;
+                case OP_COMPACT:
+                    replayer.compact();
+                    break;
+                case OP_MOVE:
+                    replayer.move(readIds(in), in.readInt(), in.readInt());
+                    break;
+                case OP_DELETE:
+                    replayer.delete(readIds(in));
+                    break;
+                case OP_LAYERS:
+                    replayer.layers(Layer.readTable(in));
+                    break;
+                case OP_FILL: {
+                    java.awt.Color color = new java.awt.Color(in.readInt(), true);
+                    replayer.fill(FloodFill.Region.read(in), color);
+                    break;
+                }
+                case OP_IMAGE:
+                    replayer.image(new File(in.readUTF()), in.readInt(), in.readInt());
+                    break;
+                default:
+                    throw new IOException("Unknown journal record " + op);
+            }
+            if (op != OP_BASE) {
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    static File journalFile(File dir, int gen) {
+        return new File(dir, "journal-" + gen + ".log");
+    }
+
+    static File snapshotFile(File dir, int gen) {
+        return new File(dir, "snapshot-" + gen + ShapeDocument.EXTENSION);
+    }
+
+    // Newest generation that has both its snapshot and a journal with at
+    // least the BASE record, -1 when there is none
+    private static int latestGeneration(File dir) {
+        File[] files = dir.listFiles();
+        int best = -1;
+        if (files == null) {
+            return best;
+        }
+        for (File f : files) {
+            String name = f.getName();
+            int gen = generationOf(name);
+            if (gen > best && name.startsWith("journal-") && f.length() > 8 && snapshotFile(dir, gen).isFile()) {
+                best = gen;
+            }
+        }
+        return best;
+    }
+
+    private static int latestSnapshot(File dir) {
+        File[] files = dir.listFiles();
+        int best = -1;
+        if (files != null) {
+            for (File f : files) {
+                best = Math.max(best, generationOf(f.getName()));
+            }
+        }
+        return best;
+    }
+
+    private static int generationOf(String name) {
+        int dash = name.indexOf('-');
+        int dot = name.indexOf('.');
+        if ((!name.startsWith("journal-") && !name.startsWith("snapshot-")) || dash < 0 || dot < dash) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(dash + 1, dot));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package UIFrame;
+
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import Shapes.Layer;
+import Shapes.ShapeStore;
+
+// Layers of the canvas bottom to top, the one new shapes go on, and the
+// tile caches that render them. Every layer renders into its own tile cache
+// and the composite cache holds their combination, so an edit only renders
+// its own layer again, and showing, hiding, fading, blending or reordering
+// a layer only combines cached tiles again. A single plain layer has no
+// cache of its own, its shapes go straight into the composite.
+// Tables are immutable: the with... methods build the table an edit leads
+// to and the canvas swaps it in with setTable, as one undoable step.
+public class LayerStack {
+
+    // Draws the shapes of one layer into a tile of its cache
+    public interface LayerRenderer {
+        void render(int layerId, Graphics2D g2, Rectangle area, boolean draft);
+    }
+
+    private final TileCache composite;
+    private final LayerRenderer renderer;
+    private long memoryLimit;
+
+    private List<Layer> layers = List.of(new Layer(0, "Layer 1"));
+    private int active = 0;
+    private final HashMap<Integer, TileCache> caches = new HashMap<>();
+    // Layers with shapes in the tile being composited, by id
+    private final BitSet present = new BitSet();
+
+    // The memory limit is shared evenly by the composite and the layers
+    public LayerStack(TileCache composite, LayerRenderer renderer, long memoryLimit) {
+        this.composite = composite;
+        this.renderer = renderer;
+        this.memoryLimit = memoryLimit;
+    }
+
+    public List<Layer> getLayers() {
+        return layers;
+    }
+
+    public int getActive() {
+        return active;
+    }
+
+    // False when the layer does not exist or already is the active one
+    public boolean setActive(int id) {
+        if (Layer.find(layers, id) == null || id == active) {
+            return false;
+        }
+        active = id;
+        return true;
+    }
+
+    // True when the composite is just the shapes of one layer
+    public boolean isSinglePlain() {
+        return layers.size() == 1 && layers.get(0).isPlain();
+    }
+
+    // A new empty layer above the active one
+    public List<Layer> withAdded(int id, String name) {
+        List<Layer> table = new ArrayList<>(layers);
+        table.add(Layer.indexOf(table, active) + 1, new Layer(id, name));
+        return table;
+    }
+
+    // Null for the last layer or one the table does not have
+    public List<Layer> withRemoved(int id) {
+        if (layers.size() < 2 || Layer.find(layers, id) == null) {
+            return null;
+        }
+        List<Layer> table = new ArrayList<>(layers);
+        table.remove(Layer.indexOf(table, id));
+        return table;
+    }
+
+    // A layer moved up (positive) or down the stack, null when it stays
+    public List<Layer> withMoved(int id, int steps) {
+        int from = Layer.indexOf(layers, id);
+        if (from < 0) {
+            return null;
+        }
+        int to = Math.max(0, Math.min(from + steps, layers.size() - 1));
+        if (to == from) {
+            return null;
+        }
+        List<Layer> table = new ArrayList<>(layers);
+        table.add(to, table.remove(from));
+        return table;
+    }
+
+    public List<Layer> withChanged(int id, UnaryOperator<Layer> change) {
+        int index = Layer.indexOf(layers, id);
+        if (index < 0) {
+            return null;
+        }
+        List<Layer> table = new ArrayList<>(layers);
+        table.set(index, change.apply(table.get(index)));
+        return table;
+    }
+
+    // A default layer on top for an id the table does not have, like the
+    // layer of a shape drawn by a session peer; null when it has it
+    public List<Layer> withLayer(int id) {
+        if (Layer.find(layers, id) != null) {
+            return null;
+        }
+        List<Layer> table = new ArrayList<>(layers);
+        table.add(new Layer(id, "Layer " + (id + 1)));
+        return table;
+    }
+
+    // Swaps in a table, an empty one is a single default layer. Only the
+    // composite is rendered again: the tiles of layers that are still there
+    // stay valid whatever changed about them.
+    public void setTable(List<Layer> table) {
+        if (table.isEmpty()) {
+            table = List.of(new Layer(0, "Layer 1"));
+        }
+        layers = List.copyOf(table);
+        if (Layer.find(layers, active) == null) {
+            active = layers.get(layers.size() - 1).getId();
+        }
+        caches.keySet().removeIf(id -> Layer.find(layers, id) == null);
+        distributeMemoryLimit();
+        composite.invalidateAll();
+    }
+
+    // Shapes can be drawn on, picked and selected on the layer
+    public boolean isEditable(int id) {
+        Layer layer = Layer.find(layers, id);
+        return layer != null && layer.isVisible() && !layer.isLocked();
+    }
+
+    // Id of the highest editable layer, -1 when there is none
+    public int topEditable() {
+        for (int i = layers.size() - 1; i >= 0; i--) {
+            if (isEditable(layers.get(i).getId())) {
+                return layers.get(i).getId();
+            }
+        }
+        return -1;
+    }
+
+    // Combines the cached tiles of every visible layer with shapes (ids, in
+    // the store) in the area, bottom to top, over what g2 already has
+    public void composite(Graphics2D g2, Rectangle area, boolean draft, int[] ids, ShapeStore shapes) {
+        present.clear();
+        for (int id : ids) {
+            present.set(shapes.getLayer(id));
+        }
+        Composite before = g2.getComposite();
+        for (Layer layer : layers) {
+            if (layer.isVisible() && present.get(layer.getId())) {
+                g2.setComposite(layer.getComposite());
+                cache(layer.getId()).paint(g2, area, draft);
+            }
+        }
+        g2.setComposite(before);
+    }
+
+    public void setMemoryLimit(long bytes) {
+        memoryLimit = bytes;
+        distributeMemoryLimit();
+    }
+
+    // Drops the cached tiles of a layer and of the composite in an area
+    public void invalidate(int layerId, Rectangle bounds) {
+        TileCache cache = caches.get(layerId);
+        if (cache != null) {
+            cache.invalidate(bounds);
+        }
+        composite.invalidate(bounds);
+    }
+
+    public void invalidateAll() {
+        for (TileCache cache : caches.values()) {
+            cache.invalidateAll();
+        }
+        composite.invalidateAll();
+    }
+
+    // Tile cache of one layer, made on first use
+    private TileCache cache(int layerId) {
+        TileCache cache = caches.get(layerId);
+        if (cache == null) {
+            cache = new TileCache((g2, area, draft) -> renderer.render(layerId, g2, area, draft),
+                    memoryLimit / (layers.size() + 1));
+            caches.put(layerId, cache);
+        }
+        return cache;
+    }
+
+    private void distributeMemoryLimit() {
+        if (isSinglePlain()) {
+            composite.setMemoryLimit(memoryLimit);
+            caches.clear();
+            return;
+        }
+        long share = memoryLimit / (layers.size() + 1);
+        composite.setMemoryLimit(share);
+        for (TileCache cache : caches.values()) {
+            cache.setMemoryLimit(share);
+        }
+    }
+}
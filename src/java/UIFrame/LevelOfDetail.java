@@ -0,0 +1,82 @@
+package UIFrame;
+
+// Thresholds of the draft rendering Painter uses while the view is panned or
+// zoomed. Sizes are in screen pixels. Defaults come from system properties:
+//
+//   jpainter.lod=false            always render at full quality
+//   jpainter.lod.idle=150         ms without navigation before the full
+//                                 quality repaint
+//   jpainter.lod.minShape=1       shapes smaller than this are skipped
+//   jpainter.lod.pathTolerance=1  path points closer than this to the last
+//                                 drawn one are left out
+//   jpainter.lod.minText=6        text smaller than this is drawn as a box
+//   jpainter.lod.antialias=true   keep anti-aliasing in drafts
+public class LevelOfDetail {
+
+    private boolean enabled = !"false".equals(System.getProperty("jpainter.lod"));
+    private int idleDelay = Integer.getInteger("jpainter.lod.idle", 150);
+    private double minShapeSize = doubleProperty("jpainter.lod.minShape", 1.0);
+    private double pathTolerance = doubleProperty("jpainter.lod.pathTolerance", 1.0);
+    private double minTextSize = doubleProperty("jpainter.lod.minText", 6.0);
+    private boolean antialias = Boolean.getBoolean("jpainter.lod.antialias");
+
+    private static double doubleProperty(String name, double fallback) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getIdleDelay() {
+        return idleDelay;
+    }
+
+    public void setIdleDelay(int millis) {
+        this.idleDelay = Math.max(0, millis);
+    }
+
+    public double getMinShapeSize() {
+        return minShapeSize;
+    }
+
+    public void setMinShapeSize(double pixels) {
+        this.minShapeSize = pixels;
+    }
+
+    public double getPathTolerance() {
+        return pathTolerance;
+    }
+
+    public void setPathTolerance(double pixels) {
+        this.pathTolerance = pixels;
+    }
+
+    public double getMinTextSize() {
+        return minTextSize;
+    }
+
+    public void setMinTextSize(double pixels) {
+        this.minTextSize = pixels;
+    }
+
+    public boolean isAntialias() {
+        return antialias;
+    }
+
+    public void setAntialias(boolean antialias) {
+        this.antialias = antialias;
+    }
+}
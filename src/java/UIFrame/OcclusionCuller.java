@@ -0,0 +1,159 @@
+package UIFrame;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import Shapes.Shape;
+import Shapes.ShapeStore;
+import Utils.ShapeIndex;
+
+// Finds shapes that are completely covered by a later shape with an opaque
+// interior (see Shape.getOpaqueInterior), so rendering can skip them.
+// The test is conservative: a shape only counts as hidden when its bounds lie
+// inside one occluder's interior. For every hidden shape the distance from
+// its bounds to the edge of that interior is kept; at a scale where that is
+// at least one pixel every pixel the shape could touch is painted over, so
+// skipping it does not change the result.
+// Only shapes on the same layer cover each other: a layer above may be
+// hidden, transparent or blended, so it never hides what is under it.
+public class OcclusionCuller {
+
+    private final int sheetWidth, sheetHeight;
+
+    // Interiors of the occluders, by layer and shape id
+    private final HashMap<Integer, ShapeIndex> occluders = new HashMap<>();
+    private final HashMap<Integer, Rectangle> interiors = new HashMap<>();
+    private final HashMap<Integer, Integer> interiorLayers = new HashMap<>();
+
+    // Per shape its cover margin plus one, 0 when it is not covered
+    private int[] margins = new int[0];
+    private int hiddenCount = 0;
+
+    public OcclusionCuller(int sheetWidth, int sheetHeight) {
+        this.sheetWidth = sheetWidth;
+        this.sheetHeight = sheetHeight;
+    }
+
+    // Analyzes a whole drawing back to front. shapes should be a snapshot
+    // when this runs off the EDT.
+    public static OcclusionCuller build(ShapeStore shapes, int sheetWidth, int sheetHeight) {
+        OcclusionCuller culler = new OcclusionCuller(sheetWidth, sheetHeight);
+        culler.margins = new int[shapes.size()];
+        for (int id = shapes.size() - 1; id >= 0; id--) {
+            int layer = shapes.getLayer(id);
+            culler.setMargin(id, culler.coverMargin(shapes.getBounds(id), id, layer));
+            Rectangle interior = shapes.get(id).getOpaqueInterior();
+            if (interior != null) {
+                culler.addOccluder(id, interior, layer);
+            }
+        }
+        return culler;
+    }
+
+    // A shape was appended at id, index already holds it
+    public void shapeAdded(int id, Shape shape, ShapeStore shapes, ShapeIndex index) {
+        setMargin(id, -1);
+        Rectangle interior = shape.getOpaqueInterior();
+        if (interior == null) {
+            return;
+        }
+        addOccluder(id, interior, shape.getLayer());
+        for (int other : index.query(interior)) {
+            if (other < id && shapes.getLayer(other) == shape.getLayer()) {
+                int margin = marginInside(shapes.getBounds(other), interior);
+                if (margin > margin(other)) {
+                    setMargin(other, margin);
+                }
+            }
+        }
+    }
+
+    // The last shape (id) was removed, shapes and index no longer hold it
+    public void shapeRemoved(int id, ShapeStore shapes, ShapeIndex index) {
+        setMargin(id, -1);
+        Rectangle interior = interiors.remove(id);
+        if (interior == null) {
+            return;
+        }
+        int layer = interiorLayers.remove(id);
+        occluders.get(layer).remove(id, interior);
+        // shapes under it may now be covered less or not at all
+        for (int other : index.query(interior)) {
+            if (other < id && margin(other) >= 0 && shapes.getLayer(other) == layer) {
+                setMargin(other, coverMargin(shapes.getBounds(other), other, layer));
+            }
+        }
+    }
+
+    // True when the shape is covered with at least a pixel to spare at this
+    // scale (canvas to device)
+    public boolean isHidden(int id, double scale) {
+        int margin = margin(id);
+        return margin >= 0 && margin * scale >= 1;
+    }
+
+    public int getHiddenCount() {
+        return hiddenCount;
+    }
+
+    // Shapes hidden at any scale from 1 up, what compaction may remove
+    public BitSet hiddenShapes() {
+        BitSet hidden = new BitSet();
+        for (int id = 0; id < margins.length; id++) {
+            if (margins[id] > 1) {
+                hidden.set(id);
+            }
+        }
+        return hidden;
+    }
+
+    private void addOccluder(int id, Rectangle interior, int layer) {
+        occluders.computeIfAbsent(layer, l -> new ShapeIndex(sheetWidth, sheetHeight)).add(id, interior);
+        interiors.put(id, interior);
+        interiorLayers.put(id, layer);
+    }
+
+    // Largest margin by which an occluder of the layer drawn after id
+    // contains bounds, -1 when none does
+    private int coverMargin(Rectangle bounds, int id, int layer) {
+        ShapeIndex index = occluders.get(layer);
+        if (index == null) {
+            return -1;
+        }
+        int best = -1;
+        for (int occluder : index.query(bounds)) {
+            if (occluder > id) {
+                best = Math.max(best, marginInside(bounds, interiors.get(occluder)));
+            }
+        }
+        return best;
+    }
+
+    private static int marginInside(Rectangle inner, Rectangle outer) {
+        long left = (long) inner.x - outer.x;
+        long top = (long) inner.y - outer.y;
+        long right = ((long) outer.x + outer.width) - ((long) inner.x + inner.width);
+        long bottom = ((long) outer.y + outer.height) - ((long) inner.y + inner.height);
+        long margin = Math.min(Math.min(left, top), Math.min(right, bottom));
+        return margin < 0 ? -1 : (int) Math.min(margin, Integer.MAX_VALUE - 1);
+    }
+
+    private int margin(int id) {
+        return id < margins.length ? margins[id] - 1 : -1;
+    }
+
+    private void setMargin(int id, int margin) {
+        if (id >= margins.length) {
+            if (margin < 0) {
+                return;
+            }
+            margins = Arrays.copyOf(margins, Math.max(id + 1, margins.length * 2));
+        }
+        boolean wasHidden = margins[id] > 0;
+        margins[id] = margin + 1;
+        if (wasHidden != margin >= 0) {
+            hiddenCount += margin >= 0 ? 1 : -1;
+        }
+    }
+}
@@ -1,26 +1,60 @@
 package UIFrame;
 
+import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.Cursor;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Toolkit;
 import java.awt.event.*;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 import javax.imageio.ImageIO;
 import javax.swing.*;
+import Shapes.FloodFill;
+import Shapes.Layer;
 import Shapes.Line;
 import Shapes.Oval;
 import Shapes.PathShape;
-import Shapes.Rectangle;
+import Shapes.RasterLayer;
+import Shapes.ColumnarShapeStore;
 import Shapes.Shape;
+import Shapes.ShapeDocument;
+import Shapes.ShapeList;
+import Shapes.ShapeStore;
 import Shapes.TextShape;
+import Shapes.TileStore;
 import Shapes.NavigateHand;
+import Session.SessionClient;
+import UIFrame.PainterCommands.AddShapeCommand;
+import UIFrame.PainterCommands.ClearCommand;
+import UIFrame.PainterCommands.LayersCommand;
+import UIFrame.PainterCommands.LoadImageCommand;
+import UIFrame.PainterCommands.ReplaceShapesCommand;
+import UIFrame.PainterCommands.StrokeCommand;
+import Utils.FrameStats;
+import Utils.ShapeIndex;
 
 public class Painter extends JPanel implements NavigateHand.NavigableView {
 
@@ -32,15 +66,33 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
     public static final int OVAL = 4;
     public static final int HAND = 5;
     public static final int TEXT = 6;
+    public static final int SELECT = 7;
+    public static final int BUCKET = 8;
 
     private int tool = BRUSH;
 
+    // BUCKET tool: largest channel difference that still fills, and whether
+    // only the area around the click or every matching pixel is filled
+    private int fillTolerance = 32;
+    private boolean fillContiguous = true;
+    // 64 MB of ARGB
+    private static final long BUCKET_SHEET_LIMIT = 16L << 20;
+    // Fill being found in the background, clicks wait for it to finish
+    private SwingWorker<FloodFill.Region, Void> fillWorker = null;
+
+    // Color of the container around the sheet
+    private static final Color WORKSPACE_COLOR = new Color(33, 33, 33);
+
     // Text fields
     private String textFontFamily = "Arial";
     private int textFontSize = 18;
     private int textFontStyle = Font.PLAIN;
-    private JTextField textEditor = null;
+    private JTextArea textEditor = null;
     private int textX, textY;
+    // Screen pixels a TEXT drag must span to make a wrapping box
+    private static final int MIN_TEXT_BOX = 16;
+    // Box width of the text being typed, 0 when it does not wrap
+    private int textWrapWidth;
 
     private Color currentColor = Color.BLACK;
     private boolean dashed = false;
@@ -55,26 +107,118 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
 
     // Workspace state (Infinite feel, but we can treat a specific area as the
     // "sheet")
-    private int sheetWidth = 2000;
-    private int sheetHeight = 2000;
+    int sheetWidth = 2000;
+    int sheetHeight = 2000;
 
     // Workspace origin (where the mouse is clicked)
     private int startX, startY;
 
-    private ArrayList<Shape> shapes = new ArrayList<>();
+    // Committed shapes, "-Djpainter.store=columnar" keeps them off-heap
+    ShapeStore shapes = newShapeStore();
+
+    // Brush and eraser strokes baked into pixels, drawn above the shapes.
+    // With "-Djpainter.rasterStrokes=true" committed strokes go here instead
+    // of into shapes and the eraser clears pixels instead of painting white.
+    RasterLayer raster = new RasterLayer();
+    private boolean rasterStrokes = Boolean.getBoolean("jpainter.rasterStrokes");
     private Shape previewShape = null;
     private PathShape currentPath = null;
-    private BufferedImage backgroundImage = null;
-
-    // Save Workspace for undo after clean
-    private ArrayList<Shape> savedShapesBeforeClear = null;
-    private BufferedImage savedBackgroundBeforeClear = null;
-    private boolean canUndoClear = false;
-
-    private ArrayList<Shape> redoList = new ArrayList<>();
+    SheetBackground background = null;
+
+    // Image being decoded in the background and the memory its working copy
+    // may use
+    private static final long DEFAULT_IMAGE_MEMORY_BUDGET = 256L * 1024 * 1024;
+    private BackgroundLoader imageLoader = null;
+    private long imageMemoryBudget = DEFAULT_IMAGE_MEMORY_BUDGET;
+
+    // Undo/redo of shape commits, clears and image loads, big undo data is
+    // spilled to disk past the memory budget
+    private static final long DEFAULT_HISTORY_MEMORY_BUDGET = 128L * 1024 * 1024;
+    private History history = new History(DEFAULT_HISTORY_MEMORY_BUDGET);
+
+    // Autosave journal, null when autosave is off
+    private Journal journal = null;
+
+    // Shared drawing session, null when not in one
+    private SessionLink session = null;
+
+    // Performance overlay, the stats are only collected while it is shown
+    private static final Font HUD_FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+    private static final Color HUD_BACKGROUND = new Color(0, 0, 0, 160);
+
+    private static final Color SELECTION_COLOR = new Color(30, 120, 255);
+    private static final Color MARQUEE_FILL = new Color(30, 120, 255, 40);
+    private boolean hudVisible = Boolean.getBoolean("jpainter.hud");
+    private final FrameStats frameStats = new FrameStats();
+
+    // Time from a pointer event to the end of the paint that shows it, taken
+    // for the oldest sample of each frame and only while the HUD is shown
+    private final FrameStats inputLatency = new FrameStats();
+    private long unpaintedInputTime = 0;
+
+    // Paced rendering ("-Djpainter.pacedRender=true"): a drag sample is drawn
+    // right away when no paint is waiting, samples that come in while one is
+    // are queued and applied together once it is done
+    private boolean pacedRendering = Boolean.getBoolean("jpainter.pacedRender");
+    private boolean framePending = false;
+    private int[] pendingSamples = new int[128];
+    private int pendingCount = 0;
+    // When the first queued sample happened, for the input latency
+    private long pendingInputTime = 0;
 
     private NavigateHand navigateHand;
 
+    // Rasterized committed shapes, only the shape being drawn is painted live
+    private static final long DEFAULT_TILE_CACHE_LIMIT = 96L * 1024 * 1024;
+    final TileCache tileCache = new TileCache(this::renderCommitted, DEFAULT_TILE_CACHE_LIMIT);
+
+    // Layers and their tile caches, tileCache holds the composite
+    final LayerStack layerStack = new LayerStack(tileCache,
+            (layerId, g2, area, draft) -> renderLayerTile(layerId, g2, area, draft, false), DEFAULT_TILE_CACHE_LIMIT);
+
+    // The press went to a hidden or locked layer, the drag is ignored
+    private boolean pressBlocked = false;
+
+    // While the view is panned or zoomed new tiles are rendered as drafts
+    // (see LevelOfDetail), lodTimer ends the interaction after an idle delay
+    // and the drafts are replaced at full quality
+    private final LevelOfDetail lod = new LevelOfDetail();
+    private final Timer lodTimer = new Timer(150, e -> endInteraction());
+    private boolean interacting = false;
+
+    // ID buffer for the SELECT tool, picking a shape is one pixel read
+    private static final long DEFAULT_PICK_BUFFER_LIMIT = 32L * 1024 * 1024;
+    private final PickBuffer pickBuffer = new PickBuffer(this::renderPickTile, DEFAULT_PICK_BUFFER_LIMIT);
+
+    // Selected shape ids and the drag in progress with the SELECT tool: the
+    // selection being moved by moveDX, moveDY or the marquee (canvas units)
+    private static final int PICK_RADIUS = 4;
+    private BitSet selection = new BitSet();
+    private boolean movingSelection = false;
+    private int moveDX, moveDY;
+    private Rectangle marquee = null;
+
+    // Bounding boxes of the shapes list, kept in sync with it so rendering
+    // only visits shapes that intersect the area being drawn
+    private ShapeIndex shapeIndex = new ShapeIndex(sheetWidth, sheetHeight);
+
+    // Shapes covered by later opaque shapes, skipped when rendering. Null
+    // while a new drawing is analyzed in the background.
+    private static final int SYNC_OCCLUSION_LIMIT = 4096;
+    private OcclusionCuller occlusion = new OcclusionCuller(sheetWidth, sheetHeight);
+    private SwingWorker<OcclusionCuller, Void> occlusionBuild = null;
+    private boolean occlusionStale = false;
+
+    // Shapes drawn and skipped by the last repaint, outside the area or
+    // covered
+    private int lastDrawnCount = 0;
+    private int lastCulledCount = 0;
+    private int lastHiddenCount = 0;
+    // Shapes the repaint has counted so far, a shape on several tiles is
+    // counted once
+    private final BitSet frameShapes = new BitSet();
+    private boolean frameRendered = false;
+
     public Painter() {
         setBackground(new Color(50, 50, 50)); // Dark background for the area outside fixed workspace
         setLayout(null); //allows absolute positioning of JTextField
@@ -108,26 +252,43 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
                     navigateHand.mousePressed(e);
                     return;
                 }
+                pressBlocked = tool != SELECT && !layerStack.isEditable(layerStack.getActive());
+                if (pressBlocked) {
+                    Toolkit.getDefaultToolkit().beep();
+                    return;
+                }
                 // Convert mouse coords to canvas coords and clamp them to the sheet size
                 int cx = clamp(toCanvasX(e.getX()), sheetWidth);
                 int cy = clamp(toCanvasY(e.getY()), sheetHeight);
                 startX = cx;
                 startY = cy;
 
+                if (tool == SELECT) {
+                    beginSelect(cx, cy, e.isShiftDown());
+                    return;
+                }
+                if (tool == BUCKET) {
+                    bucketFill(cx, cy);
+                    return;
+                }
+
                 // Handle mouse press events for different tools
                 // (Brush, Eraser, Line, Rect, Oval, Hand)
                 if (tool == BRUSH || tool == ERASER) {
                     Color c = (tool == BRUSH) ? currentColor : Color.WHITE; // Use White for eraser on canvas
+                    // The path is drawn live and only committed on release
                     currentPath = new PathShape(cx, cy, c, getDynamicStrokeSize());
                     currentPath.setDashed(dashed);
-                    shapes.add(currentPath);
-
-                    redoList.clear();
+                    currentPath.setLayer(layerStack.getActive());
+                    // Drop samples that are closer than a screen pixel
+                    currentPath.setDecimation(PathShape.DEFAULT_MIN_DISTANCE / zoomScale, PathShape.DEFAULT_MAX_ANGLE);
+                    if (session != null) {
+                        session.getClient().beginPath(cx, cy, c, getDynamicStrokeSize(), dashed);
+                    }
                 }
 
-                // TEXT tool: click once to place text
+                // TEXT tool: the editor opens on release, see mouseReleased
                 if (tool == TEXT) {
-                    startTextEditor(cx, cy);
                     return;
                 }
             }
@@ -139,7 +300,7 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
                     return;
                 }
 
-                if (tool == TEXT) {
+                if (tool == TEXT || tool == BUCKET || pressBlocked) {
                     return;
                 }
                 
@@ -147,19 +308,21 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
                 int cx = clamp(toCanvasX(e.getX()), sheetWidth);
                 int cy = clamp(toCanvasY(e.getY()), sheetHeight);
 
-                // Handle mouse drag events for different tools
-                // (Brush, Eraser, Line, Rect, Oval, Hand)
-                if (tool == BRUSH || tool == ERASER) {
-                    if (currentPath != null) {
-                        currentPath.addPoint(cx, cy);
-                        repaint();
-                    }
+                if (tool == SELECT) {
+                    dragSelect(cx, cy);
                     return;
                 }
 
-                // Preview for LINE/RECT/OVAL
-                previewShape = createShape(startX, startY, cx, cy);
-                repaint();
+                if (pacedRendering && framePending) {
+                    queueSample(cx, cy, e.getWhen());
+                    return;
+                }
+                noteInput(e.getWhen());
+                Rectangle damaged = dragTo(cx, cy);
+                if (damaged != null) {
+                    repaintCanvas(damaged);
+                    framePending = pacedRendering;
+                }
             }
 
             @Override
@@ -169,19 +332,67 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
                     navigateHand.mouseReleased(e);
                     return;
                 }
+                if (pressBlocked) {
+                    pressBlocked = false;
+                    return;
+                }
                 // clamp the coordinates to the sheet size
                 int cx = clamp(toCanvasX(e.getX()), sheetWidth);
                 int cy = clamp(toCanvasY(e.getY()), sheetHeight);
 
+                if (tool == SELECT) {
+                    dragSelect(cx, cy);
+                    endSelect();
+                    return;
+                }
+
+                if (tool == BUCKET) {
+                    return;
+                }
+
+                // TEXT tool: a click places free text, a drag sets the width
+                // of a box the text wraps in
+                if (tool == TEXT) {
+                    int width = Math.abs(cx - startX);
+                    startTextEditor(Math.min(startX, cx), startY, width * zoomScale >= MIN_TEXT_BOX ? width : 0);
+                    return;
+                }
+
+                // samples still waiting for the next frame belong to this stroke
+                if (pendingCount > 0) {
+                    renderFrame();
+                }
+
+                // Only the area of the committed shape (and the preview it
+                // replaces) needs to be redrawn from the refreshed tiles
+                Rectangle damaged = null;
                 if (tool == LINE || tool == RECT || tool == OVAL) {
                     Shape finalShape = createShape(startX, startY, cx, cy);
-                    shapes.add(finalShape);
+                    commitShape(finalShape);
+                    damaged = finalShape.getBounds();
+                    if (previewShape != null) {
+                        damaged.add(previewShape.getBounds());
+                    }
                     previewShape = null;
-
-                    redoList.clear();
+                }
+                if (currentPath != null) {
+                    currentPath.finish();
+                    if (session != null) {
+                        session.getClient().endPath();
+                    }
+                    if (rasterStrokes) {
+                        commitStroke(currentPath, tool == ERASER);
+                    } else {
+                        commitShape(currentPath);
+                    }
+                    damaged = currentPath.getBounds();
                 }
                 currentPath = null;
-                repaint();
+                if (damaged != null) {
+                    repaintCanvas(damaged);
+                } else {
+                    repaint();
+                }
             }
 
             // handle mouse wheel events by
@@ -196,6 +407,7 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
                     // Pan if not scrolling with control (ctrl) pressed
                     offsetX -= e.getUnitsToScroll() * 5;
                     offsetY -= e.getUnitsToScroll() * 5;
+                    beginInteraction();
                     repaint();
                 }
             }
@@ -206,6 +418,608 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
         addMouseWheelListener(mouse);
     }
 
+    // SELECT press: a click on a shape selects it (shift adds or removes it)
+    // and starts moving the selection, a click on nothing starts a marquee
+    private void beginSelect(int cx, int cy, boolean extend) {
+        int hit = shapeAt(cx, cy);
+        if (!extend && (hit < 0 || !selection.get(hit))) {
+            selection.clear();
+        }
+        if (hit >= 0) {
+            if (extend && selection.get(hit)) {
+                selection.clear(hit);
+            } else {
+                selection.set(hit);
+                movingSelection = true;
+                moveDX = 0;
+                moveDY = 0;
+            }
+        } else {
+            marquee = new Rectangle(cx, cy, 0, 0);
+        }
+        repaint();
+    }
+
+    private void dragSelect(int cx, int cy) {
+        if (movingSelection) {
+            moveDX = cx - startX;
+            moveDY = cy - startY;
+        } else if (marquee != null) {
+            marquee = new Rectangle(Math.min(startX, cx), Math.min(startY, cy),
+                    Math.abs(cx - startX), Math.abs(cy - startY));
+        }
+        repaint();
+    }
+
+    private void endSelect() {
+        if (movingSelection) {
+            movingSelection = false;
+            if (moveDX != 0 || moveDY != 0) {
+                moveSelection(moveDX, moveDY);
+            }
+        } else if (marquee != null) {
+            selection.or(pickBuffer.pickArea(marquee));
+            marquee = null;
+        }
+        repaint();
+    }
+
+    // Topmost shape at a canvas point, with a few screen pixels of slack so
+    // thin strokes can be hit. -1 when there is none.
+    public int shapeAt(int canvasX, int canvasY) {
+        if (canvasX < 0 || canvasY < 0 || canvasX >= sheetWidth || canvasY >= sheetHeight) {
+            return -1;
+        }
+        int radius = (int) Math.min(Math.ceil(PICK_RADIUS / zoomScale), 4 * PICK_RADIUS);
+        return pickBuffer.pick(canvasX, canvasY, radius);
+    }
+
+    // Ids of the selected shapes
+    public BitSet getSelection() {
+        return (BitSet) selection.clone();
+    }
+
+    public void setSelection(BitSet ids) {
+        selection = (BitSet) ids.clone();
+        if (selection.length() > shapes.size()) {
+            selection.clear(shapes.size(), selection.length());
+        }
+        repaint();
+    }
+
+    // Moves the selected shapes as one undoable step, they keep their place
+    // in the drawing order
+    public void moveSelection(int dx, int dy) {
+        if (!selection.isEmpty() && !blockedBySession()) {
+            BitSet moved = selection;
+            editShapes(moved, dx, dy, false);
+            selection = moved;
+            repaint();
+        }
+    }
+
+    // Removes the selected shapes as one undoable step
+    public void deleteSelection() {
+        if (!selection.isEmpty() && !blockedBySession()) {
+            editShapes(selection, 0, 0, true);
+        }
+    }
+
+    // Builds the drawing with the given shapes moved or left out and swaps it
+    // in, like compactDocument. Every shape after the first deleted one gets a
+    // new id, so the spatial index, culling and both buffers start over.
+    private void editShapes(BitSet ids, int dx, int dy, boolean delete) {
+        ShapeStore edited = shapes.newEmpty();
+        for (int i = 0; i < shapes.size(); i++) {
+            if (!ids.get(i)) {
+                edited.add(shapes.get(i));
+            } else if (!delete) {
+                edited.add(shapes.get(i).translated(dx, dy));
+            }
+        }
+        ReplaceShapesCommand command = new ReplaceShapesCommand(this, shapes, ids.cardinality());
+        setDocument(edited, background, sheetWidth, sheetHeight);
+        history.push(command);
+        if (journal != null) {
+            if (delete) {
+                journal.recordDelete(ids);
+            } else {
+                journal.recordMove(ids, dx, dy);
+            }
+        }
+    }
+
+    // Layers bottom to top
+    public List<Layer> getLayers() {
+        return layerStack.getLayers();
+    }
+
+    // Layer that new shapes go on
+    public int getActiveLayer() {
+        return layerStack.getActive();
+    }
+
+    public void setActiveLayer(int id) {
+        if (layerStack.setActive(id)) {
+            firePropertyChange("layers", null, layerStack.getLayers());
+        }
+    }
+
+    // Adds an empty layer above the active one and makes it active
+    public void addLayer(String name) {
+        int id = Layer.nextId(layerStack.getLayers());
+        applyLayers(layerStack.withAdded(id, name));
+        setActiveLayer(id);
+    }
+
+    // Removes a layer and its shapes as one undoable step, the last layer
+    // cannot be removed
+    public void removeLayer(int id) {
+        List<Layer> table = layerStack.withRemoved(id);
+        if (table != null && !blockedBySession()) {
+            applyLayers(table);
+        }
+    }
+
+    // Moves a layer up (positive) or down the stack
+    public void moveLayer(int id, int steps) {
+        applyLayers(layerStack.withMoved(id, steps));
+    }
+
+    public void renameLayer(int id, String name) {
+        applyLayers(layerStack.withChanged(id, layer -> layer.withName(name)));
+    }
+
+    public void setLayerVisible(int id, boolean visible) {
+        applyLayers(layerStack.withChanged(id, layer -> layer.withVisible(visible)));
+    }
+
+    public void setLayerOpacity(int id, float opacity) {
+        applyLayers(layerStack.withChanged(id, layer -> layer.withOpacity(opacity)));
+    }
+
+    public void setLayerBlend(int id, Layer.Blend blend) {
+        applyLayers(layerStack.withChanged(id, layer -> layer.withBlend(blend)));
+    }
+
+    // Shapes on a locked layer cannot be selected and nothing can be drawn on it
+    public void setLayerLocked(int id, boolean locked) {
+        applyLayers(layerStack.withChanged(id, layer -> layer.withLocked(locked)));
+    }
+
+    // Switches to a new layer table as one undoable step, null does nothing.
+    // Shapes on layers the table no longer has are deleted with them.
+    private void applyLayers(List<Layer> table) {
+        if (table == null) {
+            return;
+        }
+        List<Layer> before = layerStack.getLayers();
+        ReplaceShapesCommand removed = null;
+        if (table.size() < before.size()) {
+            ShapeStore kept = shapes.newEmpty();
+            for (int i = 0; i < shapes.size(); i++) {
+                if (Layer.find(table, shapes.getLayer(i)) != null) {
+                    kept.add(shapes.get(i));
+                }
+            }
+            if (kept.size() < shapes.size()) {
+                removed = new ReplaceShapesCommand(this, shapes, shapes.size() - kept.size());
+                setLayerTable(table);
+                setDocument(kept, background, sheetWidth, sheetHeight);
+            }
+        }
+        if (removed == null) {
+            setLayerTable(table);
+        }
+        history.push(new LayersCommand(this, before, removed));
+        if (journal != null) {
+            journal.recordLayers(table);
+        }
+    }
+
+    // Swaps in a layer table (see LayerStack.setTable), the selection and
+    // the pick buffer start over
+    void setLayerTable(List<Layer> table) {
+        layerStack.setTable(table);
+        pickBuffer.invalidateAll();
+        selection = new BitSet();
+        movingSelection = false;
+        firePropertyChange("layers", null, layerStack.getLayers());
+        repaint();
+    }
+
+    // Adds a default layer for a shape on a layer the table does not have,
+    // like one drawn by a session peer
+    private void ensureLayer(int id) {
+        List<Layer> table = layerStack.withLayer(id);
+        if (table != null) {
+            setLayerTable(table);
+        }
+    }
+
+    // Draws the shapes of one pick buffer tile in their pick colors, layer by
+    // layer. Shapes on hidden or locked layers cannot be picked.
+    private void renderPickTile(Graphics2D g2, Rectangle area) {
+        int[] ids = shapeIndex.query(area);
+        List<Layer> layers = layerStack.getLayers();
+        boolean single = layers.size() == 1;
+        for (Layer layer : layers) {
+            if (!layer.isVisible() || layer.isLocked()) {
+                continue;
+            }
+            for (int id : ids) {
+                if (!single && shapes.getLayer(id) != layer.getId()) {
+                    continue;
+                }
+                Color color = PickBuffer.colorFor(id);
+                if (color == null) {
+                    break;
+                }
+                shapes.drawPick(id, g2, color);
+            }
+        }
+    }
+
+    // Extends the path or moves the preview (LINE/RECT/OVAL) to a drag
+    // sample, returns the canvas area that changed or null
+    private Rectangle dragTo(int cx, int cy) {
+        if (tool == BRUSH || tool == ERASER) {
+            if (currentPath == null) {
+                return null;
+            }
+            currentPath.addPoint(cx, cy);
+            if (session != null) {
+                session.getClient().addPathPoint(cx, cy);
+            }
+            return currentPath.getLastSegmentBounds();
+        }
+        // repaint where the old preview was and where the new one is
+        Rectangle damaged = previewShape != null ? previewShape.getBounds() : null;
+        previewShape = createShape(startX, startY, cx, cy);
+        Rectangle bounds = previewShape.getBounds();
+        return damaged != null ? damaged.union(bounds) : bounds;
+    }
+
+    // Paced mode: keeps a drag sample that came in while a paint is waiting,
+    // it is drawn with the others once that paint is done
+    private void queueSample(int cx, int cy, long when) {
+        if (pendingCount == 0) {
+            pendingInputTime = inputTime(when);
+        }
+        if (pendingCount * 2 == pendingSamples.length) {
+            pendingSamples = Arrays.copyOf(pendingSamples, pendingSamples.length * 2);
+        }
+        pendingSamples[pendingCount * 2] = cx;
+        pendingSamples[pendingCount * 2 + 1] = cy;
+        pendingCount++;
+    }
+
+    // One paced frame: every queued sample goes into the path, but only the
+    // newest one matters for a preview, then a single repaint covers them all
+    private void renderFrame() {
+        if (pendingCount == 0) {
+            return;
+        }
+        Rectangle damaged = null;
+        int first = (tool == BRUSH || tool == ERASER) ? 0 : pendingCount - 1;
+        for (int i = first; i < pendingCount; i++) {
+            Rectangle r = dragTo(pendingSamples[i * 2], pendingSamples[i * 2 + 1]);
+            if (r != null) {
+                damaged = damaged == null ? r : damaged.union(r);
+            }
+        }
+        pendingCount = 0;
+        if (unpaintedInputTime == 0) {
+            unpaintedInputTime = pendingInputTime;
+        }
+        pendingInputTime = 0;
+        if (damaged != null) {
+            repaintCanvas(damaged);
+            framePending = pacedRendering;
+        }
+    }
+
+    // Called at the end of a paint: the queued samples are drawn on the next
+    // EDT turn, so the ones still in the event queue join them
+    private void frameDone() {
+        if (!framePending) {
+            return;
+        }
+        framePending = false;
+        if (pendingCount > 0) {
+            SwingUtilities.invokeLater(() -> {
+                if (!framePending) {
+                    renderFrame();
+                }
+            });
+        }
+    }
+
+    // Remembers when the oldest input not yet on screen happened, the event
+    // time is taken from the event so time spent in the event queue counts
+    private void noteInput(long when) {
+        if (unpaintedInputTime == 0) {
+            unpaintedInputTime = inputTime(when);
+        }
+    }
+
+    // nanoTime of an event's time, 0 while the HUD is hidden
+    private long inputTime(long when) {
+        if (!hudVisible) {
+            return 0;
+        }
+        long queued = Math.max(0, System.currentTimeMillis() - when);
+        return System.nanoTime() - queued * 1_000_000L;
+    }
+
+    // Draws a pointer sample right away when no paint is waiting and merges
+    // the samples that come in while one is, instead of handling every mouse
+    // event on its own
+    public void setPacedRendering(boolean paced) {
+        if (!paced && pendingCount > 0) {
+            renderFrame();
+        }
+        framePending = false;
+        pacedRendering = paced;
+    }
+
+    public boolean isPacedRendering() {
+        return pacedRendering;
+    }
+
+    // Adds a finished shape to the drawing as an undoable step
+    private void commitShape(Shape s) {
+        appendShape(s);
+        history.push(new AddShapeCommand(this, s));
+        if (journal != null) {
+            journal.recordAdd(s);
+        }
+        if (session != null) {
+            session.getClient().sendAdd(s);
+        }
+    }
+
+    // Bakes a finished brush or eraser stroke into the raster layer as an
+    // undoable step
+    private void commitStroke(Shape stroke, boolean erase) {
+        RasterLayer.Patch patch = raster.bake(stroke, erase);
+        tileCache.invalidate(patch.getBounds());
+        history.push(new StrokeCommand(this, patch));
+        if (journal != null) {
+            journal.recordStroke(stroke, erase);
+        }
+        if (session != null) {
+            session.getClient().sendStroke(stroke, erase);
+        }
+    }
+
+    // Paint bucket: fills the region around a canvas point, as the sheet
+    // looks (background, visible layers and baked strokes), with the current
+    // color. The fill goes into the raster layer as an undoable step.
+    // On sheets bigger than BUCKET_SHEET_LIMIT pixels only the part on
+    // screen is rendered and filled.
+    // The sheet is rendered from snapshots and the region found by a worker
+    // with the busy cursor on; the EDT only bakes the region in. A fill
+    // whose sheet was cleared or replaced meanwhile is dropped.
+    private void bucketFill(int cx, int cy) {
+        if (blockedBySession() || fillWorker != null || cx >= sheetWidth || cy >= sheetHeight) {
+            return;
+        }
+        Rectangle area = new Rectangle(0, 0, sheetWidth, sheetHeight);
+        if ((long) sheetWidth * sheetHeight > BUCKET_SHEET_LIMIT) {
+            int x0 = (int) Math.floor(-offsetX / zoomScale);
+            int y0 = (int) Math.floor(-offsetY / zoomScale);
+            int x1 = (int) Math.ceil((getWidth() - offsetX) / zoomScale);
+            int y1 = (int) Math.ceil((getHeight() - offsetY) / zoomScale);
+            area = area.intersection(new Rectangle(x0, y0, x1 - x0, y1 - y0));
+            if (!area.contains(cx, cy)) {
+                return;
+            }
+        }
+        SheetExporter exporter = new SheetExporter(shapes.snapshot(), raster.snapshot(), layerStack.getLayers(), background,
+                sheetWidth, sheetHeight);
+        Rectangle filled = area;
+        RasterLayer target = raster;
+        Color color = currentColor;
+        int tolerance = fillTolerance;
+        boolean contiguous = fillContiguous;
+        Cursor cursor = isCursorSet() ? getCursor() : null;
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        fillWorker = new SwingWorker<FloodFill.Region, Void>() {
+            @Override
+            protected FloodFill.Region doInBackground() {
+                BufferedImage sheet = exporter.render(filled, ForkJoinPool.commonPool(),
+                        SheetExporter.DEFAULT_BAND_HEIGHT, null);
+                int[] pixels = ((DataBufferInt) sheet.getRaster().getDataBuffer()).getData();
+                return FloodFill.fill(pixels, filled.width, filled.height, cx - filled.x, cy - filled.y, tolerance,
+                        contiguous, ForkJoinPool.commonPool()).translated(filled.x, filled.y);
+            }
+
+            @Override
+            protected void done() {
+                fillWorker = null;
+                setCursor(cursor);
+                if (raster != target || session != null) {
+                    return;
+                }
+                try {
+                    commitFill(get(), color);
+                } catch (InterruptedException | ExecutionException | CancellationException e) {
+                    Toolkit.getDefaultToolkit().beep();
+                }
+            }
+        };
+        fillWorker.execute();
+    }
+
+    private void commitFill(FloodFill.Region region, Color color) {
+        if (region.isEmpty()) {
+            return;
+        }
+        RasterLayer.Patch patch = raster.fill(region, color);
+        tileCache.invalidate(patch.getBounds());
+        history.push(new StrokeCommand(this, patch));
+        if (journal != null) {
+            journal.recordFill(region, color);
+        }
+        repaintCanvas(patch.getBounds());
+    }
+
+    public void setFillTolerance(int tolerance) {
+        fillTolerance = Math.max(0, Math.min(tolerance, 255));
+    }
+
+    public int getFillTolerance() {
+        return fillTolerance;
+    }
+
+    // Contiguous fills only the connected area around the click, otherwise
+    // every matching pixel of the sheet is filled
+    public void setFillContiguous(boolean contiguous) {
+        fillContiguous = contiguous;
+    }
+
+    public boolean isFillContiguous() {
+        return fillContiguous;
+    }
+
+    // Adds a shape and drops the cached tiles under it
+    void appendShape(Shape s) {
+        ensureLayer(s.getLayer());
+        shapes.add(s);
+        shapeIndex.add(shapes.size() - 1, s.getBounds());
+        // the pick buffer can only draw the shape over what it has when
+        // nothing pickable is above the shape's layer
+        if (s.getLayer() == layerStack.topEditable()) {
+            pickBuffer.shapeAdded(shapes.size() - 1, s);
+        } else if (layerStack.isEditable(s.getLayer())) {
+            pickBuffer.invalidate(s.getBounds());
+        }
+        if (occlusion != null) {
+            occlusion.shapeAdded(shapes.size() - 1, s, shapes, shapeIndex);
+        } else {
+            occlusionStale = true;
+        }
+        layerStack.invalidate(s.getLayer(), s.getBounds());
+    }
+
+    Shape removeLastShape() {
+        Shape removed = shapes.removeLast();
+        shapeIndex.remove(shapes.size(), removed.getBounds());
+        pickBuffer.invalidate(removed.getBounds());
+        selection.clear(shapes.size());
+        if (occlusion != null) {
+            occlusion.shapeRemoved(shapes.size(), shapes, shapeIndex);
+        } else {
+            occlusionStale = true;
+        }
+        layerStack.invalidate(removed.getLayer(), removed.getBounds());
+        return removed;
+    }
+
+    // Swaps in a whole document state, used by clear, image loads and their
+    // undo/redo
+    void setDocument(ShapeStore store, SheetBackground bg, int width, int height) {
+        setDocument(store, raster, bg, width, height);
+    }
+
+    void setDocument(ShapeStore store, RasterLayer layer, SheetBackground bg, int width, int height) {
+        boolean resized = width != sheetWidth || height != sheetHeight;
+        shapes = store;
+        raster = layer;
+        background = bg;
+        sheetWidth = width;
+        sheetHeight = height;
+        previewShape = null;
+        currentPath = null;
+        pendingCount = 0;
+        selection = new BitSet();
+        movingSelection = false;
+        marquee = null;
+        for (int i = 0; i < shapes.size(); i++) {
+            ensureLayer(shapes.getLayer(i));
+        }
+        rebuildShapeIndex();
+        rebuildOcclusion();
+        layerStack.invalidateAll();
+        pickBuffer.invalidateAll();
+        if (resized) {
+            resetZoom();
+        }
+        repaint();
+    }
+
+    // Recreates the spatial index from the shapes list, used when the list is
+    // replaced or the sheet size changes
+    private void rebuildShapeIndex() {
+        shapeIndex = new ShapeIndex(sheetWidth, sheetHeight);
+        for (int i = 0; i < shapes.size(); i++) {
+            shapeIndex.add(i, shapes.getBounds(i));
+        }
+    }
+
+    // Finds the covered shapes of a new drawing. Small drawings are analyzed
+    // right away, big ones on a snapshot in the background; nothing is culled
+    // until that is done, and edits made meanwhile start it over.
+    private void rebuildOcclusion() {
+        if (occlusionBuild != null) {
+            occlusionBuild.cancel(false);
+            occlusionBuild = null;
+        }
+        occlusionStale = false;
+        if (shapes.size() <= SYNC_OCCLUSION_LIMIT) {
+            occlusion = OcclusionCuller.build(shapes, sheetWidth, sheetHeight);
+            return;
+        }
+        occlusion = null;
+        ShapeStore snapshot = shapes.snapshot();
+        int width = sheetWidth;
+        int height = sheetHeight;
+        SwingWorker<OcclusionCuller, Void> worker = new SwingWorker<OcclusionCuller, Void>() {
+            @Override
+            protected OcclusionCuller doInBackground() {
+                return OcclusionCuller.build(snapshot, width, height);
+            }
+
+            @Override
+            protected void done() {
+                if (occlusionBuild != this) {
+                    return;
+                }
+                occlusionBuild = null;
+                if (occlusionStale) {
+                    rebuildOcclusion();
+                    return;
+                }
+                try {
+                    occlusion = get();
+                } catch (InterruptedException | ExecutionException | CancellationException e) {
+                    // nothing is culled, which is always correct
+                }
+            }
+        };
+        occlusionBuild = worker;
+        worker.execute();
+    }
+
+    // Repaints only the screen area covering a canvas rectangle, paintComponent
+    // then only renders the tiles inside the clip
+    void repaintCanvas(Rectangle canvasArea) {
+        int x0 = (int) Math.floor(canvasArea.x * zoomScale + offsetX);
+        int y0 = (int) Math.floor(canvasArea.y * zoomScale + offsetY);
+        int x1 = (int) Math.ceil((canvasArea.x + canvasArea.width) * zoomScale + offsetX);
+        int y1 = (int) Math.ceil((canvasArea.y + canvasArea.height) * zoomScale + offsetY);
+        // one extra pixel for the rounding of the tile blit
+        repaint(x0 - 1, y0 - 1, x1 - x0 + 2, y1 - y0 + 2);
+    }
+
+    static ShapeStore newShapeStore() {
+        if ("columnar".equals(System.getProperty("jpainter.store"))) {
+            return new ColumnarShapeStore();
+        }
+        return new ShapeList();
+    }
+
     private int getDynamicStrokeSize() {
         // Zooming in (zoomScale > 1) -> brush renders smaller relative to content for
         // precision
@@ -217,6 +1031,7 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
         if (tool == LINE) {
             Line line = new Line(x1, y1, currentColor, dStroke, x2, y2);
             line.setDashed(dashed);
+            line.setLayer(layerStack.getActive());
             return line;
         }
 
@@ -226,19 +1041,21 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
         int h = Math.abs(y2 - y1);
 
         if (tool == RECT) {
-            Rectangle r = new Rectangle(left, top, currentColor, dStroke, w, h);
+            Shapes.Rectangle r = new Shapes.Rectangle(left, top, currentColor, dStroke, w, h);
             r.setDashed(dashed);
             r.setFilled(filled);
+            r.setLayer(layerStack.getActive());
             return r;
         }
 
         Oval o = new Oval(left, top, currentColor, dStroke, w, h);
         o.setDashed(dashed);
         o.setFilled(filled);
+        o.setLayer(layerStack.getActive());
         return o;
     }
 
-    private void startTextEditor(int x, int y) {
+    private void startTextEditor(int x, int y, int wrapWidth) {
         // remove previous editor if exists
         if (textEditor != null) {
             remove(textEditor);
@@ -247,27 +1064,55 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
 
         textX = x;
         textY = y;
+        textWrapWidth = wrapWidth;
 
-        textEditor = new JTextField(20);
+        textEditor = new JTextArea();
         // Scale the font size according to zoom for visual consistency
         int scaledFontSize = (int) (textFontSize * zoomScale);
         textEditor.setFont(new Font(textFontFamily, textFontStyle, scaledFontSize));
         textEditor.setForeground(currentColor);
+        textEditor.setLineWrap(wrapWidth > 0);
+        textEditor.setWrapStyleWord(true);
 
         // Convert canvas coordinates to screen coordinates
         // Apply zoom and offset transformations
         int screenX = (int) (textX * zoomScale + offsetX);
         int screenY = (int) (textY * zoomScale + offsetY);
-        
-        // JTextField uses top-left, drawString uses baseline -> shift up a bit
-        int fieldW = (int) (300 * zoomScale);
-        int fieldH = scaledFontSize + 12;
-        textEditor.setBounds(screenX, screenY - scaledFontSize, fieldW, fieldH);
 
-        // Enter = commit
-        textEditor.addActionListener(new ActionListener() {
+        // JTextArea uses top-left, the text baseline is at y -> shift up a bit.
+        // The area grows a line at a time as lines are typed.
+        int fieldW = (int) ((wrapWidth > 0 ? wrapWidth : 300) * zoomScale);
+        textEditor.setBounds(screenX, screenY - scaledFontSize, fieldW, scaledFontSize + 12);
+        textEditor.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            @Override
+            public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                fitTextEditor();
+            }
+
+            @Override
+            public void removeUpdate(javax.swing.event.DocumentEvent e) {
+                fitTextEditor();
+            }
+
+            @Override
+            public void changedUpdate(javax.swing.event.DocumentEvent e) {
+            }
+        });
+
+        // Enter = new line, Ctrl+Enter = commit, Escape = cancel
+        textEditor.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, InputEvent.CTRL_DOWN_MASK),
+                "commitText");
+        textEditor.getActionMap().put("commitText", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                commitTextEditor();
+            }
+        });
+        textEditor.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), "cancelText");
+        textEditor.getActionMap().put("cancelText", new AbstractAction() {
             @Override
             public void actionPerformed(ActionEvent e) {
+                textEditor.setText("");
                 commitTextEditor();
             }
         });
@@ -285,8 +1130,23 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
         repaint();
     }
 
-    private void commitTextEditor() {
-        if (textEditor == null) return;
+    // Grows or shrinks the editor to the lines typed so far, wrapped ones
+    // included
+    private void fitTextEditor() {
+        if (textEditor == null) {
+            return;
+        }
+        SwingUtilities.invokeLater(() -> {
+            if (textEditor != null) {
+                Rectangle r = textEditor.getBounds();
+                textEditor.setSize(r.width, Math.max(textEditor.getPreferredSize().height, r.height));
+                repaint(r.x, r.y, r.width, textEditor.getHeight());
+            }
+        });
+    }
+
+    private void commitTextEditor() {
+        if (textEditor == null) return;
 
         String text = textEditor.getText();
 
@@ -300,14 +1160,11 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
                     textX, textY,
                     currentColor, dStroke,
                     text,
-                    textFontFamily, textFontSize, textFontStyle
+                    textFontFamily, textFontSize, textFontStyle, textWrapWidth
             );
+            t.setLayer(layerStack.getActive());
 
-            shapes.add(t);
-
-            redoList.clear();
-            
-            canUndoClear = false;
+            commitShape(t);
         }
 
         repaint();
@@ -316,14 +1173,29 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
 
     @Override
     protected void paintComponent(Graphics g) {
+        long frameStart = hudVisible ? System.nanoTime() : 0;
+        PainterEvents.Paint event = new PainterEvents.Paint();
+        event.begin();
+
         super.paintComponent(g);
         Graphics2D g2 = (Graphics2D) g;
+        AffineTransform screenTransform = g2.getTransform();
+        java.awt.Shape screenClip = g2.getClip();
+
+        int drawnBefore = lastDrawnCount;
+        int culledBefore = lastCulledCount;
+        int hiddenBefore = lastHiddenCount;
+        lastDrawnCount = 0;
+        lastCulledCount = 0;
+        lastHiddenCount = 0;
+        frameShapes.clear();
+        frameRendered = false;
 
         g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
         g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
 
         // Professional dark background for the container
-        g2.setColor(new Color(33, 33, 33));
+        g2.setColor(WORKSPACE_COLOR);
         g2.fillRect(0, 0, getWidth(), getHeight());
 
         // Apply Transfrom (Translation then Scale)
@@ -331,25 +1203,282 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
         g2.scale(zoomScale, zoomScale);
 
         // Clip drawing to workspace sheet
-        g2.setClip(0, 0, sheetWidth, sheetHeight);
+        g2.clipRect(0, 0, sheetWidth, sheetHeight);
+
+        // Committed content comes from the tile cache; tiles are only stretched
+        // while navigating, where the nearest pixel is good enough
+        Rectangle visible = g2.getClipBounds();
+        if (visible != null && !visible.isEmpty()) {
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interacting
+                    ? RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR
+                    : RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            tileCache.paint(g2, visible, interacting);
+        }
+
+        if (currentPath != null && rasterStrokes && tool == ERASER) {
+            // show what is under the baked strokes where the eraser went
+            Graphics2D erased = (Graphics2D) g2.create();
+            erased.clip(currentPath.getOutline());
+            Rectangle area = erased.getClipBounds();
+            if (area != null && !area.isEmpty()) {
+                renderLayers(erased, area, false);
+            }
+            erased.dispose();
+        } else if (currentPath != null) {
+            currentPath.draw(g2);
+        }
+        if (session != null) {
+            session.drawRemotePaths(g2);
+        }
+
+        if (previewShape != null) {
+            previewShape.draw(g2);
+        }
+
+        if (!selection.isEmpty() || marquee != null) {
+            paintSelection(g2, visible);
+        }
+
+        // whatever the rendered tiles did not reach was culled
+        if (frameRendered) {
+            lastCulledCount += shapes.size() - frameShapes.cardinality();
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.shapesVisited = lastDrawnCount + lastCulledCount + lastHiddenCount;
+            event.shapesDrawn = lastDrawnCount;
+            event.zoom = zoomScale;
+            event.commit();
+        }
+        if (hudVisible) {
+            long frameEnd = System.nanoTime();
+            frameStats.frame(frameStart, frameEnd);
+            if (unpaintedInputTime != 0) {
+                inputLatency.frame(unpaintedInputTime, frameEnd);
+                unpaintedInputTime = 0;
+            }
+            g2.setTransform(screenTransform);
+            g2.setClip(screenClip);
+            paintHud(g2);
+        }
+
+        if (drawnBefore != lastDrawnCount || culledBefore != lastCulledCount || hiddenBefore != lastHiddenCount) {
+            firePropertyChange("renderStats", drawnBefore + "/" + culledBefore + "/" + hiddenBefore,
+                    lastDrawnCount + "/" + lastCulledCount + "/" + lastHiddenCount);
+        }
+        frameDone();
+    }
+
+    // Outlines of the selected shapes, the shapes themselves at their new
+    // place while they are dragged, and the marquee
+    private void paintSelection(Graphics2D g2, Rectangle visible) {
+        float pixel = (float) (1 / zoomScale);
+        int dx = movingSelection ? moveDX : 0;
+        int dy = movingSelection ? moveDY : 0;
+        g2.translate(dx, dy);
+        g2.setStroke(new BasicStroke(pixel, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER,
+                10, new float[] { 4 * pixel, 4 * pixel }, 0));
+        for (int id = selection.nextSetBit(0); id >= 0; id = selection.nextSetBit(id + 1)) {
+            Rectangle bounds = shapes.getBounds(id);
+            if (visible != null && !bounds.intersects(visible.x - dx, visible.y - dy, visible.width, visible.height)) {
+                continue;
+            }
+            if (movingSelection) {
+                shapes.draw(id, g2);
+            }
+            g2.setColor(SELECTION_COLOR);
+            g2.draw(bounds);
+        }
+        g2.translate(-dx, -dy);
+        if (marquee != null) {
+            g2.setColor(MARQUEE_FILL);
+            g2.fill(marquee);
+            g2.setColor(SELECTION_COLOR);
+            g2.draw(marquee);
+        }
+    }
+
+    // Frame rate, frame time percentiles and allocation rate in the top left
+    // corner of the view
+    private void paintHud(Graphics2D g2) {
+        String[] lines = {
+                String.format("FPS %d%s", frameStats.fps(System.nanoTime()), interacting ? "  draft" : ""),
+                String.format("frame p50 %.1f ms  p99 %.1f ms", frameStats.percentile(0.5), frameStats.percentile(0.99)),
+                String.format("input p50 %.1f ms  p99 %.1f ms%s", inputLatency.percentile(0.5),
+                        inputLatency.percentile(0.99), pacedRendering ? "  paced" : ""),
+                String.format("alloc %.1f MB/s", frameStats.allocationRate() / 1e6),
+                String.format("shapes %d drawn / %d culled / %d hidden", lastDrawnCount, lastCulledCount,
+                        lastHiddenCount),
+        };
+        g2.setFont(HUD_FONT);
+        int lineHeight = g2.getFontMetrics().getHeight();
+        int width = 0;
+        for (String line : lines) {
+            width = Math.max(width, g2.getFontMetrics().stringWidth(line));
+        }
+        g2.setColor(HUD_BACKGROUND);
+        g2.fillRect(8, 8, width + 16, lines.length * lineHeight + 10);
+        g2.setColor(Color.WHITE);
+        for (int i = 0; i < lines.length; i++) {
+            g2.drawString(lines[i], 16, 12 + (i + 1) * lineHeight);
+        }
+    }
+
+    // Shows the performance overlay (frame rate, frame times, allocation)
+    public void setHudVisible(boolean visible) {
+        hudVisible = visible;
+        frameStats.reset();
+        inputLatency.reset();
+        unpaintedInputTime = 0;
+        repaint();
+    }
+
+    public boolean isHudVisible() {
+        return hudVisible;
+    }
+
+    // Frame times and input latency behind the HUD, fed while it is shown
+    public FrameStats getFrameStats() {
+        return frameStats;
+    }
+
+    public FrameStats getInputLatency() {
+        return inputLatency;
+    }
+
+    // Bakes committed brush and eraser strokes into the raster layer instead
+    // of keeping them as shapes
+    public void setRasterStrokes(boolean enabled) {
+        rasterStrokes = enabled;
+    }
+
+    public boolean isRasterStrokes() {
+        return rasterStrokes;
+    }
+
+    // Renders one tile of the sheet: white paper, background image, every
+    // visible layer and the baked strokes
+    private void renderCommitted(Graphics2D g2, Rectangle area, boolean draft) {
+        // layer tiles are at the same scale as this one, pixel for pixel
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        renderLayers(g2, area, draft);
+        raster.paint(g2, area);
+    }
+
+    // Everything below the raster layer. With a single plain layer its shapes
+    // are drawn straight into the tile, otherwise the cached tiles of every
+    // visible layer with shapes in the area are combined bottom to top.
+    private void renderLayers(Graphics2D g2, Rectangle area, boolean draft) {
+        if (layerStack.isSinglePlain()) {
+            Layer layer = layerStack.getLayers().get(0);
+            renderLayerTile(layer.isVisible() ? layer.getId() : -1, g2, area, draft, true);
+            return;
+        }
+        renderPaper(g2, area);
+        layerStack.composite(g2, area, draft, shapeIndex.query(area), shapes);
+    }
+
+    // White paper and the background image
+    private void renderPaper(Graphics2D g2, Rectangle area) {
+        g2.clip(area);
+        g2.clipRect(0, 0, sheetWidth, sheetHeight);
 
         // Drawing workspace (Infinite feel, but we can treat a specific area as the
         // "sheet")
-        // For this design, let's assume a default large sheet of 2000x2000
         g2.setColor(Color.WHITE);
         g2.fillRect(0, 0, sheetWidth, sheetHeight);
 
-        if (backgroundImage != null) {
-            g2.drawImage(backgroundImage, 0, 0, null);
+        if (background != null) {
+            background.draw(g2);
         }
+    }
 
-        for (Shape s : shapes) {
-            s.draw(g2);
+    // The shapes of one layer in an area, on paper when asked to (-1 draws
+    // the paper alone). A draft skips shapes smaller than a pixel, simplifies
+    // paths and small text and may drop anti-aliasing.
+    private void renderLayerTile(int layerId, Graphics2D g2, Rectangle area, boolean draft,
+            boolean paper) {
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, !draft || lod.isAntialias()
+                ? RenderingHints.VALUE_ANTIALIAS_ON
+                : RenderingHints.VALUE_ANTIALIAS_OFF);
+        g2.setRenderingHint(RenderingHints.KEY_RENDERING, draft
+                ? RenderingHints.VALUE_RENDER_SPEED
+                : RenderingHints.VALUE_RENDER_QUALITY);
+        if (paper) {
+            renderPaper(g2, area);
+        } else {
+            g2.clip(area);
+            g2.clipRect(0, 0, sheetWidth, sheetHeight);
         }
 
-        if (previewShape != null) {
-            previewShape.draw(g2);
+        // Only shapes whose bounds touch the tile and are not covered at this
+        // scale, ids come back in z-order
+        int[] visible = shapeIndex.query(area);
+        double scale = g2.getTransform().getScaleX();
+        int drawn = 0;
+        int hidden = 0;
+        int tiny = 0;
+        double minSize = lod.getMinShapeSize() / scale;
+        double tolerance = lod.getPathTolerance() / scale;
+        double minText = lod.getMinTextSize() / scale;
+        frameRendered = true;
+        for (int id : visible) {
+            if (!paper && shapes.getLayer(id) != layerId) {
+                continue;
+            }
+            if (layerId < 0) {
+                break;
+            }
+            int first = frameShapes.get(id) ? 0 : 1;
+            frameShapes.set(id);
+            if (occlusion != null && occlusion.isHidden(id, scale)) {
+                hidden += first;
+                continue;
+            }
+            if (draft) {
+                Rectangle bounds = shapes.getBounds(id);
+                if (bounds.width < minSize && bounds.height < minSize) {
+                    tiny += first;
+                    continue;
+                }
+                shapes.drawDraft(id, g2, tolerance, minText);
+            } else {
+                shapes.draw(id, g2);
+            }
+            drawn += first;
         }
+        lastDrawnCount += drawn;
+        lastHiddenCount += hidden;
+        lastCulledCount += tiny;
+    }
+
+    // Shapes drawn while rendering the tiles needed by the last repaint
+    public int getLastDrawnCount() {
+        return lastDrawnCount;
+    }
+
+    // Shapes skipped by the spatial index, or as too small for a draft,
+    // during the last repaint
+    public int getLastCulledCount() {
+        return lastCulledCount;
+    }
+
+    // Shapes skipped during the last repaint because later shapes cover them
+    public int getLastHiddenCount() {
+        return lastHiddenCount;
+    }
+
+    // Memory budget of the tile cache in bytes
+    public void setTileCacheMemoryLimit(long bytes) {
+        layerStack.setMemoryLimit(bytes);
+        repaint();
+    }
+
+    // Memory for the pixels of baked strokes and fills in bytes, tiles past
+    // it go to a scratch file (see TileStore)
+    public void setRasterMemoryLimit(long bytes) {
+        TileStore.shared().setMemoryLimit(bytes);
     }
 
     public void zoomIn() {
@@ -360,6 +1489,11 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
         zoomAt(getWidth() / 2, getHeight() / 2, 1.0 / 1.1);
     }
 
+    // Sets the zoom keeping the center of the view in place
+    public void zoomTo(double scale) {
+        zoomAt(getWidth() / 2, getHeight() / 2, scale / zoomScale);
+    }
+
     public void resetZoom() {
         zoomScale = 1.0;
         offsetX = 20; // Slight padding
@@ -378,9 +1512,36 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
         offsetX = pivotX - (mouseCanvasX * zoomScale);
         offsetY = pivotY - (mouseCanvasY * zoomScale);
 
+        beginInteraction();
         repaint();
     }
 
+    // Called on every pan or zoom step: tiles rendered until the view has
+    // been still for the idle delay are drafts
+    private void beginInteraction() {
+        if (!lod.isEnabled()) {
+            return;
+        }
+        interacting = true;
+        lodTimer.setInitialDelay(lod.getIdleDelay());
+        lodTimer.setRepeats(false);
+        lodTimer.restart();
+    }
+
+    // The draft tiles stay on screen until the repaint replaces them, so the
+    // view never shows missing tiles in between
+    private void endInteraction() {
+        interacting = false;
+        if (tileCache.hasDrafts()) {
+            repaint();
+        }
+    }
+
+    // Draft rendering thresholds, changes apply to tiles rendered afterwards
+    public LevelOfDetail getLevelOfDetail() {
+        return lod;
+    }
+
     // Setters
     public void setTool(int tool) {
         this.tool = tool;
@@ -388,6 +1549,11 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
             commitTextEditor(); // save what the user typed
         }
         previewShape = null;
+        if (tool != SELECT) {
+            selection.clear();
+            marquee = null;
+            repaint();
+        }
         navigateHand.setEnabled(tool == HAND);
     }
 
@@ -395,6 +1561,7 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
     public void pan(double deltaX, double deltaY) {
         offsetX += deltaX;
         offsetY += deltaY;
+        beginInteraction();
     }
 
     @Override
@@ -431,114 +1598,630 @@ public class Painter extends JPanel implements NavigateHand.NavigableView {
         this.textFontStyle = style;
     }
 
-    // Undo the last shape or clear
+    // Undo the last shape, clear or image load
     public void undo() {
-        // If the last action was Clear, undo should restore everything
-        if (canUndoClear) {
-            shapes = new ArrayList<>(savedShapesBeforeClear);
-            backgroundImage = savedBackgroundBeforeClear;
+        previewShape = null;
+        if (blockedBySession()) {
+            return;
+        }
+        if (history.canUndo()) {
+            PainterEvents.History event = new PainterEvents.History();
+            event.begin();
+            history.undo();
+            commitHistoryEvent(event, "undo");
+            if (journal != null) {
+                journal.recordUndo();
+            }
+        }
+        repaint();
+    }
 
-            previewShape = null;
-            currentPath = null;
+    // True when there is a step to undo or redo, a new sheet throws them away
+    public boolean hasHistory() {
+        return history.canUndo() || history.canRedo();
+    }
 
-            canUndoClear = false;
-            repaint();
+    // Redo the last undone step
+    public void redo() {
+        if (blockedBySession()) {
             return;
         }
-
-        // Normal undo: remove last shape
-        if (!shapes.isEmpty()) {
-            Shape removedShape = shapes.remove(shapes.size() - 1);
-            redoList.add(removedShape);
-            previewShape = null;
-            repaint();
+        if (history.canRedo()) {
+            PainterEvents.History event = new PainterEvents.History();
+            event.begin();
+            history.redo();
+            commitHistoryEvent(event, "redo");
+            if (journal != null) {
+                journal.recordRedo();
+            }
         }
+        repaint();
     }
 
-    // Redo last undo shape
-    public void redo() {
-        if (!redoList.isEmpty()) {
-            // Get the last item from redoList
-            Shape shapeToRestore = redoList.remove(redoList.size() - 1);
-            shapes.add(shapeToRestore);
-            repaint();
+    private void commitHistoryEvent(PainterEvents.History event, String action) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.action = action;
+            event.undoDepth = history.getUndoDepth();
+            event.shapes = shapes.size();
+            event.commit();
         }
     }
 
+    // Memory the undo history may keep before spilling to a temporary file
+    public void setHistoryMemoryBudget(long bytes) {
+        history.setMemoryBudget(bytes);
+    }
+
+    // Undo data waiting in the spill file
+    public long getSpilledHistoryBytes() {
+        return history.getSpilledBytes();
+    }
+
     // Clear the canvas
     public void clear() {
-        // save current state so Undo can restore it
-        savedShapesBeforeClear = new ArrayList<>(shapes);
-        savedBackgroundBeforeClear = backgroundImage;
-        canUndoClear = true;
+        // the old store is kept as it is for undo and drawing continues in a
+        // new one, so clearing is O(1)
+        ClearCommand command = new ClearCommand(this, shapes, raster, background);
+        setDocument(shapes.newEmpty(), new RasterLayer(), null, sheetWidth, sheetHeight);
+        history.push(command);
+        if (journal != null) {
+            journal.recordClear();
+        }
+        if (session != null) {
+            session.getClient().sendClear();
+        }
+    }
 
-        // clear current state
-        shapes.clear();
-        previewShape = null;
-        currentPath = null;
-        backgroundImage = null;
+    // Starts over on an empty sheet of a new size. Like opening a document
+    // it is not an undoable step, callers check isBlank and hasHistory and
+    // ask first. Nothing is allocated for the sheet size:
+    // shapes are indexed by their bounds, baked pixels only exist for tiles
+    // drawn on and the screen draws from its own tiles.
+    public void newSheet(int width, int height) {
+        if (blockedBySession() || width <= 0 || height <= 0) {
+            return;
+        }
+        history.clear();
+        setDocument(shapes.newEmpty(), new RasterLayer(), null, width, height);
+        if (journal != null) {
+            journal.compact(journalState());
+        }
+    }
 
-        redoList.clear();
+    public int getSheetWidth() {
+        return sheetWidth;
+    }
 
-        repaint();
+    public int getSheetHeight() {
+        return sheetHeight;
     }
 
-    // Open an image file
+    // Removes the shapes that later opaque shapes cover completely, as one
+    // undoable step. Returns how many were removed.
+    public int compactDocument() {
+        if (blockedBySession()) {
+            return 0;
+        }
+        OcclusionCuller analysis = occlusion;
+        if (analysis == null) {
+            analysis = OcclusionCuller.build(shapes, sheetWidth, sheetHeight);
+        }
+        BitSet hidden = analysis.hiddenShapes();
+        if (hidden.isEmpty()) {
+            return 0;
+        }
+        ShapeStore compacted = shapes.newEmpty();
+        for (int i = 0; i < shapes.size(); i++) {
+            if (!hidden.get(i)) {
+                compacted.add(shapes.get(i));
+            }
+        }
+        ReplaceShapesCommand command = new ReplaceShapesCommand(this, shapes, hidden.cardinality());
+        setDocument(compacted, background, sheetWidth, sheetHeight);
+        history.push(command);
+        if (journal != null) {
+            journal.recordCompact();
+        }
+        return hidden.cardinality();
+    }
+
+    // Memory the background working copy may use, bigger images are
+    // subsampled to fit
+    public void setImageMemoryBudget(long bytes) {
+        this.imageMemoryBudget = bytes;
+    }
+
+    // Open an image file. Decoding runs in the background: a preview shows up
+    // first and is replaced by the working copy when it is ready.
+    // Native documents are opened as drawings instead.
     public void openImage() {
         JFileChooser chooser = new JFileChooser();
         int result = chooser.showOpenDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
-            try {
-                backgroundImage = ImageIO.read(chooser.getSelectedFile());
-                if (backgroundImage != null) {
-                    sheetWidth = backgroundImage.getWidth();
-                    sheetHeight = backgroundImage.getHeight();
-                    resetZoom();
+            File file = chooser.getSelectedFile();
+            if (file.getName().toLowerCase().endsWith(ShapeDocument.EXTENSION)) {
+                openDocument(file);
+                return;
+            }
+            loadImage(file, -1, -1);
+        }
+    }
+
+    // Loads an image as the new background, as an undoable step. When the size
+    // is already known (replaying the journal) the step is taken right away
+    // instead of once the decoder has read the header.
+    private void loadImage(File file, int knownWidth, int knownHeight) {
+        if (imageLoader != null) {
+            imageLoader.abort();
+        }
+        ProgressMonitor monitor = new ProgressMonitor(this, "Opening " + file.getName(), null, 0, 100);
+        monitor.setMillisToDecideToPopup(200);
+
+        LoadImageCommand known = knownWidth >= 0 ? beginImageLoad(file, knownWidth, knownHeight) : null;
+        BackgroundLoader loader = new BackgroundLoader(file, imageMemoryBudget, new BackgroundLoader.Listener() {
+            private LoadImageCommand command = known;
+
+            @Override
+            public void sizeKnown(int w, int h) {
+                if (command == null) {
+                    command = beginImageLoad(file, w, h);
+                }
+            }
+
+            @Override
+            public void imageLoaded(BufferedImage image, boolean finalImage) {
+                SheetBackground loaded = new SheetBackground(image, command.width, command.height, file);
+                command.loaded = loaded;
+                // the load may have been undone while it was decoding
+                if (command.applied) {
+                    background = loaded;
+                    tileCache.invalidateAll();
+                    repaint();
+                }
+                if (finalImage) {
+                    monitor.close();
+                    // Low zoom levels switch to the pyramid once it is built
+                    loaded.buildMipmapsAsync(() -> {
+                        if (background == loaded) {
+                            tileCache.invalidateAll();
+                            repaint();
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                monitor.close();
+                JOptionPane.showMessageDialog(Painter.this, "Error loading image: " + e.getMessage());
+            }
+        });
+        loader.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                monitor.setProgress((Integer) e.getNewValue());
+                if (monitor.isCanceled()) {
+                    loader.abort();
                 }
-                repaint();
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(this, "Error loading image: " + ex.getMessage());
+            } else if ("state".equals(e.getPropertyName()) && loader.isDone()) {
+                monitor.close();
             }
+        });
+        imageLoader = loader;
+        loader.execute();
+    }
+
+    // Resizes the sheet for an image that is being loaded
+    private LoadImageCommand beginImageLoad(File file, int width, int height) {
+        LoadImageCommand command = new LoadImageCommand(this, background, sheetWidth, sheetHeight, width, height);
+        setDocument(shapes, null, width, height);
+        history.push(command);
+        if (journal != null) {
+            journal.recordImage(file, width, height);
         }
+        return command;
     }
 
     public void saveImage() {
         JFileChooser chooser = new JFileChooser();
         int result = chooser.showSaveDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
-            File file = chooser.getSelectedFile();
-            if (!file.getName().toLowerCase().endsWith(".png")) {
-                file = new File(file.getAbsolutePath() + ".png");
+            File selected = chooser.getSelectedFile();
+            if (selected.getName().toLowerCase().endsWith(ShapeDocument.EXTENSION)) {
+                saveDocument(selected);
+                return;
+            }
+            if (!selected.getName().toLowerCase().endsWith(".png")) {
+                selected = new File(selected.getAbsolutePath() + ".png");
+            }
+            final File file = selected;
+
+            // Snapshot the drawing so the user can keep editing while the
+            // sheet is rendered on all cores and encoded off the EDT
+            SheetExporter exporter = new SheetExporter(shapes.snapshot(), raster.snapshot(), layerStack.getLayers(), background,
+                    sheetWidth, sheetHeight);
+            ProgressMonitor monitor = new ProgressMonitor(this, "Saving " + file.getName(), null, 0, 100);
+            monitor.setMillisToDecideToPopup(200);
+
+            SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+                @Override
+                protected Void doInBackground() throws Exception {
+                    // Bands are encoded as they are rendered, into a file
+                    // that only replaces the target once it is complete
+                    File partial = new File(file.getAbsolutePath() + ".part");
+                    boolean written = false;
+                    try (OutputStream out = new BufferedOutputStream(
+                            new FileOutputStream(partial), 1 << 16)) {
+                        exporter.writePng(out, ForkJoinPool.commonPool(), new SheetExporter.Progress() {
+                            @Override
+                            public void bandDone(int done, int total) {
+                                setProgress(done * 100 / total);
+                            }
+
+                            @Override
+                            public boolean isCancelled() {
+                                return monitor.isCanceled();
+                            }
+                        });
+                        written = true;
+                    } finally {
+                        if (!written) {
+                            partial.delete();
+                        }
+                    }
+                    Files.move(partial.toPath(), file.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                    return null;
+                }
+
+                @Override
+                protected void done() {
+                    monitor.close();
+                    try {
+                        get();
+                        JOptionPane.showMessageDialog(Painter.this, "Image saved successfully!");
+                    } catch (CancellationException | InterruptedException ex) {
+                        // cancelled from the progress dialog, nothing was written
+                    } catch (ExecutionException ex) {
+                        Throwable cause = ex.getCause();
+                        if (cause instanceof CancellationException) {
+                            return;
+                        }
+                        JOptionPane.showMessageDialog(Painter.this, "Error saving image: " + cause.getMessage());
+                    }
+                }
+            };
+            worker.addPropertyChangeListener(e -> {
+                if ("progress".equals(e.getPropertyName())) {
+                    monitor.setProgress((Integer) e.getNewValue());
+                }
+            });
+            worker.execute();
+        }
+    }
+
+    // Opens a native document. Only the header and indexes are read up front,
+    // shapes are decoded from the mapped file as they are drawn and the
+    // embedded background is decoded in the background.
+    public void openDocument(File file) {
+        SwingWorker<ShapeDocument, Void> worker = new SwingWorker<ShapeDocument, Void>() {
+            @Override
+            protected ShapeDocument doInBackground() throws Exception {
+                return ShapeDocument.open(file.toPath());
             }
-            try {
-                // Determine bounds of content or save a fixed area
-                // For simplicity, let's save the workspace
-                BufferedImage image = new BufferedImage(sheetWidth, sheetHeight, BufferedImage.TYPE_INT_ARGB);
-                Graphics2D g2 = image.createGraphics();
-                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-                g2.setColor(Color.WHITE);
-                g2.fillRect(0, 0, sheetWidth, sheetHeight);
+            @Override
+            protected void done() {
+                ShapeDocument doc;
+                try {
+                    doc = get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    JOptionPane.showMessageDialog(Painter.this, "Error opening document: " + cause.getMessage());
+                    return;
+                }
+                showDocument(doc);
+            }
+        };
+        worker.execute();
+    }
+
+    // Replaces the drawing with an opened document, the undo history starts
+    // over
+    public void showDocument(ShapeDocument doc) {
+        history.clear();
+        setLayerTable(doc.getLayers());
+        setDocument(doc.getShapes(), doc.getRaster(), null, doc.getWidth(), doc.getHeight());
+        if (journal != null) {
+            journal.compact(journalState());
+        }
+        if (doc.hasBackground()) {
+            loadDocumentBackground(doc.getWidth(), doc.getHeight(), null,
+                    listener -> new BackgroundLoader(doc.openBackground(), "background", imageMemoryBudget,
+                            listener));
+        }
+    }
+
+    // Loads the background that belongs to a document just opened, it is part
+    // of the document and not an undoable step
+    private void loadDocumentBackground(int width, int height, File source,
+            Function<BackgroundLoader.Listener, BackgroundLoader> loaderFor) {
+        if (imageLoader != null) {
+            imageLoader.abort();
+        }
+        ShapeStore docShapes = shapes;
+        BackgroundLoader loader = loaderFor.apply(new BackgroundLoader.Listener() {
+                    @Override
+                    public void sizeKnown(int w, int h) {
+                    }
+
+                    @Override
+                    public void imageLoaded(BufferedImage image, boolean finalImage) {
+                        // skip it when the sheet was cleared in the meantime
+                        if (shapes != docShapes) {
+                            return;
+                        }
+                        SheetBackground loaded = new SheetBackground(image, width, height, source);
+                        background = loaded;
+                        tileCache.invalidateAll();
+                        repaint();
+                        if (finalImage) {
+                            if (journal != null) {
+                                journal.compact(journalState());
+                            }
+                            loaded.buildMipmapsAsync(() -> {
+                                if (background == loaded) {
+                                    tileCache.invalidateAll();
+                                    repaint();
+                                }
+                            });
+                        }
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        JOptionPane.showMessageDialog(Painter.this, "Error loading background: " + e.getMessage());
+                    }
+                });
+        imageLoader = loader;
+        loader.execute();
+    }
 
-                if (backgroundImage != null) {
-                    g2.drawImage(backgroundImage, 0, 0, null);
+    // Saves the drawing as a native document from a snapshot, off the EDT
+    public void saveDocument(File file) {
+        ShapeStore snapshot = shapes.snapshot();
+        RasterLayer rasterSnapshot = raster.snapshot();
+        List<Layer> layerTable = layerStack.getLayers();
+        SheetBackground bg = background;
+        int width = sheetWidth;
+        int height = sheetHeight;
+        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                byte[] image = null;
+                if (bg != null) {
+                    ByteArrayOutputStream png = new ByteArrayOutputStream();
+                    ImageIO.write(bg.getImage(), "png", png);
+                    image = png.toByteArray();
+                }
+                ShapeDocument.write(file.toPath(), snapshot, rasterSnapshot, layerTable, width, height, image);
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                    JOptionPane.showMessageDialog(Painter.this, "Document saved successfully!");
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    JOptionPane.showMessageDialog(Painter.this, "Error saving document: " + cause.getMessage());
                 }
-                for (Shape s : shapes) {
-                    s.draw(g2);
+            }
+        };
+        worker.execute();
+    }
+
+    // Starts journaling every edit to dir, see Journal
+    public void startAutosave(File dir) {
+        stopAutosave(false);
+        journal = new Journal(dir, this::journalState);
+        journal.start();
+    }
+
+    // Stops journaling; discard deletes the journal, for a clean exit
+    public void stopAutosave(boolean discard) {
+        if (journal != null) {
+            journal.close(discard);
+            journal = null;
+        }
+    }
+
+    // Deletes the undo spill file, for when the window closes
+    public void dispose() {
+        history.dispose();
+    }
+
+    private Journal.State journalState() {
+        return new Journal.State(shapes.snapshot(), raster.snapshot(), layerStack.getLayers(), background, sheetWidth, sheetHeight);
+    }
+
+    // Rebuilds the drawing a crashed session left in dir by replaying its
+    // journal, returns the number of edits replayed or -1 if there was none.
+    // Call it before startAutosave.
+    public int recoverAutosave(File dir) throws IOException {
+        stopAutosave(false);
+        return Journal.replay(dir, new Journal.Replayer() {
+            @Override
+            public void base(ShapeDocument snapshot, File backgroundImage) {
+                history.clear();
+                setLayerTable(snapshot.getLayers());
+                setDocument(snapshot.getShapes(), snapshot.getRaster(), null, snapshot.getWidth(),
+                        snapshot.getHeight());
+                int w = snapshot.getWidth();
+                int h = snapshot.getHeight();
+                if (backgroundImage != null && backgroundImage.isFile()) {
+                    loadDocumentBackground(w, h, backgroundImage,
+                            listener -> new BackgroundLoader(backgroundImage, imageMemoryBudget, listener));
+                } else if (snapshot.hasBackground()) {
+                    loadDocumentBackground(w, h, null, listener -> new BackgroundLoader(snapshot.openBackground(),
+                            "background", imageMemoryBudget, listener));
                 }
-                g2.dispose();
-                ImageIO.write(image, "png", file);
-                JOptionPane.showMessageDialog(this, "Image saved successfully!");
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(this, "Error saving image: " + ex.getMessage());
             }
+
+            @Override
+            public void add(Shape shape) {
+                commitShape(shape);
+            }
+
+            @Override
+            public void stroke(Shape stroke, boolean erase) {
+                commitStroke(stroke, erase);
+            }
+
+            @Override
+            public void compact() {
+                compactDocument();
+            }
+
+            @Override
+            public void move(BitSet ids, int dx, int dy) {
+                editShapes(ids, dx, dy, false);
+            }
+
+            @Override
+            public void delete(BitSet ids) {
+                editShapes(ids, 0, 0, true);
+            }
+
+            @Override
+            public void undo() {
+                Painter.this.undo();
+            }
+
+            @Override
+            public void redo() {
+                Painter.this.redo();
+            }
+
+            @Override
+            public void clear() {
+                Painter.this.clear();
+            }
+
+            @Override
+            public void image(File file, int width, int height) {
+                loadImage(file, width, height);
+            }
+
+            @Override
+            public void layers(List<Layer> table) {
+                applyLayers(table);
+            }
+
+            @Override
+            public void fill(FloodFill.Region region, Color color) {
+                commitFill(region, color);
+            }
+        });
+    }
+
+    // Joins the session served at host:port. The drawing is cleared and
+    // replaced by the session's, which the server sends first, so callers
+    // check isBlank and ask first; remote edits are only applied on the EDT,
+    // after this returns.
+    public void joinSession(String host, int port) throws IOException {
+        SessionLink link = SessionLink.connect(this, host, port);
+        leaveSession();
+        history.clear();
+        setDocument(shapes.newEmpty(), new RasterLayer(), null, sheetWidth, sheetHeight);
+        if (journal != null) {
+            journal.recordClear();
+        }
+        session = link;
+    }
+
+    // Leaves the session, the drawing stays as it is
+    public void leaveSession() {
+        if (session != null) {
+            SessionLink old = session;
+            session = null;
+            old.close();
+            // undo steps recorded in the session do not match the drawing
+            history.clear();
+            repaint();
+        }
+    }
+
+    public SessionClient getSession() {
+        return session != null ? session.getClient() : null;
+    }
+
+    // True when there is nothing on the sheet that joining a session would
+    // throw away
+    public boolean isBlank() {
+        return shapes.size() == 0 && raster.isEmpty() && background == null;
+    }
+
+    // Edits of the other session participants, applied by the SessionLink
+    // on the EDT. Each returns the canvas area it changed or null.
+    Rectangle applyRemoteAdd(Shape shape) {
+        appendShape(shape);
+        if (journal != null) {
+            journal.recordAdd(shape);
+        }
+        return shape.getBounds();
+    }
+
+    Rectangle applyRemoteStroke(Shape stroke, boolean erase) {
+        Rectangle bounds = raster.bake(stroke, erase).getBounds();
+        tileCache.invalidate(bounds);
+        if (journal != null) {
+            journal.recordStroke(stroke, erase);
+        }
+        return bounds;
+    }
+
+    // Same document state as a local clear(), which drops the background
+    // too, so every participant and the journal replay end up alike
+    Rectangle applyRemoteClear() {
+        setDocument(shapes.newEmpty(), new RasterLayer(), null, sheetWidth, sheetHeight);
+        if (journal != null) {
+            journal.recordClear();
+        }
+        // setDocument repaints everything
+        return null;
+    }
+
+    // The connection of a session dropped, on the EDT
+    void sessionEnded(SessionLink link, IOException error) {
+        if (session != link) {
+            return;
+        }
+        session = null;
+        history.clear();
+        repaint();
+        if (error != null) {
+            JOptionPane.showMessageDialog(this, "Session ended: " + error.getMessage());
+        }
+    }
+
+    // Undo and the editing commands work on positions in the shape list,
+    // which differ between participants when they draw at the same time, so
+    // they are off in a session
+    private boolean blockedBySession() {
+        if (session == null) {
+            return false;
         }
+        Toolkit.getDefaultToolkit().beep();
+        return true;
     }
 
     public Color getCurrentColor() {
         return currentColor;
     }
 
+   
     public double getZoomScale() {
         return zoomScale;
     }
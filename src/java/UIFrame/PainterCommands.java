@@ -0,0 +1,478 @@
+package UIFrame;
+
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import javax.swing.JOptionPane;
+import Shapes.ColumnarShapeStore;
+import Shapes.Layer;
+import Shapes.RasterLayer;
+import Shapes.Shape;
+import Shapes.ShapeCodec;
+import Shapes.ShapeStore;
+
+// Undo steps of the canvas. Each one edits the Painter it was made for
+// through its package-private document methods, and the ones that keep big
+// data alive can hand it to the history's spill file.
+public final class PainterCommands {
+
+    private PainterCommands() {
+    }
+
+    // Rough heap cost of one shape, and of one entry of a store that shares
+    // its shapes with other versions, used to weigh undo steps
+    static final long SHAPE_BYTES = 64;
+    static final long SHAPE_REF_BYTES = 5;
+
+    // Undo step for one committed shape
+    static class AddShapeCommand implements History.Command {
+        private final Painter painter;
+        private final Shape shape;
+
+        AddShapeCommand(Painter painter, Shape shape) {
+            this.painter = painter;
+            this.shape = shape;
+        }
+
+        @Override
+        public void undo() {
+            painter.removeLastShape();
+        }
+
+        @Override
+        public void redo() {
+            painter.appendShape(shape);
+        }
+    }
+
+    // Undo step for a baked stroke or a bucket fill, it swaps the tiles it changed.
+    // The tiles it holds go to the spill file when the history is over
+    // budget and come back before the next swap.
+    static class StrokeCommand implements History.Command {
+        private final RasterLayer.Patch patch;
+        private final Painter painter;
+        private History.Entry<RasterLayer.Patch> spilled;
+
+        StrokeCommand(Painter painter, RasterLayer.Patch patch) {
+            this.painter = painter;
+            this.patch = patch;
+        }
+
+        @Override
+        public void undo() {
+            swap();
+        }
+
+        @Override
+        public void redo() {
+            swap();
+        }
+
+        private void swap() {
+            if (patch.isTaken()) {
+                try {
+                    patch.restoreTiles(spilled.restore(patch::readTiles));
+                    spilled = null;
+                } catch (IOException e) {
+                    JOptionPane.showMessageDialog(painter, "Error restoring undo history: " + e.getMessage());
+                    return;
+                }
+            }
+            painter.raster.swap(patch);
+            painter.tileCache.invalidate(patch.getBounds());
+        }
+
+        @Override
+        public long retainedBytes() {
+            return patch.retainedBytes();
+        }
+
+        @Override
+        public boolean spill(History.SpillFile file) {
+            if (patch.retainedBytes() == 0) {
+                return false;
+            }
+            spilled = file.writeLater(patch.takeTiles(), RasterLayer.Patch::writeTiles);
+            return true;
+        }
+
+        @Override
+        public void discard() {
+            if (spilled != null) {
+                spilled.discard();
+            }
+        }
+    }
+
+    // Undo step for clearing the sheet. It keeps the old store and
+    // background as they are; when the history is over budget they are
+    // written to the spill file and read back on undo.
+    static class ClearCommand implements History.Command {
+        private final Painter painter;
+        private ShapesSlot cleared;
+        private RasterLayer clearedRaster;
+        private BackgroundSlot clearedBackground;
+
+        ClearCommand(Painter painter, ShapeStore cleared, RasterLayer clearedRaster,
+                SheetBackground clearedBackground) {
+            this.painter = painter;
+            // nothing else keeps the cleared shapes
+            this.cleared = new ShapesSlot(painter, cleared, cleared.size());
+            this.clearedRaster = clearedRaster;
+            this.clearedBackground = new BackgroundSlot(painter, clearedBackground);
+        }
+
+        @Override
+        public void undo() {
+            ShapeStore restored = cleared.get();
+            SheetBackground bg = clearedBackground.get();
+            RasterLayer layer = clearedRaster;
+            cleared = null;
+            clearedRaster = null;
+            clearedBackground = null;
+            painter.setDocument(restored, layer, bg, painter.sheetWidth, painter.sheetHeight);
+        }
+
+        @Override
+        public void redo() {
+            cleared = new ShapesSlot(painter, painter.shapes, painter.shapes.size());
+            clearedRaster = painter.raster;
+            clearedBackground = new BackgroundSlot(painter, painter.background);
+            painter.setDocument(painter.shapes.newEmpty(), new RasterLayer(), null, painter.sheetWidth,
+                    painter.sheetHeight);
+        }
+
+        @Override
+        public long retainedBytes() {
+            long bytes = clearedBackground != null ? clearedBackground.retainedBytes() : 0;
+            return cleared != null ? bytes + cleared.retainedBytes() : bytes;
+        }
+
+        @Override
+        public boolean spill(History.SpillFile file) {
+            boolean spilled = clearedBackground.spill(file);
+            return cleared.spill(file) || spilled;
+        }
+
+        @Override
+        public void discard() {
+            if (cleared != null) {
+                cleared.discard();
+                clearedBackground.discard();
+            }
+        }
+    }
+
+    // Undo step for compacting and for moving or deleting shapes, it swaps
+    // the store before the edit and the one after it. The two share every
+    // shape the edit did not touch, so only the changed ones weigh.
+    static class ReplaceShapesCommand implements History.Command {
+        private final Painter painter;
+        private ShapesSlot other;
+        private final int changed;
+
+        ReplaceShapesCommand(Painter painter, ShapeStore before, int changed) {
+            this.painter = painter;
+            this.other = new ShapesSlot(painter, before, changed);
+            this.changed = changed;
+        }
+
+        @Override
+        public void undo() {
+            swap();
+        }
+
+        @Override
+        public void redo() {
+            swap();
+        }
+
+        private void swap() {
+            ShapeStore restored = other.get();
+            other = new ShapesSlot(painter, painter.shapes, changed);
+            painter.setDocument(restored, painter.background, painter.sheetWidth, painter.sheetHeight);
+        }
+
+        @Override
+        public long retainedBytes() {
+            return other.retainedBytes();
+        }
+
+        @Override
+        public boolean spill(History.SpillFile file) {
+            return other.spill(file);
+        }
+
+        @Override
+        public void discard() {
+            other.discard();
+        }
+    }
+
+    // A change of the layer table, with the shapes it deleted
+    static class LayersCommand implements History.Command {
+        private final Painter painter;
+        private List<Layer> other;
+        private final ReplaceShapesCommand shapesCommand;
+
+        LayersCommand(Painter painter, List<Layer> before, ReplaceShapesCommand shapesCommand) {
+            this.painter = painter;
+            this.other = before;
+            this.shapesCommand = shapesCommand;
+        }
+
+        @Override
+        public void undo() {
+            swap();
+            if (shapesCommand != null) {
+                shapesCommand.undo();
+            }
+        }
+
+        @Override
+        public void redo() {
+            if (shapesCommand != null) {
+                shapesCommand.redo();
+            }
+            swap();
+        }
+
+        private void swap() {
+            List<Layer> restored = other;
+            other = painter.layerStack.getLayers();
+            painter.setLayerTable(restored);
+        }
+
+        @Override
+        public long retainedBytes() {
+            return shapesCommand != null ? shapesCommand.retainedBytes() : 0;
+        }
+
+        @Override
+        public boolean spill(History.SpillFile file) {
+            return shapesCommand != null && shapesCommand.spill(file);
+        }
+
+        @Override
+        public void discard() {
+            if (shapesCommand != null) {
+                shapesCommand.discard();
+            }
+        }
+    }
+
+    // A shape store kept by an undo step, either as it is or encoded with
+    // ShapeCodec in the spill file. unique is how many of its shapes no
+    // neighbouring version has; the rest only costs the store's own entries.
+    // Columnar stores share nothing with the store built from them.
+    static class ShapesSlot {
+        private final Painter painter;
+        private ShapeStore shapes;
+        private final int unique;
+        private History.Entry<ShapeStore> spilled;
+        private int count;
+
+        ShapesSlot(Painter painter, ShapeStore shapes, int unique) {
+            this.painter = painter;
+            this.shapes = shapes;
+            this.unique = unique;
+        }
+
+        long retainedBytes() {
+            if (shapes == null) {
+                return 0;
+            }
+            if (shapes instanceof ColumnarShapeStore) {
+                return ((ColumnarShapeStore) shapes).offHeapBytes();
+            }
+            return shapes.size() * SHAPE_REF_BYTES + unique * SHAPE_BYTES;
+        }
+
+        boolean spill(History.SpillFile file) {
+            if (shapes == null || shapes.size() == 0) {
+                return false;
+            }
+            count = shapes.size();
+            spilled = file.writeLater(shapes, (store, out) -> {
+                for (int i = 0; i < count; i++) {
+                    ShapeCodec.write(out, store.get(i));
+                }
+            });
+            shapes = null;
+            return true;
+        }
+
+        ShapeStore get() {
+            if (shapes != null) {
+                return shapes;
+            }
+            if (spilled == null) {
+                return Painter.newShapeStore();
+            }
+            try {
+                return spilled.restore(in -> {
+                    ShapeStore store = Painter.newShapeStore();
+                    for (int i = 0; i < count; i++) {
+                        store.add(ShapeCodec.read(in));
+                    }
+                    return store;
+                });
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(painter, "Error restoring undo history: " + e.getMessage());
+                return Painter.newShapeStore();
+            } finally {
+                spilled = null;
+            }
+        }
+
+        void discard() {
+            if (spilled != null) {
+                spilled.discard();
+            }
+        }
+    }
+
+    // Undo step for opening an image, it swaps the background and sheet size
+    static class LoadImageCommand implements History.Command {
+        private final Painter painter;
+        private BackgroundSlot before;
+        private final int beforeWidth, beforeHeight;
+        final int width, height;
+
+        // Set by the loader as the preview and the working copy arrive
+        SheetBackground loaded;
+        boolean applied = true;
+
+        LoadImageCommand(Painter painter, SheetBackground before, int beforeWidth, int beforeHeight, int width,
+                int height) {
+            this.painter = painter;
+            this.before = new BackgroundSlot(painter, before);
+            this.beforeWidth = beforeWidth;
+            this.beforeHeight = beforeHeight;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public void undo() {
+            SheetBackground bg = before.get();
+            before = null;
+            applied = false;
+            painter.setDocument(painter.shapes, bg, beforeWidth, beforeHeight);
+        }
+
+        @Override
+        public void redo() {
+            before = new BackgroundSlot(painter, painter.background);
+            applied = true;
+            painter.setDocument(painter.shapes, loaded, width, height);
+        }
+
+        @Override
+        public long retainedBytes() {
+            return before != null ? before.retainedBytes() : 0;
+        }
+
+        @Override
+        public boolean spill(History.SpillFile file) {
+            return before.spill(file);
+        }
+
+        @Override
+        public void discard() {
+            if (before != null) {
+                before.discard();
+            }
+        }
+    }
+
+    // A background kept by an undo step, either in memory or as raw ARGB
+    // pixels in the spill file
+    static class BackgroundSlot {
+        private final Painter painter;
+        private SheetBackground background;
+        private History.Entry<SheetBackground> spilled;
+        private int imageWidth, imageHeight, width, height;
+        private File source;
+
+        BackgroundSlot(Painter painter, SheetBackground background) {
+            this.painter = painter;
+            this.background = background;
+        }
+
+        long retainedBytes() {
+            if (background == null) {
+                return 0;
+            }
+            BufferedImage image = background.getImage();
+            return (long) image.getWidth() * image.getHeight() * 4;
+        }
+
+        boolean spill(History.SpillFile file) {
+            if (background == null) {
+                return false;
+            }
+            BufferedImage image = background.getImage();
+            imageWidth = image.getWidth();
+            imageHeight = image.getHeight();
+            width = background.getWidth();
+            height = background.getHeight();
+            source = background.getSource();
+            spilled = file.writeLater(background, (bg, out) -> {
+                ByteBuffer bytes = ByteBuffer.allocate(imageWidth * 4);
+                int[] row = new int[imageWidth];
+                for (int y = 0; y < imageHeight; y++) {
+                    bg.getImage().getRGB(0, y, imageWidth, 1, row, 0, imageWidth);
+                    bytes.clear();
+                    bytes.asIntBuffer().put(row);
+                    out.write(bytes.array());
+                }
+            });
+            background = null;
+            return true;
+        }
+
+        SheetBackground get() {
+            if (background != null || spilled == null) {
+                return background;
+            }
+            try {
+                return spilled.restore(this::read);
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(painter, "Error restoring undo history: " + e.getMessage());
+                return null;
+            } finally {
+                spilled = null;
+            }
+        }
+
+        private SheetBackground read(DataInputStream in) throws IOException {
+            BufferedImage image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB);
+            byte[] bytes = new byte[imageWidth * 4];
+            int[] row = new int[imageWidth];
+            for (int y = 0; y < imageHeight; y++) {
+                in.readFully(bytes);
+                ByteBuffer.wrap(bytes).asIntBuffer().get(row);
+                image.setRGB(0, y, imageWidth, 1, row, 0, imageWidth);
+            }
+            SheetBackground restored = new SheetBackground(BackgroundLoader.toBlitFormat(image), width, height,
+                    source);
+            restored.buildMipmapsAsync(() -> {
+                if (painter.background == restored) {
+                    painter.tileCache.invalidateAll();
+                    painter.repaint();
+                }
+            });
+            return restored;
+        }
+
+        void discard() {
+            if (spilled != null) {
+                spilled.discard();
+            }
+        }
+    }
+}
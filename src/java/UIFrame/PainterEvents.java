@@ -0,0 +1,94 @@
+package UIFrame;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Flight Recorder events for the slow paths of the app. Record with
+//   java -XX:StartFlightRecording=filename=painter.jfr Main
+// and look under JPainter in JDK Mission Control.
+// Without a recording begin/commit do nothing and the fields are only filled
+// in when shouldCommit() says the event is wanted, so they can stay in.
+public final class PainterEvents {
+
+    private PainterEvents() {
+    }
+
+    @Name("jpainter.Paint")
+    @Label("Paint")
+    @Category("JPainter")
+    @Description("One Painter.paintComponent call")
+    @StackTrace(false)
+    public static class Paint extends Event {
+        @Label("Shapes Visited")
+        @Description("Shapes considered for the tiles rendered in this paint")
+        public int shapesVisited;
+
+        @Label("Shapes Drawn")
+        public int shapesDrawn;
+
+        @Label("Zoom")
+        public double zoom;
+    }
+
+    @Name("jpainter.Export")
+    @Label("Export")
+    @Category("JPainter")
+    @Description("Rasterizing the whole sheet for saving")
+    @StackTrace(false)
+    public static class Export extends Event {
+        @Label("Width")
+        public int width;
+
+        @Label("Height")
+        public int height;
+
+        @Label("Shapes")
+        public int shapes;
+
+        @Label("Bands")
+        public int bands;
+    }
+
+    @Name("jpainter.ImageLoad")
+    @Label("Image Load")
+    @Category("JPainter")
+    @Description("Decoding a background image, preview and working copy")
+    @StackTrace(false)
+    public static class ImageLoad extends Event {
+        @Label("Source")
+        public String source;
+
+        @Label("Width")
+        public int width;
+
+        @Label("Height")
+        public int height;
+
+        @Label("Subsampling")
+        public int subsampling;
+
+        @Label("Working Copy Size")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("jpainter.History")
+    @Label("Undo / Redo")
+    @Category("JPainter")
+    @StackTrace(false)
+    public static class History extends Event {
+        @Label("Action")
+        public String action;
+
+        @Label("Undo Depth")
+        public int undoDepth;
+
+        @Label("Shapes")
+        public int shapes;
+    }
+}
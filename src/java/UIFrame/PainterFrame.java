@@ -1,4 +1,7 @@
 package UIFrame;
+import Session.SessionProtocol;
+import Session.SessionServer;
+import Shapes.Layer;
 import Utils.ShortcutManager;
 import java.awt.*;
 import java.awt.image.BufferedImage;
@@ -14,6 +17,9 @@ public class PainterFrame extends JFrame {
     private static final int CONFIGURABLE_ICON_SIZE = 30;
     private static final int CONFIGURABLE_LABEL_TEXT_SIZE = 15;
 
+    // Server of the session this window hosts, null when it hosts none
+    private SessionServer hostedSession = null;
+
     public PainterFrame() {
         super("Painter App"); 
 
@@ -39,6 +45,15 @@ public class PainterFrame extends JFrame {
         JButton handBtn = createIconButton("Hand", "icons8-hand-96.png");
         handBtn.addActionListener(e -> canvas.setTool(Painter.HAND));
 
+        // select tool: click or drag a marquee to select, drag to move,
+        // Delete to remove
+        JButton selectBtn = createIconButton("Select");
+        selectBtn.addActionListener(e -> canvas.setTool(Painter.SELECT));
+
+        // paint bucket: fills the area around the click with the color
+        JButton bucketBtn = createIconButton("Bucket");
+        bucketBtn.addActionListener(e -> canvas.setTool(Painter.BUCKET));
+
         // undo button
         JButton undoBtn = createIconButton("Undo", "icons8-undo-96.png");
         undoBtn.addActionListener(e -> canvas.undo());
@@ -56,6 +71,68 @@ public class PainterFrame extends JFrame {
         JButton clearBtn = createIconButton("Clear", "icons8-clear-96.png");
         clearBtn.addActionListener(e -> canvas.clear());
 
+        // Compact button: drops shapes that later opaque shapes cover
+        JButton compactBtn = new JButton("Compact");
+        configureComponentFont(compactBtn);
+        compactBtn.setToolTipText("Remove shapes hidden under filled shapes");
+        compactBtn.addActionListener(e -> {
+            int removed = canvas.compactDocument();
+            JOptionPane.showMessageDialog(this, removed == 0 ? "No hidden shapes found."
+                    : "Removed " + removed + " hidden shape" + (removed == 1 ? "" : "s") + ".");
+        });
+
+        // New sheet button: an empty sheet of any size, up to poster size
+        JButton sheetBtn = new JButton("New Sheet");
+        configureComponentFont(sheetBtn);
+        sheetBtn.setToolTipText("Start an empty sheet of a chosen size");
+        sheetBtn.addActionListener(e -> chooseSheetSize(canvas));
+
+        // Session button: host, join or leave a shared drawing session
+        JButton sessionBtn = new JButton("Session");
+        configureComponentFont(sessionBtn);
+        sessionBtn.setToolTipText("Draw together with others on the network");
+        sessionBtn.addActionListener(e -> chooseSession(canvas));
+
+        // Layer chooser, top layer first like the stack it shows, and the
+        // menu that edits the chosen layer
+        JComboBox<Layer> layerBox = new JComboBox<>();
+        configureComponentFont(layerBox);
+        layerBox.setRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                    boolean isSelected, boolean cellHasFocus) {
+                Layer layer = (Layer) value;
+                String text = layer == null ? "" : layer.getName() + (layer.isVisible() ? "" : " (hidden)")
+                        + (layer.isLocked() ? " (locked)" : "");
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        boolean[] refreshing = new boolean[1];
+        Runnable refreshLayers = () -> {
+            refreshing[0] = true;
+            layerBox.removeAllItems();
+            List<Layer> layers = canvas.getLayers();
+            for (int i = layers.size() - 1; i >= 0; i--) {
+                layerBox.addItem(layers.get(i));
+                if (layers.get(i).getId() == canvas.getActiveLayer()) {
+                    layerBox.setSelectedIndex(layerBox.getItemCount() - 1);
+                }
+            }
+            refreshing[0] = false;
+        };
+        refreshLayers.run();
+        canvas.addPropertyChangeListener("layers", e -> refreshLayers.run());
+        layerBox.addActionListener(e -> {
+            Layer layer = (Layer) layerBox.getSelectedItem();
+            if (!refreshing[0] && layer != null) {
+                canvas.setActiveLayer(layer.getId());
+            }
+        });
+        JButton layersBtn = new JButton("Layers");
+        configureComponentFont(layersBtn);
+        layersBtn.setToolTipText("Add, remove and style layers");
+        layersBtn.addActionListener(e -> showLayerMenu(canvas, layersBtn));
+
         // open button
         // open button
         JButton openBtn = createIconButton("Open", "icons8-open-48.png");
@@ -172,6 +249,8 @@ public class PainterFrame extends JFrame {
         row1.add(ovalBtn);
         row1.add(textBtn);
         row1.add(handBtn);
+        row1.add(selectBtn);
+        row1.add(bucketBtn);
 
         row1.add(createLabel("   Options:"));
         JCheckBox dashedCheck = new JCheckBox("Dashed");
@@ -183,10 +262,24 @@ public class PainterFrame extends JFrame {
         row1.add(dashedCheck);
         row1.add(filledCheck);
 
+        // Bucket tolerance and contiguous fill
+        JLabel toleranceLabel = createLabel("Tolerance:");
+        JSpinner toleranceSpinner = new JSpinner(new SpinnerNumberModel(canvas.getFillTolerance(), 0, 255, 1));
+        toleranceSpinner.addChangeListener(e -> canvas.setFillTolerance((int) toleranceSpinner.getValue()));
+        JCheckBox contiguousCheck = new JCheckBox("Contiguous", canvas.isFillContiguous());
+        configureComponentFont(contiguousCheck);
+        contiguousCheck.addActionListener(e -> canvas.setFillContiguous(contiguousCheck.isSelected()));
+        row1.add(toleranceLabel);
+        row1.add(toleranceSpinner);
+        row1.add(contiguousCheck);
+
         row1.add(createLabel("   "));
         row1.add(undoBtn);
         row1.add(redoBtn);
         row1.add(clearBtn);
+        row1.add(sheetBtn);
+        row1.add(compactBtn);
+        row1.add(sessionBtn);
 
         // Row two: Colors, Size, View
         JPanel row2 = new JPanel(new FlowLayout(FlowLayout.LEFT));
@@ -203,6 +296,10 @@ public class PainterFrame extends JFrame {
         row2.add(createLabel("Style:"));
         row2.add(styleBox);
 
+        row2.add(createLabel("   Layer:"));
+        row2.add(layerBox);
+        row2.add(layersBtn);
+
         row2.add(createLabel("   View:"));
         row2.add(zoomOutBtn);
         row2.add(zoomResetBtn);
@@ -214,10 +311,20 @@ public class PainterFrame extends JFrame {
         topToolbar.add(row1);
         topToolbar.add(row2);
 
+        // Status bar: how many shapes the spatial index let the last repaint skip
+        // and how many were covered by later shapes
+        JLabel renderStats = createLabel("Drawn: 0   Culled: 0   Hidden: 0");
+        canvas.addPropertyChangeListener("renderStats", e -> renderStats.setText(
+                "Drawn: " + canvas.getLastDrawnCount() + "   Culled: " + canvas.getLastCulledCount()
+                        + "   Hidden: " + canvas.getLastHiddenCount()));
+        JPanel statusBar = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        statusBar.add(renderStats);
+
         // Frame layout
         setLayout(new BorderLayout());
         add(topToolbar, BorderLayout.NORTH);
         add(canvas, BorderLayout.CENTER);
+        add(statusBar, BorderLayout.SOUTH);
 
         setSize(1400, 950);
         setLocationRelativeTo(null);
@@ -225,9 +332,41 @@ public class PainterFrame extends JFrame {
         
         // Setup keyboard shortcuts with visual feedback
         ShortcutManager.setup(getRootPane(), openBtn, saveBtn, brushBtn, eraserBtn, lineBtn, rectBtn, ovalBtn, textBtn, handBtn,
-                dashedCheck, filledCheck, undoBtn, redoBtn, clearBtn, colorButtons, colorPaletteBtn);
+                selectBtn, dashedCheck, filledCheck, undoBtn, redoBtn, clearBtn, colorButtons, colorPaletteBtn);
+        ShortcutManager.bindAction(getRootPane(), java.awt.event.KeyEvent.VK_F3, 0, "hud",
+                () -> canvas.setHudVisible(!canvas.isHudVisible()));
+        ShortcutManager.bindAction(getRootPane(), java.awt.event.KeyEvent.VK_DELETE, 0, "deleteSelection",
+                canvas::deleteSelection);
         
         setVisible(true);
+
+        startAutosave(canvas);
+    }
+
+    // Offers to recover the drawing of a session that crashed, then journals
+    // this one. A clean exit deletes the journal.
+    private void startAutosave(Painter canvas) {
+        if (!Journal.isEnabled()) {
+            return;
+        }
+        File dir = Journal.defaultDirectory();
+        if (Journal.exists(dir) && JOptionPane.showConfirmDialog(this,
+                "The last session did not close cleanly. Recover its drawing?", "Recover drawing",
+                JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+            try {
+                canvas.recoverAutosave(dir);
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(this, "Error recovering drawing: " + e.getMessage());
+            }
+        }
+        canvas.startAutosave(dir);
+        addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowClosing(java.awt.event.WindowEvent e) {
+                canvas.stopAutosave(true);
+                canvas.dispose();
+            }
+        });
     }
 
     // Create circular button
@@ -283,6 +422,121 @@ public class PainterFrame extends JFrame {
         return new ImageIcon(img);
     }
 
+    private void chooseSession(Painter canvas) {
+        String[] options = { "Host", "Join...", "Leave", "Cancel" };
+        int choice = JOptionPane.showOptionDialog(this, canvas.getSession() != null
+                ? "In a session as #" + canvas.getSession().getId() + "." : "Not in a session.", "Session",
+                JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+        try {
+            if (choice == 0) {
+                if (!confirmReplaceDrawing(canvas)) {
+                    return;
+                }
+                stopHosting(canvas);
+                hostedSession = SessionServer.start(SessionProtocol.DEFAULT_PORT);
+                canvas.joinSession("localhost", hostedSession.getPort());
+                JOptionPane.showMessageDialog(this, "Hosting a session on port " + hostedSession.getPort() + ".");
+            } else if (choice == 1) {
+                String address = JOptionPane.showInputDialog(this, "Host:port", "localhost:" + SessionProtocol.DEFAULT_PORT);
+                if (address != null && confirmReplaceDrawing(canvas)) {
+                    int colon = address.lastIndexOf(':');
+                    String host = colon > 0 ? address.substring(0, colon) : address;
+                    int port = colon > 0 ? Integer.parseInt(address.substring(colon + 1).trim())
+                            : SessionProtocol.DEFAULT_PORT;
+                    stopHosting(canvas);
+                    canvas.joinSession(host.trim(), port);
+                }
+            } else if (choice == 2) {
+                stopHosting(canvas);
+            }
+        } catch (IOException | NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Session error: " + e.getMessage());
+        }
+    }
+
+    // The session's drawing replaces the canvas, ask before throwing away one
+    // that is not a session drawing already
+    private boolean confirmReplaceDrawing(Painter canvas) {
+        return canvas.isBlank() || canvas.getSession() != null || JOptionPane.showConfirmDialog(this,
+                "The session's drawing replaces the current one, which is not kept. Continue?", "Session",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.WARNING_MESSAGE) == JOptionPane.OK_OPTION;
+    }
+
+    // Menu for the active layer
+    private void showLayerMenu(Painter canvas, JComponent invoker) {
+        int id = canvas.getActiveLayer();
+        Layer layer = Layer.find(canvas.getLayers(), id);
+        JPopupMenu menu = new JPopupMenu();
+
+        JMenuItem add = new JMenuItem("New Layer");
+        add.addActionListener(e -> canvas.addLayer("Layer " + (Layer.nextId(canvas.getLayers()) + 1)));
+        menu.add(add);
+        JMenuItem remove = new JMenuItem("Delete Layer");
+        remove.setEnabled(canvas.getLayers().size() > 1);
+        remove.addActionListener(e -> {
+            if (JOptionPane.showConfirmDialog(this, "Delete \"" + layer.getName() + "\" and its shapes?",
+                    "Delete Layer", JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION) {
+                canvas.removeLayer(id);
+            }
+        });
+        menu.add(remove);
+        JMenuItem rename = new JMenuItem("Rename...");
+        rename.addActionListener(e -> {
+            String name = JOptionPane.showInputDialog(this, "Layer name", layer.getName());
+            if (name != null && !name.isBlank()) {
+                canvas.renameLayer(id, name.trim());
+            }
+        });
+        menu.add(rename);
+        menu.addSeparator();
+
+        JMenuItem up = new JMenuItem("Move Up");
+        up.addActionListener(e -> canvas.moveLayer(id, 1));
+        menu.add(up);
+        JMenuItem down = new JMenuItem("Move Down");
+        down.addActionListener(e -> canvas.moveLayer(id, -1));
+        menu.add(down);
+        menu.addSeparator();
+
+        JCheckBoxMenuItem visible = new JCheckBoxMenuItem("Visible", layer.isVisible());
+        visible.addActionListener(e -> canvas.setLayerVisible(id, visible.isSelected()));
+        menu.add(visible);
+        JCheckBoxMenuItem locked = new JCheckBoxMenuItem("Locked", layer.isLocked());
+        locked.addActionListener(e -> canvas.setLayerLocked(id, locked.isSelected()));
+        menu.add(locked);
+        JMenuItem opacity = new JMenuItem("Opacity...");
+        opacity.addActionListener(e -> {
+            JSlider slider = new JSlider(0, 100, Math.round(layer.getOpacity() * 100));
+            slider.setMajorTickSpacing(25);
+            slider.setPaintLabels(true);
+            if (JOptionPane.showConfirmDialog(this, slider, "Opacity of " + layer.getName(),
+                    JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION) {
+                canvas.setLayerOpacity(id, slider.getValue() / 100f);
+            }
+        });
+        menu.add(opacity);
+        JMenu blend = new JMenu("Blend");
+        ButtonGroup blends = new ButtonGroup();
+        for (Layer.Blend mode : Layer.Blend.values()) {
+            String name = mode.name().charAt(0) + mode.name().substring(1).toLowerCase();
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(name, layer.getBlend() == mode);
+            item.addActionListener(e -> canvas.setLayerBlend(id, mode));
+            blends.add(item);
+            blend.add(item);
+        }
+        menu.add(blend);
+
+        menu.show(invoker, 0, invoker.getHeight());
+    }
+
+    private void stopHosting(Painter canvas) {
+        canvas.leaveSession();
+        if (hostedSession != null) {
+            hostedSession.close();
+            hostedSession = null;
+        }
+    }
+
     private JButton createIconButton(String text) {
         return createIconButton(text, null);
     }
@@ -312,6 +566,39 @@ public class PainterFrame extends JFrame {
         return button;
     }
 
+    // Asks for a sheet size as "width x height" and starts an empty sheet
+    private void chooseSheetSize(Painter canvas) {
+        String answer = JOptionPane.showInputDialog(this, "Sheet size in pixels (width x height):",
+                canvas.getSheetWidth() + " x " + canvas.getSheetHeight());
+        if (answer == null) {
+            return;
+        }
+        String[] parts = answer.toLowerCase().split("x");
+        try {
+            if (parts.length != 2) {
+                throw new NumberFormatException(answer);
+            }
+            int width = Integer.parseInt(parts[0].trim());
+            int height = Integer.parseInt(parts[1].trim());
+            if (width <= 0 || height <= 0) {
+                throw new NumberFormatException(answer);
+            }
+            if (confirmNewSheet(canvas)) {
+                canvas.newSheet(width, height);
+            }
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "Enter the size as width x height, for example 20000 x 10000.");
+        }
+    }
+
+    // A new sheet drops the drawing and the undo history for good, ask
+    // unless there is nothing to lose
+    private boolean confirmNewSheet(Painter canvas) {
+        return canvas.isBlank() && !canvas.hasHistory() || JOptionPane.showConfirmDialog(this,
+                "The new sheet replaces the current drawing, which cannot be undone. Continue?", "New Sheet",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.WARNING_MESSAGE) == JOptionPane.OK_OPTION;
+    }
+
     private JLabel createLabel(String text) {
         JLabel label = new JLabel(text);
         configureComponentFont(label);
@@ -0,0 +1,197 @@
+package UIFrame;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import Shapes.Shape;
+
+// Offscreen ID buffer used to pick shapes: every shape is drawn without
+// anti-aliasing in a color that encodes its index plus one (0 is empty), so
+// finding the topmost shape at a canvas point is one array read no matter
+// how many shapes the drawing has.
+// The buffer covers the canvas at one pixel per canvas unit in 256x256
+// tiles that are rendered on first use and evicted least recently used
+// first. A new shape is drawn into the cached tiles it touches; removals and
+// edits drop the tiles under them.
+public class PickBuffer {
+
+    public static final int TILE_SIZE = 256;
+
+    // Indices that fit in the 24 bits of an RGB pixel, shapes past this
+    // cannot be picked
+    public static final int MAX_SHAPES = 0xFFFFFF;
+
+    private static final long BYTES_PER_TILE = (long) TILE_SIZE * TILE_SIZE * 4;
+
+    // Draws every shape touching a canvas area with colorFor(index), the
+    // graphics is already translated into canvas coordinates
+    public interface Renderer {
+        void renderIds(Graphics2D g2, Rectangle canvasArea);
+    }
+
+    private final Renderer renderer;
+    private long memoryLimit;
+
+    // access-ordered so the first entry is always the least recently used tile
+    private final LinkedHashMap<Long, BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true);
+
+    public PickBuffer(Renderer renderer, long memoryLimit) {
+        this.renderer = renderer;
+        this.memoryLimit = memoryLimit;
+    }
+
+    // Pick color of a shape index, null when the index does not fit
+    public static Color colorFor(int index) {
+        return index < MAX_SHAPES ? new Color(index + 1) : null;
+    }
+
+    // Topmost shape within radius canvas units of a point, the closest ring
+    // of pixels with a hit wins. -1 when there is none.
+    public int pick(int x, int y, int radius) {
+        for (int r = 0; r <= radius; r++) {
+            int best = -1;
+            for (int py = y - r; py <= y + r; py++) {
+                boolean edge = py == y - r || py == y + r;
+                for (int px = x - r; px <= x + r; px += edge || r == 0 ? 1 : 2 * r) {
+                    best = Math.max(best, idAt(px, py));
+                }
+            }
+            if (best >= 0) {
+                return best;
+            }
+        }
+        return -1;
+    }
+
+    // Every shape with a visible pixel in a canvas area
+    public BitSet pickArea(Rectangle area) {
+        BitSet ids = new BitSet();
+        if (area.isEmpty()) {
+            return ids;
+        }
+        int tx0 = Math.floorDiv(area.x, TILE_SIZE);
+        int ty0 = Math.floorDiv(area.y, TILE_SIZE);
+        int tx1 = Math.floorDiv(area.x + area.width - 1, TILE_SIZE);
+        int ty1 = Math.floorDiv(area.y + area.height - 1, TILE_SIZE);
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                int[] pixels = getTile(tx, ty);
+                Rectangle part = area.intersection(new Rectangle(tx * TILE_SIZE, ty * TILE_SIZE, TILE_SIZE, TILE_SIZE));
+                int last = 0;
+                for (int py = part.y; py < part.y + part.height; py++) {
+                    int row = (py - ty * TILE_SIZE) * TILE_SIZE - tx * TILE_SIZE;
+                    for (int px = part.x; px < part.x + part.width; px++) {
+                        // neighbouring pixels mostly belong to the same shape
+                        int id = pixels[row + px] & 0xFFFFFF;
+                        if (id != last && id != 0) {
+                            ids.set(id - 1);
+                        }
+                        last = id;
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    // A shape was appended at index, it is drawn over the cached tiles
+    public void shapeAdded(int index, Shape shape) {
+        Color color = colorFor(index);
+        if (color == null) {
+            return;
+        }
+        Rectangle bounds = shape.getBounds();
+        for (Map.Entry<Long, BufferedImage> entry : tiles.entrySet()) {
+            int tx = txOf(entry.getKey());
+            int ty = tyOf(entry.getKey());
+            if (bounds.intersects(tx * TILE_SIZE, ty * TILE_SIZE, TILE_SIZE, TILE_SIZE)) {
+                Graphics2D g2 = createGraphics(entry.getValue(), tx, ty);
+                shape.drawPick(g2, color);
+                g2.dispose();
+            }
+        }
+    }
+
+    // Drops the tiles that overlap a canvas area
+    public void invalidate(Rectangle canvasArea) {
+        if (canvasArea == null || canvasArea.isEmpty()) {
+            return;
+        }
+        Iterator<Long> it = tiles.keySet().iterator();
+        while (it.hasNext()) {
+            long key = it.next();
+            if (canvasArea.intersects(txOf(key) * TILE_SIZE, tyOf(key) * TILE_SIZE, TILE_SIZE, TILE_SIZE)) {
+                it.remove();
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        tiles.clear();
+    }
+
+    public int getTileCount() {
+        return tiles.size();
+    }
+
+    private int idAt(int x, int y) {
+        int tx = Math.floorDiv(x, TILE_SIZE);
+        int ty = Math.floorDiv(y, TILE_SIZE);
+        int[] pixels = getTile(tx, ty);
+        return (pixels[(y - ty * TILE_SIZE) * TILE_SIZE + x - tx * TILE_SIZE] & 0xFFFFFF) - 1;
+    }
+
+    // Pixels of a tile, rendered when it is not cached
+    private int[] getTile(int tx, int ty) {
+        long key = keyOf(tx, ty);
+        BufferedImage tile = tiles.get(key);
+        if (tile == null) {
+            tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2 = createGraphics(tile, tx, ty);
+            renderer.renderIds(g2, new Rectangle(tx * TILE_SIZE, ty * TILE_SIZE, TILE_SIZE, TILE_SIZE));
+            g2.dispose();
+            tiles.put(key, tile);
+            evict();
+        }
+        return ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+    }
+
+    // Exact colors only: no anti-aliasing, no blending
+    private static Graphics2D createGraphics(BufferedImage image, int tx, int ty) {
+        Graphics2D g2 = image.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+        g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+        g2.translate(-tx * TILE_SIZE, -ty * TILE_SIZE);
+        return g2;
+    }
+
+    // Removes least recently used tiles until the buffer fits in its budget,
+    // the tile just used always stays
+    private void evict() {
+        Iterator<Long> it = tiles.keySet().iterator();
+        while (tiles.size() > 1 && tiles.size() * BYTES_PER_TILE > memoryLimit && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static long keyOf(int tx, int ty) {
+        return ((long) tx << 32) | (ty & 0xFFFFFFFFL);
+    }
+
+    private static int txOf(long key) {
+        return (int) (key >> 32);
+    }
+
+    private static int tyOf(long key) {
+        return (int) key;
+    }
+}
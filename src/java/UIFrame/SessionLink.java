@@ -0,0 +1,152 @@
+package UIFrame;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import javax.swing.SwingUtilities;
+import Session.SessionClient;
+import Shapes.PathShape;
+import Shapes.Shape;
+
+// The canvas end of a shared drawing session. Edits of the other
+// participants come in on the session reader thread and are queued, then
+// applied to the canvas in one batch per EDT turn, so a burst costs one EDT
+// turn and one repaint. Their live strokes are kept here, by session id,
+// until they end.
+public class SessionLink implements SessionClient.Listener {
+
+    private final Painter painter;
+    private SessionClient client;
+    // Set on the EDT, edits still queued when it is are dropped
+    private boolean closed;
+
+    private final ConcurrentLinkedQueue<Supplier<Rectangle>> edits = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainPending = new AtomicBoolean();
+    private final HashMap<Integer, PathShape> remotePaths = new HashMap<>();
+
+    private SessionLink(Painter painter) {
+        this.painter = painter;
+    }
+
+    // Connects to the session served at host:port. Edits only reach the
+    // painter on the EDT, after the current EDT turn.
+    public static SessionLink connect(Painter painter, String host, int port) throws IOException {
+        SessionLink link = new SessionLink(painter);
+        link.client = SessionClient.connect(host, port, link);
+        return link;
+    }
+
+    public SessionClient getClient() {
+        return client;
+    }
+
+    // Leaves the session, on the EDT
+    public void close() {
+        closed = true;
+        client.close();
+        remotePaths.clear();
+    }
+
+    // Draws the strokes the other participants are drawing right now
+    public void drawRemotePaths(Graphics2D g2) {
+        for (PathShape remote : remotePaths.values()) {
+            remote.draw(g2);
+        }
+    }
+
+    @Override
+    public void add(int sender, Shape shape) {
+        queue(() -> painter.applyRemoteAdd(shape));
+    }
+
+    @Override
+    public void stroke(int sender, Shape stroke, boolean erase) {
+        queue(() -> painter.applyRemoteStroke(stroke, erase));
+    }
+
+    @Override
+    public void clear(int sender) {
+        queue(painter::applyRemoteClear);
+    }
+
+    @Override
+    public void pathBegin(int sender, int x, int y, Color color, int strokeSize, boolean dashed) {
+        queue(() -> {
+            PathShape path = new PathShape(x, y, color, strokeSize);
+            path.setDashed(dashed);
+            PathShape old = remotePaths.put(sender, path);
+            Rectangle damaged = path.getBounds();
+            if (old != null) {
+                damaged.add(old.getBounds());
+            }
+            return damaged;
+        });
+    }
+
+    @Override
+    public void pathPoints(int sender, int[] points, int count) {
+        queue(() -> {
+            PathShape path = remotePaths.get(sender);
+            if (path == null) {
+                return null;
+            }
+            Rectangle damaged = null;
+            for (int i = 0; i < count; i++) {
+                path.addPoint(points[i * 2], points[i * 2 + 1]);
+                Rectangle segment = path.getLastSegmentBounds();
+                damaged = damaged == null ? segment : damaged.union(segment);
+            }
+            return damaged;
+        });
+    }
+
+    @Override
+    public void pathEnd(int sender) {
+        queue(() -> {
+            PathShape path = remotePaths.remove(sender);
+            return path != null ? path.getBounds() : null;
+        });
+    }
+
+    @Override
+    public void disconnected(IOException error) {
+        SwingUtilities.invokeLater(() -> {
+            if (!closed) {
+                remotePaths.clear();
+                painter.sessionEnded(this, error);
+            }
+        });
+    }
+
+    // Hands an edit to the EDT. Edits that arrive while a batch is waiting
+    // join it. An edit returns the canvas area it changed or null.
+    private void queue(Supplier<Rectangle> edit) {
+        edits.add(edit);
+        if (drainPending.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::applyEdits);
+        }
+    }
+
+    private void applyEdits() {
+        drainPending.set(false);
+        Rectangle damaged = null;
+        Supplier<Rectangle> edit;
+        while ((edit = edits.poll()) != null) {
+            if (closed) {
+                continue;
+            }
+            Rectangle area = edit.get();
+            if (area != null) {
+                damaged = damaged == null ? area : damaged.union(area);
+            }
+        }
+        if (damaged != null) {
+            painter.repaintCanvas(damaged);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package UIFrame;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import javax.swing.SwingUtilities;
+
+// Background image of the sheet and the canvas area it covers.
+// The image can be smaller than that area when only a preview or a
+// downsampled working copy of a huge file is kept in memory.
+// A mipmap pyramid (each level half the size of the one before) can be built
+// in the background so low zoom levels draw from a small, pre-filtered image.
+public class SheetBackground {
+
+    private final BufferedImage image;
+    private final int width;
+    private final int height;
+
+    // Stop halving once the longest side is this small
+    private static final int MIN_LEVEL_SIZE = 64;
+
+    // levels[0] is the image itself, null until the pyramid is built
+    private volatile BufferedImage[] levels;
+
+    // Image file the background was loaded from, null when it has none
+    private final File source;
+
+    public SheetBackground(BufferedImage image, int width, int height) {
+        this(image, width, height, null);
+    }
+
+    public SheetBackground(BufferedImage image, int width, int height, File source) {
+        this.image = image;
+        this.width = width;
+        this.height = height;
+        this.source = source;
+    }
+
+    public File getSource() {
+        return source;
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // True when the image holds fewer pixels than the area it covers
+    public boolean isDownsampled() {
+        return image.getWidth() != width || image.getHeight() != height;
+    }
+
+    public boolean hasMipmaps() {
+        return levels != null;
+    }
+
+    // Builds the pyramid on a background thread and runs onReady on the EDT
+    public void buildMipmapsAsync(Runnable onReady) {
+        if (levels != null) {
+            return;
+        }
+        Thread builder = new Thread(() -> {
+            levels = buildLevels();
+            if (onReady != null) {
+                SwingUtilities.invokeLater(onReady);
+            }
+        }, "mipmap-builder");
+        builder.setDaemon(true);
+        builder.setPriority(Thread.MIN_PRIORITY);
+        builder.start();
+    }
+
+    // Draws the image over its canvas area, g2 is in canvas coordinates.
+    // With a pyramid, the smallest level that still has at least one pixel
+    // per device pixel at the current scale is used.
+    public void draw(Graphics2D g2) {
+        BufferedImage src = pickLevel(g2.getTransform().getScaleX());
+        if (src.getWidth() == width && src.getHeight() == height) {
+            g2.drawImage(src, 0, 0, null);
+            return;
+        }
+        Object old = g2.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.drawImage(src, 0, 0, width, height, null);
+        if (old != null) {
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, old);
+        }
+    }
+
+    private BufferedImage pickLevel(double scale) {
+        BufferedImage[] pyramid = levels;
+        if (pyramid == null || scale >= 1) {
+            return image;
+        }
+        // device pixels needed across the image vs pixels in the level
+        double needed = width * scale;
+        int level = 0;
+        while (level + 1 < pyramid.length && pyramid[level + 1].getWidth() >= needed) {
+            level++;
+        }
+        return pyramid[level];
+    }
+
+    // Each level averages 2x2 pixels of the one before: bilinear sampling at
+    // exactly half size lands between four pixels
+    private BufferedImage[] buildLevels() {
+        java.util.ArrayList<BufferedImage> list = new java.util.ArrayList<>();
+        list.add(image);
+        BufferedImage current = image;
+        while (Math.max(current.getWidth(), current.getHeight()) > MIN_LEVEL_SIZE) {
+            int w = Math.max(1, current.getWidth() / 2);
+            int h = Math.max(1, current.getHeight() / 2);
+            BufferedImage next = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D g2 = next.createGraphics();
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2.drawImage(current, 0, 0, w, h, null);
+            g2.dispose();
+            list.add(next);
+            current = next;
+        }
+        return list.toArray(new BufferedImage[0]);
+    }
+}
@@ -0,0 +1,324 @@
+package UIFrame;
+
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import Shapes.Layer;
+import Shapes.RasterLayer;
+import Shapes.ShapeStore;
+import Utils.ShapeIndex;
+
+// Rasterizes the whole sheet for saving.
+// The sheet is cut into horizontal bands that are rendered in parallel, each
+// into its own buffer of the band's rows. Bands and the single pass
+// reference are all drawn through BandGraphics, so a band gets exactly the
+// pixels the reference has in its rows (checked by SheetExporterTest in the
+// benchmarks module). Thumbnails are drawn directly.
+// Saving streams: bands are rendered a few ahead of a PNG encoder and
+// dropped once written, so memory does not depend on the sheet size.
+// Layers are drawn bottom up. A layer at full opacity with the normal blend
+// is drawn straight into the output; any other goes into a transparent
+// buffer of the band first, which is then combined with the layer's
+// composite.
+public class SheetExporter {
+
+    public static final int DEFAULT_BAND_HEIGHT = 128;
+
+    // Pixels per band when streaming, wide sheets get fewer rows per band
+    private static final int STREAM_BAND_PIXELS = 1 << 20;
+
+    // Progress callback, called from the rendering threads
+    public interface Progress {
+        void bandDone(int done, int total);
+
+        boolean isCancelled();
+    }
+
+    private final ShapeStore shapes;
+    private final RasterLayer raster;
+    private final SheetBackground background;
+    private final List<Layer> layers;
+    private final int width;
+    private final int height;
+
+    // Built on the first parallel render so every band only draws the shapes
+    // that reach into it and are not covered by later ones
+    private ShapeIndex index;
+    private OcclusionCuller occlusion;
+
+    // shapes should be a snapshot, it is read from several threads
+    public SheetExporter(ShapeStore shapes, SheetBackground background, int width, int height) {
+        this(shapes, null, background, width, height);
+    }
+
+    // raster (baked strokes, drawn above the shapes) may be null and should
+    // be a snapshot too
+    public SheetExporter(ShapeStore shapes, RasterLayer raster, SheetBackground background, int width,
+            int height) {
+        this(shapes, raster, null, background, width, height);
+    }
+
+    // layers, bottom first, null or empty when every shape is on one plain
+    // layer
+    public SheetExporter(ShapeStore shapes, RasterLayer raster, List<Layer> layers, SheetBackground background,
+            int width, int height) {
+        this.shapes = shapes;
+        this.raster = raster;
+        this.layers = layers == null || layers.isEmpty()
+                || layers.size() == 1 && layers.get(0).isVisible() && layers.get(0).isPlain() ? null : layers;
+        this.background = background;
+        this.width = width;
+        this.height = height;
+    }
+
+    // Renders the sheet on the pool, throws CancellationException when the
+    // progress reports a cancel
+    public BufferedImage render(ForkJoinPool pool, int bandHeight, Progress progress) {
+        return render(new Rectangle(0, 0, width, height), pool, bandHeight, progress);
+    }
+
+    // Renders an area of the sheet (canvas coordinates) into an image of its
+    // size
+    public BufferedImage render(Rectangle area, ForkJoinPool pool, int bandHeight, Progress progress) {
+        PainterEvents.Export event = new PainterEvents.Export();
+        event.begin();
+        BufferedImage image = new BufferedImage(area.width, area.height, BufferedImage.TYPE_INT_ARGB);
+        int bands = (area.height + bandHeight - 1) / bandHeight;
+        AtomicInteger done = new AtomicInteger();
+        buildIndex();
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(bands);
+        for (int b = 0; b < bands; b++) {
+            int y0 = area.y + b * bandHeight;
+            int h = Math.min(bandHeight, area.y + area.height - y0);
+            tasks.add(pool.submit(() -> {
+                if (progress != null && progress.isCancelled()) {
+                    return;
+                }
+                BufferedImage band = renderBand(area, y0, h);
+                copyRows(band, image, y0 - area.y, h);
+                if (progress != null) {
+                    progress.bandDone(done.incrementAndGet(), bands);
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        if (progress != null && progress.isCancelled()) {
+            throw new CancellationException("Export cancelled");
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.width = area.width;
+            event.height = area.height;
+            event.shapes = shapes.size();
+            event.bands = bands;
+            event.commit();
+        }
+        return image;
+    }
+
+    // Renders the sheet as a PNG into out. Bands are rendered on the pool at
+    // most a few ahead of the encoder, which runs on the calling thread.
+    // Throws CancellationException when the progress reports a cancel.
+    public void writePng(OutputStream out, ForkJoinPool pool, Progress progress) throws IOException {
+        PainterEvents.Export event = new PainterEvents.Export();
+        event.begin();
+        int bandHeight = Math.max(1, Math.min(DEFAULT_BAND_HEIGHT, STREAM_BAND_PIXELS / width));
+        int bands = (height + bandHeight - 1) / bandHeight;
+        int ahead = pool.getParallelism() + 1;
+        buildIndex();
+
+        Utils.PngStream png = new Utils.PngStream(out, width, height);
+        ArrayDeque<ForkJoinTask<BufferedImage>> pending = new ArrayDeque<>();
+        int next = 0;
+        try {
+            for (int b = 0; b < bands; b++) {
+                for (; next < bands && next <= b + ahead; next++) {
+                    Rectangle area = new Rectangle(0, next * bandHeight, width,
+                            Math.min(bandHeight, height - next * bandHeight));
+                    pending.add(pool.submit(() -> renderBand(area, area.y, area.height)));
+                }
+                if (progress != null && progress.isCancelled()) {
+                    throw new CancellationException("Export cancelled");
+                }
+                BufferedImage band = pending.poll().join();
+                int[] pixels = ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+                png.writeRows(pixels, 0, width, band.getHeight());
+                if (progress != null) {
+                    progress.bandDone(b + 1, bands);
+                }
+            }
+        } finally {
+            for (ForkJoinTask<BufferedImage> task : pending) {
+                task.cancel(false);
+            }
+        }
+        png.finish();
+        event.end();
+        if (event.shouldCommit()) {
+            event.width = width;
+            event.height = height;
+            event.shapes = shapes.size();
+            event.bands = bands;
+            event.commit();
+        }
+    }
+
+    // Single threaded reference: the whole sheet into one image
+    public BufferedImage renderSequential() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = new BandGraphics(image.createGraphics());
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.clipRect(0, 0, width, height);
+        drawSheet(g2, new Rectangle(0, 0, width, height));
+        g2.dispose();
+        return image;
+    }
+
+    // Single threaded render of the whole sheet scaled down (or up), used for
+    // thumbnails
+    public BufferedImage renderScaled(double scale) {
+        int w = Math.max(1, (int) Math.ceil(width * scale));
+        int h = Math.max(1, (int) Math.ceil(height * scale));
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = image.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.scale(scale, scale);
+        drawSheet(g2, new Rectangle(0, 0, width, height));
+        g2.dispose();
+        return image;
+    }
+
+    // Renders the rows y0 .. y0 + h of area into a new image as wide as area,
+    // moved by whole pixels only (see BandGraphics)
+    private BufferedImage renderBand(Rectangle area, int y0, int h) {
+        Rectangle buffer = new Rectangle(area.x, y0, area.width, h);
+        BufferedImage band = new BufferedImage(buffer.width, buffer.height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = new BandGraphics(band.createGraphics());
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.translate(-buffer.x, -buffer.y);
+        g2.clipRect(buffer.x, buffer.y, buffer.width, buffer.height);
+        drawSheet(g2, buffer);
+        g2.dispose();
+        return band;
+    }
+
+    // Copies the h rows of a band into image, starting at row y
+    private static void copyRows(BufferedImage band, BufferedImage image, int y, int h) {
+        int[] from = ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+        int[] to = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int width = image.getWidth();
+        System.arraycopy(from, 0, to, y * width, h * width);
+    }
+
+    // Draws the part of the sheet in area, the clip is already set
+    private void drawSheet(Graphics2D g2, Rectangle area) {
+        g2.setColor(Color.WHITE);
+        g2.fillRect(0, 0, width, height);
+
+        if (background != null) {
+            background.draw(g2);
+        }
+        int[] ids = null;
+        if (index != null) {
+            // bounds are conservative, skipping shapes outside the band
+            // does not change a pixel
+            ids = index.query(area);
+        }
+        if (layers == null) {
+            drawShapes(g2, ids, -1);
+        } else {
+            for (Layer layer : layers) {
+                if (!layer.isVisible()) {
+                    continue;
+                }
+                if (layer.isPlain()) {
+                    drawShapes(g2, ids, layer.getId());
+                } else {
+                    compositeLayer(g2, ids, layer);
+                }
+            }
+        }
+        if (raster != null) {
+            raster.paint(g2, area);
+        }
+    }
+
+    // The shapes of a layer (all of them for -1) in drawing order, ids null
+    // means every shape
+    private void drawShapes(Graphics2D g2, int[] ids, int layer) {
+        int count = ids != null ? ids.length : shapes.size();
+        for (int i = 0; i < count; i++) {
+            int id = ids != null ? ids[i] : i;
+            if (layer >= 0 && shapes.getLayer(id) != layer) {
+                continue;
+            }
+            if (ids != null && occlusion.isHidden(id, 1)) {
+                continue;
+            }
+            shapes.draw(id, g2);
+        }
+    }
+
+    // Draws a layer into a transparent buffer covering the clip in device
+    // pixels, then onto g2 with the layer's composite. The buffer of a band
+    // is drawn through BandGraphics as well.
+    private void compositeLayer(Graphics2D g2, int[] ids, Layer layer) {
+        AffineTransform transform = g2.getTransform();
+        Rectangle area = g2.getClipBounds();
+        if (area == null) {
+            area = new Rectangle(0, 0, width, height);
+        }
+        Rectangle device = transform.createTransformedShape(area).getBounds();
+        if (device.isEmpty()) {
+            return;
+        }
+        BufferedImage buffer = new BufferedImage(device.width, device.height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D lg = buffer.createGraphics();
+        if (g2 instanceof BandGraphics) {
+            lg = new BandGraphics(lg);
+        }
+        lg.setRenderingHints(g2.getRenderingHints());
+        lg.translate(-device.x, -device.y);
+        lg.transform(transform);
+        lg.clip(area);
+        drawShapes(lg, ids, layer.getId());
+        lg.dispose();
+
+        Composite composite = g2.getComposite();
+        g2.setTransform(new AffineTransform());
+        g2.setComposite(layer.getComposite());
+        g2.drawImage(buffer, device.x, device.y, null);
+        g2.setComposite(composite);
+        g2.setTransform(transform);
+    }
+
+    private void buildIndex() {
+        if (index != null) {
+            return;
+        }
+        ShapeIndex built = new ShapeIndex(width, height);
+        for (int i = 0; i < shapes.size(); i++) {
+            built.add(i, shapes.getBounds(i));
+        }
+        occlusion = OcclusionCuller.build(shapes, width, height);
+        index = built;
+    }
+}
@@ -0,0 +1,244 @@
+package UIFrame;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps the committed drawing rasterized in 256x256 tiles so a repaint only
+// has to blit images instead of drawing every shape again.
+// Tiles are rendered at the exact scale they are shown at and laid on a grid
+// of device pixels, so a repaint copies them pixel for pixel. The tiles of
+// the last few scales are kept, each scale in its own set, so zooming back to
+// a recent level finds its tiles. Once the memory limit is reached tiles are
+// evicted from the least recently used scale first, then least recently
+// used first within the shown scale.
+// While the view is navigated missing tiles can be rendered as drafts (see
+// LevelOfDetail), and tiles of a scale close to the new one are stretched
+// instead of rendered again. Both stay on screen until the next full quality
+// paint renders them at the exact scale, so the switch never shows an empty
+// tile.
+public class TileCache {
+
+    public static final int TILE_SIZE = 256;
+
+    // While navigating, tiles are stretched up to this factor before the
+    // cache switches to the new scale
+    private static final double MAX_STRETCH = Math.sqrt(2);
+
+    private static final long BYTES_PER_TILE = (long) TILE_SIZE * TILE_SIZE * 4;
+
+    // Scales whose tiles are kept, the shown one included
+    private static final int MAX_SCALES = 4;
+
+    // Draws the committed content of a canvas area, the graphics is already
+    // transformed into canvas coordinates. draft asks for the fast, simplified
+    // rendering.
+    public interface TileRenderer {
+        void renderTile(Graphics2D g2, Rectangle canvasArea, boolean draft);
+    }
+
+    private final TileRenderer renderer;
+    private long memoryLimit;
+
+    // Tiles of one scale
+    private static class TileSet {
+        // access-ordered so the first entry is always the least recently used
+        // tile
+        final LinkedHashMap<Long, BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true);
+
+        // Keys of the cached tiles that were rendered as drafts
+        final HashSet<Long> drafts = new HashSet<>();
+    }
+
+    // By scale, access-ordered so the first entry is the least recently
+    // shown scale
+    private final LinkedHashMap<Double, TileSet> sets = new LinkedHashMap<>(8, 0.75f, true);
+
+    // Device pixels per canvas unit of the tiles in use, and of the last paint
+    private double scale;
+    private double paintedScale;
+    private TileSet current = new TileSet();
+    private int tileCount;
+
+    public TileCache(TileRenderer renderer, long memoryLimit) {
+        this.renderer = renderer;
+        this.memoryLimit = memoryLimit;
+    }
+
+    public void setMemoryLimit(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+        evict();
+    }
+
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    public long getMemoryUsed() {
+        return tileCount * BYTES_PER_TILE;
+    }
+
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    // True when the last paint showed drafts or stretched tiles
+    public boolean hasDrafts() {
+        return !current.drafts.isEmpty() || paintedScale != scale;
+    }
+
+    // Draws every tile intersecting the visible canvas area.
+    // g2 must already be translated and scaled into canvas coordinates.
+    public void paint(Graphics2D g2, Rectangle visible) {
+        paint(g2, visible, false);
+    }
+
+    // With draft, missing tiles are rendered as drafts and drafts are kept;
+    // without it drafts are rendered again at full quality
+    public void paint(Graphics2D g2, Rectangle visible, boolean draft) {
+        AffineTransform transform = g2.getTransform();
+        paintedScale = transform.getScaleX();
+        double stretch = paintedScale / scale;
+        if (paintedScale != scale && (!draft || stretch > MAX_STRETCH || stretch < 1 / MAX_STRETCH)) {
+            useScale(paintedScale);
+        }
+
+        int tx0 = (int) Math.floor(visible.x * scale / TILE_SIZE);
+        int ty0 = (int) Math.floor(visible.y * scale / TILE_SIZE);
+        int tx1 = (int) Math.ceil(visible.getMaxX() * scale / TILE_SIZE) - 1;
+        int ty1 = (int) Math.ceil(visible.getMaxY() * scale / TILE_SIZE) - 1;
+
+        // tiles are placed in the device pixels of their scale; at the exact
+        // scale that is a whole pixel offset, so nothing is resampled
+        Graphics2D g = (Graphics2D) g2.create();
+        if (paintedScale == scale) {
+            g.setTransform(AffineTransform.getTranslateInstance(Math.round(transform.getTranslateX()),
+                    Math.round(transform.getTranslateY())));
+        } else {
+            g.scale(1 / scale, 1 / scale);
+        }
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                g.drawImage(getTile(tx, ty, draft), tx * TILE_SIZE, ty * TILE_SIZE, null);
+            }
+        }
+        g.dispose();
+        evict();
+    }
+
+    // Drops the tiles of every kept scale that overlap a canvas area
+    public void invalidate(Rectangle canvasArea) {
+        if (canvasArea == null || canvasArea.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<Double, TileSet> entry : sets.entrySet()) {
+            double setScale = entry.getKey();
+            TileSet set = entry.getValue();
+            Iterator<Long> it = set.tiles.keySet().iterator();
+            while (it.hasNext()) {
+                long key = it.next();
+                if (canvasArea.intersects(areaOf(txOf(key), tyOf(key), setScale))) {
+                    it.remove();
+                    set.drafts.remove(key);
+                    tileCount--;
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        for (TileSet set : sets.values()) {
+            set.tiles.clear();
+            set.drafts.clear();
+        }
+        tileCount = 0;
+    }
+
+    // Switches to the tiles of a scale, dropping the least recently shown
+    // scale when too many are kept
+    private void useScale(double newScale) {
+        TileSet set = sets.get(newScale);
+        if (set == null) {
+            set = new TileSet();
+            sets.put(newScale, set);
+            Iterator<TileSet> it = sets.values().iterator();
+            while (sets.size() > MAX_SCALES) {
+                tileCount -= it.next().tiles.size();
+                it.remove();
+            }
+        }
+        scale = newScale;
+        current = set;
+    }
+
+    private BufferedImage getTile(int tx, int ty, boolean draft) {
+        long key = keyOf(tx, ty);
+        HashSet<Long> drafts = current.drafts;
+        BufferedImage tile = current.tiles.get(key);
+        if (tile == null || !draft && drafts.contains(key)) {
+            tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D g2 = tile.createGraphics();
+            g2.translate(-tx * TILE_SIZE, -ty * TILE_SIZE);
+            g2.scale(scale, scale);
+            renderer.renderTile(g2, areaOf(tx, ty, scale), draft);
+            g2.dispose();
+            if (current.tiles.put(key, tile) == null) {
+                tileCount++;
+            }
+            if (draft) {
+                drafts.add(key);
+            } else {
+                drafts.remove(key);
+            }
+        }
+        return tile;
+    }
+
+    // Canvas area a tile covers at a scale, rounded out to whole canvas units
+    private static Rectangle areaOf(int tx, int ty, double scale) {
+        int x0 = (int) Math.floor(tx * TILE_SIZE / scale);
+        int y0 = (int) Math.floor(ty * TILE_SIZE / scale);
+        int x1 = (int) Math.ceil((tx + 1) * TILE_SIZE / scale);
+        int y1 = (int) Math.ceil((ty + 1) * TILE_SIZE / scale);
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    // Removes tiles until the cache fits in its budget: the other scales,
+    // least recently shown first, then the least recently used tiles of the
+    // shown one
+    private void evict() {
+        Iterator<TileSet> others = sets.values().iterator();
+        while (getMemoryUsed() > memoryLimit && others.hasNext()) {
+            TileSet set = others.next();
+            if (set == current) {
+                continue;
+            }
+            tileCount -= set.tiles.size();
+            others.remove();
+        }
+        Iterator<Map.Entry<Long, BufferedImage>> it = current.tiles.entrySet().iterator();
+        while (getMemoryUsed() > memoryLimit && it.hasNext()) {
+            current.drafts.remove(it.next().getKey());
+            it.remove();
+            tileCount--;
+        }
+    }
+
+    // key layout: 32 bits tile x | 32 bits tile y
+    private static long keyOf(int tx, int ty) {
+        return ((long) tx << 32) | (ty & 0xFFFFFFFFL);
+    }
+
+    private static int txOf(long key) {
+        return (int) (key >> 32);
+    }
+
+    private static int tyOf(long key) {
+        return (int) key;
+    }
+}
@@ -0,0 +1,81 @@
+package Utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+// Rolling frame statistics for the performance HUD: frame rate, frame time
+// percentiles over the last frames and the allocation rate of the thread
+// that paints. Only fed while the HUD is shown.
+public class FrameStats {
+
+    private static final int WINDOW = 240;
+
+    private final long[] durations = new long[WINDOW];
+    private final long[] starts = new long[WINDOW];
+    private int count = 0;
+    private int next = 0;
+
+    // Allocation is sampled at most every SAMPLE_NANOS so the rate is steady
+    private static final long SAMPLE_NANOS = 500_000_000L;
+    private final com.sun.management.ThreadMXBean threads;
+    private long lastSampleTime = 0;
+    private long lastSampleBytes = -1;
+    private double allocationRate = 0;
+
+    public FrameStats() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        threads = bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) bean : null;
+    }
+
+    // Records a frame, call it on the painting thread
+    public void frame(long startNanos, long endNanos) {
+        starts[next] = startNanos;
+        durations[next] = endNanos - startNanos;
+        next = (next + 1) % WINDOW;
+        count = Math.min(count + 1, WINDOW);
+
+        if (threads != null && endNanos - lastSampleTime >= SAMPLE_NANOS) {
+            long bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            if (lastSampleBytes >= 0 && bytes >= 0) {
+                allocationRate = (bytes - lastSampleBytes) * 1e9 / (endNanos - lastSampleTime);
+            }
+            lastSampleBytes = bytes;
+            lastSampleTime = endNanos;
+        }
+    }
+
+    public void reset() {
+        count = 0;
+        next = 0;
+        lastSampleBytes = -1;
+        allocationRate = 0;
+    }
+
+    // Frames started in the last second before now
+    public int fps(long nowNanos) {
+        int frames = 0;
+        for (int i = 0; i < count; i++) {
+            if (nowNanos - starts[i] <= 1_000_000_000L) {
+                frames++;
+            }
+        }
+        return frames;
+    }
+
+    // Frame time percentile in milliseconds, p between 0 and 1
+    public double percentile(double p) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(durations, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.min(count - 1, Math.ceil(p * count) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    // Bytes per second allocated by the painting thread
+    public double allocationRate() {
+        return allocationRate;
+    }
+}
@@ -0,0 +1,111 @@
+package Utils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// PNG encoder fed a band of rows at a time, so the image never has to be
+// in memory whole. Pixels come in as ARGB ints (not premultiplied) and are
+// written as 8-bit RGBA, unfiltered like ImageIO writes them; on drawings
+// deflate does better on raw rows than on rows with the PNG filters.
+public class PngStream {
+
+    // Deflate level, ImageIO's default
+    private static final int LEVEL = 4;
+    private static final int CHUNK_BYTES = 1 << 16;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final Deflater deflater = new Deflater(LEVEL);
+    private final CRC32 crc = new CRC32();
+    private final byte[] chunk = new byte[CHUNK_BYTES];
+    private int chunkSize;
+
+    // filter type 0, then the pixels
+    private final byte[] row;
+    private int rowsWritten;
+
+    public PngStream(OutputStream out, int width, int height) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        row = new byte[width * 4 + 1];
+        this.out.write(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' });
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; // bit depth
+        header[9] = 6; // RGBA
+        writeChunk("IHDR", header, header.length);
+    }
+
+    // Appends rows to the image: count rows of width pixels, scanline ints
+    // apart, starting at offset
+    public void writeRows(int[] argb, int offset, int scanline, int count) throws IOException {
+        if (rowsWritten + count > height) {
+            throw new IllegalStateException("More rows than the image has");
+        }
+        for (int y = 0; y < count; y++) {
+            int from = offset + y * scanline;
+            for (int x = 0; x < width; x++) {
+                int p = argb[from + x];
+                row[x * 4 + 1] = (byte) (p >> 16);
+                row[x * 4 + 2] = (byte) (p >> 8);
+                row[x * 4 + 3] = (byte) p;
+                row[x * 4 + 4] = (byte) (p >>> 24);
+            }
+            deflater.setInput(row);
+            drain(false);
+            rowsWritten++;
+        }
+    }
+
+    // Ends the image, every row must have been written. The stream is
+    // flushed, not closed.
+    public void finish() throws IOException {
+        if (rowsWritten != height) {
+            throw new IllegalStateException("Image is missing " + (height - rowsWritten) + " rows");
+        }
+        deflater.finish();
+        drain(true);
+        if (chunkSize > 0) {
+            writeChunk("IDAT", chunk, chunkSize);
+        }
+        writeChunk("IEND", chunk, 0);
+        deflater.end();
+        out.flush();
+    }
+
+    // Moves deflated bytes into IDAT chunks
+    private void drain(boolean finishing) throws IOException {
+        while (finishing ? !deflater.finished() : !deflater.needsInput()) {
+            chunkSize += deflater.deflate(chunk, chunkSize, CHUNK_BYTES - chunkSize);
+            if (chunkSize == CHUNK_BYTES) {
+                writeChunk("IDAT", chunk, chunkSize);
+                chunkSize = 0;
+            }
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        out.writeInt(length);
+        out.write(name);
+        out.write(data, 0, length);
+        crc.reset();
+        crc.update(name);
+        crc.update(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] b, int at, int v) {
+        b[at] = (byte) (v >>> 24);
+        b[at + 1] = (byte) (v >>> 16);
+        b[at + 2] = (byte) (v >>> 8);
+        b[at + 3] = (byte) v;
+    }
+}
@@ -0,0 +1,170 @@
+package Utils;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+// Loose quadtree over shape bounding boxes.
+// Shapes are stored by their position in the drawing list, so query results
+// sorted ascending come back in drawing (z) order.
+// Every node's loose bounds are twice its cell, so an item only has to be
+// placed by its center and size and never straddles two children.
+public class ShapeIndex {
+
+    private static final int MAX_DEPTH = 16;
+
+    private final Node root;
+    private int size = 0;
+
+    // Builds an index whose root covers the sheet, items outside it are kept
+    // in the root and are still found by queries
+    public ShapeIndex(int sheetWidth, int sheetHeight) {
+        int extent = Integer.highestOneBit(Math.max(1, Math.max(sheetWidth, sheetHeight) - 1)) << 1;
+        root = new Node(0, 0, extent);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(int id, Rectangle bounds) {
+        Node node = locate(bounds, true);
+        node.add(id, bounds);
+        size++;
+    }
+
+    public void remove(int id, Rectangle bounds) {
+        Node node = locate(bounds, false);
+        if (node != null && node.remove(id)) {
+            size--;
+        }
+    }
+
+    // Ids of every item whose bounds intersect the area, in ascending order
+    public int[] query(Rectangle area) {
+        IntBuffer out = new IntBuffer();
+        root.query(area, out);
+        int[] ids = out.toArray();
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    // Walks down to the smallest cell that is at least as big as the item and
+    // contains its center
+    private Node locate(Rectangle b, boolean create) {
+        int itemSize = Math.max(b.width, b.height);
+        long cx = (long) b.x + b.width / 2;
+        long cy = (long) b.y + b.height / 2;
+
+        Node node = root;
+        if (cx < root.x || cy < root.y || cx >= root.x + root.size || cy >= root.y + root.size) {
+            return root;
+        }
+        for (int depth = 0; depth < MAX_DEPTH; depth++) {
+            int half = node.size / 2;
+            if (half < 1 || itemSize > half) {
+                break;
+            }
+            int qx = cx >= node.x + half ? 1 : 0;
+            int qy = cy >= node.y + half ? 1 : 0;
+            Node child = node.child(qx, qy, create);
+            if (child == null) {
+                return null;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private static class Node {
+        final int x, y, size;
+        Node[] children;
+
+        // items as parallel arrays: id and x, y, w, h
+        int[] ids = new int[0];
+        int[] boxes = new int[0];
+        int count = 0;
+
+        Node(int x, int y, int size) {
+            this.x = x;
+            this.y = y;
+            this.size = size;
+        }
+
+        Node child(int qx, int qy, boolean create) {
+            if (children == null) {
+                if (!create) {
+                    return null;
+                }
+                children = new Node[4];
+            }
+            int i = qy * 2 + qx;
+            if (children[i] == null && create) {
+                int half = size / 2;
+                children[i] = new Node(x + qx * half, y + qy * half, half);
+            }
+            return children[i];
+        }
+
+        void add(int id, Rectangle b) {
+            if (count == ids.length) {
+                int cap = Math.max(4, count * 2);
+                ids = Arrays.copyOf(ids, cap);
+                boxes = Arrays.copyOf(boxes, cap * 4);
+            }
+            ids[count] = id;
+            boxes[count * 4] = b.x;
+            boxes[count * 4 + 1] = b.y;
+            boxes[count * 4 + 2] = b.width;
+            boxes[count * 4 + 3] = b.height;
+            count++;
+        }
+
+        boolean remove(int id) {
+            for (int i = 0; i < count; i++) {
+                if (ids[i] == id) {
+                    // move the last item into the gap, order is restored by sorting
+                    count--;
+                    ids[i] = ids[count];
+                    System.arraycopy(boxes, count * 4, boxes, i * 4, 4);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void query(Rectangle area, IntBuffer out) {
+            for (int i = 0; i < count; i++) {
+                int o = i * 4;
+                if (area.intersects(boxes[o], boxes[o + 1], boxes[o + 2], boxes[o + 3])) {
+                    out.add(ids[i]);
+                }
+            }
+            if (children == null) {
+                return;
+            }
+            for (Node c : children) {
+                // loose bounds: the cell grown by half its size on every side
+                if (c != null && area.intersects(c.x - c.size / 2.0, c.y - c.size / 2.0, c.size * 2.0, c.size * 2.0)) {
+                    c.query(area, out);
+                }
+            }
+        }
+    }
+
+    // Growable int array so queries do not box every id
+    private static class IntBuffer {
+        int[] data = new int[64];
+        int size = 0;
+
+        void add(int v) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = v;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
@@ -16,6 +16,7 @@ public class ShortcutManager {
             JButton ovalBtn,
             JButton textBtn,
             JButton handBtn,
+            JButton selectBtn,
             JCheckBox dashedCheck,
             JCheckBox filledCheck,
             JButton undoBtn,
@@ -43,6 +44,7 @@ public class ShortcutManager {
         bindKey(im, am, KeyEvent.VK_V, InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK, "oval", ovalBtn);
         bindKey(im, am, KeyEvent.VK_T, InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK, "text", textBtn);
         bindKey(im, am, KeyEvent.VK_H, InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK, "hand", handBtn);
+        bindKey(im, am, KeyEvent.VK_A, InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK, "select", selectBtn);
 
         // Toggles
         bindKey(im, am, KeyEvent.VK_D, InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK, "dashed", dashedCheck);
@@ -65,6 +67,17 @@ public class ShortcutManager {
         bindKey(im, am, KeyEvent.VK_0, 0, "colorPalette", colorPaletteBtn);
     }
 
+    // Binds a key to an action that has no button
+    public static void bindAction(JComponent root, int keyCode, int modifiers, String key, Runnable action) {
+        root.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(keyCode, modifiers), key);
+        root.getActionMap().put(key, new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                action.run();
+            }
+        });
+    }
+
     // bind method is to bind a key to an action
     private static void bindKey(InputMap im, ActionMap am, int keyCode, int modifiers, String key, AbstractButton button) {
         // put the key stroke in the input map